@@ -0,0 +1,8 @@
+-- Nearly every query on results filters on the result name and sub run
+-- together, and many on the rank as well, before reading the value. Replace
+-- the index on the name alone with one covering all of these, so that such
+-- queries are answered from the index without reading the table rows.
+
+ALTER TABLE ${schema}.Result
+  ADD INDEX `NameSubRunRankValue` (`Name`, `SubRun`, `Rank`, `Value`),
+  DROP INDEX `Name`;
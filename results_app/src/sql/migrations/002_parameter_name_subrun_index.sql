@@ -0,0 +1,7 @@
+-- Parameters are filtered on their name and sub run together, and the type
+-- is read to decide which value column holds the value. Replace the index on
+-- the name alone with one covering all of these.
+
+ALTER TABLE ${schema}.Parameter
+  ADD INDEX `NameSubRunOwnerType` (`Name`, `SubRunOwner`, `Type`),
+  DROP INDEX `Name`;
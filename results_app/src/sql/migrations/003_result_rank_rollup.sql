@@ -0,0 +1,24 @@
+-- Graphs of the rank average, maximum or minimum of a result otherwise read
+-- the value of every rank of every sub run. Keep, for each sub run and result
+-- name, the minimum, maximum, sum, sum of squares and number of its per-rank
+-- values, so that these graphs read one row per sub run instead.
+--
+-- The rollups are written as results are saved. Those of the results already
+-- saved, or saved since by an older client, are not filled in here, as doing
+-- so reads every result in one statement; they are filled in, in batches of
+-- sub runs, by running the application with -rollups. Until then graphs read
+-- the per-rank values of the sub runs which have no rollups.
+
+CREATE TABLE IF NOT EXISTS ${schema}.ResultRollup (
+  `SubRun` int(11) NOT NULL,
+  `Name` char(50) NOT NULL,
+  `MinValue` double NOT NULL,
+  `MaxValue` double NOT NULL,
+  `SumValue` double NOT NULL,
+  `SumSquares` double NOT NULL,
+  `RankCount` int(11) NOT NULL,
+  PRIMARY KEY (`Name`, `SubRun`),
+  KEY `SubRun` (`SubRun`),
+  CONSTRAINT `ResultRollup_ibfk_1` FOREIGN KEY (`SubRun`)
+    REFERENCES ${schema}.SubRun (`ID`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
@@ -0,0 +1,6 @@
+-- The run listing is read a page at a time in run date order, seeking past
+-- the run date and ID of the last run read. Index these together so each
+-- page is read straight from the index rather than by sorting every run.
+
+ALTER TABLE ${schema}.Run
+  ADD INDEX `RunDateID` (`RunDate`, `ID`);
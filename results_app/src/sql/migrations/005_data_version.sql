@@ -0,0 +1,12 @@
+-- Data grids are cached on disk against a stamp of the database contents.
+-- Runs imported or deleted change the row counts of the run and meta data
+-- tables, but meta data updated in place does not, so every client bumps this
+-- version as it commits a write, and the stamp includes it.
+
+CREATE TABLE IF NOT EXISTS ${schema}.DataVersion (
+  `ID` int(11) NOT NULL,
+  `Version` bigint(20) NOT NULL,
+  PRIMARY KEY (`ID`)
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+
+INSERT IGNORE INTO ${schema}.DataVersion (ID, Version) VALUES (1, 0);
@@ -56,8 +56,52 @@ public final class Configuration {
 		DB_DRIVER("database.driver"),
 		/** */
 		DB_CONNECTION_URL("database.connection.url"),
+		/** Connection URL of a read only replica, blank to read from the primary. */
+		DB_READ_CONNECTION_URL("database.read.connection.url"),
+		/** User name for the replica, blank to use that of the primary. */
+		DB_READ_USERNAME("database.read.username"),
+		/** Password for the replica, blank to use that of the primary. */
+		DB_READ_PASSWORD("database.read.password"),
+		/** Milliseconds after a write during which reads go to the primary. */
+		DB_READ_AFTER_WRITE_MS("database.read.afterwrite.ms"),
 		/** */
 		DB_SCHEMA("database.schema"),
+		/** Maximum number of pooled connections used for queries. */
+		DB_POOL_READ_SIZE("database.pool.read.size"),
+		/** Maximum number of pooled connections used for saves and deletes. */
+		DB_POOL_WRITE_SIZE("database.pool.write.size"),
+		/** Seconds after which an unused pooled connection is closed. */
+		DB_POOL_IDLE_TIMEOUT("database.pool.idle.timeout"),
+		/** Seconds to wait when validating a pooled connection, 0 to skip. */
+		DB_POOL_VALIDATION_TIMEOUT("database.pool.validation.timeout"),
+		/** Prepared statements cached per connection, 0 to disable. */
+		DB_STATEMENT_CACHE_SIZE("database.statement.cache.size"),
+		/** Rows sent to the database in each batched insert. */
+		DB_BATCH_SIZE("database.batch.size"),
+		/** Meta data IDs cached by business key, 0 to disable. */
+		DB_ID_CACHE_SIZE("database.idcache.size"),
+		/** Rows held across all cached query results, 0 to disable. */
+		DB_QUERY_CACHE_ROWS("database.querycache.rows"),
+		/** Megabytes of query results cached on disk, 0 to disable. */
+		DB_DISK_CACHE_MB("database.diskcache.mb"),
+		/** Largest restriction applied as a list of IDs, not a sub-query. */
+		DB_RESTRICTION_ID_LIST_MAX("database.restriction.idlist.max"),
+		/** Large restriction sets kept as temporary tables, 0 to disable. */
+		DB_RESTRICTION_TEMP_TABLES("database.restriction.temptables"),
+		/** Whether imported results are saved using LOAD DATA LOCAL INFILE. */
+		DB_BULK_LOAD("database.bulkload"),
+		/** Runs saved in each transaction when bulk loading. */
+		DB_BULK_LOAD_RUNS("database.bulkload.runs"),
+		/** Whether schema migrations are applied when the application starts. */
+		DB_MIGRATE("database.migrate"),
+		/** Milliseconds above which a statement is logged as slow, 0 to disable. */
+		DB_SLOW_QUERY_MS("database.slowquery.ms"),
+		/** Queries run at once in the background for the GUI. */
+		DB_ASYNC_THREADS("database.async.threads"),
+		/** Whether the embedded file store is used rather than the database. */
+		DB_EMBEDDED("database.embedded"),
+		/** The embedded store file, blank for the one in the user directory. */
+		DB_EMBEDDED_FILE("database.embedded.file"),
 		/** */
 		DATA_ORIGIN("database.dataorigin"),
 		/** */
@@ -393,6 +437,48 @@ public final class Configuration {
 		}
 	}
 
+	/**
+	 * Returns the integer value of the property passed in, or the given
+	 * default if no value is set or the value is not a valid integer.
+	 * 
+	 * @param name
+	 *            the property to get.
+	 * @param defaultValue
+	 *            the value to return if the property is not set.
+	 * @return value of the property.
+	 */
+	public int getIntegerProperty(Key name, int defaultValue) {
+		final String value = getProperty(name);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException ex) {
+			LOG.warn("Invalid value " + value + " for property " + name
+					+ ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Returns the boolean value of the property passed in, or the given
+	 * default if no value is set.
+	 * 
+	 * @param name
+	 *            the property to get.
+	 * @param defaultValue
+	 *            the value to return if the property is not set.
+	 * @return value of the property.
+	 */
+	public boolean getBooleanProperty(Key name, boolean defaultValue) {
+		final String value = getProperty(name);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		return Boolean.parseBoolean(value.trim());
+	}
+
 	/**
 	 * Return the name that should be stored in the database, using the {@code
 	 * NAME_IN_DATABASE_OPTION} to determine from where to retrieve this.
@@ -93,6 +93,91 @@ public final class Constants {
 		public static final String TEST_FILE = "test";
 	}
 
+	/**
+	 * Database constants, used as defaults when the configuration does not
+	 * specify a value.
+	 */
+	public static final class Database {
+		/** The default number of pooled connections used for queries. */
+		public static final int POOL_READ_SIZE = 4;
+
+		/** The default number of pooled connections used for writes. */
+		public static final int POOL_WRITE_SIZE = 2;
+
+		/** The default pooled connection idle timeout. */
+		public static final int POOL_IDLE_TIMEOUT = 300; // s
+
+		/** The default pooled connection validation timeout. */
+		public static final int POOL_VALIDATION_TIMEOUT = 2; // s
+
+		/**
+		 * The default time after the application writes to the database
+		 * during which its reads go to the primary rather than a replica,
+		 * which may not yet have the changes.
+		 */
+		public static final int READ_AFTER_WRITE_MS = 10000; // ms
+
+		/** The time to wait for a pooled connection to become free. */
+		public static final long POOL_BORROW_TIMEOUT = 60000; // ms
+
+		/** The default number of prepared statements cached per connection. */
+		public static final int STATEMENT_CACHE_SIZE = 64;
+
+		/** The default number of rows sent in each batched insert. */
+		public static final int BATCH_SIZE = 1000;
+
+		/** The default number of meta data IDs cached by business key. */
+		public static final int ID_CACHE_SIZE = 1024;
+
+		/** The default number of rows held across all cached query results. */
+		public static final int QUERY_CACHE_ROWS = 200000;
+
+		/** The default megabytes of query results cached on disk. */
+		public static final int DISK_CACHE_MB = 256;
+
+		/**
+		 * The directory for the query results cached on disk, in the user
+		 * configuration directory.
+		 */
+		public static final String DISK_CACHE_DIRECTORY = "cache";
+
+		/**
+		 * The default largest estimated number of sub runs a restriction may
+		 * match and still be sent to the database as a list of IDs.
+		 */
+		public static final int RESTRICTION_ID_LIST_MAX = 1000;
+
+		/**
+		 * The default number of large restriction sets kept as temporary
+		 * tables on each connection.
+		 */
+		public static final int RESTRICTION_TEMP_TABLES = 8;
+
+		/** Whether imported results are bulk loaded by default. */
+		public static final boolean BULK_LOAD = false;
+
+		/** The default number of runs saved in each bulk load transaction. */
+		public static final int BULK_LOAD_RUNS = 50;
+
+		/** Whether schema migrations are applied by default on start up. */
+		public static final boolean MIGRATE = true;
+
+		/** The default time above which a statement is logged as slow. */
+		public static final int SLOW_QUERY_MS = 1000; // ms
+
+		/** The default number of queries run at once in the background. */
+		public static final int ASYNC_THREADS = 2;
+
+		/** Whether the embedded file store is used by default. */
+		public static final boolean EMBEDDED = false;
+
+		/**
+		 * The default embedded store file, in the user configuration
+		 * directory.
+		 */
+		public static final String EMBEDDED_FILE = "embedded.store";
+	}
+
 	/**
 	 * Constants used in the export of PMAT results.
 	 */
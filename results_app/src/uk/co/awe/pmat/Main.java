@@ -1,9 +1,15 @@
 package uk.co.awe.pmat;
 
+import java.io.File;
+import java.util.concurrent.Executor;
 import javax.swing.SwingUtilities;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.co.awe.pmat.db.AsyncDatabaseConnection;
+import uk.co.awe.pmat.db.DatabaseConnection;
+import uk.co.awe.pmat.db.DatabaseException;
 import uk.co.awe.pmat.db.DatabaseManager;
+import uk.co.awe.pmat.db.embedded.EmbeddedDatabaseConnection;
 import uk.co.awe.pmat.db.jdbc.JdbcDatabaseConnection;
 import uk.co.awe.pmat.db.jdbc.JdbcProperties;
 import uk.co.awe.pmat.gui.MainFrame;
@@ -53,8 +59,70 @@ public class Main {
 		}
 
 		configuration = new Configuration(new JdbcProperties(), mode);
-		DatabaseManager.setDatabaseConnection(new JdbcDatabaseConnection(
-				configuration));
+		final boolean embedded = configuration.getBooleanProperty(
+				Configuration.Key.DB_EMBEDDED, Constants.Database.EMBEDDED);
+
+		if (ArrayUtils.arrayContains(args, "-sync")) {
+			syncEmbeddedStore();
+			return;
+		}
+
+		final DatabaseConnection connection;
+		if (embedded) {
+			try {
+				connection = new EmbeddedDatabaseConnection(embeddedFile());
+			} catch (DatabaseException ex) {
+				throw new ApplicationException(ex.getMessage(), ex);
+			}
+		} else {
+			connection = new JdbcDatabaseConnection(configuration);
+		}
+		DatabaseManager.setDatabaseConnection(connection);
+
+		if (ArrayUtils.arrayContains(args, "-migrate")) {
+			try {
+				connection.migrateSchema();
+			} catch (DatabaseException ex) {
+				throw new ApplicationException(ex.getMessage(), ex);
+			} finally {
+				connection.close();
+			}
+			return;
+		} else if (configuration.getBooleanProperty(
+				Configuration.Key.DB_MIGRATE, Constants.Database.MIGRATE)) {
+			try {
+				connection.migrateSchema();
+			} catch (DatabaseException ex) {
+				// The application works against an older schema, just more
+				// slowly, so this should not stop it starting.
+				LOG.warn("Database schema could not be brought up to date", ex);
+			}
+		}
+
+		if (ArrayUtils.arrayContains(args, "-rollups")) {
+			try {
+				if (!(connection instanceof JdbcDatabaseConnection)) {
+					throw new ApplicationException(
+							"Rank rollups are only kept in the database");
+				}
+				((JdbcDatabaseConnection) connection).backfillRankRollups();
+			} catch (DatabaseException ex) {
+				throw new ApplicationException(ex.getMessage(), ex);
+			} finally {
+				connection.close();
+			}
+			return;
+		}
+
+		DatabaseManager.setAsyncConnection(new AsyncDatabaseConnection(
+				connection, configuration.getIntegerProperty(
+						Configuration.Key.DB_ASYNC_THREADS,
+						Constants.Database.ASYNC_THREADS), new Executor() {
+					@Override
+					public void execute(Runnable command) {
+						SwingUtilities.invokeLater(command);
+					}
+				}));
 
 		SwingUtilities.invokeLater(new Runnable() {
 			@Override
@@ -64,4 +132,50 @@ public class Main {
 		});
 	}
 
+	/**
+	 * Return the embedded store file given in the configuration, or the
+	 * default one in the user configuration directory.
+	 * 
+	 * @return the embedded store file.
+	 */
+	private File embeddedFile() {
+		final String path = configuration
+				.getProperty(Configuration.Key.DB_EMBEDDED_FILE);
+		if (path != null && !path.trim().isEmpty()) {
+			return new File(path.trim());
+		}
+		final File dir = new File(System.getProperty("user.home"),
+				Constants.Config.DIRECTORY);
+		if (!dir.exists()) {
+			dir.mkdirs();
+		}
+		return new File(dir, Constants.Database.EMBEDDED_FILE);
+	}
+
+	/**
+	 * Copy the runs and saved analyses in the database which are not yet in
+	 * the embedded store into it, so that they can be analysed offline.
+	 */
+	@SuppressWarnings( { "UseOfSystemOutOrSystemErr" })
+	private void syncEmbeddedStore() throws ApplicationException {
+		final JdbcDatabaseConnection source = new JdbcDatabaseConnection(
+				configuration);
+		try {
+			final EmbeddedDatabaseConnection store = new EmbeddedDatabaseConnection(
+					embeddedFile());
+			// Saved analyses are read through the application's connection.
+			DatabaseManager.setDatabaseConnection(store);
+			try {
+				System.out.println("Copied " + store.syncFrom(source)
+						+ " runs to the embedded store");
+			} finally {
+				store.close();
+			}
+		} catch (DatabaseException ex) {
+			throw new ApplicationException(ex.getMessage(), ex);
+		} finally {
+			source.close();
+		}
+	}
+
 }
@@ -0,0 +1,345 @@
+package uk.co.awe.pmat.db;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs queries against a {@link DatabaseConnection} on a pool of background
+ * threads, so that they do not block the thread which asks for them, and
+ * hands their results to a callback.
+ *
+ * <p>Each query may be submitted on behalf of an owner, such as the widget
+ * whose contents it will fill. Submitting a new query for an owner supersedes
+ * the owner's previous query: its callback is never called, and if no one
+ * else is waiting for it the query is cancelled, even if the database has
+ * already started running it. Queries submitted with equal keys whilst the
+ * first is still running share its result rather than being run again.</p>
+ *
+ * @author AWE Plc copyright 2013
+ */
+public final class AsyncDatabaseConnection {
+
+	private final static Logger LOG = LoggerFactory
+			.getLogger(AsyncDatabaseConnection.class);
+
+	/**
+	 * A query to run against the database.
+	 *
+	 * @param <T>
+	 *            the type of the query result.
+	 */
+	public interface Query<T> {
+		/**
+		 * Run the query.
+		 *
+		 * @param connection
+		 *            the connection to run the query against.
+		 * @return the query result.
+		 * @throws DatabaseException
+		 *             if an error occurs querying the database.
+		 */
+		T run(DatabaseConnection connection) throws DatabaseException;
+	}
+
+	/**
+	 * Receives the result of a query. The methods are called using the
+	 * callback executor given to the {@code AsyncDatabaseConnection}.
+	 *
+	 * @param <T>
+	 *            the type of the query result.
+	 */
+	public interface Callback<T> {
+		/**
+		 * Called with the result of a query which succeeded.
+		 *
+		 * @param result
+		 *            the query result.
+		 */
+		void succeeded(T result);
+
+		/**
+		 * Called with the error raised by a query which failed.
+		 *
+		 * @param ex
+		 *            the error.
+		 */
+		void failed(DatabaseException ex);
+	}
+
+	private final DatabaseConnection connection;
+	private final ExecutorService executor;
+	private final ExecutorService cancelExecutor;
+	private final Executor callbackExecutor;
+	private final Map<Object, Task<?>> tasksByKey = new HashMap<>();
+	private final Map<Object, Subscription<?>> subscriptionsByOwner = new HashMap<>();
+
+	/**
+	 * Create a new {@code AsyncDatabaseConnection}.
+	 *
+	 * @param connection
+	 *            the connection to run the queries against.
+	 * @param threads
+	 *            the number of queries to run at once.
+	 * @param callbackExecutor
+	 *            the executor used to call the callbacks, e.g. one which
+	 *            calls them on the {@code EDT}.
+	 */
+	public AsyncDatabaseConnection(DatabaseConnection connection, int threads,
+			Executor callbackExecutor) {
+		this.connection = connection;
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads),
+				new DaemonThreadFactory("pmat-db"));
+		this.cancelExecutor = Executors
+				.newSingleThreadExecutor(new DaemonThreadFactory("pmat-db-cancel"));
+		this.callbackExecutor = callbackExecutor;
+	}
+
+	/**
+	 * Return the connection the queries are run against.
+	 *
+	 * @return the connection.
+	 */
+	public DatabaseConnection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * Submit a query to be run in the background.
+	 *
+	 * @param <T>
+	 *            the type of the query result.
+	 * @param owner
+	 *            the owner of the query, whose previous query is superseded
+	 *            by this one, or {@code null} if the query has no owner.
+	 * @param key
+	 *            a key identifying the query, so that it is only run once if
+	 *            submitted again whilst it is running, or {@code null} if the
+	 *            query should always be run. Equal keys must identify queries
+	 *            with equal results of the same type.
+	 * @param query
+	 *            the query.
+	 * @param callback
+	 *            the callback to receive the query result.
+	 */
+	public synchronized <T> void submit(Object owner, Object key,
+			Query<T> query, Callback<T> callback) {
+		if (owner != null) {
+			final Subscription<?> previous = subscriptionsByOwner.remove(owner);
+			if (previous != null) {
+				unsubscribe(previous);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		Task<T> task = (key == null) ? null : (Task<T>) tasksByKey.get(key);
+		if (task == null) {
+			task = new Task<>(key == null ? new Object() : key, query);
+			tasksByKey.put(task.key, task);
+			task.future = executor.submit(task);
+		}
+
+		final Subscription<T> subscription = new Subscription<>(owner, task,
+				callback);
+		task.subscriptions.add(subscription);
+		if (owner != null) {
+			subscriptionsByOwner.put(owner, subscription);
+		}
+	}
+
+	/**
+	 * Cancel the query submitted for the given owner, if it has not yet
+	 * finished. Its callback is not called.
+	 *
+	 * @param owner
+	 *            the owner of the query.
+	 */
+	public synchronized void cancel(Object owner) {
+		final Subscription<?> subscription = subscriptionsByOwner.remove(owner);
+		if (subscription != null) {
+			unsubscribe(subscription);
+		}
+	}
+
+	/**
+	 * Cancel all the queries and stop the background threads.
+	 */
+	public synchronized void shutdown() {
+		for (Task<?> task : new ArrayList<>(tasksByKey.values())) {
+			cancelTask(task);
+		}
+		subscriptionsByOwner.clear();
+		executor.shutdown();
+		cancelExecutor.shutdown();
+	}
+
+	private void unsubscribe(Subscription<?> subscription) {
+		subscription.active = false;
+		final Task<?> task = subscription.task;
+		task.subscriptions.remove(subscription);
+		if (task.subscriptions.isEmpty()) {
+			cancelTask(task);
+		}
+	}
+
+	private void cancelTask(final Task<?> task) {
+		if (tasksByKey.get(task.key) == task) {
+			tasksByKey.remove(task.key);
+		}
+		task.cancelled = true;
+		task.future.cancel(false);
+		// Cancelling a running statement means a round trip to the database,
+		// which should not hold up the thread submitting the next query.
+		cancelExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				task.cancelStatement();
+			}
+		});
+	}
+
+	/**
+	 * Called when a task has finished, to hand its result to those still
+	 * waiting for it.
+	 */
+	private <T> void finished(Task<T> task, final T result,
+			final DatabaseException error) {
+		final List<Subscription<T>> subscriptions;
+		synchronized (this) {
+			if (tasksByKey.get(task.key) == task) {
+				tasksByKey.remove(task.key);
+			}
+			if (task.cancelled) {
+				return;
+			}
+			subscriptions = new ArrayList<>(task.subscriptions);
+			for (Subscription<T> subscription : subscriptions) {
+				if (subscription.owner != null
+						&& subscriptionsByOwner.get(subscription.owner) == subscription) {
+					subscriptionsByOwner.remove(subscription.owner);
+				}
+			}
+		}
+
+		for (final Subscription<T> subscription : subscriptions) {
+			callbackExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					// The owner may have moved on whilst this was queued.
+					if (!subscription.active) {
+						return;
+					}
+					if (error == null) {
+						subscription.callback.succeeded(result);
+					} else {
+						subscription.callback.failed(error);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * A query which is waiting to run or running, and the callbacks waiting
+	 * for its result.
+	 */
+	private final class Task<T> implements Runnable {
+		private final Object key;
+		private final Query<T> query;
+		private final List<Subscription<T>> subscriptions = new ArrayList<>();
+		private Future<?> future;
+		private volatile boolean cancelled = false;
+		private Thread thread;
+
+		Task(Object key, Query<T> query) {
+			this.key = key;
+			this.query = query;
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				if (cancelled) {
+					return;
+				}
+				thread = Thread.currentThread();
+			}
+
+			T result = null;
+			DatabaseException error = null;
+			try {
+				result = query.run(connection);
+			} catch (DatabaseException ex) {
+				error = ex;
+			} catch (RuntimeException ex) {
+				error = new DatabaseException(ex);
+			} finally {
+				synchronized (this) {
+					thread = null;
+				}
+			}
+
+			if (error != null && !cancelled) {
+				LOG.debug("Background query failed", error);
+			}
+			finished(this, result, error);
+		}
+
+		/**
+		 * Cancel the statement the task is running, if any. The lock is held
+		 * throughout so that the thread cannot move on to another task's
+		 * statement in the meantime.
+		 */
+		synchronized void cancelStatement() {
+			if (thread != null) {
+				connection.cancelQuery(thread);
+			}
+		}
+	}
+
+	/**
+	 * A callback waiting for the result of a task.
+	 */
+	private static final class Subscription<T> {
+		private final Object owner;
+		private final Task<T> task;
+		private final Callback<T> callback;
+		private volatile boolean active = true;
+
+		Subscription(Object owner, Task<T> task, Callback<T> callback) {
+			this.owner = owner;
+			this.task = task;
+			this.callback = callback;
+		}
+	}
+
+	/**
+	 * Creates named daemon threads, so that queries left running do not stop
+	 * the application exiting.
+	 */
+	private static final class DaemonThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+
+		DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			final Thread thread = new Thread(runnable, name + "-"
+					+ count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package uk.co.awe.pmat.db;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -20,7 +21,9 @@ import uk.co.awe.pmat.utils.StringUtils;
  * 
  * @author AWE Plc copyright 2013
  */
-public class DataGrid {
+public class DataGrid implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	/**
 	 * The series group which is used when no series are defined, i.e. every
@@ -33,7 +36,10 @@ public class DataGrid {
 	 * An implementation of the {@link SeriesGroup} interface which encapsulates
 	 * the series group defined by the series columns of a {@link Row}.
 	 */
-	public static final class RowSeriesGroup extends SeriesGroup {
+	public static final class RowSeriesGroup extends SeriesGroup implements
+			Serializable {
+
+		private static final long serialVersionUID = 1L;
 
 		private final Object[] groups;
 		private final String[] names;
@@ -82,12 +88,39 @@ public class DataGrid {
 				return super.compareTo(group);
 			}
 		}
+
+		/**
+		 * Return {@link DataGrid#NULL_SERIES_GROUP} in place of a deserialised
+		 * copy of it.
+		 * 
+		 * @return the series group.
+		 */
+		private Object readResolve() {
+			return groups.length == 0 ? NULL_SERIES_GROUP : this;
+		}
+	}
+
+	/**
+	 * A consumer of the rows of a data grid, used to process the rows of a
+	 * query one at a time rather than holding them all in a grid.
+	 */
+	public interface RowConsumer {
+
+		/**
+		 * Process the next row.
+		 * 
+		 * @param row
+		 *            the row.
+		 */
+		void accept(Row row);
 	}
 
 	/**
 	 * A row of data in the data grid.
 	 */
-	public static final class Row {
+	public static final class Row implements Serializable {
+		private static final long serialVersionUID = 1L;
+
 		private final Value<?> xValue;
 		private final Map<String, Value<?>> yValues;
 		private final RowSeriesGroup series;
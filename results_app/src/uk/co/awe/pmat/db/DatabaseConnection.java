@@ -2,6 +2,7 @@ package uk.co.awe.pmat.db;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import uk.co.awe.pmat.Configuration;
 import uk.co.awe.pmat.db.axis.Axis;
 import uk.co.awe.pmat.db.criteria.Category;
@@ -94,6 +95,33 @@ public interface DatabaseConnection {
 			Category category, String field, Rank rank)
 			throws DatabaseException;
 
+	/**
+	 * Return the distinct values of each of the given fields of a
+	 * {@code Category}, at any rank, with the number of sub runs subject to the
+	 * given restrictions which have each value. The values of all the fields
+	 * are counted together, rather than with a query for each field, so that
+	 * a filter panel can show how many sub runs each of its options would
+	 * match and leave out those which match none.
+	 * 
+	 * @param restrictions
+	 *            the restrictions to apply.
+	 * @param category
+	 *            the category of the fields.
+	 * @param fields
+	 *            the fields for which to count the values, e.g. the names of
+	 *            parameters.
+	 * @return the values of each field, sorted by value, by field name in the
+	 *         order given. Fields without any values are given an empty list.
+	 * @throws DatabaseException
+	 *             if an error occurs querying the database.
+	 * @throws IllegalArgumentException
+	 *             if one of the fields of a run or of meta data does not
+	 *             exist.
+	 */
+	Map<String, List<ValueCount>> getValueCounts(
+			Collection<Restriction> restrictions, Category category,
+			Collection<String> fields) throws DatabaseException;
+
 	// ------------------------------------------------------------------------/
 	// Meta data --------------------------------------------------------------/
 
@@ -177,6 +205,33 @@ public interface DatabaseConnection {
 			Collection<Restriction> restrictions, Collection<Series> series)
 			throws DatabaseException;
 
+	/**
+	 * Perform an analysis query on the database as
+	 * {@link #getDataGrid(Axis, Axis, Rank, Collection, Collection)} does, but
+	 * pass each row to the given consumer as it is read from the database
+	 * rather than returning them all in a {@code DataGrid}, so that the rows
+	 * need not all be held in memory at once. The consumer must not use this
+	 * connection, as the query is still being read whilst it is called.
+	 * 
+	 * @param xAxis
+	 *            the x-axis of the analysis.
+	 * @param yAxis
+	 *            the y-axis of the analysis.
+	 * @param rank
+	 *            the rank of the y-axis.
+	 * @param restrictions
+	 *            the restrictions to apply.
+	 * @param series
+	 *            the series to split the data into.
+	 * @param consumer
+	 *            the consumer to pass the rows to.
+	 * @throws DatabaseException
+	 *             if an error occurs querying the database.
+	 */
+	void getDataGrid(Axis xAxis, Axis yAxis, Rank rank,
+			Collection<Restriction> restrictions, Collection<Series> series,
+			DataGrid.RowConsumer consumer) throws DatabaseException;
+
 	// ------------------------------------------------------------------------/
 	// Runs -------------------------------------------------------------------/
 
@@ -189,6 +244,31 @@ public interface DatabaseConnection {
 	 */
 	List<Run> getRuns() throws DatabaseException;
 
+	/**
+	 * Returns one page of the {@code Run}s stored in the database, sorted and
+	 * filtered as given by the query. The {@code Run}s returned share the
+	 * meta-data objects of any other {@code Run} with the same meta-data.
+	 *
+	 * @param query
+	 *            the query describing the page.
+	 * @return the page of runs.
+	 * @throws DatabaseException
+	 *             if an error occurs querying the database.
+	 */
+	RunPage getRuns(RunQuery query) throws DatabaseException;
+
+	/**
+	 * Returns the number of {@code Run}s matching the filter of the given
+	 * query, ignoring which page it asks for.
+	 *
+	 * @param query
+	 *            the query.
+	 * @return the number of runs.
+	 * @throws DatabaseException
+	 *             if an error occurs querying the database.
+	 */
+	int getRunCount(RunQuery query) throws DatabaseException;
+
 	/**
 	 * Returns all the {@code DataSet}s associated with the given {@code Run}.
 	 * 
@@ -200,6 +280,19 @@ public interface DatabaseConnection {
 	 */
 	Collection<RunData> getDataSets(Run run) throws DatabaseException;
 
+	/**
+	 * Returns all the {@code DataSet}s associated with each of the given
+	 * {@code Run}s, loading the data sets of many runs at once.
+	 * 
+	 * @param runs
+	 *            the runs.
+	 * @return the datasets of each run, in the same order as the runs.
+	 * @throws DatabaseException
+	 *             if an error occurs querying the database.
+	 */
+	List<Collection<RunData>> getDataSets(List<Run> runs)
+			throws DatabaseException;
+
 	// ------------------------------------------------------------------------/
 	// Saving/Deleting --------------------------------------------------------/
 
@@ -213,6 +306,18 @@ public interface DatabaseConnection {
 	 */
 	void save(DatabaseObject dbObject) throws DatabaseException;
 
+	/**
+	 * Save a number of objects into the database in a single transaction, so
+	 * that either all of them are saved or, if any fail, none of them are.
+	 * 
+	 * @param dbObjects
+	 *            the objects to save.
+	 * @throws DatabaseException
+	 *             if an error occurs querying the database.
+	 */
+	void saveAll(Collection<? extends DatabaseObject> dbObjects)
+			throws DatabaseException;
+
 	/**
 	 * Delete an object from the database.
 	 * 
@@ -223,6 +328,18 @@ public interface DatabaseConnection {
 	 */
 	void delete(DatabaseObject dbObject) throws DatabaseException;
 
+	/**
+	 * Delete a number of objects from the database, along with everything
+	 * which belongs to them, in a single transaction.
+	 * 
+	 * @param dbObjects
+	 *            the objects to delete.
+	 * @throws DatabaseException
+	 *             if an error occurs querying the database.
+	 */
+	void deleteAll(Collection<? extends DatabaseObject> dbObjects)
+			throws DatabaseException;
+
 	/**
 	 * Try the database connection using a simple query.
 	 * 
@@ -257,6 +374,38 @@ public interface DatabaseConnection {
 	 */
 	public Collection<String> getFlags(Run run) throws DatabaseException;
 
+	/**
+	 * Get the build flags stored against each of the given runs, loading the
+	 * flags of many runs at once.
+	 * 
+	 * @param runs
+	 *            the runs to get the flags for.
+	 * @return the flags of each run, in the same order as the runs.
+	 * @throws DatabaseException
+	 *             if an error occurs querying the database.
+	 */
+	public List<Collection<String>> getFlags(List<Run> runs)
+			throws DatabaseException;
+
+	/**
+	 * Bring the database schema up to date, by applying any schema migrations
+	 * which have not yet been applied to it.
+	 * 
+	 * @throws DatabaseException
+	 *             if a migration fails.
+	 */
+	void migrateSchema() throws DatabaseException;
+
+	/**
+	 * Cancel the query currently being run by the given thread, if any. The
+	 * method running the query then throws a {@code DatabaseException}. This
+	 * may be called from any thread.
+	 * 
+	 * @param thread
+	 *            the thread running the query.
+	 */
+	void cancelQuery(Thread thread);
+
 	public void close();
 
 }
@@ -7,6 +7,7 @@ package uk.co.awe.pmat.db;
 public class DatabaseManager {
 
 	private static DatabaseConnection databaseConnection;
+	private static AsyncDatabaseConnection asyncConnection;
 
 	/**
 	 * Set the database connection that will be used in the application.
@@ -33,4 +34,30 @@ public class DatabaseManager {
 		return databaseConnection;
 	}
 
+	/**
+	 * Set the connection used to run queries in the background.
+	 * 
+	 * @param asyncConnection
+	 *            the background connection.
+	 */
+	public static void setAsyncConnection(
+			AsyncDatabaseConnection asyncConnection) {
+		DatabaseManager.asyncConnection = asyncConnection;
+	}
+
+	/**
+	 * Return the connection used to run queries in the background. If no
+	 * connection has been set up then this will throw a
+	 * {@link IllegalStateException}.
+	 * 
+	 * @return the background connection.
+	 */
+	public static AsyncDatabaseConnection getAsyncConnection() {
+		if (asyncConnection == null) {
+			throw new IllegalStateException(
+					"Database connection not initialised");
+		}
+		return asyncConnection;
+	}
+
 }
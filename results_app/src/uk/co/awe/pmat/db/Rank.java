@@ -226,4 +226,17 @@ public final class Rank implements Comparable<Rank>, Serializable {
         return rank - other.rank;
     }
 
+    /**
+     * Return the pooled {@code Rank} in place of a deserialised copy, so that
+     * the special ranks may still be compared by identity.
+     *
+     * @return the pooled rank.
+     */
+    private Object readResolve() {
+        if (rank < 0) {
+            return RANK_MAP.get(RankEnum.fromInteger(rank));
+        }
+        return fromInteger(rank);
+    }
+
 }
@@ -36,6 +36,21 @@ public final class Run implements DatabaseObject<Run>, XMLSerialisable {
     public interface Column {
         Class<?> getColumnClass();
         String getColumnName();
+
+        /**
+         * Return the name of the {@code Run} field shown in this column.
+         *
+         * @return the field name.
+         */
+        String getFieldName();
+
+        /**
+         * Return the type of the meta-data shown in this column.
+         *
+         * @return the meta-data type, or {@code null} if this column shows a
+         * field of the {@code Run} itself.
+         */
+        MetaData.Type getMetaDataType();
     }
     
     private static class RunColumn implements Column {
@@ -58,6 +73,17 @@ public final class Run implements DatabaseObject<Run>, XMLSerialisable {
         public String getColumnName() {
             return name;
         }
+
+        @Override
+        public String getFieldName() {
+            return (field instanceof MetaData.Type)
+                    ? ((MetaData.Type) field).asFieldName() : (String) field;
+        }
+
+        @Override
+        public MetaData.Type getMetaDataType() {
+            return (field instanceof MetaData.Type) ? (MetaData.Type) field : null;
+        }
     }
     
     /**
@@ -262,6 +288,45 @@ public final class Run implements DatabaseObject<Run>, XMLSerialisable {
             dataSetsLoaded = true;
         }
     }
+
+    /**
+     * Load the data sets and flags of all the given runs which have not yet
+     * been loaded, fetching those of many runs at once rather than one run at
+     * a time as {@link #loadDataSets()} and {@link #loadFlags()} do.
+     *
+     * @param runs the runs to load.
+     * @throws DatabaseException if an error occurs querying the database.
+     */
+    public static void loadAll(Collection<Run> runs) throws DatabaseException {
+        final List<Run> unloadedDataSets = new ArrayList<>();
+        final List<Run> unloadedFlags = new ArrayList<>();
+        for (Run run : runs) {
+            if (!run.dataSetsLoaded) {
+                unloadedDataSets.add(run);
+            }
+            if (!run.flagsLoaded) {
+                unloadedFlags.add(run);
+            }
+        }
+
+        final DatabaseConnection connection = DatabaseManager.getConnection();
+        if (!unloadedDataSets.isEmpty()) {
+            final List<Collection<RunData>> runDataSets = connection.getDataSets(unloadedDataSets);
+            for (int idx = 0; idx < unloadedDataSets.size(); ++idx) {
+                final Run run = unloadedDataSets.get(idx);
+                run.dataSets.addAll(runDataSets.get(idx));
+                run.dataSetsLoaded = true;
+            }
+        }
+        if (!unloadedFlags.isEmpty()) {
+            final List<Collection<String>> runFlags = connection.getFlags(unloadedFlags);
+            for (int idx = 0; idx < unloadedFlags.size(); ++idx) {
+                final Run run = unloadedFlags.get(idx);
+                run.flags.addAll(runFlags.get(idx));
+                run.flagsLoaded = true;
+            }
+        }
+    }
     
     /**
      * Updates the {@code MetaData} stored in this run with the given type.
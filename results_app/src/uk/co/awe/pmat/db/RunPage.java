@@ -0,0 +1,42 @@
+package uk.co.awe.pmat.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of the {@code Run}s returned for a {@link RunQuery}.
+ *
+ * @author AWE Plc copyright 2013
+ */
+public final class RunPage {
+
+    private final List<Run> runs;
+    private final RunQuery.Key lastKey;
+
+    /**
+     * Create a new {@code RunPage}.
+     *
+     * @param runs the runs in the page.
+     * @param lastKey the key of the last run in the page, or {@code null} if
+     * the page is empty.
+     */
+    public RunPage(List<Run> runs, RunQuery.Key lastKey) {
+        this.runs = Collections.unmodifiableList(new ArrayList<>(runs));
+        this.lastKey = lastKey;
+    }
+
+    public List<Run> getRuns() {
+        return runs;
+    }
+
+    /**
+     * Return the key of the last run in the page, which should be given to
+     * {@link RunQuery#after(RunQuery.Key, int)} to read the next page.
+     *
+     * @return the key, or {@code null} if the page is empty.
+     */
+    public RunQuery.Key getLastKey() {
+        return lastKey;
+    }
+}
@@ -0,0 +1,179 @@
+package uk.co.awe.pmat.db;
+
+import java.util.Objects;
+
+/**
+ * A request for one page of the {@code Run}s stored in the database, sorted
+ * on one of the {@link Run#TABLE_COLUMNS} and filtered by some text, so that
+ * the sorting and filtering can be done by the database rather than by
+ * loading every {@code Run}.
+ *
+ * <p>Pages are found by their position in the sorted runs. The page
+ * following one which has already been read should be asked for using the
+ * {@link Key} of its last run, which the database can seek to directly,
+ * rather than by its offset, which means reading and skipping every run
+ * before it.</p>
+ *
+ * @author AWE Plc copyright 2013
+ */
+public final class RunQuery {
+
+    /**
+     * The position of a {@code Run} in the sorted runs, made up of the value
+     * it is sorted on and the unique ID used to order runs with equal
+     * values.
+     */
+    public static final class Key {
+        private final Object sortValue;
+        private final long id;
+
+        /**
+         * Create a new {@code Key}.
+         *
+         * @param sortValue the value of the sort column of the run.
+         * @param id the ID the run is stored against.
+         */
+        public Key(Object sortValue, long id) {
+            this.sortValue = sortValue;
+            this.id = id;
+        }
+
+        public Object getSortValue() {
+            return sortValue;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return id == other.id && Objects.equals(sortValue, other.sortValue);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sortValue, id);
+        }
+    }
+
+    private final Run.Column sortColumn;
+    private final boolean ascending;
+    private final String filter;
+    private final Key after;
+    private final int offset;
+    private final int limit;
+
+    /**
+     * Create a new {@code RunQuery} for all the runs matching the given
+     * filter.
+     *
+     * @param sortColumn the column to sort the runs on.
+     * @param ascending whether to sort the runs in ascending order.
+     * @param filter the text which the ID, creator, tag, file or the name of
+     * any meta-data of each run must contain, or {@code null} or an empty
+     * string to return all the runs.
+     */
+    public RunQuery(Run.Column sortColumn, boolean ascending, String filter) {
+        this(sortColumn, ascending, filter, null, 0, 0);
+    }
+
+    private RunQuery(Run.Column sortColumn, boolean ascending, String filter,
+            Key after, int offset, int limit) {
+        if (sortColumn == null) {
+            throw new IllegalArgumentException("No sort column given");
+        }
+        this.sortColumn = sortColumn;
+        this.ascending = ascending;
+        this.filter = (filter == null || filter.trim().isEmpty()) ? null : filter.trim();
+        this.after = after;
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    /**
+     * Return a copy of this query for the page of runs following the run
+     * with the given key.
+     *
+     * @param key the key of the last run of the previous page.
+     * @param pageSize the maximum number of runs to return.
+     * @return the page query.
+     */
+    public RunQuery after(Key key, int pageSize) {
+        return new RunQuery(sortColumn, ascending, filter, key, 0, pageSize);
+    }
+
+    /**
+     * Return a copy of this query for the page of runs starting at the given
+     * offset.
+     *
+     * @param start the number of runs to skip.
+     * @param pageSize the maximum number of runs to return.
+     * @return the page query.
+     */
+    public RunQuery at(int start, int pageSize) {
+        return new RunQuery(sortColumn, ascending, filter, null, start, pageSize);
+    }
+
+    public Run.Column getSortColumn() {
+        return sortColumn;
+    }
+
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    /**
+     * Return the text the runs must contain.
+     *
+     * @return the filter text, or {@code null} if the runs are not filtered.
+     */
+    public String getFilter() {
+        return filter;
+    }
+
+    /**
+     * Return the key of the run which the page follows.
+     *
+     * @return the key, or {@code null} if the page starts at the offset.
+     */
+    public Key getAfter() {
+        return after;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Return the maximum number of runs to return.
+     *
+     * @return the page size, or {@code 0} to return all the runs.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof RunQuery)) {
+            return false;
+        }
+        final RunQuery other = (RunQuery) obj;
+        return sortColumn == other.sortColumn
+                && ascending == other.ascending
+                && Objects.equals(filter, other.filter)
+                && Objects.equals(after, other.after)
+                && offset == other.offset
+                && limit == other.limit;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(sortColumn, ascending, filter, after, offset, limit);
+    }
+}
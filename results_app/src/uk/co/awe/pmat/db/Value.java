@@ -1,5 +1,6 @@
 package uk.co.awe.pmat.db;
 
+import java.io.Serializable;
 import org.dom4j.Element;
 import org.dom4j.QName;
 import org.dom4j.dom.DOMAttribute;
@@ -13,7 +14,9 @@ import uk.co.awe.pmat.db.xml.XMLSerialisable;
  */
 @SuppressWarnings("rawtypes")
 public final class Value<T extends Comparable> implements Comparable<Value<?>>,
-		XMLSerialisable {
+		XMLSerialisable, Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	private final String name;
 	private final Rank rank;
@@ -0,0 +1,60 @@
+package uk.co.awe.pmat.db;
+
+/**
+ * One of the distinct values of a field, with the number of sub runs which
+ * have it, as returned by {@link DatabaseConnection#getValueCounts}.
+ *
+ * @author AWE Plc copyright 2013
+ */
+public final class ValueCount implements Comparable<ValueCount> {
+
+    private final Value<?> value;
+    private final int count;
+
+    /**
+     * Create a new {@code ValueCount}.
+     *
+     * @param value the value.
+     * @param count the number of sub runs with the value.
+     */
+    public ValueCount(Value<?> value, int count) {
+        this.value = value;
+        this.count = count;
+    }
+
+    public Value<?> getValue() {
+        return value;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public int compareTo(ValueCount other) {
+        return ((Value) value).compareTo(other.value);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ValueCount)) {
+            return false;
+        }
+        final ValueCount other = (ValueCount) obj;
+        return count == other.count && value.equals(other.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * value.hashCode() + count;
+    }
+
+    @Override
+    public String toString() {
+        return value.getValue() + " (" + count + ")";
+    }
+}
@@ -0,0 +1,1344 @@
+package uk.co.awe.pmat.db.embedded;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.awe.pmat.Configuration;
+import uk.co.awe.pmat.Constants;
+import uk.co.awe.pmat.db.Analysis;
+import uk.co.awe.pmat.db.DataGrid;
+import uk.co.awe.pmat.db.DatabaseConnection;
+import uk.co.awe.pmat.db.DatabaseException;
+import uk.co.awe.pmat.db.DatabaseObject;
+import uk.co.awe.pmat.db.ErrorType;
+import uk.co.awe.pmat.db.MetaData;
+import uk.co.awe.pmat.db.Rank;
+import uk.co.awe.pmat.db.Restriction;
+import uk.co.awe.pmat.db.Run;
+import uk.co.awe.pmat.db.RunData;
+import uk.co.awe.pmat.db.RunPage;
+import uk.co.awe.pmat.db.RunQuery;
+import uk.co.awe.pmat.db.Value;
+import uk.co.awe.pmat.db.ValueCount;
+import uk.co.awe.pmat.db.axis.Axis;
+import uk.co.awe.pmat.db.axis.AxisType;
+import uk.co.awe.pmat.db.criteria.Category;
+import uk.co.awe.pmat.db.criteria.Comparator;
+import uk.co.awe.pmat.db.series.Series;
+import uk.co.awe.pmat.db.xml.XMLSerialisable;
+import uk.co.awe.pmat.db.xml.XMLSerialiser;
+import uk.co.awe.pmat.deriveddata.DerivedData;
+import uk.co.awe.pmat.deriveddata.Function;
+import uk.co.awe.pmat.deriveddata.ParserValues.Constant;
+import uk.co.awe.pmat.deriveddata.ParserValues.Property;
+import uk.co.awe.pmat.deriveddata.ParserValues.Variable;
+import uk.co.awe.pmat.utils.CompressedBitmap;
+
+/**
+ * A {@link DatabaseConnection} to a store held in a local file, rather than a
+ * MySQL server, so that results can be analysed without a network
+ * connection.
+ *
+ * <p>The whole store is read into memory when the connection is opened, with
+ * the sub runs holding each parameter and result name indexed, and is written
+ * back to the file after each change. Saved analyses are kept alongside it in
+ * an analysis export file. The store is filled by importing export files, as
+ * with the MySQL database, or by copying the runs of another connection with
+ * {@link #syncFrom(DatabaseConnection)}.</p>
+ *
+ * @author AWE Plc copyright 2013
+ */
+public final class EmbeddedDatabaseConnection implements DatabaseConnection {
+
+    private final static Logger LOG = LoggerFactory.getLogger(EmbeddedDatabaseConnection.class);
+
+    /** The fields of the {@link Category#RUN} category. */
+    private static final List<String> RUN_FIELDS = Collections.unmodifiableList(Arrays.asList(
+            "creator", "insertionDate", "restricted", "runDate", "runId", "tag", "file"));
+
+    /** The runs copied from another connection in each batch. */
+    private static final int SYNC_BATCH_SIZE = 100;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Set<Thread> runningQueries = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+    private final Set<Thread> cancelledQueries = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+    private final File analysesFile;
+    private EmbeddedStore store;
+    private List<Analysis> analyses = null;
+
+    /**
+     * Open the embedded store in the given file, creating it when it is
+     * first written to if it does not exist.
+     *
+     * @param file
+     *            the store file.
+     * @throws DatabaseException
+     *             if the store exists but cannot be read.
+     */
+    public EmbeddedDatabaseConnection(File file) throws DatabaseException {
+        this.analysesFile = new File(file.getPath() + Constants.Analysis.EXTENSION);
+        this.store = load(file);
+    }
+
+    private static EmbeddedStore load(File file) throws DatabaseException {
+        final EmbeddedStore loaded = new EmbeddedStore(file);
+        try {
+            loaded.load();
+        } catch (IOException ex) {
+            throw new DatabaseException("Failed to read embedded store " + file, ex);
+        }
+        return loaded;
+    }
+
+    @Override
+    public void close() {
+        // Every change is written as it is made, so there is nothing to do.
+    }
+
+    @Override
+    public void migrateSchema() {
+        // The store is written in the current format whenever it changes.
+    }
+
+    @Override
+    public void cancelQuery(Thread thread) {
+        if (runningQueries.contains(thread)) {
+            cancelledQueries.add(thread);
+        }
+    }
+
+    private void beginQuery() {
+        runningQueries.add(Thread.currentThread());
+    }
+
+    private void endQuery() {
+        runningQueries.remove(Thread.currentThread());
+        cancelledQueries.remove(Thread.currentThread());
+    }
+
+    private void checkCancelled() throws DatabaseException {
+        if (cancelledQueries.remove(Thread.currentThread())) {
+            throw new DatabaseException("Query cancelled");
+        }
+    }
+
+    @Override
+    public boolean tryConnection(Configuration config) {
+        return true;
+    }
+
+    @Override
+    public Restriction newRestriction(Category category, String field,
+            Rank rank, Comparator comparator, Value<?> value) {
+        return new EmbeddedRestriction(this, category, field, rank, comparator, value);
+    }
+
+    /**
+     * Return the IDs of the sub runs matching the given restriction.
+     *
+     * @param restriction
+     *            the restriction.
+     * @return the matching IDs.
+     */
+    CompressedBitmap matchingIds(EmbeddedRestriction restriction) {
+        lock.readLock().lock();
+        try {
+            return restriction.matchingIds(store);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the IDs of the sub runs matching all the given restrictions.
+     * The caller must hold the read lock.
+     *
+     * @param restrictions
+     *            the restrictions, which may be {@code null}.
+     * @return the matching IDs, or {@code null} if there are no restrictions.
+     */
+    private CompressedBitmap matchingIds(Collection<Restriction> restrictions) {
+        if (restrictions == null || restrictions.isEmpty()) {
+            return null;
+        }
+        CompressedBitmap ids = null;
+        for (Restriction restriction : restrictions) {
+            final CompressedBitmap matchingIds = own(restriction).matchingIds(store);
+            ids = (ids == null) ? matchingIds : ids.and(matchingIds);
+        }
+        return ids;
+    }
+
+    /**
+     * Return the given restriction as a restriction on this store, as those
+     * of saved analyses, or of analyses copied from another connection, may
+     * have been created by another connection.
+     */
+    private EmbeddedRestriction own(Restriction restriction) {
+        if (restriction instanceof EmbeddedRestriction) {
+            return (EmbeddedRestriction) restriction;
+        }
+        return new EmbeddedRestriction(this, restriction.getCategory(), restriction.getField(),
+                restriction.getRank(), restriction.getComparator(), restriction.getValue());
+    }
+
+    /**
+     * Return the IDs of all the sub runs in the given set which are also in
+     * the set of matching IDs, if there is one.
+     */
+    private static CompressedBitmap restrict(CompressedBitmap ids, CompressedBitmap matchingIds) {
+        return matchingIds == null ? ids : ids.and(matchingIds);
+    }
+
+    private CompressedBitmap allSubRunIds() {
+        final CompressedBitmap ids = new CompressedBitmap();
+        for (EmbeddedStore.SubRun subRun : store.getSubRuns()) {
+            ids.add(subRun.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * Return the runs owning the given sub runs, in the order they were
+     * stored.
+     */
+    private Collection<EmbeddedStore.StoredRun> runsOf(CompressedBitmap subRunIds) {
+        final Map<Long, EmbeddedStore.StoredRun> runs = new LinkedHashMap<>();
+        for (Long id : subRunIds) {
+            final EmbeddedStore.StoredRun run = store.getSubRun(id).getRun();
+            runs.put(run.getId(), run);
+        }
+        return runs.values();
+    }
+
+    @Override
+    public List<String> getFields(Collection<Restriction> restrictions, Category category) throws DatabaseException {
+        final List<String> fields = new ArrayList<>();
+
+        lock.readLock().lock();
+        try {
+            final Map<String, CompressedBitmap> index;
+            switch (category) {
+                case APPLICATION: // Fall through
+                case COMPILER: // Fall through
+                case MACHINE: // Fall through
+                case MPI: // Fall through
+                case OPERATING_SYSTEM: // Fall through
+                case PROCESSOR:
+                    fields.addAll(categoryToType(category).getFields().keySet());
+                    return fields;
+                case RUN:
+                    fields.addAll(RUN_FIELDS);
+                    return fields;
+                case PARAMETER:
+                    index = store.getParameterIndex();
+                    break;
+                case RESULT:
+                    index = store.getResultIndex();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Uknown category " + category);
+            }
+
+            final CompressedBitmap matchingIds = matchingIds(restrictions);
+            for (Map.Entry<String, CompressedBitmap> entry : index.entrySet()) {
+                if (!restrict(entry.getValue(), matchingIds).isEmpty()) {
+                    fields.add(entry.getKey());
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return fields;
+    }
+
+    @Override
+    public List<Rank> getRanks(List<Restriction> restrictions, Category category, String field) throws DatabaseException {
+        final Set<Rank> ranks = new TreeSet<>();
+
+        lock.readLock().lock();
+        try {
+            switch (category) {
+                case APPLICATION: // Fall through
+                case COMPILER: // Fall through
+                case MACHINE: // Fall through
+                case MPI: // Fall through
+                case OPERATING_SYSTEM: // Fall through
+                case PROCESSOR: // Fall through
+                case RUN:
+                    return new ArrayList<>(Collections.singletonList(Rank.ANY_RANK));
+                case PARAMETER:
+                    for (Long id : restrict(store.getParameterIds(field), matchingIds(restrictions))) {
+                        for (Value<?> param : store.getSubRun(id).getParameters()) {
+                            if (field.equals(param.getName())) {
+                                ranks.add(param.getRank());
+                            }
+                        }
+                    }
+                    break;
+                case RESULT:
+                    for (Long id : restrict(store.getResultIds(field), matchingIds(restrictions))) {
+                        for (Value<Double> result : store.getSubRun(id).getResults()) {
+                            if (field.equals(result.getName())) {
+                                ranks.add(result.getRank());
+                            }
+                        }
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Uknown category " + category);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return new ArrayList<>(ranks);
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public List<Value<?>> getValues(Collection<Restriction> restrictions, Category category, String field, Rank rank) throws DatabaseException {
+        final Set<Object> distinct = new LinkedHashSet<>();
+
+        lock.readLock().lock();
+        try {
+            final CompressedBitmap matchingIds = matchingIds(restrictions);
+            switch (category) {
+                case APPLICATION: // Fall through
+                case COMPILER: // Fall through
+                case MACHINE: // Fall through
+                case MPI: // Fall through
+                case OPERATING_SYSTEM: // Fall through
+                case PROCESSOR:
+                    final MetaData.Type type = categoryToType(category);
+                    if (matchingIds == null) {
+                        for (MetaData meta : store.getMetaData(type)) {
+                            distinct.add(meta.getData(field));
+                        }
+                    } else {
+                        for (EmbeddedStore.StoredRun run : runsOf(matchingIds)) {
+                            final MetaData meta = run.getHeader().getMetaData(type);
+                            if (meta != null) {
+                                distinct.add(meta.getData(field));
+                            }
+                        }
+                    }
+                    break;
+                case RUN:
+                    final Collection<EmbeddedStore.StoredRun> runs = matchingIds == null
+                            ? store.getRuns() : runsOf(matchingIds);
+                    for (EmbeddedStore.StoredRun run : runs) {
+                        distinct.add(runField(run.getHeader(), field));
+                    }
+                    break;
+                case PARAMETER:
+                    for (Long id : restrict(store.getParameterIds(field), matchingIds)) {
+                        for (Value<?> param : store.getSubRun(id).getParameters()) {
+                            if (field.equals(param.getName())
+                                    && (rank == Rank.ANY_RANK || rank.equals(param.getRank()))) {
+                                distinct.add(param.getValue());
+                            }
+                        }
+                    }
+                    break;
+                case RESULT:
+                    for (Long id : restrict(store.getResultIds(field), matchingIds)) {
+                        for (Value<Double> result : store.getSubRun(id).getResults()) {
+                            if (field.equals(result.getName())
+                                    && (rank == Rank.ANY_RANK || rank.equals(result.getRank()))) {
+                                distinct.add(result.getValue());
+                            }
+                        }
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Uknown category " + category);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        final List<Value<?>> values = new ArrayList<>(distinct.size());
+        for (Object value : distinct) {
+            values.add(new Value(field, rank, (Comparable) value));
+        }
+        return values;
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Map<String, List<ValueCount>> getValueCounts(Collection<Restriction> restrictions, Category category, Collection<String> fields) throws DatabaseException {
+        final Map<String, Map<Object, Integer>> counts = new LinkedHashMap<>();
+        for (String field : fields) {
+            counts.put(field, new HashMap<Object, Integer>());
+        }
+
+        lock.readLock().lock();
+        try {
+            final CompressedBitmap matchingIds = matchingIds(restrictions);
+            switch (category) {
+                case APPLICATION: // Fall through
+                case COMPILER: // Fall through
+                case MACHINE: // Fall through
+                case MPI: // Fall through
+                case OPERATING_SYSTEM: // Fall through
+                case PROCESSOR: // Fall through
+                case RUN:
+                    final MetaData.Type type = (category == Category.RUN) ? null : categoryToType(category);
+                    for (Long id : matchingIds == null ? allSubRunIds() : matchingIds) {
+                        final Run header = store.getSubRun(id).getRun().getHeader();
+                        final MetaData meta = (type == null) ? null : header.getMetaData(type);
+                        if (type != null && meta == null) {
+                            continue;
+                        }
+                        for (Map.Entry<String, Map<Object, Integer>> entry : counts.entrySet()) {
+                            addCount(entry.getValue(), (type == null)
+                                    ? runField(header, entry.getKey()) : meta.getData(entry.getKey()));
+                        }
+                    }
+                    break;
+                case PARAMETER: // Fall through
+                case RESULT:
+                    for (Map.Entry<String, Map<Object, Integer>> entry : counts.entrySet()) {
+                        final String field = entry.getKey();
+                        final CompressedBitmap ids = (category == Category.PARAMETER)
+                                ? store.getParameterIds(field) : store.getResultIds(field);
+                        for (Long id : restrict(ids, matchingIds)) {
+                            // Each value is counted once for a sub run, which
+                            // has a result for each rank.
+                            final Set<Object> values = new HashSet<>();
+                            final Collection<? extends Value<?>> subRunValues = (category == Category.PARAMETER)
+                                    ? store.getSubRun(id).getParameters() : store.getSubRun(id).getResults();
+                            for (Value<?> value : subRunValues) {
+                                if (field.equals(value.getName())) {
+                                    values.add(value.getValue());
+                                }
+                            }
+                            for (Object value : values) {
+                                addCount(entry.getValue(), value);
+                            }
+                        }
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Uknown category " + category);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        final Map<String, List<ValueCount>> valueCounts = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<Object, Integer>> entry : counts.entrySet()) {
+            final List<ValueCount> fieldCounts = new ArrayList<>();
+            for (Map.Entry<Object, Integer> valueCount : entry.getValue().entrySet()) {
+                fieldCounts.add(new ValueCount(new Value(entry.getKey(), Rank.ANY_RANK,
+                        (Comparable) valueCount.getKey()), valueCount.getValue()));
+            }
+            Collections.sort(fieldCounts);
+            valueCounts.put(entry.getKey(), Collections.unmodifiableList(fieldCounts));
+        }
+        return Collections.unmodifiableMap(valueCounts);
+    }
+
+    /**
+     * Count one more sub run with the given value, unless the value is
+     * {@code null}, as sub runs without a value cannot be filtered on it.
+     */
+    private static void addCount(Map<Object, Integer> counts, Object value) {
+        if (value == null) {
+            return;
+        }
+        final Integer count = counts.get(value);
+        counts.put(value, (count == null) ? 1 : count + 1);
+    }
+
+    @Override
+    public List<MetaData> getAllMetaData(MetaData.Type type) throws DatabaseException {
+        return getMetaData(null, type);
+    }
+
+    @Override
+    public List<MetaData> getMetaData(Collection<Restriction> restrictions, MetaData.Type type) throws DatabaseException {
+        lock.readLock().lock();
+        try {
+            final CompressedBitmap matchingIds = matchingIds(restrictions);
+            if (matchingIds == null) {
+                return new ArrayList<>(store.getMetaData(type));
+            }
+            final Set<MetaData> metaData = new LinkedHashSet<>();
+            for (EmbeddedStore.StoredRun run : runsOf(matchingIds)) {
+                if (run.getHeader().getMetaData(type) != null) {
+                    metaData.add(run.getHeader().getMetaData(type));
+                }
+            }
+            return new ArrayList<>(metaData);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> getMetaDataVendors(MetaData.Type type) throws DatabaseException {
+        final Set<String> vendors = new LinkedHashSet<>();
+        lock.readLock().lock();
+        try {
+            for (MetaData meta : store.getMetaData(type)) {
+                vendors.add((String) meta.getData("vendor"));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new ArrayList<>(vendors);
+    }
+
+    @Override
+    public List<Analysis> getSavedAnalyses(String creatorName) throws DatabaseException {
+        lock.writeLock().lock();
+        try {
+            final List<Analysis> saved = new ArrayList<>();
+            for (Analysis analysis : loadAnalyses()) {
+                if (creatorName == null || creatorName.equals(analysis.getCreator())) {
+                    saved.add(analysis);
+                }
+            }
+            return saved;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Return the saved analyses, reading them from their file the first time.
+     * They are read lazily as their restrictions are created through the
+     * application's connection, which is not set until this connection has
+     * been opened. The caller must hold the write lock.
+     */
+    private List<Analysis> loadAnalyses() throws DatabaseException {
+        if (analyses != null) {
+            return analyses;
+        }
+        final List<Analysis> loaded = new ArrayList<>();
+        if (analysesFile.isFile()) {
+            try {
+                new XMLSerialiser().deserialiseAnalyses(analysesFile, new XMLSerialiser.LoadedAction() {
+                    @Override
+                    public void doAction(XMLSerialisable node) {
+                        loaded.add((Analysis) node);
+                    }
+
+                    @Override
+                    public boolean isCancelled() {
+                        return false;
+                    }
+                });
+            } catch (IOException ex) {
+                throw new DatabaseException("Failed to read saved analyses " + analysesFile, ex);
+            }
+        }
+        analyses = loaded;
+        return analyses;
+    }
+
+    @Override
+    public DataGrid getDataGrid(Axis xAxis, Axis yAxis, Rank rank, Collection<Restriction> restrictions, Collection<Series> seriesColl) throws DatabaseException {
+        final List<DataGrid.Row> rows = new ArrayList<>();
+        getDataGrid(xAxis, yAxis, rank, restrictions, seriesColl, new DataGrid.RowConsumer() {
+            @Override
+            public void accept(DataGrid.Row row) {
+                rows.add(row);
+            }
+        });
+        return new DataGrid(xAxis.getSubType().toString(), yAxis.getSubType().toString(), rows);
+    }
+
+    @Override
+    public void getDataGrid(Axis xAxis, Axis yAxis, Rank rank, Collection<Restriction> restrictions, Collection<Series> seriesColl, DataGrid.RowConsumer consumer) throws DatabaseException {
+        lock.readLock().lock();
+        beginQuery();
+        try {
+            // Only the sub runs holding the x-axis value can give rows, as
+            // the database joins each sub run to its axis values.
+            final CompressedBitmap candidates;
+            switch (xAxis.getType()) {
+                case PARAMETER:
+                    candidates = store.getParameterIds((String) xAxis.getSubType());
+                    break;
+                case RESULT:
+                    candidates = store.getResultIds((String) xAxis.getSubType());
+                    break;
+                default:
+                    candidates = allSubRunIds();
+                    break;
+            }
+
+            for (Long id : restrict(candidates, matchingIds(restrictions))) {
+                checkCancelled();
+                final EmbeddedStore.SubRun subRun = store.getSubRun(id);
+
+                final List<Value<Double>> results = resultsAt(subRun, rank);
+                final List<Value<?>> xValues = axisValues(xAxis, subRun, results);
+                if (xValues.isEmpty()) {
+                    continue;
+                }
+
+                final List<Map<String, Value<?>>> yValues = new ArrayList<>();
+                if (yAxis.getType() == AxisType.DERIVED) {
+                    yValues.addAll(derivedValues((DerivedData) yAxis.getSubType(), subRun, results));
+                } else {
+                    for (Value<?> yValue : axisValues(yAxis, subRun, results)) {
+                        yValues.add(Collections.<String, Value<?>>singletonMap(
+                                yAxis.getSubType().toString(), yValue));
+                    }
+                }
+
+                final List<DataGrid.RowSeriesGroup> seriesGroups = new ArrayList<>();
+                if (seriesColl.isEmpty()) {
+                    seriesGroups.add(DataGrid.NULL_SERIES_GROUP);
+                } else {
+                    for (List<Object> group : product(seriesValues(seriesColl, subRun, results))) {
+                        seriesGroups.add(new DataGrid.RowSeriesGroup(group.toArray()));
+                    }
+                }
+
+                for (Value<?> xValue : xValues) {
+                    for (Map<String, Value<?>> yValue : yValues) {
+                        for (DataGrid.RowSeriesGroup seriesGroup : seriesGroups) {
+                            consumer.accept(new DataGrid.Row(xValue, new HashMap<>(yValue), seriesGroup));
+                        }
+                    }
+                }
+            }
+        } finally {
+            endQuery();
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the results of the given sub run at the given rank. For the rank
+     * average, maximum or minimum these are calculated from the results of
+     * each numbered rank, as the database reads them from its rollups across
+     * ranks, or are the results saved at that rank if there are none; for any
+     * other rank they are the results as saved.
+     */
+    private static List<Value<Double>> resultsAt(EmbeddedStore.SubRun subRun, Rank rank) {
+        if (rank != Rank.RANK_AVG && rank != Rank.RANK_MAX && rank != Rank.RANK_MIN) {
+            return subRun.getResults();
+        }
+
+        final Map<String, List<Double>> perRank = new LinkedHashMap<>();
+        for (Value<Double> result : subRun.getResults()) {
+            if (result.getValue() == null || result.getRank().asInteger() < 0) {
+                continue;
+            }
+            if (!perRank.containsKey(result.getName())) {
+                perRank.put(result.getName(), new ArrayList<Double>());
+            }
+            perRank.get(result.getName()).add(result.getValue());
+        }
+
+        final List<Value<Double>> results = new ArrayList<>(perRank.size());
+        for (Map.Entry<String, List<Double>> entry : perRank.entrySet()) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            double sum = 0;
+            double sumSquares = 0;
+            for (Double value : entry.getValue()) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sum += value;
+                sumSquares += value * value;
+            }
+            final int count = entry.getValue().size();
+            final double mean = sum / count;
+            if (rank == Rank.RANK_AVG) {
+                results.add(new Value<>(entry.getKey(), mean,
+                        Math.sqrt(Math.max(sumSquares / count - mean * mean, 0)),
+                        ErrorType.PMTM_STANDARD, rank, null, null));
+            } else {
+                results.add(new Value<>(entry.getKey(), rank == Rank.RANK_MAX ? max : min,
+                        0.0, ErrorType.NONE, rank, null, null));
+            }
+        }
+        for (Value<Double> result : subRun.getResults()) {
+            if (rank.equals(result.getRank()) && !perRank.containsKey(result.getName())) {
+                results.add(new Value<>(result.getName(), result.getValue(), result.getError(),
+                        result.getErrorType(), rank, null, null));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Return the values of the given axis in the given sub run.
+     */
+    private static List<Value<?>> axisValues(Axis axis, EmbeddedStore.SubRun subRun, List<Value<Double>> results) {
+        final List<Value<?>> values = new ArrayList<>();
+        switch (axis.getType()) {
+            case PARAMETER:
+                for (Value<?> param : subRun.getParameters()) {
+                    if (param.getName().equals(axis.getSubType())) {
+                        values.add(param);
+                    }
+                }
+                break;
+            case RESULT:
+                for (Value<Double> result : results) {
+                    if (result.getName().equals(axis.getSubType())) {
+                        values.add(result);
+                    }
+                }
+                break;
+            case META_DATA:
+                final MetaData meta = subRun.getRun().getHeader().getMetaData((MetaData.Type) axis.getSubType());
+                if (meta != null) {
+                    values.add(new Value<>(axis.displayName(), Rank.UNKNOWN, (String) meta.getData("name")));
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown axis type " + axis.getType());
+        }
+        return values;
+    }
+
+    /**
+     * Return the values needed to calculate the given derived data in the
+     * given sub run, one map of values for each combination of the values of
+     * its variables.
+     */
+    private static List<Map<String, Value<?>>> derivedValues(DerivedData derivedData, EmbeddedStore.SubRun subRun,
+            List<Value<Double>> results) {
+        final Map<String, List<Value<?>>> variables = new LinkedHashMap<>();
+        final Map<String, Value<?>> properties = new HashMap<>();
+        collectDerivedValues(derivedData, subRun, results, variables, properties);
+
+        final List<Map<String, Value<?>>> combinations = new ArrayList<>();
+        for (List<Value<?>> combination : product(new ArrayList<>(variables.values()))) {
+            final Map<String, Value<?>> values = new HashMap<>(properties);
+            for (Value<?> value : combination) {
+                values.put(value.getName(), value);
+            }
+            combinations.add(values);
+        }
+        return combinations;
+    }
+
+    private static void collectDerivedValues(DerivedData derivedData, EmbeddedStore.SubRun subRun,
+            List<Value<Double>> results, Map<String, List<Value<?>>> variables, Map<String, Value<?>> properties) {
+        if (derivedData instanceof Function) {
+            for (DerivedData arg : ((Function) derivedData).getArgs()) {
+                collectDerivedValues(arg, subRun, results, variables, properties);
+            }
+        } else if (derivedData instanceof Variable) {
+            final Variable var = (Variable) derivedData;
+            if (variables.containsKey(var.getName())) {
+                return;
+            }
+            final List<Value<?>> values = new ArrayList<>();
+            final List<? extends Value<?>> candidates = var.getType() == Variable.Type.PARAMETER
+                    ? subRun.getParameters() : results;
+            for (Value<?> value : candidates) {
+                if (value.getName().equals(var.getName())) {
+                    values.add(new Value<>(var.getName(), Rank.UNKNOWN, value.getValue()));
+                }
+            }
+            variables.put(var.getName(), values);
+        } else if (derivedData instanceof Property) {
+            final MetaData.Type type = ((Property) derivedData).getType();
+            final MetaData meta = subRun.getRun().getHeader().getMetaData(type);
+            properties.put(type.asFieldName(), new Value<>(type.asFieldName(), Rank.UNKNOWN,
+                    meta == null ? null : (String) meta.getData("name")));
+        } else if (!(derivedData instanceof Constant)) {
+            throw new IllegalStateException("Unknown DerivedData type " + derivedData);
+        }
+    }
+
+    /**
+     * Return the values of each of the given series in the given sub run.
+     */
+    private static List<List<Object>> seriesValues(Collection<Series> seriesColl, EmbeddedStore.SubRun subRun,
+            List<Value<Double>> results) {
+        final List<List<Object>> values = new ArrayList<>();
+        for (Series series : seriesColl) {
+            final List<Object> seriesVals = new ArrayList<>();
+            switch (series.getType()) {
+                case PARAMETER:
+                    for (Value<?> param : subRun.getParameters()) {
+                        if (param.getName().equals(series.getSubType())) {
+                            seriesVals.add(param.getValue());
+                        }
+                    }
+                    break;
+                case RESULT:
+                    for (Value<Double> result : results) {
+                        if (result.getName().equals(series.getSubType())) {
+                            seriesVals.add(result.getValue());
+                        }
+                    }
+                    break;
+                case META_DATA:
+                    final MetaData meta = subRun.getRun().getHeader().getMetaData((MetaData.Type) series.getSubType());
+                    if (meta != null) {
+                        seriesVals.add(meta.getData("name"));
+                    }
+                    break;
+                case TAG:
+                    seriesVals.add(subRun.getRun().getHeader().getTag());
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown series type " + series.getType());
+            }
+            values.add(seriesVals);
+        }
+        return values;
+    }
+
+    /**
+     * Return every combination of one element from each of the given lists,
+     * as the database returns every combination of rows when joining.
+     */
+    private static <T> List<List<T>> product(List<List<T>> lists) {
+        List<List<T>> combinations = new ArrayList<>();
+        combinations.add(new ArrayList<T>());
+        for (List<T> list : lists) {
+            final List<List<T>> extended = new ArrayList<>();
+            for (List<T> combination : combinations) {
+                for (T element : list) {
+                    final List<T> next = new ArrayList<>(combination);
+                    next.add(element);
+                    extended.add(next);
+                }
+            }
+            combinations = extended;
+        }
+        return combinations;
+    }
+
+    @Override
+    public List<Run> getRuns() throws DatabaseException {
+        lock.readLock().lock();
+        try {
+            final List<Run> runs = new ArrayList<>();
+            for (EmbeddedStore.StoredRun run : store.getRuns()) {
+                runs.add(copyOf(run.getHeader()));
+            }
+            return runs;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public RunPage getRuns(RunQuery query) throws DatabaseException {
+        lock.readLock().lock();
+        try {
+            final List<RunQuery.Key> keys = sortedKeys(query);
+            int start = Math.min(query.getOffset(), keys.size());
+            if (query.getAfter() != null) {
+                start = Collections.binarySearch(keys, query.getAfter(), keyOrder(query.isAscending()));
+                start = (start >= 0) ? start + 1 : -(start + 1);
+            }
+            final int end = (query.getLimit() > 0)
+                    ? Math.min(keys.size(), start + query.getLimit()) : keys.size();
+
+            final List<Run> runs = new ArrayList<>();
+            for (RunQuery.Key key : keys.subList(start, end)) {
+                runs.add(copyOf(store.getRun(key.getId()).getHeader()));
+            }
+            return new RunPage(runs, (start < end) ? keys.get(end - 1) : null);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int getRunCount(RunQuery query) throws DatabaseException {
+        lock.readLock().lock();
+        try {
+            int count = 0;
+            for (EmbeddedStore.StoredRun run : store.getRuns()) {
+                if (matches(run.getHeader(), query.getFilter())) {
+                    ++count;
+                }
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the keys of the runs matching the filter of the given query, in
+     * the order it sorts them.
+     */
+    private List<RunQuery.Key> sortedKeys(RunQuery query) {
+        final List<RunQuery.Key> keys = new ArrayList<>();
+        for (EmbeddedStore.StoredRun run : store.getRuns()) {
+            if (matches(run.getHeader(), query.getFilter())) {
+                keys.add(new RunQuery.Key(sortValue(run.getHeader(), query.getSortColumn()), run.getId()));
+            }
+        }
+        Collections.sort(keys, keyOrder(query.isAscending()));
+        return keys;
+    }
+
+    /**
+     * Return the value of the given column the run is sorted on, which is the
+     * name of any meta data shown in it.
+     */
+    private static Object sortValue(Run run, Run.Column column) {
+        Object value;
+        if (column.getMetaDataType() != null) {
+            final MetaData meta = run.getMetaData(column.getMetaDataType());
+            value = (meta == null) ? null : meta.getData("name");
+        } else {
+            value = run.getColumnData(column);
+        }
+        return (value == null) ? "" : value;
+    }
+
+    /**
+     * Return the order of run keys, by sort value and then by ID.
+     */
+    private static java.util.Comparator<RunQuery.Key> keyOrder(final boolean ascending) {
+        return new java.util.Comparator<RunQuery.Key>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public int compare(RunQuery.Key keyA, RunQuery.Key keyB) {
+                int order = ((Comparable<Object>) keyA.getSortValue()).compareTo(keyB.getSortValue());
+                if (order == 0) {
+                    order = Long.compare(keyA.getId(), keyB.getId());
+                }
+                return ascending ? order : -order;
+            }
+        };
+    }
+
+    /**
+     * Whether the ID, creator, tag, file or the name of any meta data of the
+     * given run contains the filter text, ignoring case.
+     */
+    private static boolean matches(Run run, String filter) {
+        if (filter == null) {
+            return true;
+        }
+        final List<Object> fields = new ArrayList<>();
+        fields.addAll(Arrays.<Object>asList(run.getRunId(), run.getCreator(), run.getTag(), run.getFile()));
+        for (MetaData.Type type : MetaData.Type.values()) {
+            final MetaData meta = run.getMetaData(type);
+            fields.add((meta == null) ? null : meta.getData("name"));
+        }
+        final String text = filter.toLowerCase();
+        for (Object field : fields) {
+            if (field != null && field.toString().toLowerCase().contains(text)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return a copy of the given stored run, without its data sets or flags,
+     * which the caller loads as it needs them.
+     */
+    private static Run copyOf(Run run) {
+        final List<MetaData> metaData = new ArrayList<>();
+        for (MetaData.Type type : MetaData.Type.values()) {
+            metaData.add(run.getMetaData(type));
+        }
+        return new Run(run.getRunId(), run.getRunDate(), run.getInsertionDate(), metaData,
+                run.getCreator(), run.isRestricted(), run.getFile(), run.getTag());
+    }
+
+    @Override
+    public Collection<RunData> getDataSets(Run run) throws DatabaseException {
+        return getDataSets(Collections.singletonList(run)).get(0);
+    }
+
+    @Override
+    public List<Collection<RunData>> getDataSets(List<Run> runs) throws DatabaseException {
+        lock.readLock().lock();
+        try {
+            final List<Collection<RunData>> dataSets = new ArrayList<>(runs.size());
+            for (Run run : runs) {
+                final List<RunData> runData = new ArrayList<>();
+                final EmbeddedStore.StoredRun stored = store.getRun(run);
+                if (stored != null) {
+                    for (Long id : stored.getSubRunIds()) {
+                        final RunData data = store.getSubRun(id).getData();
+                        runData.add(new RunData(new ArrayList<>(data.getParameters()),
+                                new ArrayList<>(data.getResults())));
+                    }
+                }
+                dataSets.add(runData);
+            }
+            return dataSets;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Collection<String> getFlags(Run run) throws DatabaseException {
+        lock.readLock().lock();
+        try {
+            if (store.getRun(run) == null) {
+                throw new DatabaseException("Cannot find run in database: " + run);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return getFlags(Collections.singletonList(run)).get(0);
+    }
+
+    @Override
+    public List<Collection<String>> getFlags(List<Run> runs) throws DatabaseException {
+        lock.readLock().lock();
+        try {
+            final List<Collection<String>> flags = new ArrayList<>(runs.size());
+            for (Run run : runs) {
+                final EmbeddedStore.StoredRun stored = store.getRun(run);
+                flags.add(stored == null ? new ArrayList<String>() : new ArrayList<>(stored.getFlags()));
+            }
+            return flags;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void save(DatabaseObject dbObject) throws DatabaseException {
+        saveAll(Collections.singletonList(dbObject));
+    }
+
+    @Override
+    public void saveAll(Collection<? extends DatabaseObject> dbObjects) throws DatabaseException {
+        lock.writeLock().lock();
+        try {
+            final Set<DatabaseObject> saving = new HashSet<>();
+            boolean savingAnalyses = false;
+            for (DatabaseObject dbObject : dbObjects) {
+                final boolean exists;
+                if (dbObject instanceof MetaData) {
+                    exists = store.containsMetaData((MetaData) dbObject);
+                } else if (dbObject instanceof Run) {
+                    exists = store.getRun((Run) dbObject) != null;
+                } else if (dbObject instanceof Analysis) {
+                    exists = loadAnalyses().contains(dbObject);
+                    savingAnalyses = true;
+                } else {
+                    throw new UnsupportedOperationException("Not supported yet.");
+                }
+                if (exists || !saving.add(dbObject)) {
+                    throw new DatabaseException("Cannot save " + dbObject
+                            + ": Entity already exists in database");
+                }
+            }
+
+            final List<Analysis> newAnalyses = new ArrayList<>(savingAnalyses ? analyses : Collections.<Analysis>emptyList());
+            for (DatabaseObject dbObject : dbObjects) {
+                if (dbObject instanceof MetaData) {
+                    store.addMetaData((MetaData) dbObject);
+                } else if (dbObject instanceof Run) {
+                    store.addRun((Run) dbObject);
+                } else {
+                    newAnalyses.add((Analysis) dbObject);
+                }
+            }
+            if (savingAnalyses) {
+                writeAnalyses(newAnalyses);
+            }
+            writeStore();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(DatabaseObject dbObject) throws DatabaseException {
+        deleteAll(Collections.singletonList(dbObject));
+    }
+
+    @Override
+    public void deleteAll(Collection<? extends DatabaseObject> dbObjects) throws DatabaseException {
+        lock.writeLock().lock();
+        try {
+            final Set<Run> runs = new HashSet<>();
+            final List<MetaData> metaData = new ArrayList<>();
+            final List<Analysis> deletedAnalyses = new ArrayList<>();
+            for (DatabaseObject dbObject : dbObjects) {
+                final boolean exists;
+                if (dbObject instanceof Run) {
+                    exists = store.getRun((Run) dbObject) != null;
+                    runs.add((Run) dbObject);
+                } else if (dbObject instanceof MetaData) {
+                    exists = store.containsMetaData((MetaData) dbObject);
+                    metaData.add((MetaData) dbObject);
+                } else if (dbObject instanceof Analysis) {
+                    exists = loadAnalyses().contains(dbObject);
+                    deletedAnalyses.add((Analysis) dbObject);
+                } else {
+                    throw new UnsupportedOperationException("Not supported yet.");
+                }
+                if (!exists) {
+                    throw new DatabaseException("Cannot delete non persistant entity: " + dbObject);
+                }
+            }
+
+            // As in the database, meta data still used by a run which is not
+            // being deleted cannot be deleted.
+            for (MetaData meta : metaData) {
+                for (EmbeddedStore.StoredRun run : store.getRuns()) {
+                    if (meta.equals(run.getHeader().getMetaData(meta.getType()))
+                            && !runs.contains(run.getHeader())) {
+                        throw new DatabaseException("Cannot delete " + meta
+                                + ": it is used by run " + run.getHeader());
+                    }
+                }
+            }
+
+            if (!deletedAnalyses.isEmpty()) {
+                final List<Analysis> remaining = new ArrayList<>(analyses);
+                remaining.removeAll(deletedAnalyses);
+                writeAnalyses(remaining);
+            }
+            if (!runs.isEmpty() || !metaData.isEmpty()) {
+                for (Run run : runs) {
+                    store.removeRun(run);
+                }
+                for (MetaData meta : metaData) {
+                    store.removeMetaData(meta);
+                }
+                store.reindex();
+                writeStore();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void update(DatabaseObject oldObject, DatabaseObject newObject) throws DatabaseException {
+        if (!(newObject instanceof MetaData)) {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+        lock.writeLock().lock();
+        try {
+            if (!(oldObject instanceof MetaData) || !store.containsMetaData((MetaData) oldObject)) {
+                throw new DatabaseException("Cannot update non persistant entity: " + oldObject);
+            }
+            store.updateMetaData((MetaData) oldObject, (MetaData) newObject);
+            writeStore();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Write the store to its file. If it cannot be written the store is read
+     * back from the file, so that the change is undone as a failed
+     * transaction would be. The caller must hold the write lock.
+     */
+    private void writeStore() throws DatabaseException {
+        try {
+            store.save();
+        } catch (IOException ex) {
+            store = load(store.getFile());
+            throw new DatabaseException("Failed to write embedded store " + store.getFile(), ex);
+        }
+    }
+
+    /**
+     * Write the given analyses to their file, replacing the saved analyses
+     * with them if they are written. The caller must hold the write lock.
+     */
+    private void writeAnalyses(List<Analysis> newAnalyses) throws DatabaseException {
+        try {
+            new XMLSerialiser().serialise(analysesFile, new ArrayList<XMLSerialisable>(newAnalyses));
+        } catch (IOException ex) {
+            throw new DatabaseException("Failed to write saved analyses " + analysesFile, ex);
+        }
+        analyses = newAnalyses;
+    }
+
+    /**
+     * Copy into this store the meta data, runs and saved analyses of the
+     * given connection which it does not already hold. Nothing is removed
+     * from this store, so runs imported into it directly are kept.
+     *
+     * @param source
+     *            the connection to copy from, e.g. to the MySQL database.
+     * @return the number of runs copied.
+     * @throws DatabaseException
+     *             if an error occurs reading from the source, or writing the
+     *             store.
+     */
+    public int syncFrom(DatabaseConnection source) throws DatabaseException {
+        final List<MetaData> metaData = new ArrayList<>();
+        for (MetaData.Type type : MetaData.Type.values()) {
+            metaData.addAll(source.getAllMetaData(type));
+        }
+        final List<Run> sourceRuns = source.getRuns();
+        final List<Analysis> sourceAnalyses = source.getSavedAnalyses(null);
+
+        lock.writeLock().lock();
+        try {
+            for (MetaData meta : metaData) {
+                store.addMetaData(meta);
+            }
+
+            final List<Run> missing = new ArrayList<>();
+            for (Run run : sourceRuns) {
+                if (store.getRun(run) == null) {
+                    missing.add(run);
+                }
+            }
+
+            // The data sets are fetched a batch at a time, so that only one
+            // batch is held twice over.
+            for (int start = 0; start < missing.size(); start += SYNC_BATCH_SIZE) {
+                final List<Run> batch = missing.subList(start, Math.min(missing.size(), start + SYNC_BATCH_SIZE));
+                final List<Collection<RunData>> dataSets = source.getDataSets(batch);
+                final List<Collection<String>> flags = source.getFlags(batch);
+                for (int idx = 0; idx < batch.size(); ++idx) {
+                    final Run run = copyOf(batch.get(idx));
+                    run.addAllDataSets(dataSets.get(idx));
+                    run.addFlags(flags.get(idx));
+                    store.addRun(run);
+                }
+                LOG.info("Copied " + Math.min(missing.size(), start + SYNC_BATCH_SIZE)
+                        + " of " + missing.size() + " runs to the embedded store");
+            }
+            writeStore();
+
+            final List<Analysis> newAnalyses = new ArrayList<>(loadAnalyses());
+            for (Analysis analysis : sourceAnalyses) {
+                if (!newAnalyses.contains(analysis)) {
+                    newAnalyses.add(ownAnalysis(analysis));
+                }
+            }
+            if (newAnalyses.size() > analyses.size()) {
+                writeAnalyses(newAnalyses);
+            }
+
+            return missing.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Analysis ownAnalysis(Analysis analysis) {
+        final List<Restriction> restrictions = new ArrayList<>();
+        for (Restriction restriction : analysis.getRestrictions()) {
+            restrictions.add(own(restriction));
+        }
+        return new Analysis(analysis.getCreator(), analysis.getDate(), analysis.getNotes(),
+                analysis.isDataPrivate(), new ArrayList<>(analysis.getGraphs()),
+                new ArrayList<>(analysis.getDerivedData()), restrictions,
+                new ArrayList<>(analysis.getLabelRenames()));
+    }
+
+    /**
+     * Copy the runs in the given export file into this store, skipping any
+     * it already holds.
+     *
+     * @param exportFile
+     *            the export file.
+     * @return the number of runs copied.
+     * @throws DatabaseException
+     *             if the file cannot be read, or the store written.
+     */
+    public int importRuns(File exportFile) throws DatabaseException {
+        final List<Run> runs = new ArrayList<>();
+        try {
+            new XMLSerialiser().deserialiseRuns(exportFile, true, new XMLSerialiser.LoadedAction() {
+                @Override
+                public void doAction(XMLSerialisable node) {
+                    runs.add((Run) node);
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return false;
+                }
+            });
+        } catch (IOException ex) {
+            throw new DatabaseException("Failed to read export file " + exportFile, ex);
+        }
+
+        lock.writeLock().lock();
+        try {
+            int count = 0;
+            for (Run run : runs) {
+                if (store.getRun(run) == null) {
+                    store.addRun(run);
+                    ++count;
+                }
+            }
+            writeStore();
+            return count;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Return the meta data type restricted by the given category.
+     *
+     * @param category
+     *            a meta data category.
+     * @return the meta data type.
+     */
+    static MetaData.Type categoryToType(Category category) {
+        switch (category) {
+            case APPLICATION: return MetaData.Type.APPLICATION;
+            case COMPILER: return MetaData.Type.COMPILER;
+            case MACHINE: return MetaData.Type.MACHINE;
+            case MPI: return MetaData.Type.MPI;
+            case OPERATING_SYSTEM: return MetaData.Type.OPERATING_SYSTEM;
+            case PROCESSOR: return MetaData.Type.PROCESSOR;
+            default:
+                throw new IllegalArgumentException("Not a meta data category " + category);
+        }
+    }
+
+    /**
+     * Return the value of one of the {@link Category#RUN} fields of a run.
+     *
+     * @param run
+     *            the run.
+     * @param field
+     *            the field name.
+     * @return the value.
+     */
+    static Object runField(Run run, String field) {
+        switch (field) {
+            case "creator": return run.getCreator();
+            case "insertionDate": return run.getInsertionDate();
+            case "restricted": return run.isRestricted();
+            case "runDate": return run.getRunDate();
+            case "runId": return run.getRunId();
+            case "tag": return run.getTag();
+            case "file": return run.getFile();
+            default:
+                throw new IllegalArgumentException("Unknown run field " + field);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package uk.co.awe.pmat.db.embedded;
+
+import java.util.List;
+import org.dom4j.Element;
+import org.dom4j.QName;
+import org.dom4j.dom.DOMAttribute;
+import org.dom4j.dom.DOMElement;
+import uk.co.awe.pmat.db.DatabaseException;
+import uk.co.awe.pmat.db.MetaData;
+import uk.co.awe.pmat.db.Rank;
+import uk.co.awe.pmat.db.Restriction;
+import uk.co.awe.pmat.db.Value;
+import uk.co.awe.pmat.db.criteria.Category;
+import uk.co.awe.pmat.db.criteria.Comparator;
+import uk.co.awe.pmat.utils.CompressedBitmap;
+
+/**
+ * A {@link Restriction} on the sub runs held by an
+ * {@link EmbeddedDatabaseConnection}, matched in memory. Restrictions on a
+ * parameter or result only look at the sub runs indexed under its name.
+ *
+ * @author AWE Plc copyright 2013
+ */
+final class EmbeddedRestriction implements Restriction {
+
+    private final transient EmbeddedDatabaseConnection connection;
+    private final Category category;
+    private final String field;
+    private final Rank rank;
+    private final Comparator comparator;
+    private final Value<?> value;
+
+    EmbeddedRestriction(EmbeddedDatabaseConnection connection, Category category,
+            String field, Rank rank, Comparator comparator, Value<?> value) {
+        this.connection = connection;
+        this.category = category;
+        this.field = field;
+        this.rank = rank;
+        this.comparator = comparator;
+        this.value = value;
+    }
+
+    @Override
+    public Category getCategory() {
+        return category;
+    }
+
+    @Override
+    public String getField() {
+        return field;
+    }
+
+    @Override
+    public Rank getRank() {
+        return rank;
+    }
+
+    @Override
+    public Comparator getComparator() {
+        return comparator;
+    }
+
+    @Override
+    public Value<?> getValue() {
+        return value;
+    }
+
+    @Override
+    public Element toXML() {
+        Element node = new DOMElement(new QName(Restriction.class.getSimpleName()));
+
+        node.add(new DOMAttribute(new QName("category"), category.name()));
+        node.add(new DOMAttribute(new QName("field"), field));
+        node.add(new DOMAttribute(new QName("comparator"), comparator.name()));
+        node.add(new DOMAttribute(new QName("rank"), rank.name()));
+        node.add(new DOMAttribute(new QName("value"), value.getValue().toString()));
+        node.add(new DOMAttribute(new QName("valueType"), value.getValue().getClass().getSimpleName()));
+
+        return node;
+    }
+
+    @Override
+    public List<Long> getMatchingIDs() throws DatabaseException {
+        return connection.matchingIds(this).toList();
+    }
+
+    /**
+     * Return the IDs of the sub runs in the given store matching this
+     * restriction. The caller must hold the store's read lock.
+     *
+     * @param store
+     *            the store.
+     * @return the matching IDs.
+     */
+    CompressedBitmap matchingIds(EmbeddedStore store) {
+        final Object val = value.getValue();
+        final CompressedBitmap ids = new CompressedBitmap();
+
+        switch (category) {
+            case APPLICATION: // Fall through
+            case COMPILER: // Fall through
+            case MACHINE: // Fall through
+            case MPI: // Fall through
+            case OPERATING_SYSTEM: // Fall through
+            case PROCESSOR:
+                final MetaData.Type type = EmbeddedDatabaseConnection.categoryToType(category);
+                for (EmbeddedStore.StoredRun run : store.getRuns()) {
+                    final MetaData meta = run.getHeader().getMetaData(type);
+                    if (meta != null && matches(meta.getData(field), val, comparator)) {
+                        addAll(ids, run.getSubRunIds());
+                    }
+                }
+                break;
+            case RUN:
+                for (EmbeddedStore.StoredRun run : store.getRuns()) {
+                    if (matches(EmbeddedDatabaseConnection.runField(run.getHeader(), field), val, comparator)) {
+                        addAll(ids, run.getSubRunIds());
+                    }
+                }
+                break;
+            case PARAMETER:
+                if (val == null) {
+                    // A parameter restriction without a value does not
+                    // restrict the sub runs at all.
+                    for (EmbeddedStore.SubRun subRun : store.getSubRuns()) {
+                        ids.add(subRun.getId());
+                    }
+                    break;
+                }
+                for (Long id : store.getParameterIds(field)) {
+                    for (Value<?> param : store.getSubRun(id).getParameters()) {
+                        // Parameters are only compared with values of the
+                        // same type, as each type is held in its own column.
+                        if (field.equals(param.getName()) && param.getValue() != null
+                                && param.getValue().getClass().equals(val.getClass())
+                                && matches(param.getValue(), val, comparator)) {
+                            ids.add(id);
+                            break;
+                        }
+                    }
+                }
+                break;
+            case RESULT:
+                for (Long id : store.getResultIds(field)) {
+                    for (Value<Double> result : store.getSubRun(id).getResults()) {
+                        if (field.equals(result.getName()) && matches(result.getValue(), val, comparator)) {
+                            ids.add(id);
+                            break;
+                        }
+                    }
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown category " + category);
+        }
+
+        ids.optimise();
+        return ids;
+    }
+
+    private static void addAll(CompressedBitmap ids, List<Long> subRunIds) {
+        for (Long id : subRunIds) {
+            ids.add(id);
+        }
+    }
+
+    /**
+     * Compare a stored value with a restriction value as the database would,
+     * where a {@code null} restriction value matches {@code null} values for
+     * {@link Comparator#EQ} and any other values otherwise, and nothing else
+     * matches a {@code null} stored value.
+     *
+     * @param actual
+     *            the stored value.
+     * @param expected
+     *            the restriction value.
+     * @param comparator
+     *            the comparator.
+     * @return whether the stored value matches.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static boolean matches(Object actual, Object expected, Comparator comparator) {
+        if (expected == null) {
+            return comparator == Comparator.EQ ? actual == null : actual != null;
+        }
+        if (actual == null) {
+            return false;
+        }
+
+        final int cmp;
+        if (actual instanceof Number && expected instanceof Number) {
+            cmp = Double.compare(((Number) actual).doubleValue(), ((Number) expected).doubleValue());
+        } else if (actual.getClass().equals(expected.getClass()) && actual instanceof Comparable) {
+            cmp = ((Comparable) actual).compareTo(expected);
+        } else {
+            cmp = actual.toString().compareTo(expected.toString());
+        }
+
+        switch (comparator) {
+            case EQ: return cmp == 0;
+            case NE: return cmp != 0;
+            case GT: return cmp > 0;
+            case GE: return cmp >= 0;
+            case LT: return cmp < 0;
+            case LE: return cmp <= 0;
+            default:
+                throw new IllegalArgumentException("Unknown comparator " + comparator);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return category + " " + field + " " + comparator + " " + value.getValue();
+    }
+}
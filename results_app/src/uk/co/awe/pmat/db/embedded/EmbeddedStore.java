@@ -0,0 +1,640 @@
+package uk.co.awe.pmat.db.embedded;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.awe.pmat.db.Application;
+import uk.co.awe.pmat.db.Compiler;
+import uk.co.awe.pmat.db.ErrorType;
+import uk.co.awe.pmat.db.Machine;
+import uk.co.awe.pmat.db.MetaData;
+import uk.co.awe.pmat.db.Mpi;
+import uk.co.awe.pmat.db.OperatingSystem;
+import uk.co.awe.pmat.db.Processor;
+import uk.co.awe.pmat.db.Rank;
+import uk.co.awe.pmat.db.Run;
+import uk.co.awe.pmat.db.RunData;
+import uk.co.awe.pmat.db.Value;
+import uk.co.awe.pmat.utils.CompressedBitmap;
+
+/**
+ * The runs and meta data held by an {@link EmbeddedDatabaseConnection}, kept
+ * in memory and written to a single file.
+ *
+ * <p>Each sub run, i.e. each data set of a run, is given an ID when it is
+ * added, and the IDs of the sub runs holding each parameter and result name
+ * are indexed so that restrictions and axes on a name only look at the sub
+ * runs which have it. IDs are not stored in the file, so they only last as
+ * long as the store is open.</p>
+ *
+ * <p>The store is not thread safe; the connection guards it with a read write
+ * lock.</p>
+ *
+ * @author AWE Plc copyright 2013
+ */
+final class EmbeddedStore {
+
+    private final static Logger LOG = LoggerFactory.getLogger(EmbeddedStore.class);
+
+    /** Changed whenever the layout of the file changes. */
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte NULL_TAG = 0;
+    private static final byte STRING_TAG = 1;
+    private static final byte INTEGER_TAG = 2;
+    private static final byte DOUBLE_TAG = 3;
+    private static final byte BOOLEAN_TAG = 4;
+    private static final byte LONG_TAG = 5;
+    private static final byte DATE_TAG = 6;
+
+    /**
+     * A run, stored without its data sets, which are held as sub runs.
+     */
+    static final class StoredRun {
+        private final long id;
+        private final Run header;
+        private final List<String> flags;
+        private final List<Long> subRunIds = new ArrayList<>();
+
+        StoredRun(long id, Run header, List<String> flags) {
+            this.id = id;
+            this.header = header;
+            this.flags = flags;
+        }
+
+        long getId() {
+            return id;
+        }
+
+        Run getHeader() {
+            return header;
+        }
+
+        List<String> getFlags() {
+            return flags;
+        }
+
+        List<Long> getSubRunIds() {
+            return subRunIds;
+        }
+    }
+
+    /**
+     * A single data set of a run.
+     */
+    static final class SubRun {
+        private final long id;
+        private final StoredRun run;
+        private final RunData data;
+
+        SubRun(long id, StoredRun run, RunData data) {
+            this.id = id;
+            this.run = run;
+            this.data = data;
+        }
+
+        long getId() {
+            return id;
+        }
+
+        StoredRun getRun() {
+            return run;
+        }
+
+        List<Value<?>> getParameters() {
+            return data.getParameters();
+        }
+
+        List<Value<Double>> getResults() {
+            return data.getResults();
+        }
+
+        RunData getData() {
+            return data;
+        }
+    }
+
+    private final File file;
+    private final Map<MetaData.Type, List<MetaData>> metaData = new EnumMap<>(MetaData.Type.class);
+    private final Map<Long, StoredRun> runs = new LinkedHashMap<>();
+    private final Map<Run, StoredRun> runsByHeader = new HashMap<>();
+    private final Map<Long, SubRun> subRuns = new LinkedHashMap<>();
+    private final Map<String, CompressedBitmap> parameterIndex = new TreeMap<>();
+    private final Map<String, CompressedBitmap> resultIndex = new TreeMap<>();
+    private long nextRunId = 1;
+    private long nextSubRunId = 1;
+
+    /**
+     * Create a new, empty {@code EmbeddedStore}, to be read from and written
+     * to the given file.
+     *
+     * @param file
+     *            the store file.
+     */
+    EmbeddedStore(File file) {
+        this.file = file;
+        for (MetaData.Type type : MetaData.Type.values()) {
+            metaData.put(type, new ArrayList<MetaData>());
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Return the stored meta data of the given type.
+     *
+     * @param type
+     *            the meta data type.
+     * @return the meta data, which must not be modified.
+     */
+    List<MetaData> getMetaData(MetaData.Type type) {
+        return Collections.unmodifiableList(metaData.get(type));
+    }
+
+    Collection<StoredRun> getRuns() {
+        return Collections.unmodifiableCollection(runs.values());
+    }
+
+    StoredRun getRun(Run run) {
+        return runsByHeader.get(run);
+    }
+
+    StoredRun getRun(long id) {
+        return runs.get(id);
+    }
+
+    Collection<SubRun> getSubRuns() {
+        return Collections.unmodifiableCollection(subRuns.values());
+    }
+
+    SubRun getSubRun(long id) {
+        return subRuns.get(id);
+    }
+
+    /**
+     * Return the IDs of the sub runs holding a parameter with the given name.
+     *
+     * @param name
+     *            the parameter name.
+     * @return the sub run IDs, which must not be modified.
+     */
+    CompressedBitmap getParameterIds(String name) {
+        final CompressedBitmap ids = name == null ? null : parameterIndex.get(name);
+        return ids == null ? new CompressedBitmap() : ids;
+    }
+
+    /**
+     * Return the IDs of the sub runs holding a result with the given name.
+     *
+     * @param name
+     *            the result name.
+     * @return the sub run IDs, which must not be modified.
+     */
+    CompressedBitmap getResultIds(String name) {
+        final CompressedBitmap ids = name == null ? null : resultIndex.get(name);
+        return ids == null ? new CompressedBitmap() : ids;
+    }
+
+    /**
+     * Return the names of all the parameters, in order, with the IDs of the
+     * sub runs holding each.
+     *
+     * @return the parameter index, which must not be modified.
+     */
+    Map<String, CompressedBitmap> getParameterIndex() {
+        return Collections.unmodifiableMap(parameterIndex);
+    }
+
+    /**
+     * Return the names of all the results, in order, with the IDs of the sub
+     * runs holding each.
+     *
+     * @return the result index, which must not be modified.
+     */
+    Map<String, CompressedBitmap> getResultIndex() {
+        return Collections.unmodifiableMap(resultIndex);
+    }
+
+    /**
+     * Return the stored meta data equal to the given meta data, adding it if
+     * there is none, so that runs sharing meta data share the same object.
+     *
+     * @param meta
+     *            the meta data, or {@code null}.
+     * @return the stored meta data, or {@code null} if given {@code null}.
+     */
+    MetaData addMetaData(MetaData meta) {
+        if (meta == null) {
+            return null;
+        }
+        final List<MetaData> stored = metaData.get(meta.getType());
+        final int idx = stored.indexOf(meta);
+        if (idx >= 0) {
+            return stored.get(idx);
+        }
+        stored.add(meta);
+        return meta;
+    }
+
+    boolean containsMetaData(MetaData meta) {
+        return metaData.get(meta.getType()).contains(meta);
+    }
+
+    /**
+     * Replace the given meta data with another, in the store and in every
+     * run which refers to it.
+     *
+     * @param oldMeta
+     *            the meta data to replace.
+     * @param newMeta
+     *            the meta data to replace it with.
+     */
+    void updateMetaData(MetaData oldMeta, MetaData newMeta) {
+        final List<MetaData> stored = metaData.get(oldMeta.getType());
+        stored.set(stored.indexOf(oldMeta), newMeta);
+        for (StoredRun run : runs.values()) {
+            if (oldMeta.equals(run.getHeader().getMetaData(oldMeta.getType()))) {
+                run.getHeader().setMetaData(oldMeta.getType(), newMeta);
+            }
+        }
+    }
+
+    /**
+     * Remove the given meta data.
+     *
+     * @param meta
+     *            the meta data.
+     * @return {@code true} if the meta data was stored.
+     */
+    boolean removeMetaData(MetaData meta) {
+        return metaData.get(meta.getType()).remove(meta);
+    }
+
+    /**
+     * Add the given run, with its data sets and flags.
+     *
+     * @param run
+     *            the run.
+     * @return the stored run.
+     */
+    StoredRun addRun(Run run) {
+        final List<MetaData> runMetaData = new ArrayList<>();
+        for (MetaData.Type type : MetaData.Type.values()) {
+            runMetaData.add(addMetaData(run.getMetaData(type)));
+        }
+        final Date insertionDate = run.getInsertionDate() == null ? new Date() : run.getInsertionDate();
+        final Run header = new Run(run.getRunId(), run.getRunDate(), insertionDate, runMetaData,
+                run.getCreator(), run.isRestricted(), run.getFile(), run.getTag());
+
+        final StoredRun stored = new StoredRun(nextRunId++, header, new ArrayList<>(run.getFlags()));
+        runs.put(stored.getId(), stored);
+        runsByHeader.put(header, stored);
+
+        for (RunData data : run.getDataSets()) {
+            final SubRun subRun = new SubRun(nextSubRunId++, stored, new RunData(
+                    new ArrayList<>(data.getParameters()), new ArrayList<>(data.getResults())));
+            subRuns.put(subRun.getId(), subRun);
+            stored.getSubRunIds().add(subRun.getId());
+            index(subRun);
+        }
+        return stored;
+    }
+
+    /**
+     * Remove the given run, with its data sets and flags.
+     *
+     * @param run
+     *            the run.
+     * @return {@code true} if the run was stored.
+     */
+    boolean removeRun(Run run) {
+        final StoredRun stored = runsByHeader.remove(run);
+        if (stored == null) {
+            return false;
+        }
+        runs.remove(stored.getId());
+        for (Long id : stored.getSubRunIds()) {
+            subRuns.remove(id);
+        }
+        return true;
+    }
+
+    /**
+     * Rebuild the name indexes after sub runs have been removed, as the
+     * bitmaps cannot have IDs taken out of them.
+     */
+    void reindex() {
+        parameterIndex.clear();
+        resultIndex.clear();
+        for (SubRun subRun : subRuns.values()) {
+            index(subRun);
+        }
+    }
+
+    private void index(SubRun subRun) {
+        for (Value<?> param : subRun.getParameters()) {
+            indexName(parameterIndex, param.getName(), subRun.getId());
+        }
+        for (Value<Double> result : subRun.getResults()) {
+            indexName(resultIndex, result.getName(), subRun.getId());
+        }
+    }
+
+    private static void indexName(Map<String, CompressedBitmap> index, String name, long id) {
+        CompressedBitmap ids = index.get(name);
+        if (ids == null) {
+            ids = new CompressedBitmap();
+            index.put(name, ids);
+        }
+        ids.add(id);
+    }
+
+    /**
+     * Read the store from its file, if it exists.
+     *
+     * @throws IOException
+     *             if the file cannot be read.
+     */
+    void load() throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        try (final DataInputStream in = new DataInputStream(new GZIPInputStream(
+                new BufferedInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unknown format of embedded store " + file);
+            }
+
+            final Map<MetaData.Type, List<MetaData>> storedMetaData = new EnumMap<>(MetaData.Type.class);
+            for (MetaData.Type type : MetaData.Type.values()) {
+                final int count = in.readInt();
+                final List<MetaData> typeMetaData = new ArrayList<>(count);
+                for (int idx = 0; idx < count; ++idx) {
+                    final Map<String, Object> fields = new HashMap<>();
+                    final int fieldCount = in.readInt();
+                    for (int fieldIdx = 0; fieldIdx < fieldCount; ++fieldIdx) {
+                        fields.put(readString(in), readObject(in));
+                    }
+                    typeMetaData.add(addMetaData(newMetaData(type, fields)));
+                }
+                storedMetaData.put(type, typeMetaData);
+            }
+
+            final int runCount = in.readInt();
+            for (int idx = 0; idx < runCount; ++idx) {
+                final String runId = (String) readObject(in);
+                final Date runDate = (Date) readObject(in);
+                final Date insertionDate = (Date) readObject(in);
+                final String creator = (String) readObject(in);
+                final boolean restricted = in.readBoolean();
+                final String runFile = (String) readObject(in);
+                final String tag = (String) readObject(in);
+
+                final List<MetaData> runMetaData = new ArrayList<>();
+                for (MetaData.Type type : MetaData.Type.values()) {
+                    final int metaIdx = in.readInt();
+                    runMetaData.add(metaIdx < 0 ? null : storedMetaData.get(type).get(metaIdx));
+                }
+
+                final Run run = new Run(runId, runDate, insertionDate, runMetaData,
+                        creator, restricted, runFile, tag);
+
+                final int flagCount = in.readInt();
+                final List<String> flags = new ArrayList<>(flagCount);
+                for (int flagIdx = 0; flagIdx < flagCount; ++flagIdx) {
+                    flags.add(readString(in));
+                }
+                run.addFlags(flags);
+
+                final int dataSetCount = in.readInt();
+                for (int dataIdx = 0; dataIdx < dataSetCount; ++dataIdx) {
+                    final List<Value<?>> params = new ArrayList<>();
+                    final int paramCount = in.readInt();
+                    for (int paramIdx = 0; paramIdx < paramCount; ++paramIdx) {
+                        params.add(readValue(in));
+                    }
+                    final List<Value<Double>> results = new ArrayList<>();
+                    final int resultCount = in.readInt();
+                    for (int resultIdx = 0; resultIdx < resultCount; ++resultIdx) {
+                        @SuppressWarnings("unchecked")
+                        final Value<Double> result = (Value<Double>) readValue(in);
+                        results.add(result);
+                    }
+                    run.addDataSet(new RunData(params, results));
+                }
+                addRun(run);
+            }
+        } catch (ClassCastException | IllegalArgumentException ex) {
+            throw new IOException("Corrupt embedded store " + file, ex);
+        }
+        LOG.info("Loaded " + runs.size() + " runs from embedded store " + file);
+    }
+
+    /**
+     * Write the store to its file. The file is written alongside and then
+     * moved into place, so that a failure part way through leaves the last
+     * complete store behind.
+     *
+     * @throws IOException
+     *             if the file cannot be written.
+     */
+    void save() throws IOException {
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory " + directory);
+        }
+
+        final File tmpFile = File.createTempFile("store", ".tmp", directory);
+        try {
+            try (final DataOutputStream out = new DataOutputStream(new GZIPOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile))))) {
+                out.writeInt(FORMAT_VERSION);
+
+                final Map<MetaData.Type, Map<MetaData, Integer>> metaIndexes = new EnumMap<>(MetaData.Type.class);
+                for (MetaData.Type type : MetaData.Type.values()) {
+                    final List<MetaData> typeMetaData = metaData.get(type);
+                    final Map<MetaData, Integer> indexes = new HashMap<>();
+                    out.writeInt(typeMetaData.size());
+                    for (MetaData meta : typeMetaData) {
+                        indexes.put(meta, indexes.size());
+                        final Map<String, Object> fields = meta.getDataMap();
+                        out.writeInt(fields.size());
+                        for (Map.Entry<String, Object> entry : fields.entrySet()) {
+                            writeString(out, entry.getKey());
+                            writeObject(out, entry.getValue());
+                        }
+                    }
+                    metaIndexes.put(type, indexes);
+                }
+
+                out.writeInt(runs.size());
+                for (StoredRun stored : runs.values()) {
+                    final Run run = stored.getHeader();
+                    writeObject(out, run.getRunId());
+                    writeObject(out, run.getRunDate());
+                    writeObject(out, run.getInsertionDate());
+                    writeObject(out, run.getCreator());
+                    out.writeBoolean(run.isRestricted());
+                    writeObject(out, run.getFile());
+                    writeObject(out, run.getTag());
+
+                    for (MetaData.Type type : MetaData.Type.values()) {
+                        final MetaData meta = run.getMetaData(type);
+                        out.writeInt(meta == null ? -1 : metaIndexes.get(type).get(meta));
+                    }
+
+                    out.writeInt(stored.getFlags().size());
+                    for (String flag : stored.getFlags()) {
+                        writeString(out, flag);
+                    }
+
+                    out.writeInt(stored.getSubRunIds().size());
+                    for (Long id : stored.getSubRunIds()) {
+                        final SubRun subRun = subRuns.get(id);
+                        out.writeInt(subRun.getParameters().size());
+                        for (Value<?> param : subRun.getParameters()) {
+                            writeValue(out, param);
+                        }
+                        out.writeInt(subRun.getResults().size());
+                        for (Value<Double> result : subRun.getResults()) {
+                            writeValue(out, result);
+                        }
+                    }
+                }
+            }
+            try {
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            if (tmpFile.exists() && !tmpFile.delete()) {
+                LOG.warn("Failed to delete " + tmpFile);
+            }
+        }
+    }
+
+    /**
+     * Create the meta data of the given type from its fields.
+     *
+     * @param type
+     *            the meta data type.
+     * @param fields
+     *            the meta data fields.
+     * @return the meta data.
+     */
+    static MetaData newMetaData(MetaData.Type type, Map<String, Object> fields) {
+        switch (type) {
+            case APPLICATION: return new Application(fields);
+            case COMPILER: return new Compiler(fields);
+            case MACHINE: return new Machine(fields);
+            case MPI: return new Mpi(fields);
+            case OPERATING_SYSTEM: return new OperatingSystem(fields);
+            case PROCESSOR: return new Processor(fields);
+            default:
+                throw new IllegalArgumentException("Unknown meta data " + type);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Value<?> value) throws IOException {
+        writeString(out, value.getName());
+        out.writeInt(value.getRank().asInteger());
+        writeObject(out, value.getValue());
+        writeObject(out, value.getError());
+        writeObject(out, value.getErrorType() == null ? null : value.getErrorType().name());
+        writeObject(out, value.getCount());
+        writeObject(out, value.getPauseCount());
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Value<?> readValue(DataInputStream in) throws IOException {
+        final String name = readString(in);
+        final Rank rank = Rank.fromInteger(in.readInt());
+        final Comparable value = (Comparable) readObject(in);
+        final Comparable error = (Comparable) readObject(in);
+        final String errorType = (String) readObject(in);
+        final Long count = (Long) readObject(in);
+        final Long pauseCount = (Long) readObject(in);
+        return new Value(name, value, error, errorType == null ? null : ErrorType.valueOf(errorType),
+                rank, count, pauseCount);
+    }
+
+    private static void writeObject(DataOutputStream out, Object object) throws IOException {
+        if (object == null) {
+            out.writeByte(NULL_TAG);
+        } else if (object instanceof String) {
+            out.writeByte(STRING_TAG);
+            writeString(out, (String) object);
+        } else if (object instanceof Integer) {
+            out.writeByte(INTEGER_TAG);
+            out.writeInt((Integer) object);
+        } else if (object instanceof Double) {
+            out.writeByte(DOUBLE_TAG);
+            out.writeDouble((Double) object);
+        } else if (object instanceof Boolean) {
+            out.writeByte(BOOLEAN_TAG);
+            out.writeBoolean((Boolean) object);
+        } else if (object instanceof Long) {
+            out.writeByte(LONG_TAG);
+            out.writeLong((Long) object);
+        } else if (object instanceof Date) {
+            out.writeByte(DATE_TAG);
+            out.writeLong(((Date) object).getTime());
+        } else {
+            throw new IOException("Cannot store value of " + object.getClass());
+        }
+    }
+
+    private static Object readObject(DataInputStream in) throws IOException {
+        final byte tag = in.readByte();
+        switch (tag) {
+            case NULL_TAG: return null;
+            case STRING_TAG: return readString(in);
+            case INTEGER_TAG: return in.readInt();
+            case DOUBLE_TAG: return in.readDouble();
+            case BOOLEAN_TAG: return in.readBoolean();
+            case LONG_TAG: return in.readLong();
+            case DATE_TAG: return new Date(in.readLong());
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    // DataOutput.writeUTF is limited to 64K, which a description could exceed.
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
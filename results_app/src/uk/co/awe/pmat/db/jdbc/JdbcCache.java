@@ -1,70 +1,250 @@
 package uk.co.awe.pmat.db.jdbc;
 
-import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Set;
+import uk.co.awe.pmat.db.DataGrid;
+import uk.co.awe.pmat.utils.Pair;
 
 /**
+ * A bounded, least recently used cache of query results, keyed by the query
+ * and its full list of parameters. The names of the temporary restriction
+ * tables a query joins are left out of its key, as a table is named afresh
+ * whenever it is refilled, whilst the table itself is amongst the parameters.
+ *
+ * <p>The size of the cache is measured in rows rather than entries, as a
+ * single data grid may hold many thousands of rows, whilst a list of field
+ * names holds only a few. Each entry is tagged with the tables its query
+ * reads, including those read to fill its restriction tables, so that a
+ * change to a table only removes the results which depend on it.</p>
  *
  * @author AWE Plc copyright 2013
  */
-class JdbcCache {
-    
-    private final class CacheKey {
-        private final String queryString;
-        private final long paramsHash;
-
-        public CacheKey(String queryString, long paramsHash) {
-            this.queryString = queryString;
-            this.paramsHash = paramsHash;
+final class JdbcCache {
+
+    private static final Map<String, JdbcTable> TABLES_BY_NAME = new HashMap<>();
+
+    static {
+        for (JdbcTable table : JdbcTable.values()) {
+            TABLES_BY_NAME.put(table.tableName(), table);
         }
+    }
 
-        public boolean equals(Object obj) {
-            if (!(obj instanceof CacheKey)) {
-                return false;
-            }
-            final CacheKey other = (CacheKey) obj;
-            if (!Objects.equals(this.queryString, other.queryString)) {
-                return false;
-            }
-            if (this.paramsHash != other.paramsHash) {
-                return false;
+    /**
+     * A cached result, with the tables it was read from.
+     */
+    private static final class Entry {
+        private final Object value;
+        private final Set<JdbcTable> tables;
+        private final long weight;
+
+        Entry(Object value, Set<JdbcTable> tables, long weight) {
+            this.value = value;
+            this.tables = tables;
+            this.weight = weight;
+        }
+    }
+
+    private final long maxWeight;
+    private final Map<Pair<String, List<Object>>, Entry> entries =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+    private long invalidations = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Create a new {@code JdbcCache}.
+     *
+     * @param maxWeight
+     *            the maximum number of rows to hold across all the cached
+     *            results, or {@code 0} to disable caching.
+     */
+    JdbcCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Return the cached result of the given query.
+     *
+     * @param query
+     *            the query.
+     * @param params
+     *            the query parameters.
+     * @return the result, or {@code null} if it is not cached.
+     */
+    synchronized Object get(String query, List<? extends Object> params) {
+        final Entry entry = entries.get(key(query, params));
+        if (entry == null) {
+            ++misses;
+            return null;
+        }
+        ++hits;
+        return entry.value;
+    }
+
+    /**
+     * Return a stamp to pass to {@link #put} along with the result of a
+     * query which is about to be run, so that the result is not cached if
+     * any table is changed whilst the query is running.
+     *
+     * @return the stamp.
+     */
+    synchronized long stamp() {
+        return invalidations;
+    }
+
+    /**
+     * Cache the result of the given query, evicting the least recently used
+     * results to make room for it.
+     *
+     * @param query
+     *            the query.
+     * @param params
+     *            the query parameters.
+     * @param value
+     *            the result.
+     * @param stamp
+     *            the value of {@link #stamp()} taken before the query was run.
+     */
+    synchronized void put(String query, List<? extends Object> params, Object value, long stamp) {
+        final long valueWeight = weigh(value);
+        if (stamp != invalidations || valueWeight > maxWeight) {
+            return;
+        }
+
+        final Set<JdbcTable> tables = tablesRead(query);
+        for (Object param : params) {
+            if (param instanceof JdbcRestrictionTables.Table) {
+                tables.addAll(((JdbcRestrictionTables.Table) param).getTablesRead());
             }
-            return true;
         }
+        final Entry old = entries.put(key(query, params), new Entry(value, tables, valueWeight));
+        if (old != null) {
+            weight -= old.weight;
+        }
+        weight += valueWeight;
 
-        public int hashCode() {
-            int hash = 5;
-            hash = 89 * hash + Objects.hashCode(this.queryString);
-            hash = 89 * hash + (int) (this.paramsHash ^ (this.paramsHash >>> 32));
-            return hash;
+        final Iterator<Entry> it = entries.values().iterator();
+        while (weight > maxWeight && it.hasNext()) {
+            weight -= it.next().weight;
+            it.remove();
+            ++evictions;
+        }
+    }
+
+    /**
+     * Remove all the cached results read from any of the given tables, as
+     * they have been changed.
+     *
+     * @param tables
+     *            the changed tables.
+     */
+    synchronized void invalidate(Collection<JdbcTable> tables) {
+        ++invalidations;
+        final Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            if (!Collections.disjoint(entry.tables, tables)) {
+                weight -= entry.weight;
+                it.remove();
+            }
         }
+    }
+
+    /**
+     * Return the number of lookups which found a cached result.
+     *
+     * @return the number of hits.
+     */
+    synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Return the number of lookups which found no cached result.
+     *
+     * @return the number of misses.
+     */
+    synchronized long getMissCount() {
+        return misses;
+    }
 
+    /**
+     * Return the number of results removed to make room for others, not
+     * counting those removed because their tables changed.
+     *
+     * @return the number of evictions.
+     */
+    synchronized long getEvictionCount() {
+        return evictions;
     }
-    
-    final Map<CacheKey, SoftReference<?>> cache = new HashMap<>();
-        
-    boolean contains(String query, List<? extends Object> params) {
-        final CacheKey key = new CacheKey(query, params.hashCode());
-        // Can't just test for inclusion as the reference may have been
-        // released.
-        return cache.containsKey(key) && (cache.get(key).get() != null);
+
+    /**
+     * Return the number of rows held across all the cached results.
+     *
+     * @return the cached rows.
+     */
+    synchronized long getWeight() {
+        return weight;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "JdbcCache[entries=" + entries.size() + ", rows=" + weight
+                + "/" + maxWeight + ", hits=" + hits + ", misses=" + misses
+                + ", evictions=" + evictions + "]";
     }
 
-    Object get(String query, List<? extends Object> params) {
-        final CacheKey key = new CacheKey(query, params.hashCode());
-        return cache.containsKey(key) ? cache.get(key).get() : null;
+    /**
+     * Return the tables named in the given query. Every table is named in
+     * the queries built by this package, either qualified by the schema or in
+     * a join, so this errs only in tagging an entry with too many tables.
+     *
+     * @param query
+     *            the query.
+     * @return the tables read by the query.
+     */
+    static Set<JdbcTable> tablesRead(String query) {
+        final Set<JdbcTable> tables = EnumSet.noneOf(JdbcTable.class);
+        for (String token : query.split("[^A-Za-z0-9_]+")) {
+            final JdbcTable table = TABLES_BY_NAME.get(token);
+            if (table != null) {
+                tables.add(table);
+            }
+        }
+        return tables;
     }
-    
-    void put(String query, List<? extends Object> params, Object value) {
-        final CacheKey key = new CacheKey(query, params.hashCode());
-        cache.put(key, new SoftReference<>(value));
+
+    private static long weigh(Object value) {
+        if (value instanceof DataGrid) {
+            return Math.max(1, ((DataGrid) value).size());
+        }
+        if (value instanceof Collection) {
+            return Math.max(1, ((Collection<?>) value).size());
+        }
+        if (value instanceof Map) {
+            long mapWeight = 0;
+            for (Object mapValue : ((Map<?, ?>) value).values()) {
+                mapWeight += weigh(mapValue);
+            }
+            return Math.max(1, mapWeight);
+        }
+        return 1;
     }
 
-    void dirty() {
-        cache.clear();
+    private static Pair<String, List<Object>> key(String query, List<? extends Object> params) {
+        // The callers go on to reuse their parameter lists, so keys must not
+        // share them.
+        return new Pair<String, List<Object>>(JdbcRestrictionTables.normalise(query),
+                Collections.unmodifiableList(new ArrayList<Object>(params)));
     }
-    
 }
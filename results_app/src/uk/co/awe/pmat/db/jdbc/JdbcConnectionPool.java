@@ -0,0 +1,358 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of JDBC connections. Connections handed out by the pool are
+ * proxies whose {@code close()} returns the underlying connection to the pool
+ * rather than closing it. Idle connections are evicted once they have been
+ * unused for longer than the idle timeout, and are validated before being
+ * handed out again. Each connection keeps a {@link JdbcStatementCache} so
+ * that its prepared statements survive being returned to the pool.
+ *
+ * @author AWE Plc copyright 2013
+ */
+final class JdbcConnectionPool {
+
+    private final static Logger LOG = LoggerFactory.getLogger(JdbcConnectionPool.class);
+
+    /**
+     * The session state of a physical connection, which outlives the
+     * borrowing of the connection. Connections handed out by the pool
+     * implement this interface.
+     */
+    interface Session {
+        /**
+         * Return the names of the temporary tables created on the
+         * connection, which the caller may update.
+         *
+         * @return the temporary table names.
+         */
+        Set<String> getTemporaryTables();
+    }
+
+    /**
+     * A physical connection owned by the pool, along with its statement
+     * cache.
+     */
+    private static final class PooledConnection {
+        private final Connection connection;
+        private final JdbcStatementCache statements;
+        private final Set<String> temporaryTables = new HashSet<>();
+        private final int generation;
+
+        PooledConnection(Connection connection, int statementCacheSize, int generation) {
+            this.connection = connection;
+            this.statements = new JdbcStatementCache(connection, statementCacheSize);
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * An idle connection waiting in the pool, along with the time it was
+     * returned.
+     */
+    private static final class IdleConnection {
+        private final PooledConnection pooled;
+        private final long idleSince;
+
+        IdleConnection(PooledConnection pooled) {
+            this.pooled = pooled;
+            this.idleSince = System.currentTimeMillis();
+        }
+    }
+
+    private final String name;
+    private final String url;
+    private final String userName;
+    private final String passWord;
+    private final boolean readOnly;
+    private final long idleTimeout;
+    private final int validationTimeout;
+    private final long borrowTimeout;
+    private final int statementCacheSize;
+    private final boolean localInfile;
+
+    private final Semaphore permits;
+    private final Deque<IdleConnection> idle = new ArrayDeque<>();
+
+    /**
+     * The number of times the pool has been closed. Connections opened
+     * before the last close are not returned to the pool.
+     */
+    private int generation = 0;
+
+    /**
+     * Create a new {@code JdbcConnectionPool}.
+     *
+     * @param name
+     *            the name of the pool, used in logging.
+     * @param url
+     *            the connection URL for the database.
+     * @param userName
+     *            the database username.
+     * @param passWord
+     *            the database password.
+     * @param readOnly
+     *            {@code true} if the connections are only used for queries,
+     *            in which case they are put in auto-commit mode, otherwise
+     *            they are left for the caller to commit.
+     * @param maxSize
+     *            the maximum number of connections open at any one time.
+     * @param idleTimeout
+     *            the time in milliseconds after which an unused connection is
+     *            closed.
+     * @param validationTimeout
+     *            the time in seconds to wait when validating a connection
+     *            before it is borrowed, or {@code 0} to skip validation.
+     * @param borrowTimeout
+     *            the time in milliseconds to wait for a connection to become
+     *            available.
+     * @param statementCacheSize
+     *            the number of prepared statements to cache per connection,
+     *            or {@code 0} to disable statement caching.
+     * @param localInfile
+     *            {@code true} if the connections may be used to bulk load
+     *            data with {@code LOAD DATA LOCAL INFILE}.
+     */
+    JdbcConnectionPool(String name, String url, String userName, String passWord,
+            boolean readOnly, int maxSize, long idleTimeout, int validationTimeout,
+            long borrowTimeout, int statementCacheSize, boolean localInfile) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Pool " + name + " must allow at least one connection");
+        }
+        this.name = name;
+        this.url = url;
+        this.userName = userName;
+        this.passWord = passWord;
+        this.readOnly = readOnly;
+        this.idleTimeout = idleTimeout;
+        this.validationTimeout = validationTimeout;
+        this.borrowTimeout = borrowTimeout;
+        this.statementCacheSize = statementCacheSize;
+        this.localInfile = localInfile;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Borrow a connection from the pool, opening a new one if there are no
+     * valid idle connections. The connection must be closed to return it to
+     * the pool.
+     *
+     * @return the connection.
+     * @throws SQLException
+     *             if no connection becomes available in time, or a new
+     *             connection cannot be opened.
+     */
+    Connection borrow() throws SQLException {
+        try {
+            if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting for a connection from pool " + name);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a connection from pool " + name, ex);
+        }
+
+        try {
+            PooledConnection pooled;
+            while ((pooled = pollIdle()) != null) {
+                if (isValid(pooled.connection)) {
+                    return wrap(pooled);
+                }
+                discard(pooled);
+            }
+            return wrap(open());
+        } catch (SQLException | RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Close all idle connections. Connections currently borrowed are closed
+     * when they are returned, and new connections are opened the next time
+     * one is borrowed.
+     */
+    void close() {
+        synchronized (idle) {
+            ++generation;
+            for (IdleConnection idleConn : idle) {
+                discard(idleConn.pooled);
+            }
+            idle.clear();
+        }
+    }
+
+    private PooledConnection pollIdle() {
+        synchronized (idle) {
+            evictIdle();
+            // Most recently used first, so that the least used connections
+            // are left to expire.
+            final IdleConnection idleConn = idle.pollFirst();
+            return idleConn == null ? null : idleConn.pooled;
+        }
+    }
+
+    /**
+     * Close any connections which have been idle for longer than the idle
+     * timeout. Must be called whilst holding the lock on {@code idle}.
+     */
+    private void evictIdle() {
+        final long now = System.currentTimeMillis();
+        final Iterator<IdleConnection> it = idle.descendingIterator();
+        while (it.hasNext()) {
+            final IdleConnection idleConn = it.next();
+            if (now - idleConn.idleSince < idleTimeout) {
+                break;
+            }
+            it.remove();
+            LOG.debug("Evicting idle connection from pool " + name);
+            discard(idleConn.pooled);
+        }
+    }
+
+    private boolean isValid(Connection connection) {
+        if (validationTimeout <= 0) {
+            return true;
+        }
+        try {
+            return connection.isValid(validationTimeout);
+        } catch (SQLException ex) {
+            LOG.debug("Connection validation failed in pool " + name, ex);
+            return false;
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        LOG.debug("Opening new connection in pool " + name);
+        final int openedIn;
+        synchronized (idle) {
+            openedIn = generation;
+        }
+        final Properties info = new Properties();
+        if (userName != null) {
+            info.setProperty("user", userName);
+        }
+        if (passWord != null) {
+            info.setProperty("password", passWord);
+        }
+        if (statementCacheSize > 0) {
+            // Only worth caching the statements if the server keeps the
+            // parsed statement, rather than the driver re-sending the SQL.
+            info.setProperty("useServerPrepStmts", "true");
+        }
+        // Let the driver send JDBC batches as multi-row inserts.
+        info.setProperty("rewriteBatchedStatements", "true");
+        info.setProperty("allowLoadLocalInfile", Boolean.toString(localInfile));
+        final Connection connection = DriverManager.getConnection(url, info);
+        connection.setAutoCommit(readOnly);
+        connection.setReadOnly(readOnly);
+        return new PooledConnection(connection, statementCacheSize, openedIn);
+    }
+
+    private void release(PooledConnection pooled) {
+        try {
+            if (!pooled.connection.getAutoCommit()) {
+                // Never hand out a connection with someone else's
+                // uncommitted work on it.
+                pooled.connection.rollback();
+            }
+            synchronized (idle) {
+                if (pooled.generation == generation) {
+                    idle.addFirst(new IdleConnection(pooled));
+                    return;
+                }
+            }
+            discard(pooled);
+        } catch (SQLException ex) {
+            LOG.debug("Discarding broken connection from pool " + name, ex);
+            discard(pooled);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void discard(PooledConnection pooled) {
+        pooled.statements.close();
+        try {
+            pooled.connection.close();
+        } catch (SQLException ex) {
+            LOG.debug("Error closing connection in pool " + name, ex);
+        }
+    }
+
+    /**
+     * Wrap the given connection in a proxy which returns it to the pool when
+     * it is closed, and which prepares statements through its statement
+     * cache.
+     *
+     * @param pooled
+     *            the connection to wrap.
+     * @return the wrapped connection.
+     */
+    private Connection wrap(final PooledConnection pooled) {
+        final Connection connection = pooled.connection;
+        final ClassLoader classLoader = getClass().getClassLoader();
+        return (Connection) Proxy.newProxyInstance(classLoader,
+                new Class<?>[] {Connection.class, Session.class},
+                new InvocationHandler() {
+                    private boolean returned = false;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        switch (method.getName()) {
+                            case "close":
+                                if (!returned) {
+                                    returned = true;
+                                    release(pooled);
+                                }
+                                return null;
+                            case "isClosed":
+                                return returned || connection.isClosed();
+                            case "equals":
+                                return proxy == args[0];
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "getTemporaryTables":
+                                return pooled.temporaryTables;
+                            default:
+                                if (returned) {
+                                    throw new SQLException("Connection has been returned to pool " + name);
+                                }
+                                if (method.getName().equals("prepareStatement")) {
+                                    if (args.length == 1) {
+                                        return pooled.statements.prepare((String) args[0],
+                                                Statement.NO_GENERATED_KEYS);
+                                    } else if (args.length == 2 && args[1] instanceof Integer) {
+                                        return pooled.statements.prepare((String) args[0],
+                                                (Integer) args[1]);
+                                    }
+                                }
+                                try {
+                                    return method.invoke(connection, args);
+                                } catch (InvocationTargetException ex) {
+                                    throw ex.getCause();
+                                }
+                        }
+                    }
+                });
+    }
+}
@@ -1,11 +1,13 @@
 package uk.co.awe.pmat.db.jdbc;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.EnumMap;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -16,15 +18,23 @@ import uk.co.awe.pmat.deriveddata.ParserValues.Constant;
 import uk.co.awe.pmat.deriveddata.ParserValues.Property;
 import uk.co.awe.pmat.deriveddata.ParserValues.Variable;
 import uk.co.awe.pmat.db.DatabaseException;
+import uk.co.awe.pmat.db.ErrorType;
 import uk.co.awe.pmat.db.MetaData;
 import uk.co.awe.pmat.db.Rank;
 import uk.co.awe.pmat.db.Restriction;
+import uk.co.awe.pmat.db.Value;
 import uk.co.awe.pmat.db.axis.Axis;
 import uk.co.awe.pmat.db.axis.AxisType;
 import uk.co.awe.pmat.db.series.Series;
+import uk.co.awe.pmat.db.series.SeriesType;
+import uk.co.awe.pmat.utils.Pair;
 import uk.co.awe.pmat.utils.StringUtils;
 
 /**
+ * Builds the query for a data grid. The SQL of the query is held in a
+ * {@link JdbcDataGridPlan}, which is only built the first time a query of its
+ * shape is asked for and then reused, with the names of the axes and series
+ * bound to it afresh each time.
  *
  * @author AWE Plc copyright 2013
  */
@@ -33,23 +43,45 @@ class JdbcDataGridBuilder {
     private final JdbcHelper helper;
     private final Axis xAxis;
     private final Axis yAxis;
+    private final Rank rank;
     private final Collection<Restriction> restrictions;
     private final Collection<Series> seriesColl;
+    private final boolean rollups;
     
-    private final Set<String> selects = new HashSet<>();
-    // joins needs to be an ordered set in order to removed duplicate joins
-    // whilst maintaing the order of the joins.
+    private final List<Object> sqlParams = new ArrayList<>();
+    private JdbcDataGridPlan plan;
+    
+    // Only used whilst building the plan. The selects and joins need to be
+    // ordered sets in order to remove duplicates whilst maintaining their
+    // order, so that the same plan always gives the same SQL.
+    private final Set<String> selects = new LinkedHashSet<>();
     private final Set<String> joins = new LinkedHashSet<>();
     private final List<String> clauses = new ArrayList<>();
-    private final List<Object> sqlParams = new ArrayList<>();
-    private final Map<String, String> derivedDataColumns = new HashMap<>();
+    private final List<Object> derivedJoinParams = new ArrayList<>();
+    private final List<Object> derivedParams = new ArrayList<>();
+    private final Map<String, String> derivedDataColumns = new LinkedHashMap<>();
     
-    JdbcDataGridBuilder(JdbcHelper helper, Axis xAxis, Axis yAxis, Rank rank, Collection<Restriction> restrictions, Collection<Series> seriesColl) {
+    /**
+     * Create a new {@code JdbcDataGridBuilder}.
+     * 
+     * @param helper the helper the query plans are cached in.
+     * @param xAxis the x axis.
+     * @param yAxis the y axis.
+     * @param rank the rank of the results.
+     * @param restrictions the restrictions on the sub runs read.
+     * @param seriesColl the series.
+     * @param rollups whether the database holds the rollups of the results
+     * across ranks, which it does not until the schema has been migrated.
+     */
+    JdbcDataGridBuilder(JdbcHelper helper, Axis xAxis, Axis yAxis, Rank rank, Collection<Restriction> restrictions,
+            Collection<Series> seriesColl, boolean rollups) {
         this.helper = helper;
         this.xAxis = xAxis;
         this.yAxis = yAxis;
+        this.rank = rank;
         this.restrictions = restrictions;
         this.seriesColl = seriesColl;
+        this.rollups = rollups;
     }
     
 
@@ -64,57 +96,63 @@ class JdbcDataGridBuilder {
 
         int ddIdx = 0;
 
+        for (DerivedData dd : derivedDataColumnsOf(derivedData)) {
+            if (dd instanceof Variable) {
+                ddIdx = parseVariable(ddIdx, (Variable) dd);
+            } else {
+                ddIdx = parseProperty(ddIdx, (Property) dd);
+            }
+        }
+    }
+
+    /**
+     * Return the variables and properties of a derived axis which need a
+     * column each to be read from the database, in the order they are found.
+     *
+     * @param derivedData the derived axis.
+     * @return the variables and properties.
+     */
+    private static List<DerivedData> derivedDataColumnsOf(DerivedData derivedData) {
+
         final Map<Variable.Type, Set<String>> varNames
                 = new EnumMap<>(Variable.Type.class);
         for (Variable.Type type : Variable.Type.values()) {
             varNames.put(type, new HashSet<String>());
         }
-        
-        parseDerivedData(ddIdx, varNames, derivedData);
+
+        final List<DerivedData> columns = new ArrayList<>();
+        derivedDataColumnsOf(varNames, columns, derivedData);
+        return columns;
     }
 
     /**
-     * Recursive function used to build up the derived data select, join, and
-     * where clause.
+     * Recursive function used to find the variables and properties of a
+     * derived axis.
      *
-     * @param ddIdx a running index, used to generate names for variables in
-     * the select columns.
-     * @param select the list of columns to select.
-     * @param join the entities that need to be joined for the columns in the
-     * selects to be available.
-     * @param clause the where clauses used to join and filter the entities
-     * given by {@code join}.
-     * @param parameters the query parameters to set.
      * @param varNames the list of variable names we are selecting columns for,
      * used so we don't fetch the same variable twice.
-     * @param derivedData the derived data to parse.
-     * @return the ddIdx, updated if any variables have been parsed.
+     * @param columns the variables and properties found so far, to add to.
+     * @param derivedData the derived data to search.
      */
-    private int parseDerivedData(int ddIdx,
-            Map<Variable.Type, Set<String>> varNames,
-            DerivedData... derivedData) {
+    private static void derivedDataColumnsOf(Map<Variable.Type, Set<String>> varNames,
+            List<DerivedData> columns, DerivedData... derivedData) {
 
         for (DerivedData dd : derivedData) {
             if (dd instanceof Function) {
                 final Function func = ((Function) dd);
-                ddIdx = parseDerivedData(ddIdx, varNames, func.getArgs());
+                derivedDataColumnsOf(varNames, columns, func.getArgs());
             } else if (dd instanceof Variable) {
                 final Variable var = (Variable) dd;
-                // If we have already parsed this variable, continue.
-                if (varNames.get(var.getType()).contains(var.getName())) {
-                    continue;
+                // Only fetch each variable once.
+                if (varNames.get(var.getType()).add(var.getName())) {
+                    columns.add(var);
                 }
-                ddIdx = parseVariable(ddIdx, var);
-                varNames.get(var.getType()).add(var.getName());
             } else if (dd instanceof Property) {
-                final Property prop = (Property) dd;
-                ddIdx = parseProperty(ddIdx, prop);
+                columns.add(dd);
             } else if (!(dd instanceof Constant)) {
                 throw new IllegalStateException("Unknown DerivedData type " + dd);
             }
         }
-
-        return ddIdx;
     }
 
     /**
@@ -134,7 +172,7 @@ class JdbcDataGridBuilder {
     }
 
     Map<String, String> getDerivedDataColumns() {
-        return derivedDataColumns;
+        return plan.getDerivedDataColumns();
     }
 
     /**
@@ -169,19 +207,113 @@ class JdbcDataGridBuilder {
                 throw new IllegalStateException("Unknown variable type " + varType);
         }
         
-        selects.add(JdbcMapping.getTableMap(table).get("value").select(derivedTableRef, derivedColRef));
-        joins.add(helper.getSchema() + "." + JdbcTable.SUB_RUN.joinRight(table, derivedTableRef));
-        clauses.add(derivedTableRef + "." + table.equals("name", varName));
-        sqlParams.add(varName);
+        if (table == JdbcTable.RESULT && readsRollups()) {
+            selects.add(rollupValueSelect(derivedTableRef) + " AS " + derivedColRef);
+            joinRollup(derivedTableRef, varName);
+            derivedJoinParams.add(varName);
+            derivedJoinParams.add(varName);
+            derivedJoinParams.add(varName);
+        } else {
+            selects.add(JdbcMapping.getTableMap(table).get("value").select(derivedTableRef, derivedColRef));
+            joins.add("JOIN " + helper.getSchema() + "." + JdbcTable.SUB_RUN.joinRight(table, derivedTableRef));
+            clauses.add(derivedTableRef + "." + table.equals("name", varName));
+            derivedParams.add(varName);
+        }
         derivedDataColumns.put(varName, derivedColRef);
 
         return (ddIdx + 1);
     }
 
-    String generateQuery() throws DatabaseException {       
-        final String subRunRestriction = JdbcUtils.subRunRestriction(restrictions, sqlParams);
+    /**
+     * Return the query for the data grid, restricted to the sub runs matching
+     * the restrictions, whose parameters are then given by
+     * {@link #getSqlParams()}.
+     * 
+     * @return the query.
+     * @throws DatabaseException if an error occurs fetching the IDs of a
+     * restriction.
+     */
+    String generateQuery() throws DatabaseException {
+        final JdbcDataGridPlan.Key key = planKey();
+        plan = helper.getDataGridPlan(key);
+        if (plan == null) {
+            plan = buildPlan();
+            helper.putDataGridPlan(key, plan);
+        }
         
-        joins.add(helper.getSchema() + "." + JdbcTable.RUN.joinRight(JdbcTable.SUB_RUN));
+        // The names are bound in the order their joins and clauses were
+        // added to the plan, the names in the joins coming before the sub run
+        // restriction and those in the clauses after it.
+        final List<Object> joinNames = new ArrayList<>();
+        final List<Object> clauseNames = new ArrayList<>();
+        bindName(xAxis.getType() == AxisType.PARAMETER, xAxis.getType() == AxisType.RESULT, xAxis.getSubType(),
+                joinNames, clauseNames);
+        if (yAxis.getType() == AxisType.DERIVED) {
+            joinNames.addAll(plan.getDerivedJoinParams());
+            clauseNames.addAll(plan.getDerivedParams());
+        } else {
+            bindName(yAxis.getType() == AxisType.PARAMETER, yAxis.getType() == AxisType.RESULT, yAxis.getSubType(),
+                    joinNames, clauseNames);
+        }
+        for (Series series : seriesColl) {
+            bindName(series.getType() == SeriesType.PARAMETER, series.getType() == SeriesType.RESULT,
+                    series.getSubType(), joinNames, clauseNames);
+        }
+        
+        sqlParams.clear();
+        sqlParams.addAll(joinNames);
+        final String subRunRestriction = helper.subRunRestriction(restrictions, sqlParams);
+        sqlParams.addAll(clauseNames);
+        
+        return plan.query(subRunRestriction);
+    }
+    
+    private void bindName(boolean parameter, boolean result, Object name, List<Object> joinNames,
+            List<Object> clauseNames) {
+        if (result && readsRollups()) {
+            // Once each for the rollup, the stored aggregate and the per-rank
+            // values read when there is neither.
+            joinNames.add(name);
+            joinNames.add(name);
+            joinNames.add(name);
+        } else if (parameter || result) {
+            clauseNames.add(name);
+        }
+    }
+    
+    /**
+     * Return the shape of the query, which is everything about it that
+     * changes its SQL rather than its parameters.
+     * 
+     * @return the plan key.
+     */
+    JdbcDataGridPlan.Key planKey() {
+        final List<Object> parts = new ArrayList<>();
+        parts.add(readsRollups() ? rank : null);
+        parts.add(axisKey(xAxis));
+        if (yAxis.getType() == AxisType.DERIVED) {
+            for (DerivedData dd : derivedDataColumnsOf((DerivedData) yAxis.getSubType())) {
+                parts.add(dd instanceof Variable
+                        ? new Pair<Object, Object>(((Variable) dd).getType(), ((Variable) dd).getName())
+                        : new Pair<Object, Object>(AxisType.DERIVED, ((Property) dd).getType()));
+            }
+        } else {
+            parts.add(axisKey(yAxis));
+        }
+        for (Series series : seriesColl) {
+            parts.add(new Pair<Object, Object>(series.getType(),
+                    series.getType() == SeriesType.META_DATA ? series.getSubType() : null));
+        }
+        return new JdbcDataGridPlan.Key(parts);
+    }
+    
+    private static Pair<Object, Object> axisKey(Axis axis) {
+        return new Pair<Object, Object>(axis.getType(),
+                axis.getType() == AxisType.META_DATA ? axis.getSubType() : null);
+    }
+    
+    private JdbcDataGridPlan buildPlan() {
+        joins.add("JOIN " + helper.getSchema() + "." + JdbcTable.RUN.joinRight(JdbcTable.SUB_RUN));
         
         parseAxis(xAxis);
         
@@ -193,22 +325,135 @@ class JdbcDataGridBuilder {
 
         parseSeries();
         
-        String query = "SELECT {0} FROM {1} JOIN {2} WHERE {3} AND {4}";
+        String select = "SELECT {0} FROM {1} {2}";
         
-        query = MessageFormat.format(query,
+        select = MessageFormat.format(select,
         /* 0 */ StringUtils.joinStrings(selects, ", "),
         /* 1 */ helper.getSchema() + "." + JdbcTable.RUN.tableSelect(),
-        /* 2 */ StringUtils.joinStrings(joins, " JOIN "),
-        /* 3 */ subRunRestriction,
-        /* 4 */ StringUtils.joinStrings(clauses, " AND "));
+        /* 2 */ StringUtils.joinStrings(joins, " "));
         
-        return query;
+        return new JdbcDataGridPlan(select, clauses, derivedJoinParams, derivedParams, derivedDataColumns);
     }
     
     List<Object> getSqlParams() {
         return sqlParams;
     }
     
+    /**
+     * Whether the results are read from the rollups across ranks rather than
+     * from the results of each rank, which they are when the rank requested
+     * is an aggregate across ranks and the database holds the rollups.
+     * 
+     * @return {@code true} if the results are read from the rollups.
+     */
+    boolean readsRollups() {
+        return rollups && JdbcRankRollup.isAggregate(rank);
+    }
+    
+    /**
+     * Join the rollup of the named result, and the result as saved at the
+     * requested aggregate rank, for results such as PMTM timers which are
+     * only saved as an aggregate across ranks and so have no rollup. Each
+     * sub run is read from whichever of the two it has, or failing both from
+     * its per-rank values, as for sub runs saved by a client which did not
+     * write the rollups.
+     * 
+     * @param rollupRef the reference to join the rollup as.
+     * @param name the name of the result.
+     */
+    private void joinRollup(String rollupRef, Object name) {
+        final String storedRef = storedReference(rollupRef);
+        joins.add("LEFT JOIN " + helper.getSchema() + "." + JdbcTable.SUB_RUN.joinRight(JdbcTable.RESULT_ROLLUP, rollupRef)
+                + " AND " + rollupRef + "." + JdbcTable.RESULT_ROLLUP.equals("name", name));
+        joins.add("LEFT JOIN " + helper.getSchema() + "." + JdbcTable.SUB_RUN.joinRight(JdbcTable.RESULT, storedRef)
+                + " AND " + storedRef + "." + JdbcTable.RESULT.equals("name", name)
+                + " AND " + storedRef + "." + JdbcMapping.getTableMap(JdbcTable.RESULT).get("rank").name()
+                + " = " + rank.asInteger());
+        // The name is joined as a single row so that the per-rank sub-queries
+        // in the selects and clauses need no parameters of their own.
+        joins.add("JOIN (SELECT ? AS Name) AS " + rankNameReference(rollupRef));
+        clauses.add("(" + rollupFound(rollupRef) + " OR " + storedFound(rollupRef)
+                + " OR EXISTS " + rankSelect(rollupRef, "1") + ")");
+    }
+    
+    private String rollupValueSelect(String rollupRef) {
+        return "COALESCE(" + JdbcRankRollup.valueSelect(rollupRef, rank) + ", "
+                + storedReference(rollupRef) + ".Value, "
+                + rankSelect(rollupRef, JdbcRankRollup.rankValueSelect(rankValueColumn(rollupRef), rank)) + ")";
+    }
+    
+    /**
+     * Return a sub-query selecting from the per-rank values of the result
+     * joined as the given reference, in the current sub run.
+     */
+    private String rankSelect(String rollupRef, String select) {
+        final String rankRef = rankReference(rollupRef);
+        final Map<String, JdbcMapping.Column> columns = JdbcMapping.getTableMap(JdbcTable.RESULT);
+        return "(SELECT " + select + " FROM " + helper.getSchema() + "." + JdbcTable.RESULT.tableName() + " AS " + rankRef
+                + " WHERE " + JdbcMapping.joins.get(JdbcTable.SUB_RUN).get(JdbcTable.RESULT).select(rankRef, null)
+                + " = " + JdbcTable.SUB_RUN.tableReference() + ".ID"
+                + " AND " + columns.get("name").select(rankRef, null) + " = " + rankNameReference(rollupRef) + ".Name"
+                + " AND " + columns.get("rank").select(rankRef, null) + " >= 0)";
+    }
+    
+    private static String rankValueColumn(String rollupRef) {
+        return JdbcMapping.getTableMap(JdbcTable.RESULT).get("value").select(rankReference(rollupRef), null);
+    }
+    
+    private static String rollupFound(String rollupRef) {
+        return JdbcMapping.joins.get(JdbcTable.SUB_RUN).get(JdbcTable.RESULT_ROLLUP).select(rollupRef, null) + " IS NOT NULL";
+    }
+    
+    private static String storedFound(String rollupRef) {
+        return JdbcMapping.joins.get(JdbcTable.SUB_RUN).get(JdbcTable.RESULT).select(storedReference(rollupRef), null)
+                + " IS NOT NULL";
+    }
+    
+    private static String storedReference(String rollupRef) {
+        return rollupRef + "Stored";
+    }
+    
+    private static String rankReference(String rollupRef) {
+        return rollupRef + "Ranks";
+    }
+    
+    private static String rankNameReference(String rollupRef) {
+        return rollupRef + "RankName";
+    }
+    
+    /**
+     * Return the mapper reading the value of a result axis from the rows of
+     * the query, when the results are read from the rollups.
+     * 
+     * @param resultSet the query results.
+     * @param axis the result axis.
+     * @return the mapper, reading the value of the requested rank aggregate.
+     * @throws SQLException if a rollup column is not in the query results.
+     */
+    JdbcRowMapper<Value<Double>> rollupMapper(ResultSet resultSet, Axis axis) throws SQLException {
+        final String rollupRef = rollupReference(axis);
+        final int nameIdx = JdbcRowMapper.columnIndex(resultSet, rollupRef + "Name");
+        final int valueIdx = JdbcRowMapper.columnIndex(resultSet, rollupRef + "Value");
+        final int errorIdx = JdbcRowMapper.columnIndex(resultSet, rollupRef + "Error");
+        final int storedErrorTypeIdx = JdbcRowMapper.columnIndex(resultSet, rollupRef + "ErrorType");
+        final Rank rollupRank = rank;
+        final ErrorType errorType = rank == Rank.RANK_AVG ? ErrorType.PMTM_STANDARD : ErrorType.NONE;
+        return new JdbcRowMapper<Value<Double>>() {
+            @Override
+            Value<Double> map(ResultSet row) throws SQLException {
+                // Only set when the value is the stored aggregate.
+                final String storedErrorType = row.getString(storedErrorTypeIdx);
+                return new Value<>(row.getString(nameIdx), row.getDouble(valueIdx), row.getDouble(errorIdx),
+                        storedErrorType == null ? errorType : ErrorType.valueOf(storedErrorType),
+                        rollupRank, null, null);
+            }
+        };
+    }
+    
+    private static String rollupReference(Axis axis) {
+        return axis.getAxisName().name().toLowerCase() + "Rollup";
+    }
+    
     /**
      * Generate the SQL selects, joins and clauses needed to return the given
      * axis in an SQL query.
@@ -224,22 +469,35 @@ class JdbcDataGridBuilder {
         switch (axis.getType()) {
             case PARAMETER:
                 selects.add(StringUtils.joinStrings(JdbcMapping.getSelectColumns(JdbcTable.PARAMETER), ", "));
-                joins.add(helper.getSchema() + "." + JdbcTable.SUB_RUN.joinRight(JdbcTable.PARAMETER));
+                joins.add("JOIN " + helper.getSchema() + "." + JdbcTable.SUB_RUN.joinRight(JdbcTable.PARAMETER));
                 clauses.add(JdbcTable.PARAMETER.tableReference() + "."
                         + JdbcTable.PARAMETER.equals("name", axis.getSubType()));
-                sqlParams.add(axis.getSubType());
                 break;
             case RESULT:
+                if (readsRollups()) {
+                    final String rollupRef = rollupReference(axis);
+                    final String storedRef = storedReference(rollupRef);
+                    selects.add("COALESCE(" + rollupRef + ".Name, " + storedRef + ".Name, "
+                            + rankNameReference(rollupRef) + ".Name) AS " + rollupRef + "Name, "
+                            + rollupValueSelect(rollupRef) + " AS " + rollupRef + "Value, "
+                            + "CASE WHEN " + rollupFound(rollupRef) + " THEN " + JdbcRankRollup.errorSelect(rollupRef, rank)
+                            + " WHEN " + storedFound(rollupRef) + " THEN " + storedRef + ".Error"
+                            + " ELSE " + rankSelect(rollupRef, JdbcRankRollup.rankErrorSelect(rankValueColumn(rollupRef), rank))
+                            + " END AS " + rollupRef + "Error, "
+                            + "CASE WHEN " + rollupFound(rollupRef) + " THEN NULL"
+                            + " ELSE " + storedRef + ".ErrorType END AS " + rollupRef + "ErrorType");
+                    joinRollup(rollupRef, axis.getSubType());
+                    break;
+                }
                 selects.add(StringUtils.joinStrings(JdbcMapping.getSelectColumns(JdbcTable.RESULT), ", "));
-                joins.add(helper.getSchema() + "." + JdbcTable.SUB_RUN.joinRight(JdbcTable.RESULT));
+                joins.add("JOIN " + helper.getSchema() + "." + JdbcTable.SUB_RUN.joinRight(JdbcTable.RESULT));
                 clauses.add(JdbcTable.RESULT.tableReference() + "."
                         + JdbcTable.RESULT.equals("name", axis.getSubType()));
-                sqlParams.add(axis.getSubType());
                 break;
             case META_DATA:
                 final MetaData.Type subType = (MetaData.Type) axis.getSubType();
                 selects.add(JdbcUtils.typeToTable(subType).tableReference() + ".Name AS " + axis.getAxisName() + "Axis");
-                joins.add(helper.getSchema() + "." + JdbcTable.RUN.joinLeft(JdbcUtils.typeToTable(subType)));
+                joins.add("JOIN " + helper.getSchema() + "." + JdbcTable.RUN.joinLeft(JdbcUtils.typeToTable(subType)));
                 break;
             default:
                 throw new IllegalStateException("Unknown axis type " + axis.getType());
@@ -254,23 +512,26 @@ class JdbcDataGridBuilder {
             switch (series.getType()) {
                 case PARAMETER:
                     selects.add(JdbcMapping.getTableMap(JdbcTable.PARAMETER).get("value").select(seriesTableRef, seriesColRef));
-                    joins.add(helper.getSchema() + "." + JdbcTable.SUB_RUN.joinRight(JdbcTable.PARAMETER, seriesTableRef));
+                    joins.add("JOIN " + helper.getSchema() + "." + JdbcTable.SUB_RUN.joinRight(JdbcTable.PARAMETER, seriesTableRef));
                     clauses.add(seriesTableRef + "."
                             + JdbcTable.PARAMETER.equals("name", series.getSubType()));
-                    sqlParams.add(series.getSubType());
                     break;
                 case RESULT:
-                    selects.add(JdbcMapping.getTableMap(JdbcTable.RESULT).get("value").select(seriesTableRef, seriesColRef));
-                    joins.add(helper.getSchema() + "." + JdbcTable.SUB_RUN.joinRight(JdbcTable.RESULT, seriesTableRef));
-                    clauses.add(seriesTableRef + "."
-                            + JdbcTable.RESULT.equals("name", series.getSubType()));
-                    sqlParams.add(series.getSubType());
+                    if (readsRollups()) {
+                        selects.add(rollupValueSelect(seriesTableRef) + " AS " + seriesColRef);
+                        joinRollup(seriesTableRef, series.getSubType());
+                    } else {
+                        selects.add(JdbcMapping.getTableMap(JdbcTable.RESULT).get("value").select(seriesTableRef, seriesColRef));
+                        joins.add("JOIN " + helper.getSchema() + "." + JdbcTable.SUB_RUN.joinRight(JdbcTable.RESULT, seriesTableRef));
+                        clauses.add(seriesTableRef + "."
+                                + JdbcTable.RESULT.equals("name", series.getSubType()));
+                    }
                     break;
                 case META_DATA:
                     final MetaData.Type subType = (MetaData.Type) series.getSubType();
                     final JdbcTable table = JdbcUtils.typeToTable(subType);
                     selects.add(JdbcMapping.getTableMap(table).get("name").select(seriesTableRef, seriesColRef));
-                    joins.add(helper.getSchema() + "." + JdbcTable.RUN.joinLeft(table, seriesTableRef));
+                    joins.add("JOIN " + helper.getSchema() + "." + JdbcTable.RUN.joinLeft(table, seriesTableRef));
                     break;
                 case TAG:
                     selects.add(JdbcTable.RUN.tableColumn("tag") + " AS " + seriesColRef);
@@ -0,0 +1,125 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The SQL of a data grid query, built once by a {@link JdbcDataGridBuilder}
+ * for each shape of query and then shared, so that asking for the same kind
+ * of data grid again only needs its parameters to be bound.
+ *
+ * <p>The shape of a query, given by its {@link Key}, is everything that
+ * changes its SQL: the types of its axes and series, the meta data they
+ * show, the variables of a derived data axis and whether the results are
+ * read from the rank rollups. The names of the parameters and results shown
+ * are bound as parameters, and so are not part of it. The columns are
+ * selected in the order they are added, so that the same shape always gives
+ * the same SQL.</p>
+ *
+ * @author AWE Plc copyright 2013
+ */
+final class JdbcDataGridPlan {
+
+    private final String select;
+    private final String clauses;
+    private final List<Object> derivedJoinParams;
+    private final List<Object> derivedParams;
+    private final Map<String, String> derivedDataColumns;
+
+    /**
+     * Create a new {@code JdbcDataGridPlan}.
+     *
+     * @param select
+     *            the select of the query, up to its {@code WHERE}.
+     * @param clauses
+     *            the where clauses of the query, other than its sub run
+     *            restriction.
+     * @param derivedJoinParams
+     *            the names of the derived data variables bound to the joins
+     *            selecting them, which come before the sub run restriction.
+     * @param derivedParams
+     *            the names of the derived data variables, bound to the
+     *            clauses selecting them.
+     * @param derivedDataColumns
+     *            the labels of the columns holding each derived data value, by
+     *            the name of the derived data.
+     */
+    JdbcDataGridPlan(String select, List<String> clauses, List<Object> derivedJoinParams,
+            List<Object> derivedParams, Map<String, String> derivedDataColumns) {
+        final StringBuilder where = new StringBuilder();
+        for (String clause : clauses) {
+            where.append(" AND ").append(clause);
+        }
+        this.select = select;
+        this.clauses = where.toString();
+        this.derivedJoinParams = Collections.unmodifiableList(new ArrayList<>(derivedJoinParams));
+        this.derivedParams = Collections.unmodifiableList(new ArrayList<>(derivedParams));
+        this.derivedDataColumns = Collections.unmodifiableMap(new LinkedHashMap<>(derivedDataColumns));
+    }
+
+    /**
+     * Return the SQL of the query, restricted to the given sub runs.
+     *
+     * @param subRunRestriction
+     *            the clause restricting the sub runs read.
+     * @return the query.
+     */
+    String query(String subRunRestriction) {
+        return select + " WHERE " + subRunRestriction + clauses;
+    }
+
+    List<Object> getDerivedJoinParams() {
+        return derivedJoinParams;
+    }
+
+    List<Object> getDerivedParams() {
+        return derivedParams;
+    }
+
+    Map<String, String> getDerivedDataColumns() {
+        return derivedDataColumns;
+    }
+
+    /**
+     * The shape of a data grid query, which the plans are cached by.
+     */
+    static final class Key {
+
+        private final List<Object> parts;
+
+        /**
+         * Create a new {@code Key}.
+         *
+         * @param parts
+         *            the parts of the query shape, in the order they are
+         *            added to the query.
+         */
+        Key(List<Object> parts) {
+            this.parts = Collections.unmodifiableList(new ArrayList<>(parts));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            return parts.equals(((Key) obj).parts);
+        }
+
+        @Override
+        public int hashCode() {
+            return parts.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return parts.toString();
+        }
+    }
+}
@@ -1,18 +1,26 @@
 package uk.co.awe.pmat.db.jdbc;
 
-import java.sql.Connection;
+import java.io.File;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.co.awe.pmat.Configuration;
+import uk.co.awe.pmat.Constants;
 import uk.co.awe.pmat.db.Analysis;
 import uk.co.awe.pmat.db.DataGrid;
 import uk.co.awe.pmat.db.DatabaseConnection;
@@ -25,8 +33,12 @@ import uk.co.awe.pmat.db.Rank;
 import uk.co.awe.pmat.db.Restriction;
 import uk.co.awe.pmat.db.Run;
 import uk.co.awe.pmat.db.RunData;
+import uk.co.awe.pmat.db.RunPage;
+import uk.co.awe.pmat.db.RunQuery;
 import uk.co.awe.pmat.db.Value;
+import uk.co.awe.pmat.db.ValueCount;
 import uk.co.awe.pmat.db.axis.Axis;
+import uk.co.awe.pmat.db.axis.AxisType;
 import uk.co.awe.pmat.db.criteria.Category;
 import uk.co.awe.pmat.db.criteria.Comparator;
 import uk.co.awe.pmat.db.jdbc.JdbcMapping.Column;
@@ -44,23 +56,72 @@ public final class JdbcDatabaseConnection implements DatabaseConnection {
 	private final static Logger LOG = LoggerFactory
 			.getLogger(JdbcDatabaseConnection.class);
 
-	private final JdbcCache cache = new JdbcCache();
+	private final JdbcCache cache;
+	private final JdbcDiskCache diskCache;
 	private final JdbcHelper helper;
 
 	public JdbcDatabaseConnection(Configuration configuration) {
-		helper = new JdbcHelper(configuration
-				.getProperty(Configuration.Key.DB_SCHEMA), configuration
-				.getProperty(Configuration.Key.DB_USERNAME), configuration
-				.getProperty(Configuration.Key.DB_PASSWORD), configuration
-				.getProperty(Configuration.Key.DB_CONNECTION_URL));
+		helper = new JdbcHelper(configuration);
+		cache = new JdbcCache(configuration.getIntegerProperty(
+				Configuration.Key.DB_QUERY_CACHE_ROWS,
+				Constants.Database.QUERY_CACHE_ROWS));
+		diskCache = new JdbcDiskCache(helper, new File(new File(
+				System.getProperty("user.home"), Constants.Config.DIRECTORY),
+				Constants.Database.DISK_CACHE_DIRECTORY),
+				configuration.getIntegerProperty(
+						Configuration.Key.DB_DISK_CACHE_MB,
+						Constants.Database.DISK_CACHE_MB) * 1024L * 1024L);
 	}
 
 	@Override
 	public void close() {
+		LOG.debug("Query cache: " + cache);
+		helper.closeConnection();
+	}
+
+	@Override
+	public void migrateSchema() throws DatabaseException {
+		try {
+			final int applied = helper.migrateSchema();
+			if (applied > 0) {
+				LOG.info("Applied " + applied + " schema migrations");
+				cache.invalidate(EnumSet.allOf(JdbcTable.class));
+				diskCache.clear();
+			}
+		} catch (SQLException ex) {
+			throw new DatabaseException("Failed to migrate the database schema", ex);
+		}
+	}
+
+	/**
+	 * Recalculate the rollups across ranks of all the saved results, which
+	 * graphs of the rank average, maximum or minimum of a result are read
+	 * from. This is only needed for results saved before the schema held the
+	 * rollups, or by a client which did not write them; until it is done,
+	 * their graphs are read from the value of every rank.
+	 * 
+	 * @throws DatabaseException
+	 *             if the rollups could not be recalculated.
+	 */
+	public void backfillRankRollups() throws DatabaseException {
 		try {
-			helper.closeConnection();
+			LOG.info("Rolled up results of sub runs up to "
+					+ helper.backfillRankRollups());
 		} catch (SQLException ex) {
-			LOG.error("Error closing connection", ex);
+			throw new DatabaseException("Failed to roll up results across ranks", ex);
+		} finally {
+			rollbackQuietly();
+			cache.invalidate(EnumSet.of(JdbcTable.RESULT_ROLLUP));
+			diskCache.clear();
+		}
+	}
+
+	@Override
+	public void cancelQuery(Thread thread) {
+		try {
+			helper.cancelQuery(thread);
+		} catch (SQLException ex) {
+			LOG.warn("Failed to cancel query", ex);
 		}
 	}
 
@@ -105,20 +166,21 @@ public final class JdbcDatabaseConnection implements DatabaseConnection {
             if (!restrictions.isEmpty()) {
                 query += " JOIN " + helper.getSchema() + "." + table.joinLeft(JdbcTable.SUB_RUN)
                         + " JOIN " + helper.getSchema() + "." + JdbcTable.SUB_RUN.joinLeft(JdbcTable.RUN)
-                        + " WHERE " + JdbcUtils.subRunRestriction(restrictions, sqlParams);
+                        + " WHERE " + helper.subRunRestriction(restrictions, sqlParams);
             }
 
-            if (cache.contains(query, sqlParams)) {
-                @SuppressWarnings("unchecked")
-                final List<String> cachedResults = (List<String>) cache.get(query, sqlParams);
+            @SuppressWarnings("unchecked")
+            final List<String> cachedResults = (List<String>) cache.get(query, sqlParams);
+            if (cachedResults != null) {
                 return cachedResults;
             }
+            final long stamp = cache.stamp();
             
             try (final ResultSet resultSet = helper.executeQuery(query, sqlParams)) {
                 while (resultSet.next()) {
                     fields.add(resultSet.getString("name"));
                 }
-                cache.put(query, sqlParams, fields);
+                cache.put(query, sqlParams, fields, stamp);
             } catch (SQLException ex) {
                 throw new DatabaseException(ex);
             }
@@ -161,21 +223,22 @@ public final class JdbcDatabaseConnection implements DatabaseConnection {
             /* 0 */ table.tableReference(),
             /* 1 */ helper.getSchema() + "." + table.tableSelect(),
             /* 2 */ helper.getSchema() + "." + table.joinLeft(JdbcTable.SUB_RUN),
-            /* 3 */ JdbcUtils.subRunRestriction(restrictions, sqlParams));
+            /* 3 */ helper.subRunRestriction(restrictions, sqlParams));
             sqlParams.add(field);
             
-            if (cache.contains(query, sqlParams)) {
-                @SuppressWarnings("unchecked")
-                final List<Rank> cachedResults = (List<Rank>) cache.get(query, sqlParams);
+            @SuppressWarnings("unchecked")
+            final List<Rank> cachedResults = (List<Rank>) cache.get(query, sqlParams);
+            if (cachedResults != null) {
                 return cachedResults;
             }
+            final long stamp = cache.stamp();
             
             try (final ResultSet resultSet = helper.executeQuery(query, sqlParams)) {
                 while (resultSet.next()) {
                     ranks.add(Rank.fromInteger(resultSet.getInt("rank")));
                 }
                 
-                cache.put(query, sqlParams, ranks);
+                cache.put(query, sqlParams, ranks, stamp);
             } catch (SQLException ex) {
                 throw new DatabaseException(ex);
             }
@@ -205,7 +268,7 @@ public final class JdbcDatabaseConnection implements DatabaseConnection {
                 if (!restrictions.isEmpty()) {
                     query += " JOIN " + helper.getSchema() + "." + table.joinRight(JdbcTable.RUN);
                     query += " JOIN " + helper.getSchema() + "." + JdbcTable.RUN.joinRight(JdbcTable.SUB_RUN);
-                    query += " WHERE " + JdbcUtils.subRunRestriction(restrictions, sqlParams);
+                    query += " WHERE " + helper.subRunRestriction(restrictions, sqlParams);
                 }
                 break;
             case RUN:
@@ -214,7 +277,7 @@ public final class JdbcDatabaseConnection implements DatabaseConnection {
                 /* 1 */ helper.getSchema() + "." + table.tableSelect());
                 if (!restrictions.isEmpty()) {
                     query += " JOIN " + helper.getSchema() + "." + JdbcTable.RUN.joinRight(JdbcTable.SUB_RUN);
-                    query += " WHERE " + JdbcUtils.subRunRestriction(restrictions, sqlParams);
+                    query += " WHERE " + helper.subRunRestriction(restrictions, sqlParams);
                 }
                 break;
             case PARAMETER:
@@ -224,7 +287,7 @@ public final class JdbcDatabaseConnection implements DatabaseConnection {
                 /* 1 */ helper.getSchema() + "." + table.tableSelect());
                 if (!restrictions.isEmpty()) {
                     query += " JOIN " + helper.getSchema() + "." + table.joinLeft(JdbcTable.SUB_RUN);
-                    query += " WHERE " + JdbcUtils.subRunRestriction(restrictions, sqlParams);
+                    query += " WHERE " + helper.subRunRestriction(restrictions, sqlParams);
                     query += " AND " + table.equals("name", field);
                 } else {
                     query += " WHERE " + table.equals("name", field);
@@ -239,31 +302,183 @@ public final class JdbcDatabaseConnection implements DatabaseConnection {
                 throw new IllegalArgumentException("Uknown category " + category);
         }
         
-        if (cache.contains(query, sqlParams)) {
-                @SuppressWarnings("unchecked")
-                final List<Value<?>> cachedResults = (List<Value<?>>) cache.get(query, sqlParams);
-                return cachedResults;
+        @SuppressWarnings("unchecked")
+        final List<Value<?>> cachedResults = (List<Value<?>>) cache.get(query, sqlParams);
+        if (cachedResults != null) {
+            return cachedResults;
         }
+        final long stamp = cache.stamp();
         
         try (final ResultSet resultSet = helper.executeQuery(query, sqlParams)) {
+            final JdbcRowMapper<Comparable<?>> mapper = JdbcRowMapper.column(table,
+                    (table == JdbcTable.PARAMETER || table == JdbcTable.RESULT) ? "value" : field, resultSet);
             while (resultSet.next()) {
-                if (table == JdbcTable.PARAMETER || table == JdbcTable.RESULT) {
-                    final Column column = JdbcMapping.getTableMap(table).get("value");
-                    values.add(new Value<>(field, rank, column.fromDB(resultSet)));
-                } else {
-                    final Column column = JdbcMapping.getTableMap(table).get(field);
-                    values.add(new Value<>(field, rank, column.fromDB(resultSet)));
-                }
+                values.add(new Value<>(field, rank, (Comparable) mapper.map(resultSet)));
             }
         } catch (SQLException ex) {
             throw new DatabaseException(ex);
         }
         
-        cache.put(query, sqlParams, values);
+        cache.put(query, sqlParams, values, stamp);
         
         return values;
     }
 
+	@Override
+    public Map<String, List<ValueCount>> getValueCounts(Collection<Restriction> restrictions, Category category, Collection<String> fields) throws DatabaseException {
+        final List<String> fieldList = new ArrayList<>(new LinkedHashSet<>(fields));
+        final Map<String, List<ValueCount>> valueCounts = new LinkedHashMap<>();
+        if (fieldList.isEmpty()) {
+            return valueCounts;
+        }
+        
+        final List<Object> sqlParams = new ArrayList<>();
+        final JdbcTable table = JdbcUtils.categoryToTable(category);
+        final boolean named = (table == JdbcTable.PARAMETER || table == JdbcTable.RESULT);
+        
+        final List<String> columns = new ArrayList<>();
+        final String count;
+        String query = "SELECT {0}, {1} AS subRuns FROM {2}";
+        if (named) {
+            // One group for each value of each of the named parameters or
+            // results, counting sub runs rather than rows as a result has a
+            // row for each rank.
+            columns.add(JdbcMapping.getTableMap(table).get("name").select());
+            columns.add(JdbcMapping.getTableMap(table).get("value").select());
+            count = "COUNT(DISTINCT " + JdbcMapping.joins.get(JdbcTable.SUB_RUN).get(table).select() + ")";
+        } else {
+            // One group for each combination of the values of the fields, as
+            // every sub run has one value of each, which are then added up
+            // for each field.
+            for (String field : fieldList) {
+                final Column column = JdbcMapping.getTableMap(table).get(field);
+                if (column == null) {
+                    throw new IllegalArgumentException("Unknown field " + field + " of " + category);
+                }
+                columns.add(column.select());
+            }
+            count = "COUNT(*)";
+        }
+        query = MessageFormat.format(query,
+        /* 0 */ StringUtils.joinStrings(columns, ", "),
+        /* 1 */ count,
+        /* 2 */ helper.getSchema() + "." + table.tableSelect());
+        
+        final List<String> clauses = new ArrayList<>();
+        if (named) {
+            if (restrictions != null && !restrictions.isEmpty()) {
+                query += " JOIN " + helper.getSchema() + "." + table.joinLeft(JdbcTable.SUB_RUN);
+                clauses.add(helper.subRunRestriction(restrictions, sqlParams));
+            }
+            clauses.add(JdbcMapping.getTableMap(table).get("name").select()
+                    + " IN (" + JdbcUtils.placeHolders(fieldList.size()) + ")");
+            sqlParams.addAll(fieldList);
+        } else {
+            if (table != JdbcTable.RUN) {
+                query += " JOIN " + helper.getSchema() + "." + table.joinRight(JdbcTable.RUN);
+            }
+            query += " JOIN " + helper.getSchema() + "." + JdbcTable.RUN.joinRight(JdbcTable.SUB_RUN);
+            if (restrictions != null && !restrictions.isEmpty()) {
+                clauses.add(helper.subRunRestriction(restrictions, sqlParams));
+            }
+        }
+        if (!clauses.isEmpty()) {
+            query += " WHERE " + StringUtils.joinStrings(clauses, " AND ");
+        }
+        if (table == JdbcTable.PARAMETER) {
+            // The value of a parameter is selected from the column of its type.
+            query += " GROUP BY " + columns.get(0) + ", " + table.tableReference() + ".Type, `Value`";
+        } else {
+            query += " GROUP BY " + StringUtils.joinStrings(columns, ", ");
+        }
+        
+        @SuppressWarnings("unchecked")
+        final Map<String, List<ValueCount>> cachedResults = (Map<String, List<ValueCount>>) cache.get(query, sqlParams);
+        if (cachedResults != null) {
+            return cachedResults;
+        }
+        final long stamp = cache.stamp();
+        
+        final Map<String, Map<Comparable<?>, Integer>> counts = new LinkedHashMap<>();
+        for (String field : fieldList) {
+            counts.put(field, new HashMap<Comparable<?>, Integer>());
+        }
+        
+        try (final ResultSet resultSet = helper.executeQuery(query, sqlParams)) {
+            final int countIdx = JdbcRowMapper.columnIndex(resultSet, "subRuns");
+            if (named) {
+                final JdbcRowMapper<Comparable<?>> nameMapper = JdbcRowMapper.column(table, "name", resultSet);
+                final JdbcRowMapper<Comparable<?>> valueMapper = JdbcRowMapper.column(table, "value", resultSet);
+                // The database matches the names ignoring case, so a name may
+                // come back in a different case to the fields asked for, and
+                // count towards each of them.
+                final Map<String, List<Map<Comparable<?>, Integer>>> countsByName =
+                        new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+                for (Map.Entry<String, Map<Comparable<?>, Integer>> entry : counts.entrySet()) {
+                    List<Map<Comparable<?>, Integer>> nameCounts = countsByName.get(entry.getKey());
+                    if (nameCounts == null) {
+                        nameCounts = new ArrayList<>();
+                        countsByName.put(entry.getKey(), nameCounts);
+                    }
+                    nameCounts.add(entry.getValue());
+                }
+                while (resultSet.next()) {
+                    final String name = (String) nameMapper.map(resultSet);
+                    final List<Map<Comparable<?>, Integer>> nameCounts = (name == null) ? null : countsByName.get(name);
+                    if (nameCounts == null) {
+                        continue;
+                    }
+                    final Comparable<?> value = valueMapper.map(resultSet);
+                    final int subRuns = resultSet.getInt(countIdx);
+                    for (Map<Comparable<?>, Integer> fieldCounts : nameCounts) {
+                        addCount(fieldCounts, value, subRuns);
+                    }
+                }
+            } else {
+                final List<JdbcRowMapper<Comparable<?>>> mappers = new ArrayList<>();
+                for (String field : fieldList) {
+                    mappers.add(JdbcRowMapper.column(table, field, resultSet));
+                }
+                while (resultSet.next()) {
+                    final int subRuns = resultSet.getInt(countIdx);
+                    for (int i = 0; i < fieldList.size(); ++i) {
+                        addCount(counts.get(fieldList.get(i)), mappers.get(i).map(resultSet), subRuns);
+                    }
+                }
+            }
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        }
+        
+        for (Map.Entry<String, Map<Comparable<?>, Integer>> entry : counts.entrySet()) {
+            final List<ValueCount> fieldCounts = new ArrayList<>();
+            for (Map.Entry<Comparable<?>, Integer> valueCount : entry.getValue().entrySet()) {
+                fieldCounts.add(new ValueCount(new Value<>(entry.getKey(), Rank.ANY_RANK,
+                        (Comparable) valueCount.getKey()), valueCount.getValue()));
+            }
+            Collections.sort(fieldCounts);
+            valueCounts.put(entry.getKey(), Collections.unmodifiableList(fieldCounts));
+        }
+        
+        final Map<String, List<ValueCount>> result = Collections.unmodifiableMap(valueCounts);
+        cache.put(query, sqlParams, result, stamp);
+        
+        return result;
+    }
+
+	/**
+	 * Add the number of sub runs with the given value to its count, unless
+	 * the value is {@code null}, as sub runs without a value cannot be
+	 * filtered on it.
+	 */
+	private static void addCount(Map<Comparable<?>, Integer> counts, Comparable<?> value, int subRuns) {
+        if (counts == null || value == null) {
+            return;
+        }
+        final Integer count = counts.get(value);
+        counts.put(value, (count == null) ? subRuns : count + subRuns);
+    }
+
 	@Override
 	public List<MetaData> getAllMetaData(Type type) throws DatabaseException {
 		return getMetaData(null, type);
@@ -284,23 +499,25 @@ public final class JdbcDatabaseConnection implements DatabaseConnection {
         query = MessageFormat.format(query,
         /* 0 */ StringUtils.joinStrings(colNames, ", "),
         /* 1 */ helper.getSchema() + "." + table.tableSelect(),
-        /* 2 */ JdbcUtils.subRunRestriction(restrictions, sqlParams));
+        /* 2 */ helper.subRunRestriction(restrictions, sqlParams));
         
-        if (cache.contains(query, sqlParams)) {
-            @SuppressWarnings("unchecked")
-            final List<MetaData> cachedResults = (List<MetaData>) cache.get(query, sqlParams);
+        @SuppressWarnings("unchecked")
+        final List<MetaData> cachedResults = (List<MetaData>) cache.get(query, sqlParams);
+        if (cachedResults != null) {
             return cachedResults;
         }
+        final long stamp = cache.stamp();
         
         try (final ResultSet resultSet = helper.executeQuery(query, sqlParams)) {
+            final JdbcRowMapper<MetaData> mapper = JdbcRowMapper.metaData(table, resultSet);
             while (resultSet.next()) {
-                metaData.add(JdbcUtils.objectFromRow(table, resultSet, MetaData.class));
+                metaData.add(mapper.map(resultSet));
             }
         } catch (SQLException ex) {
             throw new DatabaseException(ex);
         }
         
-        cache.put(query, sqlParams, metaData);
+        cache.put(query, sqlParams, metaData, stamp);
         
         return metaData;
     }
@@ -325,75 +542,67 @@ public final class JdbcDatabaseConnection implements DatabaseConnection {
 
 	@Override
     public List<Analysis> getSavedAnalyses(String creatorName) throws DatabaseException {
+        // The criteria and derived data of all the analyses are each fetched
+        // in one query, joined to the analyses to apply the same creator
+        // filter, rather than in a query per analysis.
+        String where = "";
         final List<Object> sqlParams = new ArrayList<>();
-        
-        String query = "SELECT {0}.ID AS ID FROM {1}";
-        query = MessageFormat.format(query,
-        /* 0 */ JdbcTable.ANALYSIS.tableReference(),
-        /* 1 */ helper.getSchema() + "." + JdbcTable.ANALYSIS.tableSelect());
         if (creatorName != null) {
-            query += " WHERE " + JdbcTable.ANALYSIS.tableColumn("creator") + " = ?";
+            where = " WHERE " + JdbcTable.ANALYSIS.tableColumn("creator") + " = ?";
             sqlParams.add(creatorName);
         }
         
-        final List<Long> ids = new ArrayList<>();
+        String query = "SELECT {0} AS analysisId, {1} FROM {2} JOIN {3}{4} ORDER BY {5}.ID";
+        query = MessageFormat.format(query,
+        /* 0 */ JdbcMapping.joins.get(JdbcTable.ANALYSIS).get(JdbcTable.ANALYSIS_CRITERA).select(),
+        /* 1 */ StringUtils.joinStrings(JdbcMapping.getSelectColumns(JdbcTable.ANALYSIS_CRITERA), ", "),
+        /* 2 */ helper.getSchema() + "." + JdbcTable.ANALYSIS_CRITERA.tableSelect(),
+        /* 3 */ helper.getSchema() + "." + JdbcTable.ANALYSIS_CRITERA.joinLeft(JdbcTable.ANALYSIS),
+        /* 4 */ where,
+        /* 5 */ JdbcTable.ANALYSIS_CRITERA.tableReference());
+        
+        final Map<Long, List<Restriction>> restrictions = DefaultHashMap.mapOfLists();
         try (final ResultSet resultSet = helper.executeQuery(query, sqlParams)) {
             while (resultSet.next()) {
-                ids.add(resultSet.getLong("ID"));
+                restrictions.get(resultSet.getLong("analysisId")).add(restrictionFromRow(resultSet));
             }
         } catch (SQLException ex) {
             throw new DatabaseException(ex);
         }
         
-        final List<Analysis> analyses = new ArrayList<>();
-        
-        for (Long id : ids) {
-            sqlParams.clear();
-            sqlParams.add(id);
-            
-            query = "SELECT {0} FROM {1} WHERE {2} = ?";
-            query = MessageFormat.format(query,
-            /* 0 */ StringUtils.joinStrings(JdbcMapping.getSelectColumns(JdbcTable.ANALYSIS_CRITERA), ", "),
-            /* 1 */ helper.getSchema() + "." + JdbcTable.ANALYSIS_CRITERA.tableSelect(),
-            /* 2 */ JdbcMapping.joins.get(JdbcTable.ANALYSIS).get(JdbcTable.ANALYSIS_CRITERA).name());
-            
-            final List<Restriction> restrictions = new ArrayList<>();
-            try (final ResultSet resultSet = helper.executeQuery(query, sqlParams)) {
-                while (resultSet.next()) {
-                    restrictions.add(restrictionFromRow(resultSet));
-                }
-            } catch (SQLException ex) {
-                throw new DatabaseException(ex);
-            }
-            
-            query = "SELECT {0} FROM {1} WHERE {2} = ?";
-            query = MessageFormat.format(query,
-            /* 0 */ StringUtils.joinStrings(JdbcMapping.getSelectColumns(JdbcTable.ANALYSIS_DERIVED_DATA), ", "),
-            /* 1 */ helper.getSchema() + "." + JdbcTable.ANALYSIS_DERIVED_DATA.tableSelect(),
-            /* 2 */ JdbcMapping.joins.get(JdbcTable.ANALYSIS).get(JdbcTable.ANALYSIS_DERIVED_DATA).name());
-            
-            final List<DerivedData> dd = new ArrayList<>();
-            try (final ResultSet resultSet = helper.executeQuery(query, sqlParams)) {
-                while (resultSet.next()) {
-                    dd.add(derivedDataFromRow(resultSet));
-                }
-            } catch (SQLException ex) {
-                throw new DatabaseException(ex);
+        query = "SELECT {0} AS analysisId, {1} FROM {2} JOIN {3}{4} ORDER BY {5}.ID";
+        query = MessageFormat.format(query,
+        /* 0 */ JdbcMapping.joins.get(JdbcTable.ANALYSIS).get(JdbcTable.ANALYSIS_DERIVED_DATA).select(),
+        /* 1 */ StringUtils.joinStrings(JdbcMapping.getSelectColumns(JdbcTable.ANALYSIS_DERIVED_DATA), ", "),
+        /* 2 */ helper.getSchema() + "." + JdbcTable.ANALYSIS_DERIVED_DATA.tableSelect(),
+        /* 3 */ helper.getSchema() + "." + JdbcTable.ANALYSIS_DERIVED_DATA.joinLeft(JdbcTable.ANALYSIS),
+        /* 4 */ where,
+        /* 5 */ JdbcTable.ANALYSIS_DERIVED_DATA.tableReference());
+        
+        final Map<Long, List<DerivedData>> derivedData = DefaultHashMap.mapOfLists();
+        try (final ResultSet resultSet = helper.executeQuery(query, sqlParams)) {
+            while (resultSet.next()) {
+                derivedData.get(resultSet.getLong("analysisId")).add(derivedDataFromRow(resultSet));
             }
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        }
         
-            query = "SELECT {0} FROM {1} WHERE {2}.ID = ?";
-            query = MessageFormat.format(query,
-            /* 0 */ StringUtils.joinStrings(JdbcMapping.getSelectColumns(JdbcTable.ANALYSIS), ", "),
-            /* 1 */ helper.getSchema() + "." + JdbcTable.ANALYSIS.tableSelect(),
-            /* 2 */ JdbcTable.ANALYSIS.tableReference());
-            
-            try (final ResultSet resultSet = helper.executeQuery(query, sqlParams)) {
-                while (resultSet.next()) {
-                    analyses.add(JdbcUtils.analysisFromRow(resultSet, restrictions, dd));
-                }
-            } catch (SQLException ex) {
-                throw new DatabaseException(ex);
+        query = "SELECT {0}.ID AS analysisId, {1} FROM {2}{3} ORDER BY {0}.ID";
+        query = MessageFormat.format(query,
+        /* 0 */ JdbcTable.ANALYSIS.tableReference(),
+        /* 1 */ StringUtils.joinStrings(JdbcMapping.getSelectColumns(JdbcTable.ANALYSIS), ", "),
+        /* 2 */ helper.getSchema() + "." + JdbcTable.ANALYSIS.tableSelect(),
+        /* 3 */ where);
+        
+        final List<Analysis> analyses = new ArrayList<>();
+        try (final ResultSet resultSet = helper.executeQuery(query, sqlParams)) {
+            while (resultSet.next()) {
+                final Long id = resultSet.getLong("analysisId");
+                analyses.add(JdbcUtils.analysisFromRow(resultSet, restrictions.get(id), derivedData.get(id)));
             }
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
         }
         
         return analyses;
@@ -452,308 +661,622 @@ public final class JdbcDatabaseConnection implements DatabaseConnection {
 	@Override
     public DataGrid getDataGrid(Axis xAxis, Axis yAxis, Rank rank, Collection<Restriction> restrictions, Collection<Series> seriesColl) throws DatabaseException {
         
-        final List<DataGrid.Row> rows = new ArrayList<>();
-        
-        final String xAxisName = xAxis.getSubType().toString();
-        final String yAxisName = yAxis.getSubType().toString();
-        
-        JdbcDataGridBuilder gridBuilder = new JdbcDataGridBuilder(helper, xAxis, yAxis, rank, restrictions, seriesColl);
+        final JdbcDataGridBuilder gridBuilder = new JdbcDataGridBuilder(helper, xAxis, yAxis, rank, restrictions, seriesColl, hasRollups());
         
         final String query = gridBuilder.generateQuery();
         final List<Object> sqlParams = gridBuilder.getSqlParams();
         
-        if (cache.contains(query, sqlParams)) {
-            return (DataGrid) cache.get(query, sqlParams);
+        final DataGrid cachedGrid = (DataGrid) cache.get(query, sqlParams);
+        if (cachedGrid != null) {
+            return cachedGrid;
+        }
+        final long stamp = cache.stamp();
+        
+        final String dbStamp = diskCache.stamp();
+        final DataGrid storedGrid = diskCache.get(query, sqlParams, dbStamp);
+        if (storedGrid != null) {
+            cache.put(query, sqlParams, storedGrid, stamp);
+            return storedGrid;
         }
         
+        final List<DataGrid.Row> rows = new ArrayList<>();
+        
         try (final ResultSet resultSet = helper.executeQuery(query, sqlParams)) {
-            while (resultSet.next()) {
-                
-                final Value<?> xValue;
-                switch (xAxis.getType()) {
-                    case META_DATA:
-                        xValue = new Value<>(xAxis.displayName(), Rank.UNKNOWN, resultSet.getString("xAxis"));
-                        break;
-                    case PARAMETER:
-                        xValue = JdbcUtils.objectFromRow(JdbcTable.PARAMETER, resultSet, Value.class);
-                        break;
-                    case RESULT:
-                        xValue = JdbcUtils.objectFromRow(JdbcTable.RESULT, resultSet, Value.class);
-                        break;
-                    default:
-                        throw new IllegalStateException("Unknown axis type " + xAxis.getType()); 
-                }
-                
-                final Map<String, Value<?>> yValues = new HashMap<>();
-                
-                switch (yAxis.getType()) {
-                    case META_DATA:
-                        yValues.put(yAxisName, new Value<>(xAxis.displayName(), Rank.UNKNOWN, resultSet.getString("meta")));
-                        break;
-                    case PARAMETER:
-                        yValues.put(yAxisName, JdbcUtils.objectFromRow(JdbcTable.PARAMETER, resultSet, Value.class));
-                        break;
-                    case RESULT:
-                        yValues.put(yAxisName, JdbcUtils.objectFromRow(JdbcTable.RESULT, resultSet, Value.class));
-                        break;
-                    case DERIVED:
-                        yValues.putAll(JdbcUtils.derivedDataFromRow(gridBuilder.getDerivedDataColumns(), resultSet));
-                        break;
-                    default:
-                        throw new IllegalStateException("Unknown axis type " + yAxis.getType()); 
-                }
-                
-                int seriesIdx = 0;
-                List<Object> seriesVals = new ArrayList<>();
-                for (Series series : seriesColl) {
-                    String seriesRef = "series" + seriesIdx;
-                    if (series.getType() == SeriesType.PARAMETER) {
-                        String type = resultSet.getString("seriesTable" + seriesIdx + ".Type");
-                        switch (type) {
-                            case "String":
-                                seriesVals.add(resultSet.getString(seriesRef));
-                                break;
-                            case "Integer":
-                                seriesVals.add(resultSet.getInt(seriesRef));
-                                break;
-                            case "Double":
-                                seriesVals.add(resultSet.getDouble(seriesRef));
-                                break;
-                            default:
-                                throw new IllegalStateException("Unknown parameter series type " + type);
-                        }
-                    } else if (series.getType() == SeriesType.RESULT) {
-                        seriesVals.add(resultSet.getDouble(seriesRef));
-                    } else {
-                        seriesVals.add(resultSet.getString(seriesRef));
-                    }
-                    ++seriesIdx;
-                }
-                
-                if (seriesColl.isEmpty()) {
-                    rows.add(new DataGrid.Row(xValue, yValues, DataGrid.NULL_SERIES_GROUP));
-                } else {
-                    DataGrid.RowSeriesGroup seriesGroup = new DataGrid.RowSeriesGroup(seriesVals.toArray());
-                    rows.add(new DataGrid.Row(xValue, yValues, seriesGroup));
+            readDataGrid(resultSet, gridBuilder, xAxis, yAxis, seriesColl, new DataGrid.RowConsumer() {
+                @Override
+                public void accept(DataGrid.Row row) {
+                    rows.add(row);
                 }
-            }
+            });
         } catch (SQLException ex) {
             throw new DatabaseException(ex);
         }
         
-        final DataGrid dataGrid = new DataGrid(xAxisName, yAxisName, rows);
+        final DataGrid dataGrid = new DataGrid(xAxis.getSubType().toString(), yAxis.getSubType().toString(), rows);
         
-        cache.put(query, sqlParams, dataGrid);
+        cache.put(query, sqlParams, dataGrid, stamp);
+        diskCache.put(query, sqlParams, dbStamp, dataGrid);
         
         return dataGrid;
     }
 
 	@Override
-    public List<Run> getRuns() throws DatabaseException {
-        final List<Run> runs = new ArrayList<>();
+    public void getDataGrid(Axis xAxis, Axis yAxis, Rank rank, Collection<Restriction> restrictions, Collection<Series> seriesColl, DataGrid.RowConsumer consumer) throws DatabaseException {
         
-        final List<String> colNames = new ArrayList<>();
-        colNames.addAll(JdbcMapping.getSelectColumns(JdbcTable.RUN));
-        for (MetaData.Type type : MetaData.Type.values()) {
-            colNames.addAll(JdbcMapping.getSelectColumns(JdbcUtils.typeToTable(type)));
-        }
+        final JdbcDataGridBuilder gridBuilder = new JdbcDataGridBuilder(helper, xAxis, yAxis, rank, restrictions, seriesColl, hasRollups());
         
-        String query = "SELECT {0} FROM {1}";
-        query = MessageFormat.format(query,
-        /* 0 */ StringUtils.joinStrings(colNames, ", "),
-        /* 1 */ helper.getSchema() + "." + JdbcTable.RUN.tableSelect());
+        final String query = gridBuilder.generateQuery();
+        final List<Object> sqlParams = gridBuilder.getSqlParams();
         
-        StringBuilder joins = new StringBuilder();
-        for (MetaData.Type type : MetaData.Type.values()) {
-            JdbcTable table = JdbcUtils.typeToTable(type);
-            joins.append(" JOIN ")
-                    .append(helper.getSchema())
-                    .append(".")
-                    .append(JdbcTable.RUN.joinLeft(table));
+        final DataGrid cachedGrid = (DataGrid) cache.get(query, sqlParams);
+        if (cachedGrid != null) {
+            for (DataGrid.Row row : cachedGrid.getRows()) {
+                consumer.accept(row);
+            }
+            return;
         }
-        query += joins.toString();
         
-        try (final ResultSet resultSet = helper.executeQuery(query)) {
-            while (resultSet.next()) {
-                runs.add(JdbcUtils.objectFromRow(JdbcTable.RUN, resultSet, Run.class));
-            }
+        // The rows are not cached, as holding them all is what streaming them
+        // avoids.
+        try (final ResultSet resultSet = helper.executeStreamingQuery(query, sqlParams)) {
+            readDataGrid(resultSet, gridBuilder, xAxis, yAxis, seriesColl, consumer);
         } catch (SQLException ex) {
             throw new DatabaseException(ex);
         }
-        
-        return runs;
     }
 
-	@Override
-    @SuppressWarnings("unchecked")
-    public Collection<RunData> getDataSets(Run run) throws DatabaseException {
-        
-        final Long runId = helper.getId(run);
-        
-        String query = "SELECT {0}.ID AS id, {1} FROM {2} JOIN {3} WHERE {4}";
-        
-        query = MessageFormat.format(query,
-        /* 0 */ JdbcTable.SUB_RUN.tableReference(),
-        /* 1 */ StringUtils.joinStrings(JdbcMapping.getSelectColumns(JdbcTable.PARAMETER), ", "),
-        /* 2 */ helper.getSchema() + "." + JdbcTable.SUB_RUN.tableSelect(),
-        /* 3 */ helper.getSchema() + "." + JdbcTable.SUB_RUN.joinRight(JdbcTable.PARAMETER),
-        /* 4 */ JdbcTable.SUB_RUN.equals("run", runId));
+	/**
+	 * Read the rows of a data grid query, passing each to the given consumer
+	 * as it is read.
+	 * 
+	 * @param resultSet
+	 *            the results of the query generated by the grid builder.
+	 * @param gridBuilder
+	 *            the grid builder.
+	 * @param xAxis
+	 *            the x-axis of the analysis.
+	 * @param yAxis
+	 *            the y-axis of the analysis.
+	 * @param seriesColl
+	 *            the series of the analysis.
+	 * @param consumer
+	 *            the consumer to pass the rows to.
+	 * @throws SQLException
+	 *             if an error occurs reading the results.
+	 */
+	private static void readDataGrid(ResultSet resultSet, JdbcDataGridBuilder gridBuilder, Axis xAxis, Axis yAxis, Collection<Series> seriesColl, DataGrid.RowConsumer consumer) throws SQLException {
+        final String yAxisName = yAxis.getSubType().toString();
         
-        final Map<Long, List<Value<?>>> paramsMap = DefaultHashMap.mapOfLists();
+        // Find the columns of the axes and series once, rather than by their
+        // labels on every row.
+        final JdbcRowMapper<? extends Value<?>> xMapper = axisMapper(resultSet, gridBuilder, xAxis, xAxis.displayName(), "xAxis");
+        final JdbcRowMapper<? extends Value<?>> yMapper = (yAxis.getType() == AxisType.DERIVED)
+                ? null : axisMapper(resultSet, gridBuilder, yAxis, xAxis.displayName(), "meta");
+        final JdbcRowMapper<Map<String, Value<?>>> derivedMapper = (yAxis.getType() == AxisType.DERIVED)
+                ? JdbcRowMapper.derivedData(gridBuilder.getDerivedDataColumns(), resultSet) : null;
+        
+        final Series[] series = seriesColl.toArray(new Series[seriesColl.size()]);
+        final int[] seriesIdx = new int[series.length];
+        final int[] seriesTypeIdx = new int[series.length];
+        for (int idx = 0; idx < series.length; ++idx) {
+            seriesIdx[idx] = JdbcRowMapper.columnIndex(resultSet, "series" + idx);
+            seriesTypeIdx[idx] = (series[idx].getType() == SeriesType.PARAMETER)
+                    ? JdbcRowMapper.columnIndex(resultSet, "seriesTable" + idx + ".Type") : -1;
+        }
         
-        try (final ResultSet resultSet = helper.executeQuery(query, runId)) {
+        while (resultSet.next()) {
+            
+            final Value<?> xValue = xMapper.map(resultSet);
+            
+            final Map<String, Value<?>> yValues = new HashMap<>();
+            if (derivedMapper != null) {
+                yValues.putAll(derivedMapper.map(resultSet));
+            } else {
+                yValues.put(yAxisName, yMapper.map(resultSet));
+            }
+            
+            final Object[] seriesVals = new Object[series.length];
+            for (int idx = 0; idx < series.length; ++idx) {
+                if (series[idx].getType() == SeriesType.PARAMETER) {
+                    String type = resultSet.getString(seriesTypeIdx[idx]);
+                    switch (type) {
+                        case "String":
+                            seriesVals[idx] = resultSet.getString(seriesIdx[idx]);
+                            break;
+                        case "Integer":
+                            seriesVals[idx] = resultSet.getInt(seriesIdx[idx]);
+                            break;
+                        case "Double":
+                            seriesVals[idx] = resultSet.getDouble(seriesIdx[idx]);
+                            break;
+                        default:
+                            throw new IllegalStateException("Unknown parameter series type " + type);
+                    }
+                } else if (series[idx].getType() == SeriesType.RESULT) {
+                    seriesVals[idx] = resultSet.getDouble(seriesIdx[idx]);
+                } else {
+                    seriesVals[idx] = resultSet.getString(seriesIdx[idx]);
+                }
+            }
+            
+            if (series.length == 0) {
+                consumer.accept(new DataGrid.Row(xValue, yValues, DataGrid.NULL_SERIES_GROUP));
+            } else {
+                DataGrid.RowSeriesGroup seriesGroup = new DataGrid.RowSeriesGroup(seriesVals);
+                consumer.accept(new DataGrid.Row(xValue, yValues, seriesGroup));
+            }
+        }
+    }
+
+	/**
+	 * Return the mapper reading the value of the given axis from the rows of a
+	 * data grid query.
+	 * 
+	 * @param resultSet
+	 *            the results of the query generated by the grid builder.
+	 * @param gridBuilder
+	 *            the grid builder.
+	 * @param axis
+	 *            the axis, which is not a derived data axis.
+	 * @param metaName
+	 *            the name given to the value of a meta data axis.
+	 * @param metaLabel
+	 *            the label of the column holding a meta data axis.
+	 * @return the mapper.
+	 * @throws SQLException
+	 *             if a column of the axis is not in the results.
+	 */
+	private static JdbcRowMapper<? extends Value<?>> axisMapper(ResultSet resultSet, JdbcDataGridBuilder gridBuilder, Axis axis, final String metaName, String metaLabel) throws SQLException {
+        switch (axis.getType()) {
+            case META_DATA:
+                final int metaIdx = JdbcRowMapper.columnIndex(resultSet, metaLabel);
+                return new JdbcRowMapper<Value<String>>() {
+                    @Override
+                    Value<String> map(ResultSet row) throws SQLException {
+                        return new Value<>(metaName, Rank.UNKNOWN, row.getString(metaIdx));
+                    }
+                };
+            case PARAMETER:
+                return JdbcRowMapper.parameters(resultSet);
+            case RESULT:
+                return gridBuilder.readsRollups()
+                        ? gridBuilder.rollupMapper(resultSet, axis)
+                        : JdbcRowMapper.results(resultSet);
+            default:
+                throw new IllegalStateException("Unknown axis type " + axis.getType()); 
+        }
+    }
+
+	@Override
+    public List<Run> getRuns() throws DatabaseException {
+        return getRuns(new RunQuery(Run.TABLE_COLUMNS.get(0), true, null)).getRuns();
+    }
+
+	@Override
+    public RunPage getRuns(RunQuery query) throws DatabaseException {
+        final List<Object[]> runFields = new ArrayList<>();
+        final List<Map<MetaData.Type, Long>> runMetaIds = new ArrayList<>();
+        final Map<MetaData.Type, Set<Long>> metaIds = new EnumMap<>(MetaData.Type.class);
+        for (MetaData.Type type : MetaData.Type.values()) {
+            metaIds.put(type, new HashSet<Long>());
+        }
+        RunQuery.Key lastKey = null;
+
+        final List<Object> params = new ArrayList<>();
+        final String sql = new JdbcRunQuery(query, helper.getSchema()).pageQuery(params);
+        try (final ResultSet resultSet = helper.executeQuery(sql, params)) {
+            final JdbcRowMapper<Object[]> mapper = JdbcRowMapper.runs(resultSet);
+            final Map<MetaData.Type, Integer> metaIdIdx = new EnumMap<>(MetaData.Type.class);
+            for (MetaData.Type type : MetaData.Type.values()) {
+                metaIdIdx.put(type, JdbcRowMapper.columnIndex(resultSet, JdbcRunQuery.metaDataId(type)));
+            }
+            final int sortKeyIdx = JdbcRowMapper.columnIndex(resultSet, JdbcRunQuery.SORT_KEY);
+            final int runKeyIdx = JdbcRowMapper.columnIndex(resultSet, JdbcRunQuery.RUN_KEY);
             while (resultSet.next()) {
-                final Long id = resultSet.getLong("id");
-                paramsMap.get(id).add(JdbcUtils.objectFromRow(JdbcTable.PARAMETER, resultSet, Value.class));
+                runFields.add(mapper.map(resultSet));
+                final Map<MetaData.Type, Long> ids = new EnumMap<>(MetaData.Type.class);
+                for (MetaData.Type type : MetaData.Type.values()) {
+                    ids.put(type, resultSet.getLong(metaIdIdx.get(type)));
+                    metaIds.get(type).add(ids.get(type));
+                }
+                runMetaIds.add(ids);
+                lastKey = new RunQuery.Key(resultSet.getObject(sortKeyIdx), resultSet.getLong(runKeyIdx));
             }
         } catch (SQLException ex) {
             throw new DatabaseException(ex);
         }
-        
-        query = "SELECT {0}.ID AS id, {1} FROM {2} JOIN {3} WHERE {4}";
-        
-        query = MessageFormat.format(query,
-        /* 0 */ JdbcTable.SUB_RUN.tableReference(),
-        /* 1 */ StringUtils.joinStrings(JdbcMapping.getSelectColumns(JdbcTable.RESULT), ", "),
-        /* 2 */ helper.getSchema() + "." + JdbcTable.SUB_RUN.tableSelect(),
-        /* 3 */ helper.getSchema() + "." + JdbcTable.SUB_RUN.joinRight(JdbcTable.RESULT),
-        /* 4 */ JdbcTable.SUB_RUN.equals("run", runId));
-        
-        final Map<Long, List<Value<Double>>> resultMap = DefaultHashMap.mapOfLists();
-        
-        try (final ResultSet resultSet = helper.executeQuery(query, runId)) {
-            while (resultSet.next()) {
-                final Long id = resultSet.getLong("id");
-                resultMap.get(id).add(JdbcUtils.objectFromRow(JdbcTable.RESULT, resultSet, Value.class));
+
+        final Map<MetaData.Type, Map<Long, MetaData>> metaData = new EnumMap<>(MetaData.Type.class);
+        for (MetaData.Type type : MetaData.Type.values()) {
+            metaData.put(type, metaDataOf(JdbcUtils.typeToTable(type), metaIds.get(type)));
+        }
+
+        final List<Run> runs = new ArrayList<>(runFields.size());
+        for (int idx = 0; idx < runFields.size(); ++idx) {
+            final List<MetaData> runMetaData = new ArrayList<>();
+            for (Map.Entry<MetaData.Type, Long> entry : runMetaIds.get(idx).entrySet()) {
+                runMetaData.add(metaData.get(entry.getKey()).get(entry.getValue()));
             }
+            runs.add(JdbcRowMapper.toRun(runFields.get(idx), runMetaData));
+        }
+        return new RunPage(runs, lastKey);
+    }
+
+	@Override
+    public int getRunCount(RunQuery query) throws DatabaseException {
+        final List<Object> params = new ArrayList<>();
+        final String sql = new JdbcRunQuery(query, helper.getSchema()).countQuery(params);
+        try (final ResultSet resultSet = helper.executeQuery(sql, params)) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
         } catch (SQLException ex) {
             throw new DatabaseException(ex);
         }
-        
-        final List<RunData> runData = new ArrayList<>();
-        for (Map.Entry<Long, List<Value<?>>> entry : paramsMap.entrySet()) {
-            final List<Value<?>> params = entry.getValue();
-            final List<Value<Double>> results = resultMap.get(entry.getKey());
-            if (params == null || results == null) {
-                throw new IllegalStateException("SubRun with ID " + entry.getKey()
-                        + " found with no params or results");
+    }
+
+	/**
+	 * Return the meta data stored in the given table with the given IDs,
+	 * taking any already read from the meta data cache and reading the rest
+	 * up to a batch at a time, so that every run with the same meta data
+	 * shares one instance of it.
+	 * 
+	 * @param table
+	 *            the meta data table.
+	 * @param ids
+	 *            the meta data IDs.
+	 * @return the meta data, by ID.
+	 * @throws DatabaseException
+	 *             if an error occurs querying the database.
+	 */
+    private Map<Long, MetaData> metaDataOf(JdbcTable table, Collection<Long> ids) throws DatabaseException {
+        final JdbcMetaDataCache metaDataCache = helper.getMetaDataCache();
+        final Map<Long, MetaData> metaData = new HashMap<>();
+        final List<Long> missing = new ArrayList<>();
+        for (Long id : ids) {
+            final MetaData cached = metaDataCache.get(table, id);
+            if (cached != null) {
+                metaData.put(id, cached);
+            } else {
+                missing.add(id);
             }
-            runData.add(new RunData(params, results));
         }
-        
-        return runData;
+
+        for (int start = 0; start < missing.size(); start += helper.getBatchSize()) {
+            final List<Long> batch = missing.subList(start, Math.min(missing.size(), start + helper.getBatchSize()));
+
+            String query = "SELECT {0}.ID AS id, {1} FROM {2} WHERE {0}.ID IN ({3})";
+            query = MessageFormat.format(query,
+            /* 0 */ table.tableReference(),
+            /* 1 */ StringUtils.joinStrings(JdbcMapping.getSelectColumns(table), ", "),
+            /* 2 */ helper.getSchema() + "." + table.tableSelect(),
+            /* 3 */ JdbcUtils.placeHolders(batch.size()));
+
+            try (final ResultSet resultSet = helper.executeQuery(query, batch)) {
+                final JdbcRowMapper<MetaData> mapper = JdbcRowMapper.metaData(table, resultSet);
+                final int idIdx = JdbcRowMapper.columnIndex(resultSet, "id");
+                while (resultSet.next()) {
+                    final MetaData meta = mapper.map(resultSet);
+                    metaData.put(resultSet.getLong(idIdx), meta);
+                    metaDataCache.put(table, resultSet.getLong(idIdx), meta);
+                }
+            } catch (SQLException ex) {
+                throw new DatabaseException(ex);
+            }
+        }
+        return metaData;
     }
 
 	@Override
-	public void save(DatabaseObject dbObject) throws DatabaseException {
-		if (helper.getId(dbObject) != null) {
-			throw new DatabaseException("Cannot save " + dbObject
-					+ ": Entity already exists in database");
-		}
-
-		try {
-			if (dbObject instanceof MetaData) {
-				helper.saveMetaData((MetaData) dbObject).commit();
-			} else if (dbObject instanceof Run) {
-				helper.saveRun((Run) dbObject).commit();
-			} else if (dbObject instanceof Analysis) {
-				helper.saveAnalysis((Analysis) dbObject).commit();
-			} else {
-				throw new UnsupportedOperationException("Not supported yet.");
-			}
-			cache.dirty();
-		} catch (SQLException ex) {
-			throw new DatabaseException(ex);
-		}
-	}
+    public Collection<RunData> getDataSets(Run run) throws DatabaseException {
+        return dataSetsOf(Collections.singletonList(helper.getId(run))).get(0);
+    }
 
 	@Override
-    public void delete(DatabaseObject dbObject) throws DatabaseException {
-        final Long id = helper.getId(dbObject);
-        if (id == null) {
-            throw new DatabaseException("Cannot delete non persistant entity: "
-                    + dbObject);
-        }
+    public List<Collection<RunData>> getDataSets(List<Run> runs) throws DatabaseException {
+        return dataSetsOf(getRunIds(runs));
+    }
+
+	/**
+	 * Return the data sets of the runs with the given IDs, fetching the
+	 * parameters and results of up to a batch of runs in each query.
+	 * 
+	 * @param runIds
+	 *            the run IDs, which may contain {@code null}s.
+	 * @return the data sets, in the same order as the IDs, with no data sets
+	 *         for a {@code null} ID.
+	 * @throws DatabaseException
+	 *             if an error occurs querying the database.
+	 */
+	@SuppressWarnings("unchecked")
+    private List<Collection<RunData>> dataSetsOf(List<Long> runIds) throws DatabaseException {
+        // The sub runs of each run, in the order they were saved.
+        final Map<Long, List<Long>> subRunIds = DefaultHashMap.mapOfLists();
+        final Map<Long, List<Value<?>>> paramsMap = DefaultHashMap.mapOfLists();
+        final Map<Long, List<Value<Double>>> resultMap = DefaultHashMap.mapOfLists();
         
-        String query;
-        List<Object> sqlParams = new ArrayList<>();
+        final String parentRun = JdbcMapping.getTableMap(JdbcTable.SUB_RUN).get("run").select();
+        final List<Long> ids = new ArrayList<>(new LinkedHashSet<>(runIds));
+        ids.remove(null);
         
-        if (dbObject instanceof MetaData) {
-            final MetaData metaData = (MetaData) dbObject;
-            final JdbcTable table = JdbcUtils.typeToTable(metaData.getType());
-                
-            query = "DELETE FROM {0} WHERE ID = ?";
+        for (int start = 0; start < ids.size(); start += helper.getBatchSize()) {
+            final List<Long> batch = ids.subList(start, Math.min(ids.size(), start + helper.getBatchSize()));
+            
+            String query = "SELECT {0} AS parentRun, {1}.ID AS id, {2} FROM {3} JOIN {4} WHERE {0} IN ({5}) ORDER BY {1}.ID";
             query = MessageFormat.format(query,
-            /* 0 */ helper.getSchema() + "." + table.tableName());
+            /* 0 */ parentRun,
+            /* 1 */ JdbcTable.SUB_RUN.tableReference(),
+            /* 2 */ StringUtils.joinStrings(JdbcMapping.getSelectColumns(JdbcTable.PARAMETER), ", "),
+            /* 3 */ helper.getSchema() + "." + JdbcTable.SUB_RUN.tableSelect(),
+            /* 4 */ helper.getSchema() + "." + JdbcTable.SUB_RUN.joinRight(JdbcTable.PARAMETER),
+            /* 5 */ JdbcUtils.placeHolders(batch.size()));
             
-            try (Connection conn = helper.executeUpdate(query, sqlParams)) {
-                conn.commit();
-                cache.dirty();
+            try (final ResultSet resultSet = helper.executeQuery(query, batch)) {
+                final JdbcRowMapper<Value<?>> mapper = JdbcRowMapper.parameters(resultSet);
+                final int idIdx = JdbcRowMapper.columnIndex(resultSet, "id");
+                final int parentRunIdx = JdbcRowMapper.columnIndex(resultSet, "parentRun");
+                while (resultSet.next()) {
+                    final Long id = resultSet.getLong(idIdx);
+                    if (!paramsMap.containsKey(id)) {
+                        subRunIds.get(resultSet.getLong(parentRunIdx)).add(id);
+                    }
+                    paramsMap.get(id).add(mapper.map(resultSet));
+                }
             } catch (SQLException ex) {
                 throw new DatabaseException(ex);
             }
-        } else if (dbObject instanceof Run)  {
-            final List<Long> subRunIds = new ArrayList<>();
-
-            query = "SELECT {0}.ID AS id FROM {1} WHERE {2} = ?";
+            
+            query = "SELECT {0}.ID AS id, {1} FROM {2} JOIN {3} WHERE {4} IN ({5}) ORDER BY {0}.ID";
             query = MessageFormat.format(query,
             /* 0 */ JdbcTable.SUB_RUN.tableReference(),
-            /* 1 */ helper.getSchema() + "." + JdbcTable.SUB_RUN.tableSelect(),
-            /* 2 */ JdbcMapping.joins.get(JdbcTable.RUN).get(JdbcTable.SUB_RUN).select());
+            /* 1 */ StringUtils.joinStrings(JdbcMapping.getSelectColumns(JdbcTable.RESULT), ", "),
+            /* 2 */ helper.getSchema() + "." + JdbcTable.SUB_RUN.tableSelect(),
+            /* 3 */ helper.getSchema() + "." + JdbcTable.SUB_RUN.joinRight(JdbcTable.RESULT),
+            /* 4 */ parentRun,
+            /* 5 */ JdbcUtils.placeHolders(batch.size()));
             
-            try {
-                ResultSet resultSet = helper.executeQuery(query, id);
+            try (final ResultSet resultSet = helper.executeQuery(query, batch)) {
+                final JdbcRowMapper<Value<Double>> mapper = JdbcRowMapper.results(resultSet);
+                final int idIdx = JdbcRowMapper.columnIndex(resultSet, "id");
                 while (resultSet.next()) {
-                    subRunIds.add(resultSet.getLong("id"));
+                    resultMap.get(resultSet.getLong(idIdx)).add(mapper.map(resultSet));
                 }
-
-                if (!subRunIds.isEmpty()) {
-                    helper.deleteFromTable(JdbcTable.PARAMETER, JdbcTable.SUB_RUN, subRunIds);
-                    helper.deleteFromTable(JdbcTable.RESULT, JdbcTable.SUB_RUN, subRunIds);
-                }
-                helper.deleteFromTable(JdbcTable.SUB_RUN, JdbcTable.RUN, Arrays.asList(id));
-                helper.deleteFromTable(JdbcTable.RUN_FLAGS, JdbcTable.RUN, Arrays.asList(id));
-                
-                query = "DELETE FROM {0} WHERE ID = ?";
-                query = MessageFormat.format(query,
-                /* 0 */ helper.getSchema() + "." + JdbcTable.RUN.tableName());
-                
-                helper.executeUpdate(query, id).commit();
             } catch (SQLException ex) {
                 throw new DatabaseException(ex);
             }
-        } else if (dbObject instanceof Analysis) {
-            final List<Long> criteriaIds = new ArrayList<>();
+        }
+        
+        final List<Collection<RunData>> dataSets = new ArrayList<>(runIds.size());
+        for (Long runId : runIds) {
+            final List<RunData> runData = new ArrayList<>();
+            if (runId != null) {
+                for (Long id : subRunIds.get(runId)) {
+                    if (!resultMap.containsKey(id)) {
+                        throw new IllegalStateException("SubRun with ID " + id
+                                + " found with no params or results");
+                    }
+                    runData.add(new RunData(paramsMap.get(id), resultMap.get(id)));
+                }
+            }
+            dataSets.add(runData);
+        }
+        
+        return dataSets;
+    }
+
+	/**
+	 * Return the database IDs of the given runs. Runs with a run ID are
+	 * looked up together by it, as it is their business key, whilst any
+	 * others are looked up one at a time.
+	 * 
+	 * @param runs
+	 *            the runs.
+	 * @return the IDs, in the same order as the runs, with {@code null} for
+	 *         any run not found in the database.
+	 * @throws DatabaseException
+	 *             if an error occurs querying the database, or a run ID
+	 *             belongs to more than one run.
+	 */
+	private List<Long> getRunIds(List<Run> runs) throws DatabaseException {
+        final List<String> keys = new ArrayList<>(new LinkedHashSet<>(runIdsOf(runs)));
+        keys.remove(null);
+        
+        final Map<String, Long> idsByKey = new HashMap<>();
+        final String runIdColumn = JdbcTable.RUN.tableColumn("runId");
+        
+        for (int start = 0; start < keys.size(); start += helper.getBatchSize()) {
+            final List<String> batch = keys.subList(start, Math.min(keys.size(), start + helper.getBatchSize()));
             
-            query = "SELECT {0}.ID AS id FROM {1} WHERE {2} = ?";
+            String query = "SELECT {0}.ID AS id, {1} AS runId FROM {2} WHERE {1} IN ({3})";
             query = MessageFormat.format(query,
-            /* 0 */ JdbcTable.ANALYSIS_CRITERA.tableReference(),
-            /* 1 */ helper.getSchema() + "." + JdbcTable.ANALYSIS_CRITERA.tableSelect(),
-            /* 2 */ JdbcMapping.joins.get(JdbcTable.ANALYSIS).get(JdbcTable.ANALYSIS_CRITERA).select());
+            /* 0 */ JdbcTable.RUN.tableReference(),
+            /* 1 */ runIdColumn,
+            /* 2 */ helper.getSchema() + "." + JdbcTable.RUN.tableSelect(),
+            /* 3 */ JdbcUtils.placeHolders(batch.size()));
             
-            try {
-                ResultSet resultSet = helper.executeQuery(query, id);
+            try (final ResultSet resultSet = helper.executeQuery(query, batch)) {
                 while (resultSet.next()) {
-                    criteriaIds.add(resultSet.getLong("id"));
-                }
-                
-                if (!criteriaIds.isEmpty()) {
-                    helper.deleteFromTable(JdbcTable.ANALYSIS_CRITERA, JdbcTable.ANALYSIS, criteriaIds);
+                    final String key = resultSet.getString("runId");
+                    if (idsByKey.put(key, resultSet.getLong("id")) != null) {
+                        throw new DatabaseException("Multiple ids found for run " + key);
+                    }
                 }
-                
-                query = "DELETE FROM {0} WHERE ID = ?";
-                query = MessageFormat.format(query,
-                /* 0 */ helper.getSchema() + "." + JdbcTable.ANALYSIS.tableName());
-
-                helper.executeUpdate(query, id).commit();
             } catch (SQLException ex) {
                 throw new DatabaseException(ex);
             }
-        } else {
-            throw new UnsupportedOperationException("Not supported yet.");
         }
+        
+        final List<Long> ids = new ArrayList<>(runs.size());
+        for (Run run : runs) {
+            ids.add(run.getRunId() == null ? helper.getId(run) : idsByKey.get(run.getRunId()));
+        }
+        return ids;
     }
 
+	private static List<String> runIdsOf(List<Run> runs) {
+		final List<String> runIds = new ArrayList<>(runs.size());
+		for (Run run : runs) {
+			runIds.add(run.getRunId());
+		}
+		return runIds;
+	}
+
+	@Override
+	public void save(DatabaseObject dbObject) throws DatabaseException {
+		saveAll(Collections.singletonList(dbObject));
+	}
+
+	@Override
+	public void saveAll(Collection<? extends DatabaseObject> dbObjects)
+			throws DatabaseException {
+		final Set<JdbcTable> tables = EnumSet.noneOf(JdbcTable.class);
+		try {
+			for (DatabaseObject dbObject : dbObjects) {
+				saveObject(dbObject);
+				tables.addAll(JdbcUtils.tablesWritten(dbObject));
+			}
+			helper.commit(tables);
+			cache.invalidate(tables);
+		} catch (SQLException ex) {
+			throw new DatabaseException(ex);
+		} finally {
+			rollbackQuietly();
+		}
+	}
+
+	/**
+	 * Save the given object as part of the current transaction, without
+	 * committing it.
+	 * 
+	 * @param dbObject
+	 *            the object to save.
+	 * @throws SQLException
+	 *             if an error occurs performing the generated SQL.
+	 * @throws DatabaseException
+	 *             if the object already exists in the database.
+	 */
+	private void saveObject(DatabaseObject dbObject) throws SQLException,
+			DatabaseException {
+		if (helper.getId(dbObject) != null) {
+			throw new DatabaseException("Cannot save " + dbObject
+					+ ": Entity already exists in database");
+		}
+
+		if (dbObject instanceof MetaData) {
+			helper.saveMetaData((MetaData) dbObject);
+		} else if (dbObject instanceof Run) {
+			helper.saveRun((Run) dbObject);
+		} else if (dbObject instanceof Analysis) {
+			helper.saveAnalysis((Analysis) dbObject);
+		} else {
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+	}
+
+	@Override
+	public void delete(DatabaseObject dbObject) throws DatabaseException {
+		deleteAll(Collections.singletonList(dbObject));
+	}
+
+	@Override
+    public void deleteAll(Collection<? extends DatabaseObject> dbObjects)
+            throws DatabaseException {
+        final Map<JdbcTable, List<Long>> metaDataIds = DefaultHashMap.mapOfLists();
+        final List<Run> runs = new ArrayList<>();
+        final List<Long> analysisIds = new ArrayList<>();
+        final Set<JdbcTable> tables = EnumSet.noneOf(JdbcTable.class);
+        
+        for (DatabaseObject dbObject : dbObjects) {
+            if (dbObject instanceof Run) {
+                runs.add((Run) dbObject);
+            } else if (dbObject instanceof MetaData || dbObject instanceof Analysis) {
+                final Long id = helper.getId(dbObject);
+                if (id == null) {
+                    throw new DatabaseException("Cannot delete non persistant entity: "
+                            + dbObject);
+                }
+                if (dbObject instanceof MetaData) {
+                    metaDataIds.get(JdbcUtils.typeToTable(((MetaData) dbObject).getType())).add(id);
+                } else {
+                    analysisIds.add(id);
+                }
+            } else {
+                throw new UnsupportedOperationException("Not supported yet.");
+            }
+            tables.addAll(JdbcUtils.tablesWritten(dbObject));
+        }
+        
+        final List<Long> runIds = getRunIds(runs);
+        for (int idx = 0; idx < runIds.size(); ++idx) {
+            if (runIds.get(idx) == null) {
+                throw new DatabaseException("Cannot delete non persistant entity: "
+                        + runs.get(idx));
+            }
+        }
+        
+        // Children are deleted before their parents, and runs before the meta
+        // data they refer to, all in one transaction so that a failure part
+        // way through leaves nothing behind.
+        try {
+            if (!runIds.isEmpty()) {
+                helper.deleteFromTable(JdbcTable.PARAMETER, JdbcTable.SUB_RUN, JdbcTable.RUN, runIds);
+                helper.deleteFromTable(JdbcTable.RESULT, JdbcTable.SUB_RUN, JdbcTable.RUN, runIds);
+                if (helper.hasTable(JdbcTable.RESULT_ROLLUP)) {
+                    helper.deleteFromTable(JdbcTable.RESULT_ROLLUP, JdbcTable.SUB_RUN, JdbcTable.RUN, runIds);
+                }
+                helper.deleteFromTable(JdbcTable.SUB_RUN, JdbcTable.RUN, runIds);
+                helper.deleteFromTable(JdbcTable.RUN_FLAGS, JdbcTable.RUN, runIds);
+                helper.deleteFromTable(JdbcTable.RUN, runIds);
+            }
+            if (!analysisIds.isEmpty()) {
+                helper.deleteFromTable(JdbcTable.ANALYSIS_CRITERA, JdbcTable.ANALYSIS, analysisIds);
+                helper.deleteFromTable(JdbcTable.ANALYSIS_DERIVED_DATA, JdbcTable.ANALYSIS, analysisIds);
+                helper.deleteFromTable(JdbcTable.ANALYSIS_GRAPH, JdbcTable.ANALYSIS, analysisIds);
+                helper.deleteFromTable(JdbcTable.ANALYSIS_AXIS_LABEL, JdbcTable.ANALYSIS, analysisIds);
+                helper.deleteFromTable(JdbcTable.ANALYSIS, analysisIds);
+            }
+            for (Map.Entry<JdbcTable, List<Long>> entry : metaDataIds.entrySet()) {
+                helper.deleteFromTable(entry.getKey(), entry.getValue());
+            }
+            helper.commit(tables);
+            cache.invalidate(tables);
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        } finally {
+            rollbackQuietly();
+            for (JdbcTable table : metaDataIds.keySet()) {
+                helper.invalidateIds(table);
+            }
+        }
+    }
+
+	/**
+	 * Return whether the database holds the rollups of the results across
+	 * ranks, which it does not until the schema has been migrated.
+	 * 
+	 * @return {@code true} if the rollups can be read.
+	 * @throws DatabaseException
+	 *             if an error occurs looking for the rollups.
+	 */
+	private boolean hasRollups() throws DatabaseException {
+		try {
+			return helper.hasTable(JdbcTable.RESULT_ROLLUP);
+		} catch (SQLException ex) {
+			throw new DatabaseException(ex);
+		}
+	}
+
+	/**
+	 * Roll back any transaction left open on the current thread, e.g. by a
+	 * save which failed part way through, so that its connection is returned
+	 * to the pool.
+	 */
+	private void rollbackQuietly() {
+		try {
+			helper.rollback();
+		} catch (SQLException ex) {
+			LOG.error("Error rolling back transaction", ex);
+		}
+	}
+
 	@Override
     public boolean tryConnection(Configuration config) {
         final String query = "SELECT COUNT(*) AS count FROM "
@@ -794,11 +1317,16 @@ public final class JdbcDatabaseConnection implements DatabaseConnection {
             /* 2 */ StringUtils.joinStrings(updates, ", "));
 
             vals.add(id);
-            try (Connection conn = helper.executeUpdate(query, vals)) {
-                conn.commit();
-                cache.dirty();
+            try {
+                helper.executeUpdate(query, vals);
+                final Set<JdbcTable> tables = JdbcUtils.tablesWritten(newObject);
+                helper.commit(tables);
+                cache.invalidate(tables);
             } catch (SQLException ex) {
                 throw new DatabaseException(ex);
+            } finally {
+                rollbackQuietly();
+                helper.invalidateIds(table);
             }
         } else {
             throw new UnsupportedOperationException("Not supported yet.");
@@ -811,36 +1339,59 @@ public final class JdbcDatabaseConnection implements DatabaseConnection {
         if (id == null) {
             throw new DatabaseException("Cannot find run in database: " + run);
         }
-        
-        String query = "SELECT {0} AS flag FROM {1}"
-                + " JOIN {2}"
-                + " JOIN {3}"
-                + " WHERE {4} = ?";
-        
-        query = MessageFormat.format(query,
-        /* 0 */ JdbcTable.FLAGS.tableColumn("flag"),
-        /* 1 */ helper.getSchema() + "." + JdbcTable.RUN_FLAGS.tableSelect(),
-        /* 2 */ helper.getSchema() + "." + JdbcTable.RUN_FLAGS.joinLeft(JdbcTable.RUN),
-        /* 3 */ helper.getSchema() + "." + JdbcTable.RUN_FLAGS.joinLeft(JdbcTable.FLAGS),
-        /* 4 */ JdbcMapping.joins.get(JdbcTable.RUN).get(JdbcTable.RUN_FLAGS).select());
+        return flagsOf(Collections.singletonList(id)).get(0);
+    }
 
-        if (cache.contains(query, Arrays.asList(id))) {
-            @SuppressWarnings("unchecked")
-            final Collection<String> cachedResults = (Collection<String>) cache.get(query, Arrays.asList(id));
-            return cachedResults;
-        }
+	@Override
+    public List<Collection<String>> getFlags(List<Run> runs) throws DatabaseException {
+        return flagsOf(getRunIds(runs));
+    }
 
-        try (final ResultSet resultSet = helper.executeQuery(query, id)) {
-            final List<String> flags = new ArrayList<>();
-            while (resultSet.next()) {
-                flags.add(resultSet.getString("Flag"));
-            }
+	/**
+	 * Return the flags of the runs with the given IDs, fetching the flags of
+	 * up to a batch of runs in each query.
+	 * 
+	 * @param runIds
+	 *            the run IDs, which may contain {@code null}s.
+	 * @return the flags, in the same order as the IDs, with no flags for a
+	 *         {@code null} ID.
+	 * @throws DatabaseException
+	 *             if an error occurs querying the database.
+	 */
+	private List<Collection<String>> flagsOf(List<Long> runIds) throws DatabaseException {
+        final Map<Long, List<String>> flagsMap = DefaultHashMap.mapOfLists();
+        final String flagRun = JdbcMapping.joins.get(JdbcTable.RUN).get(JdbcTable.RUN_FLAGS).select();
+        final List<Long> ids = new ArrayList<>(new LinkedHashSet<>(runIds));
+        ids.remove(null);
+        
+        for (int start = 0; start < ids.size(); start += helper.getBatchSize()) {
+            final List<Long> batch = ids.subList(start, Math.min(ids.size(), start + helper.getBatchSize()));
             
-            cache.put(query, Arrays.asList(id), flags);
+            String query = "SELECT {0} AS flag, {1} AS runId FROM {2} JOIN {3} WHERE {1} IN ({4})";
+            query = MessageFormat.format(query,
+            /* 0 */ JdbcTable.FLAGS.tableColumn("flag"),
+            /* 1 */ flagRun,
+            /* 2 */ helper.getSchema() + "." + JdbcTable.RUN_FLAGS.tableSelect(),
+            /* 3 */ helper.getSchema() + "." + JdbcTable.RUN_FLAGS.joinLeft(JdbcTable.FLAGS),
+            /* 4 */ JdbcUtils.placeHolders(batch.size()));
             
-            return flags;
-        } catch (SQLException ex) {
-            throw new DatabaseException(ex);
+            try (final ResultSet resultSet = helper.executeQuery(query, batch)) {
+                while (resultSet.next()) {
+                    flagsMap.get(resultSet.getLong("runId")).add(resultSet.getString("flag"));
+                }
+            } catch (SQLException ex) {
+                throw new DatabaseException(ex);
+            }
+        }
+        
+        final List<Collection<String>> flags = new ArrayList<>(runIds.size());
+        for (Long runId : runIds) {
+            if (runId == null) {
+                flags.add(new ArrayList<String>());
+            } else {
+                flags.add(new ArrayList<>(flagsMap.get(runId)));
+            }
         }
+        return flags;
     }
 }
@@ -0,0 +1,300 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.awe.pmat.db.DataGrid;
+import uk.co.awe.pmat.db.MetaData;
+import uk.co.awe.pmat.utils.StringUtils;
+
+/**
+ * A cache of data grids kept on disk between sessions, so that re-opening an
+ * analysis does not run all its queries against the database again.
+ *
+ * <p>Each grid is stored in its own file, named by a hash of its query, the
+ * query parameters and a stamp of the database contents. The stamp is made
+ * from the data version, which every client bumps as it commits a write, and
+ * the row count and largest ID of the run and meta data tables, which change
+ * whenever runs are imported or deleted by older clients, so a grid read
+ * before such a change is never returned after it. Without the data version
+ * table meta data updated in place would not change the stamp, so nothing is
+ * cached until the schema has been migrated.</p>
+ *
+ * <p>The names of the temporary tables holding sub run restrictions are only
+ * unique within a session, so they are dropped from the key, which instead
+ * holds the clause and parameters each table was created from.</p>
+ *
+ * <p>The least recently used files are deleted once the files take up more
+ * than the maximum size.</p>
+ *
+ * @author AWE Plc copyright 2013
+ */
+final class JdbcDiskCache {
+
+    private final static Logger LOG = LoggerFactory.getLogger(JdbcDiskCache.class);
+
+    private static final String SUFFIX = ".grid";
+    private static final int FORMAT_VERSION = 1;
+
+    private final JdbcHelper helper;
+    private final File directory;
+    private final long maxBytes;
+
+    /**
+     * Create a new {@code JdbcDiskCache}.
+     *
+     * @param helper
+     *            the helper used to read the database stamp.
+     * @param directory
+     *            the directory to keep the cached grids in.
+     * @param maxBytes
+     *            the maximum size of the cached grids, or {@code 0} to
+     *            disable caching.
+     */
+    JdbcDiskCache(JdbcHelper helper, File directory, long maxBytes) {
+        this.helper = helper;
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Return the stamp of the current database contents, to pass to
+     * {@link #get} and {@link #put}.
+     *
+     * @return the stamp, or {@code null} if caching is disabled or the stamp
+     *         could not be read.
+     */
+    String stamp() {
+        if (maxBytes <= 0) {
+            return null;
+        }
+
+        final List<JdbcTable> tables = new ArrayList<>();
+        tables.add(JdbcTable.RUN);
+        for (MetaData.Type type : MetaData.Type.values()) {
+            tables.add(JdbcUtils.typeToTable(type));
+        }
+
+        final List<String> selects = new ArrayList<>();
+        selects.add(MessageFormat.format("SELECT Version AS count, 0 AS maxId FROM {0}",
+        /* 0 */ helper.getSchema() + "." + JdbcTable.DATA_VERSION.tableName()));
+        for (JdbcTable table : tables) {
+            selects.add(MessageFormat.format("SELECT COUNT(*) AS count, MAX(ID) AS maxId FROM {0}",
+            /* 0 */ helper.getSchema() + "." + table.tableName()));
+        }
+
+        try {
+            if (!helper.hasTable(JdbcTable.DATA_VERSION)) {
+                return null;
+            }
+        } catch (SQLException ex) {
+            LOG.warn("Failed to look for the data version, disk cache not used", ex);
+            return null;
+        }
+
+        try (final ResultSet resultSet = helper.executeQuery(StringUtils.joinStrings(selects, " UNION ALL "))) {
+            final StringBuilder stamp = new StringBuilder();
+            while (resultSet.next()) {
+                stamp.append(resultSet.getLong("count")).append(':')
+                        .append(resultSet.getLong("maxId")).append(';');
+            }
+            return stamp.toString();
+        } catch (SQLException ex) {
+            LOG.warn("Failed to read database stamp, disk cache not used", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Return the cached grid for the given query.
+     *
+     * @param query
+     *            the query.
+     * @param params
+     *            the query parameters.
+     * @param stamp
+     *            the database stamp, from {@link #stamp()}.
+     * @return the grid, or {@code null} if it is not cached.
+     */
+    DataGrid get(String query, List<Object> params, String stamp) {
+        if (stamp == null) {
+            return null;
+        }
+        final String key = key(query, params, stamp);
+        final File file = fileFor(key);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try (final ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(
+                new BufferedInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != FORMAT_VERSION || !key.equals(in.readObject())) {
+                return null;
+            }
+            final DataGrid dataGrid = (DataGrid) in.readObject();
+            if (!file.setLastModified(System.currentTimeMillis())) {
+                LOG.debug("Failed to touch cached grid " + file);
+            }
+            return dataGrid;
+        } catch (IOException | ClassNotFoundException | ClassCastException ex) {
+            LOG.warn("Discarding unreadable cached grid " + file, ex);
+            delete(file);
+            return null;
+        }
+    }
+
+    /**
+     * Cache the given grid, deleting the least recently used grids to make
+     * room for it.
+     *
+     * @param query
+     *            the query.
+     * @param params
+     *            the query parameters.
+     * @param stamp
+     *            the database stamp, from {@link #stamp()}, read before the
+     *            query was run.
+     * @param dataGrid
+     *            the grid.
+     */
+    void put(String query, List<Object> params, String stamp, DataGrid dataGrid) {
+        if (stamp == null) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LOG.warn("Failed to create cache directory " + directory);
+            return;
+        }
+
+        final String key = key(query, params, stamp);
+        final File file = fileFor(key);
+        File tmpFile = null;
+        try {
+            tmpFile = File.createTempFile("grid", ".tmp", directory);
+            try (final ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile))))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeObject(key);
+                out.writeObject(dataGrid);
+            }
+            // Another session may be reading the same file, so it must only
+            // ever appear complete.
+            try {
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            LOG.warn("Failed to cache grid in " + file, ex);
+            if (tmpFile != null) {
+                delete(tmpFile);
+            }
+            return;
+        }
+
+        evict();
+    }
+
+    /**
+     * Delete all the cached grids.
+     */
+    void clear() {
+        for (File file : cachedFiles()) {
+            delete(file);
+        }
+    }
+
+    private void evict() {
+        final File[] files = cachedFiles();
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        if (totalBytes <= maxBytes) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Long.compare(lhs.lastModified(), rhs.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (totalBytes <= maxBytes) {
+                break;
+            }
+            totalBytes -= file.length();
+            delete(file);
+        }
+    }
+
+    private File[] cachedFiles() {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        final List<File> cached = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                cached.add(file);
+            }
+        }
+        return cached.toArray(new File[cached.size()]);
+    }
+
+    private File fileFor(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(key.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder name = new StringBuilder();
+            for (byte b : digest) {
+                name.append(String.format("%02x", b));
+            }
+            return new File(directory, name + SUFFIX);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String key(String query, List<Object> params, String stamp) {
+        final StringBuilder key = new StringBuilder(stamp).append('\n')
+                .append(JdbcRestrictionTables.normalise(query));
+        for (Object param : params) {
+            key.append('\n');
+            if (param != null) {
+                key.append(param.getClass().getName()).append(':');
+            }
+            key.append(param);
+        }
+        return key.toString();
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            LOG.debug("Failed to delete " + file);
+        }
+    }
+}
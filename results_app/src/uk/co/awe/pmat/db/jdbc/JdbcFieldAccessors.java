@@ -0,0 +1,87 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Precompiled getters for the fields of the database objects, used to read
+ * their business keys. The fields of each class are looked up and made
+ * accessible once, the first time the class is seen, rather than on every
+ * read.
+ *
+ * @author AWE Plc copyright 2013
+ */
+final class JdbcFieldAccessors {
+
+    private static final ClassValue<Map<String, MethodHandle>> ACCESSORS
+            = new ClassValue<Map<String, MethodHandle>>() {
+        @Override
+        protected Map<String, MethodHandle> computeValue(Class<?> type) {
+            final Map<String, MethodHandle> getters = new HashMap<>();
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+            // Walk up from the super classes so that fields declared in a sub
+            // class hide those of the same name in its super classes.
+            for (Class<?> cls : hierarchy(type)) {
+                for (Field field : cls.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    try {
+                        field.setAccessible(true);
+                        getters.put(field.getName(), lookup.unreflectGetter(field));
+                    } catch (IllegalAccessException | SecurityException ex) {
+                        throw new IllegalStateException("Cannot access field "
+                                + field.getName() + " of " + cls, ex);
+                    }
+                }
+            }
+            return Collections.unmodifiableMap(getters);
+        }
+    };
+
+    /**
+     * This class cannot be instantiated.
+     */
+    private JdbcFieldAccessors() {
+    }
+
+    /**
+     * Return the value of the named field of the given object.
+     *
+     * @param obj
+     *            the object to read the field from.
+     * @param fieldName
+     *            the name of the field.
+     * @return the value of the field.
+     * @throws NoSuchFieldException
+     *             if the object has no field with the given name.
+     */
+    static Object get(Object obj, String fieldName) throws NoSuchFieldException {
+        final MethodHandle getter = ACCESSORS.get(obj.getClass()).get(fieldName);
+        if (getter == null) {
+            throw new NoSuchFieldException(obj.getClass().getName() + "." + fieldName);
+        }
+        try {
+            return getter.invoke(obj);
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            // Field getters do not throw checked exceptions.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static Iterable<Class<?>> hierarchy(Class<?> type) {
+        final LinkedList<Class<?>> classes = new LinkedList<>();
+        for (Class<?> cls = type; cls != null && cls != Object.class; cls = cls.getSuperclass()) {
+            classes.addFirst(cls);
+        }
+        return classes;
+    }
+}
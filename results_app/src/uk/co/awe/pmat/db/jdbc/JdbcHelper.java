@@ -1,23 +1,33 @@
 package uk.co.awe.pmat.db.jdbc;
 
-import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.co.awe.pmat.Configuration;
+import uk.co.awe.pmat.Constants;
 import uk.co.awe.pmat.db.Analysis;
 import uk.co.awe.pmat.db.DatabaseException;
 import uk.co.awe.pmat.db.DatabaseObject;
@@ -42,38 +52,175 @@ import uk.co.awe.pmat.utils.StringUtils;
 final class JdbcHelper {
 
 	private final static Logger LOG = LoggerFactory.getLogger(JdbcHelper.class);
-	private final static int MAX_RESULTS_PER_QUERY = 1000;
-	private final static int MAX_PARAMS_PER_QUERY = 1000;
+
+	/** The number of rows fetched from the database at a time by queries. */
+	private static final int QUERY_FETCH_SIZE = 10000;
+
+	/** The number of data grid query plans kept for reuse. */
+	private static final int DATA_GRID_PLANS = 256;
 
 	private final String schema;
-	private final String userName;
-	private final String passWord;
-	private final String url;
+	private final int batchSize;
+	private final boolean bulkLoad;
+	private final int idListThreshold;
+	private final JdbcConnectionPool readPool;
+	private final JdbcConnectionPool replicaPool;
+	private final JdbcConnectionPool writePool;
+	private final long readAfterWriteNanos;
+
+	/**
+	 * The time of the last write committed by this application, from
+	 * {@link System#nanoTime()}, or {@code null} if nothing has been written.
+	 */
+	private volatile Long lastWrite = null;
+	private final JdbcIdCache idCache;
+	private final JdbcMetaDataCache metaDataCache;
+	private final Map<JdbcDataGridPlan.Key, JdbcDataGridPlan> dataGridPlans = new LinkedHashMap<JdbcDataGridPlan.Key, JdbcDataGridPlan>(
+			16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<JdbcDataGridPlan.Key, JdbcDataGridPlan> eldest) {
+			return size() > DATA_GRID_PLANS;
+		}
+	};
+	private final JdbcRestrictionTables restrictionTables;
+	private final JdbcQueryStats queryStats;
 
-	private Connection connection;
+	/**
+	 * Whether each of the tables added by the schema migrations that has been
+	 * looked for is in the database. The migrations may not have been run,
+	 * so features using these tables are skipped when they are missing.
+	 */
+	private final Map<JdbcTable, Boolean> migratedTables = new ConcurrentHashMap<>();
+
+	/**
+	 * The write connection of the transaction currently open on each thread.
+	 * All reads and writes performed by a thread with an open transaction go
+	 * through this connection so that they see the uncommitted changes.
+	 */
+	private final ThreadLocal<Connection> transaction = new ThreadLocal<>();
+
+	/**
+	 * The rows waiting to be bulk loaded when the transaction open on each
+	 * thread is committed, by table.
+	 */
+	private final ThreadLocal<Map<JdbcTable, JdbcBulkLoader>> bulkLoaders = new ThreadLocal<>();
+
+	/**
+	 * The query statement currently being executed by each thread, so that
+	 * another thread can cancel it.
+	 */
+	private final Map<Thread, Statement> runningQueries = new ConcurrentHashMap<>();
 
 	/**
 	 * Create a new {@code JdbcHelper}.
 	 * 
-	 * @param schema
-	 *            the database schema.
-	 * @param userName
-	 *            the database username.
-	 * @param passWord
-	 *            the database password.
-	 * @param url
-	 *            the connection URL for the database.
-	 */
-	JdbcHelper(String schema, String userName, String passWord, String url) {
-		this.schema = schema;
-		this.userName = userName;
-		this.passWord = passWord;
-		this.url = url;
+	 * @param configuration
+	 *            the application configuration, from which the database
+	 *            connection and pool settings are read.
+	 */
+	JdbcHelper(Configuration configuration) {
+		this.schema = configuration.getProperty(Configuration.Key.DB_SCHEMA);
+		this.batchSize = Math.max(1, configuration.getIntegerProperty(
+				Configuration.Key.DB_BATCH_SIZE,
+				Constants.Database.BATCH_SIZE));
+		this.idCache = new JdbcIdCache(configuration.getIntegerProperty(
+				Configuration.Key.DB_ID_CACHE_SIZE,
+				Constants.Database.ID_CACHE_SIZE));
+		this.metaDataCache = new JdbcMetaDataCache(configuration.getIntegerProperty(
+				Configuration.Key.DB_ID_CACHE_SIZE,
+				Constants.Database.ID_CACHE_SIZE));
+		this.restrictionTables = new JdbcRestrictionTables(schema,
+				configuration.getIntegerProperty(
+						Configuration.Key.DB_RESTRICTION_TEMP_TABLES,
+						Constants.Database.RESTRICTION_TEMP_TABLES));
+		this.idListThreshold = configuration.getIntegerProperty(
+				Configuration.Key.DB_RESTRICTION_ID_LIST_MAX,
+				Constants.Database.RESTRICTION_ID_LIST_MAX);
+		this.bulkLoad = configuration.getBooleanProperty(
+				Configuration.Key.DB_BULK_LOAD, Constants.Database.BULK_LOAD);
+		this.queryStats = new JdbcQueryStats(configuration.getIntegerProperty(
+				Configuration.Key.DB_SLOW_QUERY_MS,
+				Constants.Database.SLOW_QUERY_MS));
+		queryStats.register();
+
+		final String url = configuration
+				.getProperty(Configuration.Key.DB_CONNECTION_URL);
+		final String userName = configuration
+				.getProperty(Configuration.Key.DB_USERNAME);
+		final String passWord = configuration
+				.getProperty(Configuration.Key.DB_PASSWORD);
+		final long idleTimeout = 1000L * configuration.getIntegerProperty(
+				Configuration.Key.DB_POOL_IDLE_TIMEOUT,
+				Constants.Database.POOL_IDLE_TIMEOUT);
+		final int validationTimeout = configuration.getIntegerProperty(
+				Configuration.Key.DB_POOL_VALIDATION_TIMEOUT,
+				Constants.Database.POOL_VALIDATION_TIMEOUT);
+		final int statementCacheSize = configuration.getIntegerProperty(
+				Configuration.Key.DB_STATEMENT_CACHE_SIZE,
+				Constants.Database.STATEMENT_CACHE_SIZE);
+
+		this.readPool = new JdbcConnectionPool("read", url, userName,
+				passWord, true, configuration.getIntegerProperty(
+						Configuration.Key.DB_POOL_READ_SIZE,
+						Constants.Database.POOL_READ_SIZE), idleTimeout,
+				validationTimeout, Constants.Database.POOL_BORROW_TIMEOUT,
+				statementCacheSize, false);
+		this.writePool = new JdbcConnectionPool("write", url, userName,
+				passWord, false, configuration.getIntegerProperty(
+						Configuration.Key.DB_POOL_WRITE_SIZE,
+						Constants.Database.POOL_WRITE_SIZE), idleTimeout,
+				validationTimeout, Constants.Database.POOL_BORROW_TIMEOUT,
+				statementCacheSize, bulkLoad);
+
+		final String replicaUrl = configuration
+				.getProperty(Configuration.Key.DB_READ_CONNECTION_URL);
+		if (replicaUrl == null || replicaUrl.trim().isEmpty()) {
+			this.replicaPool = null;
+		} else {
+			final String replicaUserName = configuration
+					.getProperty(Configuration.Key.DB_READ_USERNAME);
+			final String replicaPassWord = configuration
+					.getProperty(Configuration.Key.DB_READ_PASSWORD);
+			final boolean sameUser = replicaUserName == null
+					|| replicaUserName.trim().isEmpty();
+			this.replicaPool = new JdbcConnectionPool("replica",
+					replicaUrl.trim(), sameUser ? userName : replicaUserName,
+					sameUser ? passWord : replicaPassWord, true,
+					configuration.getIntegerProperty(
+							Configuration.Key.DB_POOL_READ_SIZE,
+							Constants.Database.POOL_READ_SIZE), idleTimeout,
+					validationTimeout, Constants.Database.POOL_BORROW_TIMEOUT,
+					statementCacheSize, false);
+		}
+		this.readAfterWriteNanos = TimeUnit.MILLISECONDS.toNanos(
+				configuration.getIntegerProperty(
+						Configuration.Key.DB_READ_AFTER_WRITE_MS,
+						Constants.Database.READ_AFTER_WRITE_MS));
+	}
+
+	/**
+	 * Return the pool to borrow a connection from for a read outside of a
+	 * transaction. Reads go to the replica, if there is one, except shortly
+	 * after this application has written to the database, when the replica
+	 * may not yet have the changes and so reads go to the primary.
+	 * 
+	 * @return the pool to read from.
+	 */
+	private JdbcConnectionPool readPool() {
+		if (replicaPool == null) {
+			return readPool;
+		}
+		final Long written = lastWrite;
+		if (written != null && System.nanoTime() - written < readAfterWriteNanos) {
+			return readPool;
+		}
+		return replicaPool;
 	}
 
 	/**
 	 * Find the ID of the given object in the database using the objects
-	 * business key.
+	 * business key. The IDs of meta data are cached, as the same meta data is
+	 * looked up for every run saved.
 	 * 
 	 * @param dbObj
 	 *            the object for which to get the ID.
@@ -105,17 +252,21 @@ final class JdbcHelper {
             keys = Arrays.asList("runId", "creator", "runDate", "tag", "file");
         }
         
+        final List<Object> keyVals = getBusinessKeyValues(dbObj, keys);
+        final boolean cacheable = dbObj instanceof MetaData;
+        if (cacheable) {
+            final Long cachedId = idCache.get(table, keyVals);
+            if (cachedId != null) {
+                return cachedId;
+            }
+        }
+        
+        final Iterator<Object> keyValsIt = keyVals.iterator();
         for (String fieldName : keys) {
-            try {
-                final Field field = dbObj.getClass().getDeclaredField(fieldName);
-                field.setAccessible(true);
-                final Object val = field.get(dbObj);
-                clauses.add(table.equals(fieldName, val));
-                if (val != null) {
-                    vals.add(val);
-                }
-            } catch (NoSuchFieldException | SecurityException | IllegalArgumentException | IllegalAccessException ex) {
-                throw new DatabaseException("Failed to get id for database object " + dbObj, ex);
+            final Object val = keyValsIt.next();
+            clauses.add(table.equals(fieldName, val));
+            if (val != null) {
+                vals.add(val);
             }
         }
         
@@ -123,9 +274,7 @@ final class JdbcHelper {
         /* 0 */ schema + "." + table.tableSelect(),
         /* 0 */ StringUtils.joinStrings(clauses, " AND "));
 
-        try {
-            final ResultSet resultSet = executeQuery(query, vals);
-            
+        try (final ResultSet resultSet = executeQuery(query, vals)) {
             Long id = null;
             while (resultSet.next()) {
                 if (id != null) {
@@ -134,6 +283,9 @@ final class JdbcHelper {
                 id = resultSet.getLong("ID");
             }
             
+            if (cacheable && id != null) {
+                idCache.put(table, keyVals, id, transaction.get() != null);
+            }
             return id;
         } catch (SQLException ex) {
             throw new DatabaseException(ex);
@@ -141,30 +293,192 @@ final class JdbcHelper {
     }
 
 	/**
-	 * Delete the rows from the given database table with the given IDs.
+	 * Return the values of the given business key fields of the given object.
+	 * 
+	 * @param dbObj
+	 *            the object whose fields to read.
+	 * @param keys
+	 *            the names of the business key fields.
+	 * @return the field values, in the same order as the keys.
+	 * @throws DatabaseException
+	 *             if one of the fields does not exist.
+	 */
+	private List<Object> getBusinessKeyValues(DatabaseObject dbObj, Collection<String> keys) throws DatabaseException {
+        final List<Object> keyVals = new ArrayList<>(keys.size());
+        for (String fieldName : keys) {
+            try {
+                keyVals.add(JdbcFieldAccessors.get(dbObj, fieldName));
+            } catch (NoSuchFieldException ex) {
+                throw new DatabaseException("Failed to get id for database object " + dbObj, ex);
+            }
+        }
+        return keyVals;
+    }
+
+	/**
+	 * Remove the cached IDs and meta data of the given table, which must be
+	 * called whenever one of its rows is updated or deleted.
+	 * 
+	 * @param table
+	 *            the table whose rows have changed.
+	 */
+	void invalidateIds(JdbcTable table) {
+		idCache.invalidate(table);
+		metaDataCache.invalidate(table);
+	}
+
+	/**
+	 * Return the cache of the meta data read from the database by ID.
+	 * 
+	 * @return the meta data cache.
+	 */
+	JdbcMetaDataCache getMetaDataCache() {
+		return metaDataCache;
+	}
+
+	/**
+	 * Return the data grid query plan built for queries of the given shape.
+	 * 
+	 * @param key
+	 *            the shape of the query.
+	 * @return the plan, or {@code null} if none has been built.
+	 */
+	JdbcDataGridPlan getDataGridPlan(JdbcDataGridPlan.Key key) {
+		synchronized (dataGridPlans) {
+			return dataGridPlans.get(key);
+		}
+	}
+
+	/**
+	 * Keep the data grid query plan built for queries of the given shape, for
+	 * reuse by later queries of the same shape. Plans do not depend on the
+	 * data in the database, so are never invalidated.
+	 * 
+	 * @param key
+	 *            the shape of the query.
+	 * @param plan
+	 *            the plan.
+	 */
+	void putDataGridPlan(JdbcDataGridPlan.Key key, JdbcDataGridPlan plan) {
+		synchronized (dataGridPlans) {
+			dataGridPlans.put(key, plan);
+		}
+	}
+
+	/**
+	 * Return whether the given table, added by one of the schema migrations,
+	 * is in the database. The table is only looked for the first time it is
+	 * asked about.
+	 * 
+	 * @param table
+	 *            the table.
+	 * @return {@code true} if the table exists.
+	 * @throws SQLException
+	 *             if an error occurs looking for the table.
+	 */
+	boolean hasTable(JdbcTable table) throws SQLException {
+        final Boolean known = migratedTables.get(table);
+        if (known != null) {
+            return known;
+        }
+        
+        final String query = "SELECT COUNT(*) FROM information_schema.TABLES"
+                + " WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ?";
+        try (final ResultSet resultSet = executeQuery(query, schema, table.tableName())) {
+            final boolean found = resultSet.next() && resultSet.getLong(1) > 0;
+            if (!found) {
+                LOG.warn("Table " + schema + "." + table.tableName()
+                        + " not found, the schema migrations have not been run");
+            }
+            migratedTables.put(table, found);
+            return found;
+        }
+    }
+
+	/**
+	 * Delete the rows from the given database table with the given IDs, as
+	 * part of the current transaction.
 	 * 
 	 * @param table
 	 *            the table from which to delete the rows.
-	 * @param joinTable
-	 *            table to join in order to perform where clause.
 	 * @param ids
-	 *            the IDs of the tables to delete.
+	 *            the IDs of the rows to delete.
 	 * @throws SQLException
 	 *             if there is an error in the generated SQL.
 	 */
-	void deleteFromTable(JdbcTable table, JdbcTable joinTable, List<Long> ids) throws SQLException {
-        final List<String> placeHolders = new ArrayList<>(ids.size());
-        for (int idx = 0; idx < ids.size(); ++ idx) {
-            placeHolders.add("?");
+	void deleteFromTable(JdbcTable table, List<Long> ids) throws SQLException {
+        for (int start = 0; start < ids.size(); start += batchSize) {
+            final List<Long> batch = ids.subList(start, Math.min(ids.size(), start + batchSize));
+            
+            String query = "DELETE FROM {0} WHERE ID IN ({1})";
+            query = MessageFormat.format(query,
+            /* 0 */ schema + "." + table.tableName(),
+            /* 1 */ JdbcUtils.placeHolders(batch.size()));
+
+            executeUpdate(query, batch);
         }
-        
-        String query = "DELETE FROM {0} WHERE {1} IN ({2})";
-        query = MessageFormat.format(query,
-        /* 0 */ schema + "." + table.tableName(),
-        /* 1 */ JdbcMapping.joins.get(joinTable).get(table).name(),
-        /* 2 */ StringUtils.joinStrings(placeHolders, ", "));
+    }
+
+	/**
+	 * Delete the rows from the given database table which belong to any of the
+	 * given rows of the parent table, as part of the current transaction.
+	 * 
+	 * @param table
+	 *            the table from which to delete the rows.
+	 * @param parentTable
+	 *            the table to which the rows belong.
+	 * @param parentIds
+	 *            the IDs of the parent rows.
+	 * @throws SQLException
+	 *             if there is an error in the generated SQL.
+	 */
+	void deleteFromTable(JdbcTable table, JdbcTable parentTable, List<Long> parentIds) throws SQLException {
+        for (int start = 0; start < parentIds.size(); start += batchSize) {
+            final List<Long> batch = parentIds.subList(start, Math.min(parentIds.size(), start + batchSize));
+            
+            String query = "DELETE FROM {0} WHERE {1} IN ({2})";
+            query = MessageFormat.format(query,
+            /* 0 */ schema + "." + table.tableName(),
+            /* 1 */ JdbcMapping.joins.get(parentTable).get(table).name(),
+            /* 2 */ JdbcUtils.placeHolders(batch.size()));
+
+            executeUpdate(query, batch);
+        }
+    }
+
+	/**
+	 * Delete the rows from the given database table which belong to a row of
+	 * the join table, which in turn belongs to any of the given rows of the
+	 * parent table, as part of the current transaction. The rows are found by
+	 * joining in the database, so the IDs of the join table rows, of which
+	 * there may be many thousands, are never read.
+	 * 
+	 * @param table
+	 *            the table from which to delete the rows.
+	 * @param joinTable
+	 *            the table to which the rows belong.
+	 * @param parentTable
+	 *            the table to which the join table rows belong.
+	 * @param parentIds
+	 *            the IDs of the parent rows.
+	 * @throws SQLException
+	 *             if there is an error in the generated SQL.
+	 */
+	void deleteFromTable(JdbcTable table, JdbcTable joinTable, JdbcTable parentTable,
+			List<Long> parentIds) throws SQLException {
+        for (int start = 0; start < parentIds.size(); start += batchSize) {
+            final List<Long> batch = parentIds.subList(start, Math.min(parentIds.size(), start + batchSize));
+            
+            String query = "DELETE {0} FROM {1} JOIN {2} WHERE {3} IN ({4})";
+            query = MessageFormat.format(query,
+            /* 0 */ table.tableReference(),
+            /* 1 */ schema + "." + joinTable.tableSelect(),
+            /* 2 */ schema + "." + joinTable.joinRight(table),
+            /* 3 */ JdbcMapping.joins.get(parentTable).get(joinTable).select(),
+            /* 4 */ JdbcUtils.placeHolders(batch.size()));
 
-        executeUpdate(query, ids);
+            executeUpdate(query, batch);
+        }
     }
 
 	/**
@@ -199,10 +513,10 @@ final class JdbcHelper {
         /* 2 */ schema + "." + JdbcTable.FLAGS.tableSelect(),
         /* 3 */ StringUtils.joinStrings(placeHolders, ", "));
         
-        ResultSet resultSet = executeQuery(query, flags);
-        
-        while (resultSet.next()) {
-            flagIds.put(resultSet.getString("flag"), resultSet.getLong("ID"));
+        try (final ResultSet resultSet = executeQuery(query, flags)) {
+            while (resultSet.next()) {
+                flagIds.put(resultSet.getString("flag"), resultSet.getLong("ID"));
+            }
         }
         
         final List<String> unsavedFlags = new ArrayList<>();
@@ -236,10 +550,10 @@ final class JdbcHelper {
             /* 2 */ schema + "." + JdbcTable.FLAGS.tableSelect(),
             /* 3 */ StringUtils.joinStrings(placeHolders, ", "));
 
-            resultSet = executeQuery(query, unsavedFlags);
-
-            while (resultSet.next()) {
-                flagIds.put(resultSet.getString("flag"), resultSet.getLong("ID"));
+            try (final ResultSet resultSet = executeQuery(query, unsavedFlags)) {
+                while (resultSet.next()) {
+                    flagIds.put(resultSet.getString("flag"), resultSet.getLong("ID"));
+                }
             }
         }
         
@@ -270,11 +584,13 @@ final class JdbcHelper {
 	 * 
 	 * @param metaData
 	 *            the meta data to save.
-	 * @return the connection used to save the meta data.
+	 * @return the database ID of the saved meta data.
 	 * @throws SQLException
 	 *             if an error occurs performing the generated SQL.
+	 * @throws DatabaseException
+	 *             if the business key of the meta data cannot be read.
 	 */
-	Connection saveMetaData(final MetaData metaData) throws SQLException {
+	Long saveMetaData(final MetaData metaData) throws SQLException, DatabaseException {
         
         final JdbcTable table = JdbcUtils.typeToTable(metaData.getType());
         final List<String> cols = new ArrayList<>();
@@ -292,7 +608,9 @@ final class JdbcHelper {
         /* 1 */ StringUtils.joinStrings(cols, ", "),
         /* 2 */ "(" + StringUtils.joinStrings(placeHolders, ", ") + ")");
         
-        return executeUpdate(query, vals);
+        final Long id = executeInsert(query, vals).get(0);
+        idCache.put(table, getBusinessKeyValues(metaData, JdbcMapping.getBusinessKey(table)), id, true);
+        return id;
     }
 
 	/**
@@ -303,13 +621,12 @@ final class JdbcHelper {
 	 * 
 	 * @param run
 	 *            the run to save.
-	 * @return the connection used to save the run.
 	 * @throws SQLException
 	 *             if an error occurs performing the generated SQL.
 	 * @throws DatabaseException
 	 *             if an error occurs saving the meta data.
 	 */
-	Connection saveRun(final Run run) throws SQLException, DatabaseException {
+	void saveRun(final Run run) throws SQLException, DatabaseException {
                
         final List<String> placeHolders = new ArrayList<>();
         final List<Object> vals = new ArrayList<>();
@@ -321,11 +638,7 @@ final class JdbcHelper {
             final MetaData metaData = run.getMetaData(type);
             Long id = getId(metaData);
             if (id == null) {
-                saveMetaData(run.getMetaData(type));
-                id = getId(metaData);
-            }
-            if (id == null) {
-                throw new DatabaseException("Failed to find meta data ID for " + metaData);
+                id = saveMetaData(metaData);
             }
             metaIds.put(type, id);
         }
@@ -362,23 +675,19 @@ final class JdbcHelper {
         /* 1 */ StringUtils.joinStrings(names, ", "),
         /* 2 */ "(" + StringUtils.joinStrings(placeHolders, ", ") + ")");
         
-        final Connection conn = executeUpdate(runQuery, vals);
-
-        Long runId = getId(run);
+        final Long runId = executeInsert(runQuery, vals).get(0);
         saveFlags(run, runId);
 
         if (!run.getDataSets().isEmpty()) {
             saveDataSets(run, runId);
         }
-        
-        return conn;
     }
 
 	private void saveResults(Map<Long, List<Value<Double>>> subRunResults) throws SQLException {
         final List<String> names = new ArrayList<>();
         final List<String> columns = new ArrayList<>();
         final List<String> placeHolders = new ArrayList<>();
-        final List<Object> vals = new ArrayList<>();
+        final List<List<Object>> rows = new ArrayList<>();
         
         for (Map.Entry<String, Column> entry : JdbcMapping.getTableMap(JdbcTable.RESULT).entrySet()) {
             names.add(entry.getKey());
@@ -389,15 +698,12 @@ final class JdbcHelper {
         names.add("subRun");
         columns.add(JdbcMapping.joins.get(JdbcTable.SUB_RUN).get(JdbcTable.RESULT).insertColumns());
         placeHolders.add(JdbcMapping.joins.get(JdbcTable.SUB_RUN).get(JdbcTable.RESULT).placeHolder());
-
-        final String resultPlaceHolder = "(" + StringUtils.joinStrings(placeHolders, ", ") + ")";
-        placeHolders.clear();
         
         for (Map.Entry<Long, List<Value<Double>>> entry : subRunResults.entrySet()) {
             final Long subRunId = entry.getKey();
             final List<Value<Double>> results = entry.getValue();
             for (Value<?> result : results) {
-                placeHolders.add(resultPlaceHolder);
+                final List<Object> vals = new ArrayList<>(names.size());
                 for (String name : names) {
                     switch (name) {
                         case "name":
@@ -428,34 +734,28 @@ final class JdbcHelper {
                             throw new IllegalStateException("Unknown parameter field " + name);
                     }
                 }
+                rows.add(vals);
             }
         }
         
-        // Insert results MAX_RESULTS_PER_QUERY at a time to avoid overfilling
-        // the query buffer.
-        int fromIdx = 0;
-        final int numHolders = resultPlaceHolder.split("\\?").length - 1;
-
-        do {
-            int toIdx = Math.min(fromIdx + MAX_RESULTS_PER_QUERY * numHolders, vals.size());
-            
-            String query = MessageFormat.format("INSERT INTO {0} ({1}) VALUES {2}",
-            /* 0 */ schema + "." + JdbcTable.RESULT.tableName(),
-            /* 1 */ StringUtils.joinStrings(columns, ", "),
-            /* 2 */ StringUtils.joinStrings(placeHolders.subList(fromIdx / numHolders, toIdx / numHolders), ", "));
-
-            executeUpdate(query, vals.subList(fromIdx, toIdx));
+        if (bulkLoad) {
+            addBulkRows(JdbcTable.RESULT, columns, rows);
+            return;
+        }
         
-            fromIdx = toIdx;
-            
-        } while (vals.size() - fromIdx > 0);
+        final String query = MessageFormat.format("INSERT INTO {0} ({1}) VALUES ({2})",
+        /* 0 */ schema + "." + JdbcTable.RESULT.tableName(),
+        /* 1 */ StringUtils.joinStrings(columns, ", "),
+        /* 2 */ StringUtils.joinStrings(placeHolders, ", "));
+        
+        executeBatch(query, rows);
     }
 
 	private void saveParameters(Map<Long, List<Value<?>>> subRunParams) throws SQLException {
         final List<String> names = new ArrayList<>();
         final List<String> columns = new ArrayList<>();
         final List<String> placeHolders = new ArrayList<>();
-        final List<Object> vals = new ArrayList<>();
+        final List<List<Object>> rows = new ArrayList<>();
         
         for (Map.Entry<String, Column> entry : JdbcMapping.getTableMap(JdbcTable.PARAMETER).entrySet()) {
             names.add(entry.getKey());
@@ -466,15 +766,12 @@ final class JdbcHelper {
         names.add("subRun");
         columns.add(JdbcMapping.joins.get(JdbcTable.SUB_RUN).get(JdbcTable.PARAMETER).insertColumns());
         placeHolders.add(JdbcMapping.joins.get(JdbcTable.SUB_RUN).get(JdbcTable.PARAMETER).placeHolder());
-
-        final String paramPlaceHolder = "(" + StringUtils.joinStrings(placeHolders, ", ") + ")";
-        placeHolders.clear();
         
         for (Map.Entry<Long, List<Value<?>>> entry : subRunParams.entrySet()) {
             final Long subRunId = entry.getKey();
             final List<Value<?>> params = entry.getValue();
             for (Value<?> param : params) {
-                placeHolders.add(paramPlaceHolder);
+                final List<Object> vals = new ArrayList<>(names.size() + 3);
                 for (String name : names) {
                     switch (name) {
                         case "name":
@@ -497,27 +794,21 @@ final class JdbcHelper {
                             throw new IllegalStateException("Unknown parameter field " + name);
                     }
                 }
+                rows.add(vals);
             }
         }
         
-        // Insert parameters MAX_PARAMS_PER_QUERY at a time to avoid overfilling
-        // the query buffer.
-        int fromIdx = 0;
-        final int numHolders = paramPlaceHolder.split("\\?").length - 1;
+        if (bulkLoad) {
+            addBulkRows(JdbcTable.PARAMETER, columns, rows);
+            return;
+        }
         
-        do {
-            int toIdx = Math.min(fromIdx + MAX_PARAMS_PER_QUERY * numHolders, vals.size());
-            
-            String query = MessageFormat.format("INSERT INTO {0} ({1}) VALUES {2}",
-            /* 0 */ schema + "." + JdbcTable.PARAMETER.tableName(),
-            /* 1 */ StringUtils.joinStrings(columns, ", "),
-            /* 2 */ StringUtils.joinStrings(placeHolders.subList(fromIdx / numHolders, toIdx / numHolders), ", "));
-
-            executeUpdate(query, vals.subList(fromIdx, toIdx));
+        final String query = MessageFormat.format("INSERT INTO {0} ({1}) VALUES ({2})",
+        /* 0 */ schema + "." + JdbcTable.PARAMETER.tableName(),
+        /* 1 */ StringUtils.joinStrings(columns, ", "),
+        /* 2 */ StringUtils.joinStrings(placeHolders, ", "));
         
-            fromIdx = toIdx;
-            
-        } while (vals.size() - fromIdx > 0);
+        executeBatch(query, rows);
     }
 
 	private void saveDataSets(final Run run, Long runId) throws SQLException {
@@ -525,136 +816,698 @@ final class JdbcHelper {
         final List<String> placeHolders = new ArrayList<>();
         final List<Object> subRunVals = new ArrayList<>();
         
-        final Map<Long, List<Value<?>>> params = new HashMap<>();
-        final Map<Long, List<Value<Double>>> results = new HashMap<>();
-        
         final List<RunData> dataSets = run.getDataSets();
         for (int sequence = 0; sequence < dataSets.size(); ++sequence) {
             subRunVals.add(runId);
             subRunVals.add(sequence);
             placeHolders.add("(?, ?)");
-            
-            params.put((long) sequence, dataSets.get(sequence).getParameters());
-            results.put((long) sequence, dataSets.get(sequence).getResults());
         }
         
-        String query = MessageFormat.format("INSERT INTO {0} ({1}, {2}) VALUES {3}",
+        final String query = MessageFormat.format("INSERT INTO {0} ({1}, {2}) VALUES {3}",
         /* 0 */ schema + "." + JdbcTable.SUB_RUN.tableName(),
         /* 1 */ JdbcMapping.getTableMap(JdbcTable.SUB_RUN).get("run").name(),
         /* 2 */ JdbcMapping.getTableMap(JdbcTable.SUB_RUN).get("sequence").name(),
         /* 3 */ StringUtils.joinStrings(placeHolders, ", "));
         
-        executeUpdate(query, subRunVals);
-        
-        query = MessageFormat.format("SELECT {0}.ID AS id, {1} AS sequence FROM {2} WHERE {3}",
-                /* 0 */ JdbcTable.SUB_RUN.tableReference(),
-                /* 1 */ JdbcTable.SUB_RUN.tableColumn("sequence"),
-                /* 2 */ schema + "." + JdbcTable.SUB_RUN.tableSelect(),
-                /* 1 */ JdbcTable.SUB_RUN.equals("run", runId));
-        
-        Map<Long, List<Value<?>>> subRunParams = new HashMap<>();
-        Map<Long, List<Value<Double>>> subRunResults = new HashMap<>();
+        // The keys of a multi-row insert are returned in insertion order, so
+        // the n-th key belongs to the sub run with sequence n.
+        final List<Long> subRunIds = executeInsert(query, subRunVals);
+        if (subRunIds.size() != dataSets.size()) {
+            throw new SQLException("Expected " + dataSets.size()
+                    + " sub run ids but got " + subRunIds.size());
+        }
         
-        ResultSet resultSet = executeQuery(query, runId);
+        final Map<Long, List<Value<?>>> subRunParams = new HashMap<>();
+        final Map<Long, List<Value<Double>>> subRunResults = new HashMap<>();
         
-        while (resultSet.next()) {
-            Long subRunId = resultSet.getLong("id");
-            Long sequence = resultSet.getLong("sequence");
-            
-            subRunParams.put(subRunId, params.get(sequence));
-            subRunResults.put(subRunId, results.get(sequence));
+        for (int sequence = 0; sequence < subRunIds.size(); ++sequence) {
+            final Long subRunId = subRunIds.get(sequence);
+            subRunParams.put(subRunId, dataSets.get(sequence).getParameters());
+            subRunResults.put(subRunId, dataSets.get(sequence).getResults());
         }
         
         saveParameters(subRunParams);
         saveResults(subRunResults);
+        saveRollups(subRunResults);
     }
 
-	private Connection getConnection() throws SQLException {
-		if (connection == null || connection.isClosed()) {
-			connection = DriverManager.getConnection(url, userName, passWord);
-			connection.setAutoCommit(false);
+	/**
+	 * Save the rollups across ranks of the given results, see
+	 * {@link JdbcRankRollup}. Nothing is saved if the schema has not been
+	 * migrated to hold the rollups; they can be filled in once it has.
+	 * 
+	 * @param subRunResults
+	 *            the results, by sub run ID.
+	 * @throws SQLException
+	 *             if an error occurs running the generated SQL.
+	 */
+	private void saveRollups(Map<Long, List<Value<Double>>> subRunResults) throws SQLException {
+        if (!hasTable(JdbcTable.RESULT_ROLLUP)) {
+            return;
+        }
+        
+        final List<String> columns = new ArrayList<>();
+        final List<String> placeHolders = new ArrayList<>();
+        final List<List<Object>> rows = new ArrayList<>();
+        
+        for (Column column : JdbcMapping.getTableMap(JdbcTable.RESULT_ROLLUP).values()) {
+            columns.add(column.insertColumns());
+            placeHolders.add(column.placeHolder());
+        }
+        
+        columns.add(JdbcMapping.joins.get(JdbcTable.SUB_RUN).get(JdbcTable.RESULT_ROLLUP).insertColumns());
+        placeHolders.add(JdbcMapping.joins.get(JdbcTable.SUB_RUN).get(JdbcTable.RESULT_ROLLUP).placeHolder());
+        
+        for (Map.Entry<Long, List<Value<Double>>> entry : subRunResults.entrySet()) {
+            for (Map.Entry<String, JdbcRankRollup> rollup : JdbcRankRollup.rollUp(entry.getValue()).entrySet()) {
+                final List<Object> vals = new ArrayList<>(columns.size());
+                for (String name : JdbcMapping.getTableMap(JdbcTable.RESULT_ROLLUP).keySet()) {
+                    switch (name) {
+                        case "name": vals.add(rollup.getKey()); break;
+                        case "minValue": vals.add(rollup.getValue().getMin()); break;
+                        case "maxValue": vals.add(rollup.getValue().getMax()); break;
+                        case "sumValue": vals.add(rollup.getValue().getSum()); break;
+                        case "sumSquares": vals.add(rollup.getValue().getSumSquares()); break;
+                        case "rankCount": vals.add(rollup.getValue().getCount()); break;
+                        default:
+                            throw new IllegalStateException("Unknown rollup field " + name);
+                    }
+                }
+                vals.add(entry.getKey());
+                rows.add(vals);
+            }
+        }
+        
+        if (bulkLoad) {
+            addBulkRows(JdbcTable.RESULT_ROLLUP, columns, rows);
+            return;
+        }
+        
+        final String query = MessageFormat.format("INSERT INTO {0} ({1}) VALUES ({2})",
+        /* 0 */ schema + "." + JdbcTable.RESULT_ROLLUP.tableName(),
+        /* 1 */ StringUtils.joinStrings(columns, ", "),
+        /* 2 */ StringUtils.joinStrings(placeHolders, ", "));
+        
+        executeBatch(query, rows);
+    }
+
+	/**
+	 * Recalculate the rank rollups of all the saved results from the results
+	 * themselves, e.g. for results saved by a client which did not write
+	 * them. The sub runs are rolled up a batch at a time, each batch in its
+	 * own transaction, so that the tables are not locked for long.
+	 * 
+	 * @return the highest sub run ID rolled up.
+	 * @throws SQLException
+	 *             if an error occurs running the SQL.
+	 */
+	long backfillRankRollups() throws SQLException {
+        long maxSubRunId = 0;
+        try (final ResultSet resultSet = executeQuery("SELECT MAX(ID) AS maxId FROM "
+                + schema + "." + JdbcTable.SUB_RUN.tableName())) {
+            if (resultSet.next()) {
+                maxSubRunId = resultSet.getLong("maxId");
+            }
+        }
+        
+        final String query = MessageFormat.format("INSERT INTO {0}"
+                + " (SubRun, Name, MinValue, MaxValue, SumValue, SumSquares, RankCount)"
+                + " SELECT SubRun, Name, MIN(Value), MAX(Value), SUM(Value), SUM(Value * Value), COUNT(*)"
+                + " FROM {1} WHERE Rank >= 0 AND SubRun > ? AND SubRun <= ? GROUP BY SubRun, Name"
+                + " ON DUPLICATE KEY UPDATE MinValue = VALUES(MinValue), MaxValue = VALUES(MaxValue),"
+                + " SumValue = VALUES(SumValue), SumSquares = VALUES(SumSquares), RankCount = VALUES(RankCount)",
+        /* 0 */ schema + "." + JdbcTable.RESULT_ROLLUP.tableName(),
+        /* 1 */ schema + "." + JdbcTable.RESULT.tableName());
+        
+        for (long start = 0; start < maxSubRunId; start += batchSize) {
+            final long end = Math.min(maxSubRunId, start + batchSize);
+            executeUpdate(query, start, end);
+            commit(EnumSet.of(JdbcTable.RESULT_ROLLUP));
+            LOG.info("Rolled up sub runs " + (start + 1) + " to " + end + " of " + maxSubRunId);
+        }
+        return maxSubRunId;
+    }
+
+	/**
+	 * Return the write connection for the transaction open on the current
+	 * thread, borrowing one from the write pool and opening a new transaction
+	 * if there is none.
+	 * 
+	 * @return the transaction connection.
+	 * @throws SQLException
+	 *             if no connection could be obtained.
+	 */
+	private Connection getTransactionConnection() throws SQLException {
+		Connection conn = transaction.get();
+		if (conn == null) {
+			conn = writePool.borrow();
+			transaction.set(conn);
+		}
+		return conn;
+	}
+
+	/**
+	 * Commit the transaction open on the current thread, if any, and return
+	 * its connection to the pool.
+	 * 
+	 * @param tablesWritten
+	 *            the tables written in the transaction, so that only what was
+	 *            derived from them is forgotten.
+	 * @throws SQLException
+	 *             if the commit fails, in which case the transaction is rolled
+	 *             back.
+	 */
+	void commit(Collection<JdbcTable> tablesWritten) throws SQLException {
+		final Connection conn = transaction.get();
+		if (conn == null) {
+			return;
+		}
+		transaction.remove();
+		final Map<JdbcTable, JdbcBulkLoader> loaders = bulkLoaders.get();
+		bulkLoaders.remove();
+		try {
+			if (loaders != null) {
+				for (JdbcBulkLoader loader : loaders.values()) {
+					loader.load(conn);
+				}
+			}
+			bumpDataVersion(conn);
+			conn.commit();
+			lastWrite = System.nanoTime();
+			idCache.commit();
+			// Anything derived from the changed tables may now be out of date.
+			restrictionTables.invalidate(tablesWritten);
+		} finally {
+			// Does nothing if the commit succeeded.
+			idCache.rollback();
+			// Closing the connection rolls back anything left uncommitted.
+			conn.close();
+		}
+	}
+
+	/**
+	 * Bump the version of the database contents as part of the given
+	 * transaction, so that other clients see that the data they have cached
+	 * may be out of date.
+	 */
+	private void bumpDataVersion(Connection conn) throws SQLException {
+        if (!hasTable(JdbcTable.DATA_VERSION)) {
+            return;
+        }
+        final String query = MessageFormat.format("UPDATE {0} SET Version = Version + 1",
+        /* 0 */ schema + "." + JdbcTable.DATA_VERSION.tableName());
+        try (final PreparedStatement statement = conn.prepareStatement(query)) {
+            statement.executeUpdate();
+        }
+    }
+
+	/**
+	 * Roll back the transaction open on the current thread, if any, and
+	 * return its connection to the pool.
+	 * 
+	 * @throws SQLException
+	 *             if the rollback fails.
+	 */
+	void rollback() throws SQLException {
+		final Connection conn = transaction.get();
+		if (conn == null) {
+			return;
+		}
+		transaction.remove();
+		bulkLoaders.remove();
+		idCache.rollback();
+		try {
+			conn.rollback();
+		} finally {
+			conn.close();
 		}
-		return connection;
 	}
 
 	String getSchema() {
 		return schema;
 	}
 
+	/**
+	 * Return the largest estimated number of sub runs a restriction may match
+	 * and still be applied to queries as a list of IDs, rather than as a
+	 * sub-query.
+	 * 
+	 * @return the threshold.
+	 */
+	int getIdListThreshold() {
+		return idListThreshold;
+	}
+
+	/**
+	 * Return the number of rows sent to the database in each batch, which is
+	 * also used to limit the number of IDs given in each {@code IN} clause.
+	 * 
+	 * @return the batch size.
+	 */
+	int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Return an SQL clause which restricts the sub runs of a query, aliased
+	 * as {@code JdbcTable.SUB_RUN.tableReference()}, to those matching all of
+	 * the given restrictions. If any of the restrictions match many sub runs
+	 * the matching sub runs are materialised into a temporary table, which is
+	 * shared by all queries made with the same restrictions until the data
+	 * changes, otherwise the clause is as given by
+	 * {@link JdbcUtils#subRunRestriction}. The temporary table is added to
+	 * the parameters as a {@link JdbcRestrictionTables.Table}, which is not
+	 * bound to a place holder but creates the table when the query is run.
+	 * 
+	 * @param restrictions
+	 *            the restrictions.
+	 * @param sqlParams
+	 *            the query parameters, to which the parameters of the clause
+	 *            are added.
+	 * @return the clause.
+	 * @throws DatabaseException
+	 *             if an error occurs fetching the IDs of a restriction.
+	 */
+	String subRunRestriction(Collection<Restriction> restrictions, List<Object> sqlParams) throws DatabaseException {
+        if (!restrictionTables.isEnabled() || !JdbcUtils.hasLargeRestriction(restrictions)) {
+            return JdbcUtils.subRunRestriction(restrictions, sqlParams);
+        }
+        
+        final List<Object> clauseParams = new ArrayList<>();
+        final String clause = JdbcUtils.subRunRestriction(restrictions, clauseParams);
+        
+        final JdbcRestrictionTables.Table table = restrictionTables.register(clause, clauseParams);
+        sqlParams.add(table);
+        
+        return MessageFormat.format("{0}.ID IN (SELECT ID FROM {1})",
+        /* 0 */ JdbcTable.SUB_RUN.tableReference(),
+        /* 1 */ table.getName());
+    }
+
 	ResultSet executeQuery(String query, Object... params) throws SQLException {
 		return executeQuery(query, Arrays.asList(params));
 	}
 
+	/**
+	 * Perform the given query. If the current thread has a transaction open
+	 * the query is run on the transaction connection, otherwise a connection
+	 * is borrowed from the read pool. The returned {@code ResultSet} must be
+	 * closed, which closes its statement and returns any borrowed connection.
+	 * 
+	 * @param query
+	 *            the SQL query.
+	 * @param params
+	 *            the parameters to bind to the query place holders.
+	 * @return the query results.
+	 * @throws SQLException
+	 *             if an error occurs performing the query.
+	 */
 	ResultSet executeQuery(String query, Collection<?> params)
 			throws SQLException {
+		return executeQuery(query, params, QUERY_FETCH_SIZE);
+	}
+
+	/**
+	 * Perform the given query as {@link #executeQuery(String, Collection)}
+	 * does, but have the driver stream the results from the database a row at
+	 * a time rather than reading them all into memory. No other statement may
+	 * be run on the connection until the returned {@code ResultSet} is closed,
+	 * so nothing else may be done in the current thread's transaction, if
+	 * one is open, whilst the results are read.
+	 * 
+	 * @param query
+	 *            the SQL query.
+	 * @param params
+	 *            the parameters to bind to the query place holders.
+	 * @return the query results.
+	 * @throws SQLException
+	 *             if an error occurs performing the query.
+	 */
+	ResultSet executeStreamingQuery(String query, Collection<?> params)
+			throws SQLException {
+		// Connector/J streams the results of a forward only, read only
+		// statement when its fetch size is Integer.MIN_VALUE.
+		return executeQuery(query, params, Integer.MIN_VALUE);
+	}
+
+	/**
+	 * Cancel the query currently being executed by the given thread, if any,
+	 * which then fails with an {@code SQLException}. Updates are never
+	 * cancelled.
+	 * 
+	 * @param thread
+	 *            the thread running the query.
+	 * @throws SQLException
+	 *             if the query could not be cancelled.
+	 */
+	void cancelQuery(Thread thread) throws SQLException {
+		final Statement statement = runningQueries.get(thread);
+		if (statement != null) {
+			statement.cancel();
+		}
+	}
+
+	private ResultSet executeQuery(String query, Collection<?> params,
+			int fetchSize) throws SQLException {
 		LOG.debug("SQL:> " + query);
 
-		final Connection conn = getConnection();
-		final PreparedStatement statement = conn.prepareStatement(query);
-		statement.setFetchSize(10000);
+		final Connection txConn = transaction.get();
+		final Connection conn = (txConn != null) ? txConn : readPool().borrow();
 
-		int idx = 1;
+		final List<JdbcRestrictionTables.Table> tables = new ArrayList<>();
+		final List<Object> bound = new ArrayList<>();
 		for (Object param : params) {
-			statement.setObject(idx, param);
-			++idx;
+			if (param instanceof JdbcRestrictionTables.Table) {
+				tables.add((JdbcRestrictionTables.Table) param);
+			} else {
+				bound.add(param);
+			}
 		}
 
-		final ResultSet resultSet = statement.executeQuery();
-
-		// final ClassLoader classLoader = this.getClass().getClassLoader();
-		// Create a proxy that cleans up the statement and connection after it
-		// is closed.
-		return resultSet;
-		// return (ResultSet) Proxy.newProxyInstance(classLoader,
-		// new Class<?>[] {ResultSet.class},
-		// new InvocationHandler() {
-		// @Override
-		// public Object invoke(Object proxy, Method method, Object[] args)
-		// throws Throwable {
-		// switch (method.getName()) {
-		// case "close":
-		// method.invoke(resultSet, args);
-		// statement.close();
-		// conn.close();
-		// return null;
-		// default:
-		// return method.invoke(resultSet, args);
-		// }
-		// }
-		// });
+		PreparedStatement statement = null;
+		try {
+			restrictionTables.prepare(conn, tables);
+			statement = conn.prepareStatement(query);
+			statement.setFetchSize(fetchSize);
+
+			int idx = 1;
+			for (Object param : bound) {
+				statement.setObject(idx, param);
+				++idx;
+			}
+
+			final ResultSet resultSet;
+			final long start = System.nanoTime();
+			runningQueries.put(Thread.currentThread(), statement);
+			try {
+				resultSet = statement.executeQuery();
+			} finally {
+				runningQueries.remove(Thread.currentThread());
+			}
+			return closingResultSet(query, resultSet, statement,
+					(txConn != null) ? null : conn, System.nanoTime() - start);
+		} catch (SQLException | RuntimeException ex) {
+			if (statement != null) {
+				statement.close();
+			}
+			if (txConn == null) {
+				conn.close();
+			}
+			throw ex;
+		}
 	}
 
-	Connection executeUpdate(String query, Object... params)
-			throws SQLException {
-		return executeUpdate(query, Arrays.asList(params));
+	/**
+	 * Create a proxy of the given {@code ResultSet} that cleans up the
+	 * statement and connection after it is closed. The rows and values read
+	 * through the proxy, and the time spent fetching rows, are added to the
+	 * query statistics when it is closed.
+	 * 
+	 * @param query
+	 *            the SQL query that produced the result set.
+	 * @param resultSet
+	 *            the result set to wrap.
+	 * @param statement
+	 *            the statement that produced the result set.
+	 * @param conn
+	 *            the connection to return to its pool when the result set is
+	 *            closed, or {@code null} if it should be left open.
+	 * @param executeNanos
+	 *            the time taken to execute the query.
+	 * @return the wrapped result set.
+	 */
+	private ResultSet closingResultSet(final String query,
+			final ResultSet resultSet, final Statement statement,
+			final Connection conn, final long executeNanos) {
+		final ClassLoader classLoader = JdbcHelper.class.getClassLoader();
+		return (ResultSet) Proxy.newProxyInstance(classLoader,
+				new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+					private long nanos = executeNanos;
+					private long rows = 0;
+					private long bytes = 0;
+					private boolean closed = false;
+
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						try {
+							switch (method.getName()) {
+							case "close":
+								if (!closed) {
+									closed = true;
+									queryStats.record(query, nanos, rows, bytes);
+								}
+								try {
+									resultSet.close();
+									statement.close();
+								} finally {
+									if (conn != null) {
+										conn.close();
+									}
+								}
+								return null;
+							case "next":
+								final long start = System.nanoTime();
+								final boolean hasNext = resultSet.next();
+								nanos += System.nanoTime() - start;
+								if (hasNext) {
+									++rows;
+								}
+								return hasNext;
+							default:
+								final Object result = method.invoke(resultSet, args);
+								if (args != null && args.length == 1) {
+									bytes += sizeOf(result);
+								}
+								return result;
+							}
+						} catch (InvocationTargetException ex) {
+							throw ex.getCause();
+						}
+					}
+				});
+	}
+
+	/**
+	 * Return the approximate number of bytes taken to send the given column
+	 * value from the database.
+	 */
+	private static long sizeOf(Object value) {
+		if (value instanceof String) {
+			return ((String) value).length();
+		} else if (value instanceof byte[]) {
+			return ((byte[]) value).length;
+		} else if (value instanceof Number || value instanceof Date) {
+			return 8;
+		}
+		return 0;
+	}
+
+	void executeUpdate(String query, Object... params) throws SQLException {
+		executeUpdate(query, Arrays.asList(params));
 	}
 
-	Connection executeUpdate(String query, Collection<?> params) throws SQLException {
+	/**
+	 * Perform the given update as part of the transaction open on the current
+	 * thread, opening a new transaction if needed. The transaction must be
+	 * finished with {@link #commit} or {@link #rollback()}. If the update
+	 * fails the transaction is rolled back.
+	 * 
+	 * @param query
+	 *            the SQL update.
+	 * @param params
+	 *            the parameters to bind to the query place holders.
+	 * @throws SQLException
+	 *             if an error occurs performing the update.
+	 */
+	void executeUpdate(String query, Collection<?> params) throws SQLException {
         LOG.debug("SQL:> " + query);
         
-        Connection conn = getConnection();
+        final Connection conn = getTransactionConnection();
         try (final PreparedStatement statement = conn.prepareStatement(query)) {
             int idx = 1;
             for (Object param : params) {
                 statement.setObject(idx, param);
                 ++idx;
             }
-            statement.executeUpdate();
+            final long start = System.nanoTime();
+            final int rows = statement.executeUpdate();
+            queryStats.record(query, System.nanoTime() - start, rows, 0);
+        } catch (SQLException ex) {
+            rollback();
+            throw ex;
+        }
+    }
+
+	/**
+	 * Perform the given insert as part of the transaction open on the current
+	 * thread, in the same way as {@link #executeUpdate(String, Collection)},
+	 * and return the keys generated for the inserted rows.
+	 * 
+	 * @param query
+	 *            the SQL insert.
+	 * @param params
+	 *            the parameters to bind to the query place holders.
+	 * @return the generated keys, in the order the rows were inserted.
+	 * @throws SQLException
+	 *             if an error occurs performing the insert, or no keys were
+	 *             generated.
+	 */
+	List<Long> executeInsert(String query, Collection<?> params) throws SQLException {
+        LOG.debug("SQL:> " + query);
+        
+        final Connection conn = getTransactionConnection();
+        try (final PreparedStatement statement = conn.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
+            int idx = 1;
+            for (Object param : params) {
+                statement.setObject(idx, param);
+                ++idx;
+            }
+            final long start = System.nanoTime();
+            final int rows = statement.executeUpdate();
+            queryStats.record(query, System.nanoTime() - start, rows, 0);
+            
+            final List<Long> keys = new ArrayList<>();
+            try (final ResultSet generatedKeys = statement.getGeneratedKeys()) {
+                while (generatedKeys.next()) {
+                    keys.add(generatedKeys.getLong(1));
+                }
+            }
+            if (keys.isEmpty()) {
+                throw new SQLException("No keys generated by " + query);
+            }
+            return keys;
+        } catch (SQLException ex) {
+            rollback();
+            throw ex;
+        }
+    }
+
+	/**
+	 * Perform the given update once for each row of parameters, as part of
+	 * the transaction open on the current thread. The rows are sent to the
+	 * database in JDBC batches of {@code batchSize} rows. If the update fails
+	 * the transaction is rolled back.
+	 * 
+	 * @param query
+	 *            the SQL update.
+	 * @param rows
+	 *            the parameters to bind to the query place holders, one
+	 *            collection for each row.
+	 * @throws SQLException
+	 *             if an error occurs performing the update.
+	 */
+	void executeBatch(String query, Collection<? extends Collection<?>> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        
+        LOG.debug("SQL:> " + query + " [" + rows.size() + " rows]");
+        
+        final Connection conn = getTransactionConnection();
+        try (final PreparedStatement statement = conn.prepareStatement(query)) {
+            int batched = 0;
+            for (Collection<?> params : rows) {
+                int idx = 1;
+                for (Object param : params) {
+                    statement.setObject(idx, param);
+                    ++idx;
+                }
+                statement.addBatch();
+                if (++batched == batchSize) {
+                    recordBatch(query, statement);
+                    batched = 0;
+                }
+            }
+            if (batched > 0) {
+                recordBatch(query, statement);
+            }
         } catch (SQLException ex) {
-            if (conn != null) { conn.rollback(); }
+            rollback();
             throw ex;
         }
+    }
+
+	/**
+	 * Execute the batch added to the given statement, and add it to the query
+	 * statistics.
+	 */
+	private void recordBatch(String query, PreparedStatement statement) throws SQLException {
+        final long start = System.nanoTime();
+        long rows = 0;
+        for (int count : statement.executeBatch()) {
+            if (count > 0) {
+                rows += count;
+            }
+        }
+        queryStats.record(query, System.nanoTime() - start, rows, 0);
+    }
+
+	/**
+	 * Queue the given rows to be bulk loaded into the given table when the
+	 * transaction open on the current thread is committed. Rows for the same
+	 * table from every save in the transaction are loaded together.
+	 * 
+	 * @param table
+	 *            the table to load the rows into.
+	 * @param columns
+	 *            the insert columns the row values are for.
+	 * @param rows
+	 *            the row values.
+	 * @throws SQLException
+	 *             if a row cannot be queued, in which case the transaction is
+	 *             rolled back.
+	 */
+	private void addBulkRows(JdbcTable table, List<String> columns, Collection<? extends Collection<?>> rows) throws SQLException {
+        // Make sure the rows are tied to a transaction that will be committed.
+        getTransactionConnection();
+        
+        Map<JdbcTable, JdbcBulkLoader> loaders = bulkLoaders.get();
+        if (loaders == null) {
+            loaders = new EnumMap<>(JdbcTable.class);
+            bulkLoaders.set(loaders);
+        }
         
-        return conn;
+        JdbcBulkLoader loader = loaders.get(table);
+        if (loader == null) {
+            loader = new JdbcBulkLoader(schema + "." + table.tableName(),
+                    StringUtils.joinStrings(columns, ", "));
+            loaders.put(table, loader);
+        }
+        
+        try {
+            for (Collection<?> row : rows) {
+                loader.addRow(row);
+            }
+        } catch (SQLException ex) {
+            rollback();
+            throw ex;
+        }
     }
 
-	void closeConnection() throws SQLException {
-		if (connection != null) {
-			connection.close();
+	/**
+	 * Apply any schema migrations which have not yet been applied to the
+	 * database.
+	 * 
+	 * @return the number of migrations applied.
+	 * @throws SQLException
+	 *             if a migration fails.
+	 */
+	int migrateSchema() throws SQLException {
+		try (final Connection conn = writePool.borrow()) {
+			return new JdbcSchemaMigrator(schema).migrate(conn);
 		}
 	}
 
-	Connection saveAnalysis(Analysis analysis) throws SQLException, DatabaseException {
+	void closeConnection() {
+		readPool.close();
+		if (replicaPool != null) {
+			replicaPool.close();
+		}
+		writePool.close();
+	}
+
+	void saveAnalysis(Analysis analysis) throws SQLException, DatabaseException {
         
         final List<String> placeHolders = new ArrayList<>();
         final List<Object> vals = new ArrayList<>();
@@ -683,9 +1536,7 @@ final class JdbcHelper {
         /* 1 */ StringUtils.joinStrings(names, ", "),
         /* 2 */ "(" + StringUtils.joinStrings(placeHolders, ", ") + ")");
         
-        final Connection conn = executeUpdate(query, vals);
-        
-        Long analysisId = getId(analysis);
+        final Long analysisId = executeInsert(query, vals).get(0);
 
         if (!analysis.getRestrictions().isEmpty()) {
             saveRestrictions(analysis, analysisId);
@@ -702,8 +1553,6 @@ final class JdbcHelper {
         if (!analysis.getLabelRenames().isEmpty()) {
             saveAnalysisRenames(analysis, analysisId);
         }
-        
-        return conn;
     }
 
 	private void saveRestrictions(Analysis analysis, Long analysisId) throws SQLException, DatabaseException {
@@ -0,0 +1,140 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import uk.co.awe.pmat.utils.Pair;
+
+/**
+ * A bounded, least recently used cache of the database IDs of rows keyed by
+ * their table and business key values, used to avoid looking up the IDs of
+ * the same meta data again and again.
+ *
+ * <p>IDs found or created inside a transaction are held back for the thread
+ * running the transaction, and are only shared once it is committed, so that
+ * a rolled back insert never leaves an ID in the cache.</p>
+ *
+ * @author AWE Plc copyright 2013
+ */
+final class JdbcIdCache {
+
+    private final int maxSize;
+    private final Map<Pair<JdbcTable, List<Object>>, Long> ids;
+    private final ThreadLocal<Map<Pair<JdbcTable, List<Object>>, Long>> pending = new ThreadLocal<>();
+
+    /**
+     * Create a new {@code JdbcIdCache}.
+     *
+     * @param maxSize
+     *            the maximum number of IDs to cache, or {@code 0} to disable
+     *            caching.
+     */
+    JdbcIdCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.ids = new LinkedHashMap<Pair<JdbcTable, List<Object>>, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Pair<JdbcTable, List<Object>>, Long> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Return the cached ID for the given business key, including any IDs
+     * held back by the transaction open on the current thread.
+     *
+     * @param table
+     *            the table of the row.
+     * @param key
+     *            the business key values of the row.
+     * @return the ID, or {@code null} if it is not cached.
+     */
+    Long get(JdbcTable table, List<Object> key) {
+        if (maxSize <= 0) {
+            return null;
+        }
+        final Pair<JdbcTable, List<Object>> cacheKey = new Pair<>(table, key);
+        final Map<Pair<JdbcTable, List<Object>>, Long> txIds = pending.get();
+        if (txIds != null && txIds.containsKey(cacheKey)) {
+            return txIds.get(cacheKey);
+        }
+        synchronized (ids) {
+            return ids.get(cacheKey);
+        }
+    }
+
+    /**
+     * Cache the ID for the given business key.
+     *
+     * @param table
+     *            the table of the row.
+     * @param key
+     *            the business key values of the row.
+     * @param id
+     *            the ID of the row.
+     * @param inTransaction
+     *            {@code true} if the ID was found or created by the
+     *            transaction open on the current thread, in which case it is
+     *            held back until {@link #commit()} is called.
+     */
+    void put(JdbcTable table, List<Object> key, Long id, boolean inTransaction) {
+        if (maxSize <= 0) {
+            return;
+        }
+        final Pair<JdbcTable, List<Object>> cacheKey = new Pair<>(table, key);
+        if (inTransaction) {
+            Map<Pair<JdbcTable, List<Object>>, Long> txIds = pending.get();
+            if (txIds == null) {
+                txIds = new HashMap<>();
+                pending.set(txIds);
+            }
+            txIds.put(cacheKey, id);
+        } else {
+            synchronized (ids) {
+                ids.put(cacheKey, id);
+            }
+        }
+    }
+
+    /**
+     * Share the IDs held back by the transaction on the current thread, which
+     * has been committed.
+     */
+    void commit() {
+        final Map<Pair<JdbcTable, List<Object>>, Long> txIds = pending.get();
+        pending.remove();
+        if (txIds != null) {
+            synchronized (ids) {
+                ids.putAll(txIds);
+            }
+        }
+    }
+
+    /**
+     * Discard the IDs held back by the transaction on the current thread,
+     * which has been rolled back.
+     */
+    void rollback() {
+        pending.remove();
+    }
+
+    /**
+     * Remove all the cached IDs of the given table, e.g. because one of its
+     * rows has been updated or deleted.
+     *
+     * @param table
+     *            the table whose IDs to remove.
+     */
+    void invalidate(JdbcTable table) {
+        synchronized (ids) {
+            final Iterator<Pair<JdbcTable, List<Object>>> it = ids.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().getFirst() == table) {
+                    it.remove();
+                }
+            }
+        }
+    }
+}
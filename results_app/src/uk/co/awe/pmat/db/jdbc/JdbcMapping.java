@@ -35,33 +35,49 @@ final class JdbcMapping {
         }
         
         Comparable fromDB(ResultSet row) throws SQLException {
-            final String tableName = table.toString().toLowerCase() + ".";
-            if (table == JdbcTable.PARAMETER && name.equals("Value")) {
-                switch (row.getString(tableName + "Type")) {
-                    case "Integer": return row.getInt("Value");
-                    case "Double": return row.getDouble("Value");
-                    case "String": return row.getString("Value");
+            return fromDB(row, row.findColumn(label()),
+                    isParameterValue() ? row.findColumn(typeLabel()) : -1);
+        }
+
+        /**
+         * Read the value of this column from the current row of a result set,
+         * by the index of the column rather than its label.
+         *
+         * @param row the result set.
+         * @param index the index of this column in the result set.
+         * @param typeIndex the index of the {@code Type} column of a parameter
+         * value, or {@code -1} for any other column.
+         * @return the column value.
+         * @throws SQLException if an error occurs reading the row.
+         */
+        Comparable fromDB(ResultSet row, int index, int typeIndex) throws SQLException {
+            if (isParameterValue()) {
+                final String valueType = row.getString(typeIndex);
+                switch (valueType) {
+                    case "Integer": return row.getInt(index);
+                    case "Double": return row.getDouble(index);
+                    case "String": return row.getString(index);
                     default:
                         throw new IllegalStateException("Unknown parameter type "
-                                + row.getString(tableName + "Type"));
+                                + valueType);
                 }
             } else {
                 switch (type) {
-                    case BOOLEAN: return row.getBoolean(tableName + name);
-                    case CATEGORY: return Category.valueOf(row.getString(tableName + name));
-                    case COMPARATOR: return Comparator.valueOf(row.getString(tableName + name));
-                    case DATE: return row.getTimestamp(tableName + name);
-                    case DOUBLE: return row.getDouble(tableName + name);
-                    case INTEGER: return row.getInt(tableName + name);
-                    case STRING: return row.getString(tableName + name);
-                    case RANK: return Rank.fromInteger(row.getInt(tableName + name));
-                    case LONG: return row.getLong(tableName + name);
-                    case ERROR_TYPE: return ErrorType.valueOf(row.getString(tableName + name));
-                    case AXIS_NAME: return AxisName.valueOf(row.getString(tableName + name));
-                    case AXIS_TYPE: return AxisType.valueOf(row.getString(tableName + name));
-                    case AXIS_VALUE_TYPE: return AxisValueType.valueOf(row.getString(tableName + name));
-                    case LINE_STYLE: return LineStyle.valueOf(row.getString(tableName + name));
-                    case LINE_COLOUR: return GraphColour.valueOf(row.getString(tableName + name));
+                    case BOOLEAN: return row.getBoolean(index);
+                    case CATEGORY: return Category.valueOf(row.getString(index));
+                    case COMPARATOR: return Comparator.valueOf(row.getString(index));
+                    case DATE: return row.getTimestamp(index);
+                    case DOUBLE: return row.getDouble(index);
+                    case INTEGER: return row.getInt(index);
+                    case STRING: return row.getString(index);
+                    case RANK: return Rank.fromInteger(row.getInt(index));
+                    case LONG: return row.getLong(index);
+                    case ERROR_TYPE: return ErrorType.valueOf(row.getString(index));
+                    case AXIS_NAME: return AxisName.valueOf(row.getString(index));
+                    case AXIS_TYPE: return AxisType.valueOf(row.getString(index));
+                    case AXIS_VALUE_TYPE: return AxisValueType.valueOf(row.getString(index));
+                    case LINE_STYLE: return LineStyle.valueOf(row.getString(index));
+                    case LINE_COLOUR: return GraphColour.valueOf(row.getString(index));
                     default:
                         throw new IllegalStateException("Unknown column type "
                                 + type);
@@ -69,6 +85,30 @@ final class JdbcMapping {
             }
         }
 
+        /**
+         * Return the label this column is read by when selected with
+         * {@link #select()}.
+         *
+         * @return the column label.
+         */
+        String label() {
+            return isParameterValue() ? name : table.toString().toLowerCase() + "." + name;
+        }
+
+        /**
+         * Return the label of the {@code Type} column selected alongside a
+         * parameter value.
+         *
+         * @return the type column label.
+         */
+        String typeLabel() {
+            return table.toString().toLowerCase() + ".Type";
+        }
+
+        boolean isParameterValue() {
+            return table == JdbcTable.PARAMETER && name.equals("Value");
+        }
+
         public String name() {
             return name;
         }
@@ -149,6 +189,7 @@ final class JdbcMapping {
     private final static Map<String, Column> RunMap = new LinkedHashMap<>();
     private final static Map<String, Column> ParameterMap = new LinkedHashMap<>();
     private final static Map<String, Column> ResultMap = new LinkedHashMap<>();
+    private final static Map<String, Column> ResultRollupMap = new LinkedHashMap<>();
     private final static Map<String, Column> FlagMap = new LinkedHashMap<>();
     private final static Map<String, Column> RunFlagMap = new LinkedHashMap<>();
     private final static Map<String, Column> SubRunMap = new LinkedHashMap<>();
@@ -170,6 +211,7 @@ final class JdbcMapping {
         TableMaps.put(JdbcTable.RUN, RunMap);
         TableMaps.put(JdbcTable.PARAMETER, ParameterMap);
         TableMaps.put(JdbcTable.RESULT, ResultMap);
+        TableMaps.put(JdbcTable.RESULT_ROLLUP, ResultRollupMap);
         TableMaps.put(JdbcTable.FLAGS, FlagMap);
         TableMaps.put(JdbcTable.RUN_FLAGS, RunFlagMap);
         TableMaps.put(JdbcTable.SUB_RUN, SubRunMap);
@@ -265,6 +307,13 @@ final class JdbcMapping {
         ResultMap.put("count",      new Column(JdbcTable.RESULT, "Count", Column.Type.LONG));
         ResultMap.put("pauseCount", new Column(JdbcTable.RESULT, "PauseCount", Column.Type.LONG));
         
+        ResultRollupMap.put("name",       new Column(JdbcTable.RESULT_ROLLUP, "Name", Column.Type.STRING));
+        ResultRollupMap.put("minValue",   new Column(JdbcTable.RESULT_ROLLUP, "MinValue", Column.Type.DOUBLE));
+        ResultRollupMap.put("maxValue",   new Column(JdbcTable.RESULT_ROLLUP, "MaxValue", Column.Type.DOUBLE));
+        ResultRollupMap.put("sumValue",   new Column(JdbcTable.RESULT_ROLLUP, "SumValue", Column.Type.DOUBLE));
+        ResultRollupMap.put("sumSquares", new Column(JdbcTable.RESULT_ROLLUP, "SumSquares", Column.Type.DOUBLE));
+        ResultRollupMap.put("rankCount",  new Column(JdbcTable.RESULT_ROLLUP, "RankCount", Column.Type.INTEGER));
+        
         FlagMap.put("flag", new Column(JdbcTable.FLAGS, "Flag", Column.Type.STRING));
         
         RunFlagMap.put("runId", new Column(JdbcTable.RUN_FLAGS, "RunID", Column.Type.LONG));
@@ -318,6 +367,7 @@ final class JdbcMapping {
         
         joins.get(JdbcTable.SUB_RUN).put(JdbcTable.PARAMETER, new Column(JdbcTable.PARAMETER, "SubRunOwner", Column.Type.LONG));
         joins.get(JdbcTable.SUB_RUN).put(JdbcTable.RESULT, new Column(JdbcTable.RESULT, "SubRun", Column.Type.LONG));
+        joins.get(JdbcTable.SUB_RUN).put(JdbcTable.RESULT_ROLLUP, new Column(JdbcTable.RESULT_ROLLUP, "SubRun", Column.Type.LONG));
         
         joins.get(JdbcTable.ANALYSIS).put(JdbcTable.ANALYSIS_CRITERA, new Column(JdbcTable.ANALYSIS_CRITERA, "AnalysisID", Column.Type.LONG));
         joins.get(JdbcTable.ANALYSIS).put(JdbcTable.ANALYSIS_DERIVED_DATA, new Column(JdbcTable.ANALYSIS_DERIVED_DATA, "AnalysisID", Column.Type.LONG));
@@ -0,0 +1,92 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import uk.co.awe.pmat.db.MetaData;
+import uk.co.awe.pmat.utils.Pair;
+
+/**
+ * A bounded, least recently used cache of meta data read from the database,
+ * keyed by the table and ID of its row, so that runs with the same meta data
+ * share one instance of it rather than each reading their own copy.
+ *
+ * @author AWE Plc copyright 2013
+ */
+final class JdbcMetaDataCache {
+
+    private final int maxSize;
+    private final Map<Pair<JdbcTable, Long>, MetaData> metaData;
+
+    /**
+     * Create a new {@code JdbcMetaDataCache}.
+     *
+     * @param maxSize
+     *            the maximum number of meta data to cache, or {@code 0} to
+     *            disable caching.
+     */
+    JdbcMetaDataCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.metaData = new LinkedHashMap<Pair<JdbcTable, Long>, MetaData>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Pair<JdbcTable, Long>, MetaData> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Return the cached meta data of the given row.
+     *
+     * @param table
+     *            the meta data table.
+     * @param id
+     *            the ID of the row.
+     * @return the meta data, or {@code null} if it is not cached.
+     */
+    MetaData get(JdbcTable table, Long id) {
+        if (maxSize <= 0) {
+            return null;
+        }
+        synchronized (metaData) {
+            return metaData.get(new Pair<>(table, id));
+        }
+    }
+
+    /**
+     * Cache the meta data of the given row.
+     *
+     * @param table
+     *            the meta data table.
+     * @param id
+     *            the ID of the row.
+     * @param meta
+     *            the meta data.
+     */
+    void put(JdbcTable table, Long id, MetaData meta) {
+        if (maxSize <= 0) {
+            return;
+        }
+        synchronized (metaData) {
+            metaData.put(new Pair<>(table, id), meta);
+        }
+    }
+
+    /**
+     * Remove all the cached meta data of the given table, e.g. because one of
+     * its rows has been updated or deleted.
+     *
+     * @param table
+     *            the table whose meta data to remove.
+     */
+    void invalidate(JdbcTable table) {
+        synchronized (metaData) {
+            final Iterator<Pair<JdbcTable, Long>> it = metaData.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().getFirst() == table) {
+                    it.remove();
+                }
+            }
+        }
+    }
+}
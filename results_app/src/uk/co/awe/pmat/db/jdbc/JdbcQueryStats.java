@@ -0,0 +1,265 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Statistics on the SQL run by the application, kept for each query template
+ * so that the slowest shapes of query can be found and indexed.
+ *
+ * <p>A template is a statement with its lists of place holders collapsed, so
+ * that the same query run with {@code IN} lists or {@code VALUES} lists of
+ * different lengths is counted once. For each template the number of runs,
+ * a histogram of their latencies, and the rows and approximate bytes they
+ * returned or changed are kept. Any statement slower than the configured
+ * threshold is written to the {@code uk.co.awe.pmat.db.jdbc.SlowQueries}
+ * log.</p>
+ *
+ * @author AWE Plc copyright 2013
+ */
+final class JdbcQueryStats implements JdbcQueryStatsMBean {
+
+    private final static Logger LOG = LoggerFactory.getLogger(JdbcQueryStats.class);
+    private final static Logger SLOW_LOG = LoggerFactory.getLogger(
+            JdbcQueryStats.class.getPackage().getName() + ".SlowQueries");
+
+    /** The name under which the statistics are published through JMX. */
+    static final String OBJECT_NAME = "uk.co.awe.pmat:type=JdbcQueryStats";
+
+    /** The most templates kept, beyond which statements are counted together. */
+    private static final int MAX_TEMPLATES = 1000;
+    private static final String OTHER_TEMPLATE = "(other)";
+
+    /** The upper bounds of the latency histogram buckets, in milliseconds. */
+    private static final long[] BUCKET_BOUNDS = {
+        1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000
+    };
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern PLACE_HOLDER_LIST = Pattern.compile(
+            "\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+    private static final Pattern ROW_LIST = Pattern.compile(
+            "\\(\\?\\.\\.\\.\\)(?:\\s*,\\s*\\(\\?\\.\\.\\.\\))+");
+
+    /**
+     * The statistics of a single template.
+     */
+    private static final class Template {
+        private final String template;
+        private final long[] buckets = new long[BUCKET_BOUNDS.length + 1];
+        private long count = 0;
+        private long totalNanos = 0;
+        private long maxNanos = 0;
+        private long rows = 0;
+        private long bytes = 0;
+
+        Template(String template) {
+            this.template = template;
+        }
+
+        synchronized void record(long nanos, long rowCount, long byteCount) {
+            ++count;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+            rows += rowCount;
+            bytes += byteCount;
+            ++buckets[bucket(TimeUnit.NANOSECONDS.toMillis(nanos))];
+        }
+
+        synchronized long totalNanos() {
+            return totalNanos;
+        }
+
+        /**
+         * Return the upper bound of the bucket holding the given percentile of
+         * the latencies, or {@code -1} if it is in the unbounded last bucket.
+         */
+        private long percentile(double fraction) {
+            final long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int idx = 0; idx < BUCKET_BOUNDS.length; ++idx) {
+                seen += buckets[idx];
+                if (seen >= rank) {
+                    return BUCKET_BOUNDS[idx];
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.ROOT, "count=%d total=%dms mean=%.1fms p50<=%s p95<=%s p99<=%s"
+                    + " max=%dms rows=%d bytes=%d :: %s",
+                    count,
+                    TimeUnit.NANOSECONDS.toMillis(totalNanos),
+                    count == 0 ? 0.0 : totalNanos / 1e6 / count,
+                    bound(percentile(0.5)),
+                    bound(percentile(0.95)),
+                    bound(percentile(0.99)),
+                    TimeUnit.NANOSECONDS.toMillis(maxNanos),
+                    rows,
+                    bytes,
+                    template);
+        }
+
+        private static String bound(long millis) {
+            return millis < 0 ? "inf" : millis + "ms";
+        }
+    }
+
+    private final Map<String, Template> templates = new ConcurrentHashMap<>();
+    private volatile long slowQueryMillis;
+    private volatile long statements = 0;
+    private volatile long slowStatements = 0;
+
+    /**
+     * Create a new {@code JdbcQueryStats}.
+     *
+     * @param slowQueryMillis
+     *            the time above which a statement is logged as slow, or
+     *            {@code 0} to log no statements as slow.
+     */
+    JdbcQueryStats(long slowQueryMillis) {
+        this.slowQueryMillis = slowQueryMillis;
+    }
+
+    /**
+     * Publish the statistics through the platform MBean server, replacing any
+     * published by an earlier connection.
+     */
+    synchronized void register() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new StandardMBean(this, JdbcQueryStatsMBean.class), name);
+        } catch (JMException ex) {
+            LOG.warn("Failed to publish query statistics through JMX", ex);
+        }
+    }
+
+    /**
+     * Record a statement which has been run.
+     *
+     * @param query
+     *            the SQL statement.
+     * @param nanos
+     *            the time taken to run the statement.
+     * @param rows
+     *            the number of rows returned or changed.
+     * @param bytes
+     *            the approximate number of bytes returned.
+     */
+    void record(String query, long nanos, long rows, long bytes) {
+        final String template = template(query);
+        Template stats = templates.get(template);
+        if (stats == null) {
+            final String key = templates.size() < MAX_TEMPLATES ? template : OTHER_TEMPLATE;
+            synchronized (templates) {
+                stats = templates.get(key);
+                if (stats == null) {
+                    stats = new Template(key);
+                    templates.put(key, stats);
+                }
+            }
+        }
+        stats.record(nanos, rows, bytes);
+
+        synchronized (this) {
+            ++statements;
+        }
+        final long threshold = slowQueryMillis;
+        if (threshold > 0 && TimeUnit.NANOSECONDS.toMillis(nanos) >= threshold) {
+            synchronized (this) {
+                ++slowStatements;
+            }
+            SLOW_LOG.warn(TimeUnit.NANOSECONDS.toMillis(nanos) + "ms, " + rows
+                    + " rows: " + template);
+        }
+    }
+
+    @Override
+    public long getStatementCount() {
+        return statements;
+    }
+
+    @Override
+    public long getSlowStatementCount() {
+        return slowStatements;
+    }
+
+    @Override
+    public long getSlowQueryMillis() {
+        return slowQueryMillis;
+    }
+
+    @Override
+    public void setSlowQueryMillis(long millis) {
+        slowQueryMillis = Math.max(0, millis);
+    }
+
+    @Override
+    public String[] getTemplateStatistics() {
+        final List<Template> sorted = new ArrayList<>(templates.values());
+        Collections.sort(sorted, new Comparator<Template>() {
+            @Override
+            public int compare(Template lhs, Template rhs) {
+                return Long.compare(rhs.totalNanos(), lhs.totalNanos());
+            }
+        });
+
+        final String[] lines = new String[sorted.size()];
+        for (int idx = 0; idx < lines.length; ++idx) {
+            lines[idx] = sorted.get(idx).toString();
+        }
+        return lines;
+    }
+
+    @Override
+    public synchronized void reset() {
+        templates.clear();
+        statements = 0;
+        slowStatements = 0;
+    }
+
+    /**
+     * Return the template of the given statement, with its white space
+     * normalised, each list of place holders collapsed and the names of
+     * restriction tables replaced, so that statements differing only in the
+     * length of their lists or the restrictions they use share a template.
+     *
+     * @param query
+     *            the SQL statement.
+     * @return the template.
+     */
+    static String template(String query) {
+        String template = WHITESPACE.matcher(JdbcRestrictionTables.normalise(query.trim())).replaceAll(" ");
+        template = PLACE_HOLDER_LIST.matcher(template).replaceAll("(?...)");
+        return ROW_LIST.matcher(template).replaceAll("(?...), ...");
+    }
+
+    private static int bucket(long millis) {
+        for (int idx = 0; idx < BUCKET_BOUNDS.length; ++idx) {
+            if (millis <= BUCKET_BOUNDS[idx]) {
+                return idx;
+            }
+        }
+        return BUCKET_BOUNDS.length;
+    }
+}
@@ -0,0 +1,55 @@
+package uk.co.awe.pmat.db.jdbc;
+
+/**
+ * The management interface of the statistics kept on the SQL run by the
+ * application, published through JMX.
+ *
+ * @author AWE Plc copyright 2013
+ */
+public interface JdbcQueryStatsMBean {
+
+    /**
+     * Return the number of statements run since the statistics were reset.
+     *
+     * @return the number of statements.
+     */
+    long getStatementCount();
+
+    /**
+     * Return the number of statements which took longer than the slow query
+     * threshold since the statistics were reset.
+     *
+     * @return the number of slow statements.
+     */
+    long getSlowStatementCount();
+
+    /**
+     * Return the time above which a statement is logged as slow.
+     *
+     * @return the threshold in milliseconds, or {@code 0} if slow statements
+     *         are not logged.
+     */
+    long getSlowQueryMillis();
+
+    /**
+     * Set the time above which a statement is logged as slow.
+     *
+     * @param millis
+     *            the threshold in milliseconds, or {@code 0} to stop logging
+     *            slow statements.
+     */
+    void setSlowQueryMillis(long millis);
+
+    /**
+     * Return a line of statistics for each query template, with the
+     * templates taking the most time in total first.
+     *
+     * @return the statistics.
+     */
+    String[] getTemplateStatistics();
+
+    /**
+     * Discard all the statistics gathered so far.
+     */
+    void reset();
+}
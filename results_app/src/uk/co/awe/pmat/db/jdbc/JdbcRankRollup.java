@@ -0,0 +1,222 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import uk.co.awe.pmat.db.Rank;
+import uk.co.awe.pmat.db.Value;
+
+/**
+ * The minimum, maximum, sum, sum of squares and number of the per-rank values
+ * of one result in one sub run, as kept in the {@code ResultRollup} table.
+ *
+ * <p>Graphs of the {@link Rank#RANK_AVG}, {@link Rank#RANK_MAX} or
+ * {@link Rank#RANK_MIN} of a result are read from these rollups, rather than
+ * by reading the value of every rank. Only values for a numbered rank are
+ * rolled up; values which are already an aggregate across ranks are not, and
+ * are read as saved for the sub runs which have no rollup. Sub runs saved
+ * without rollups, and not since backfilled, have the aggregate of their
+ * per-rank values read instead.</p>
+ *
+ * @author AWE Plc copyright 2013
+ */
+final class JdbcRankRollup {
+
+    /**
+     * The length of the {@code Name} column of the rollup table.
+     */
+    static final int NAME_LENGTH = 50;
+
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double sum = 0;
+    private double sumSquares = 0;
+    private int count = 0;
+
+    /**
+     * Add the value of one rank to the rollup.
+     *
+     * @param value
+     *            the value.
+     */
+    void add(double value) {
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+        sumSquares += value * value;
+        ++count;
+    }
+
+    double getMin() {
+        return min;
+    }
+
+    double getMax() {
+        return max;
+    }
+
+    double getSum() {
+        return sum;
+    }
+
+    double getSumSquares() {
+        return sumSquares;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Return the rollups of the given results, for each result name which has
+     * a value for a numbered rank. Names are grouped as the {@code Name}
+     * column of the rollup table compares them, see {@link #nameKey}, so
+     * that no two rollups of a sub run clash on its primary key; each group
+     * is named as its first result, cut to the length of the column.
+     *
+     * @param results
+     *            the results of a sub run.
+     * @return the rollups, by result name.
+     */
+    static Map<String, JdbcRankRollup> rollUp(List<Value<Double>> results) {
+        final Map<String, JdbcRankRollup> rollups = new LinkedHashMap<>();
+        final Map<String, JdbcRankRollup> rollupsByKey = new HashMap<>();
+        for (Value<Double> result : results) {
+            if (result.getValue() == null || !isPerRank(result.getRank())) {
+                continue;
+            }
+            final String key = nameKey(result.getName());
+            JdbcRankRollup rollup = rollupsByKey.get(key);
+            if (rollup == null) {
+                rollup = new JdbcRankRollup();
+                rollupsByKey.put(key, rollup);
+                final String name = result.getName();
+                rollups.put(name.length() > NAME_LENGTH ? name.substring(0, NAME_LENGTH) : name, rollup);
+            }
+            rollup.add(result.getValue());
+        }
+        return rollups;
+    }
+
+    /**
+     * Return the given result name as the {@code Name} column of the rollup
+     * table compares it, which is cut to the length of the column and ignores
+     * case and trailing spaces.
+     *
+     * @param name
+     *            the result name.
+     * @return the name to group rollups by.
+     */
+    static String nameKey(String name) {
+        int end = Math.min(name.length(), NAME_LENGTH);
+        while (end > 0 && name.charAt(end - 1) == ' ') {
+            --end;
+        }
+        return name.substring(0, end).toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Whether the given rank is a single numbered rank, whose values are
+     * rolled up.
+     *
+     * @param rank
+     *            the rank.
+     * @return {@code true} if the rank is a numbered rank.
+     */
+    static boolean isPerRank(Rank rank) {
+        return rank != null && rank.asInteger() >= 0;
+    }
+
+    /**
+     * Whether the given rank is an aggregate across ranks which can be read
+     * from the rollups.
+     *
+     * @param rank
+     *            the rank.
+     * @return {@code true} if the rank can be read from the rollups.
+     */
+    static boolean isAggregate(Rank rank) {
+        return rank == Rank.RANK_AVG || rank == Rank.RANK_MAX || rank == Rank.RANK_MIN;
+    }
+
+    /**
+     * Return the SQL expression for the value of the given aggregate rank of
+     * the rollup table joined as the given reference.
+     *
+     * @param tableRef
+     *            the reference of the joined rollup table.
+     * @param rank
+     *            an aggregate rank.
+     * @return the SQL expression.
+     */
+    static String valueSelect(String tableRef, Rank rank) {
+        if (rank == Rank.RANK_MAX) {
+            return tableRef + ".MaxValue";
+        } else if (rank == Rank.RANK_MIN) {
+            return tableRef + ".MinValue";
+        } else if (rank == Rank.RANK_AVG) {
+            return tableRef + ".SumValue / " + tableRef + ".RankCount";
+        }
+        throw new IllegalArgumentException("Not an aggregate rank " + rank);
+    }
+
+    /**
+     * Return the SQL expression for the error of the given aggregate rank of
+     * the rollup table joined as the given reference, which is the standard
+     * deviation across ranks for the average, and none otherwise.
+     *
+     * @param tableRef
+     *            the reference of the joined rollup table.
+     * @param rank
+     *            an aggregate rank.
+     * @return the SQL expression.
+     */
+    static String errorSelect(String tableRef, Rank rank) {
+        if (rank != Rank.RANK_AVG) {
+            return "0";
+        }
+        // Rounding can leave the variance of equal values slightly negative.
+        return "SQRT(GREATEST(" + tableRef + ".SumSquares / " + tableRef + ".RankCount - POW("
+                + tableRef + ".SumValue / " + tableRef + ".RankCount, 2), 0))";
+    }
+
+    /**
+     * Return the SQL aggregate of the per-rank values in the given column
+     * for the given aggregate rank, matching {@link #valueSelect}.
+     *
+     * @param valueColumn
+     *            the column of the per-rank values.
+     * @param rank
+     *            an aggregate rank.
+     * @return the SQL expression.
+     */
+    static String rankValueSelect(String valueColumn, Rank rank) {
+        if (rank == Rank.RANK_MAX) {
+            return "MAX(" + valueColumn + ")";
+        } else if (rank == Rank.RANK_MIN) {
+            return "MIN(" + valueColumn + ")";
+        } else if (rank == Rank.RANK_AVG) {
+            return "AVG(" + valueColumn + ")";
+        }
+        throw new IllegalArgumentException("Not an aggregate rank " + rank);
+    }
+
+    /**
+     * Return the SQL aggregate of the error of the per-rank values in the
+     * given column for the given aggregate rank, matching {@link #errorSelect}.
+     *
+     * @param valueColumn
+     *            the column of the per-rank values.
+     * @param rank
+     *            an aggregate rank.
+     * @return the SQL expression.
+     */
+    static String rankErrorSelect(String valueColumn, Rank rank) {
+        if (rank != Rank.RANK_AVG) {
+            return "0";
+        }
+        return "STDDEV_POP(" + valueColumn + ")";
+    }
+}
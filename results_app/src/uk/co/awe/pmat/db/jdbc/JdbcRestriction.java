@@ -17,6 +17,7 @@ import uk.co.awe.pmat.db.Restriction;
 import uk.co.awe.pmat.db.Value;
 import uk.co.awe.pmat.db.criteria.Category;
 import uk.co.awe.pmat.db.criteria.Comparator;
+import uk.co.awe.pmat.utils.CompressedBitmap;
 
 /**
  * 
@@ -34,7 +35,8 @@ final class JdbcRestriction implements Restriction {
 	private final Comparator comparator;
 	private final Value<?> value;
 
-	private List<Long> cachedIds = null;
+	private CompressedBitmap cachedIds = null;
+	private Long estimatedCount = null;
 
 	public JdbcRestriction(JdbcHelper helper, Category category, String field,
 			Rank rank, Comparator comparator, Value<?> value) {
@@ -90,15 +92,124 @@ final class JdbcRestriction implements Restriction {
 
 	@Override
 	public List<Long> getMatchingIDs() throws DatabaseException {
+		return getMatchingIdSet().toList();
+	}
+
+	/**
+	 * Return the IDs of the sub runs matching this restriction as a
+	 * compressed bitmap, which is far smaller than a list of IDs for the
+	 * large, mostly contiguous sets of IDs restrictions tend to match, and
+	 * which can be intersected without boxing each ID.
+	 * 
+	 * @return the matching IDs, which must not be modified.
+	 * @throws DatabaseException
+	 *             if an error occurs fetching the IDs.
+	 */
+	CompressedBitmap getMatchingIdSet() throws DatabaseException {
 		if (cachedIds == null) {
 			cachedIds = performQuery();
 		}
 		return cachedIds;
 	}
 
-	private List<Long> performQuery() throws DatabaseException {
+	/**
+	 * Return an estimate of the number of sub runs matching this restriction.
+	 * If the matching IDs have already been fetched this is their exact
+	 * number, otherwise it is the number of rows the database expects to
+	 * examine, taken from the query plan. The plan's row counts come from
+	 * sampled index statistics, so the estimate may be below the number of
+	 * matches; a restriction estimated under the ID list threshold which
+	 * matches more is still applied correctly, only as a longer list of IDs.
+	 * 
+	 * @return the estimated number of matching sub runs, or
+	 *         {@code Long.MAX_VALUE} if no estimate can be made.
+	 */
+	long estimateMatchCount() {
+		if (cachedIds != null) {
+			return cachedIds.cardinality();
+		}
+		if (estimatedCount == null) {
+			estimatedCount = performEstimate();
+		}
+		return estimatedCount;
+	}
+
+	/**
+	 * Return an SQL clause which restricts the sub runs of a query, aliased
+	 * as {@code JdbcTable.SUB_RUN.tableReference()}, to those matching this
+	 * restriction. The matching IDs are found by a sub-query rather than
+	 * being fetched, so the database can combine it with the rest of the
+	 * query as a semi-join.
+	 * 
+	 * @param sqlParams
+	 *            the query parameters, to which the parameters of the clause
+	 *            are added.
+	 * @return the clause.
+	 */
+	String subRunClause(List<Object> sqlParams) {
+		return JdbcTable.SUB_RUN.tableReference() + ".ID IN ("
+				+ matchingIdsQuery(sqlParams) + ")";
+	}
+
+	/**
+	 * Return the number of matches below which this restriction is better
+	 * applied as a list of IDs than as a sub-query.
+	 * 
+	 * @return the threshold.
+	 */
+	long getIdListThreshold() {
+		return helper.getIdListThreshold();
+	}
+
+	private long performEstimate() {
+        final List<Object> sqlParams = new ArrayList<>();
+        final String query = "EXPLAIN " + matchingIdsQuery(sqlParams);
+        
+        try (final ResultSet resultSet = helper.executeQuery(query, sqlParams)) {
+            // Each row of the plan is a table in a nested loop join, so the
+            // product of their row estimates approximates the number of rows
+            // examined. It is usually above the number of matches, but the
+            // estimates are statistics rather than a bound.
+            long estimate = 1;
+            while (resultSet.next()) {
+                final long rows = resultSet.getLong("rows");
+                if (rows > 0) {
+                    estimate = (estimate > Long.MAX_VALUE / rows) ? Long.MAX_VALUE : estimate * rows;
+                }
+            }
+            return estimate;
+        } catch (SQLException ex) {
+            LOG.debug("Failed to estimate matches for " + this, ex);
+            return Long.MAX_VALUE;
+        }
+    }
+
+	private CompressedBitmap performQuery() throws DatabaseException {
         final List<Object> sqlParams = new ArrayList<>();
+        final String query = matchingIdsQuery(sqlParams);
         
+        try (final ResultSet resultSet = helper.executeQuery(query, sqlParams)) {
+            final CompressedBitmap ids = new CompressedBitmap();
+            while (resultSet.next()) {
+                ids.add(resultSet.getLong("ID"));
+            }
+            ids.optimise();
+            return ids;
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        }
+    }
+
+	/**
+	 * Build the query which selects the IDs of the sub runs matching this
+	 * restriction, as a column called {@code ID}.
+	 * 
+	 * @param sqlParams
+	 *            the query parameters, to which the parameters of the query
+	 *            are added.
+	 * @return the query.
+	 */
+	private String matchingIdsQuery(List<Object> sqlParams) {
         String query = MessageFormat.format("SELECT DISTINCT {0}.ID AS ID FROM {1}",
                 JdbcTable.SUB_RUN.tableReference(),
                 helper.getSchema() + "." + JdbcTable.SUB_RUN.tableSelect());
@@ -122,18 +233,19 @@ final class JdbcRestriction implements Restriction {
                 break;
             case PARAMETER:
                 if (val != null) {
-                    query = MessageFormat.format("SELECT {0}.ID AS ID, {1} FROM {2} JOIN {3} WHERE {4} AND {5}.{6}{7}",
+                    // Only the ID may be selected, so that the query can be
+                    // used as a sub-query.
+                    query = MessageFormat.format("SELECT {0}.ID AS ID FROM {1} JOIN {2} WHERE {3} AND {4}.{5}{6}",
                     /* 0 */ JdbcTable.SUB_RUN.tableReference(),
-                    /* 1 */ JdbcMapping.getTableMap(JdbcTable.PARAMETER).get("value").select(),
-                    /* 2 */ helper.getSchema() + "." + JdbcTable.SUB_RUN.tableSelect(),
-                    /* 3 */ helper.getSchema() + "." + JdbcTable.SUB_RUN.joinRight(JdbcTable.PARAMETER),
-                    /* 4 */ JdbcTable.PARAMETER.compare("name", field, Comparator.EQ),
-                    /* 5 */ JdbcTable.PARAMETER.tableReference(),
-                    /* 6 */ val.getClass().getSimpleName(),
-                    /* 7 */ JdbcTable.PARAMETER.compare("value", val, comparator));
+                    /* 1 */ helper.getSchema() + "." + JdbcTable.SUB_RUN.tableSelect(),
+                    /* 2 */ helper.getSchema() + "." + JdbcTable.SUB_RUN.joinRight(JdbcTable.PARAMETER),
+                    /* 3 */ JdbcTable.PARAMETER.compare("name", field, Comparator.EQ),
+                    /* 4 */ JdbcTable.PARAMETER.tableReference(),
+                    /* 5 */ val.getClass().getSimpleName(),
+                    /* 6 */ JdbcTable.PARAMETER.compare("value", val, comparator));
+                    if (field != null) { sqlParams.add(field); }
+                    sqlParams.add(val);
                 }
-                if (field != null) { sqlParams.add(field); }
-                if (val != null) { sqlParams.add(val); }
                 break;
             case RESULT:
                query += MessageFormat.format(" JOIN {0} WHERE {1} AND {2}.{3}",
@@ -155,14 +267,6 @@ final class JdbcRestriction implements Restriction {
                 throw new IllegalStateException("Unknown category " + getCategory());
         }
         
-        try (final ResultSet resultSet = helper.executeQuery(query, sqlParams)) {
-            final List<Long> ids = new ArrayList<>();
-            while (resultSet.next()) {
-                ids.add(resultSet.getLong("ID"));
-            }
-            return ids;
-        } catch (SQLException ex) {
-            throw new DatabaseException(ex);
-        }
+        return query;
     }
 }
@@ -0,0 +1,304 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.awe.pmat.utils.Pair;
+
+/**
+ * Materialises the sub runs matching a set of restrictions into a temporary
+ * table, so that the many queries made with the same restrictions can join
+ * against the table rather than each evaluating the restrictions again.
+ *
+ * <p>Temporary tables only exist on the connection that created them, so a
+ * table is registered here when a query using it is built, and only created
+ * on a connection when a query using it is about to be run there. The query
+ * carries the {@link Table} it uses amongst its parameters, so the table can
+ * be created from its own clause even if it has been forgotten here in the
+ * meantime. A table is forgotten whenever one of the tables its clause reads
+ * changes, and tables which have been forgotten are dropped from a connection
+ * the next time it is used.</p>
+ *
+ * @author AWE Plc copyright 2013
+ */
+final class JdbcRestrictionTables {
+
+    private final static Logger LOG = LoggerFactory.getLogger(JdbcRestrictionTables.class);
+
+    private static final String TABLE_PREFIX = "pmat_subruns_";
+    private static final Pattern TABLE_NAME = Pattern.compile(TABLE_PREFIX + "\\d+_\\d+_ids");
+
+    /**
+     * A temporary table of the sub runs matching a restriction clause, which
+     * is carried amongst the parameters of a query using it rather than bound
+     * to a place holder. Tables are equal if their clauses and parameters
+     * are, whatever they are named.
+     */
+    static final class Table {
+        private final String name;
+        private final String clause;
+        private final List<Object> sqlParams;
+        private final Set<JdbcTable> tablesRead;
+
+        private Table(String name, String clause, List<Object> sqlParams) {
+            this.name = name;
+            this.clause = clause;
+            this.sqlParams = Collections.unmodifiableList(new ArrayList<>(sqlParams));
+            final Set<JdbcTable> read = JdbcCache.tablesRead(clause);
+            read.add(JdbcTable.SUB_RUN);
+            this.tablesRead = Collections.unmodifiableSet(read);
+        }
+
+        /**
+         * Return the schema qualified name of the table.
+         *
+         * @return the table name.
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * Return the tables the table is filled from.
+         *
+         * @return the tables read by the restriction clause.
+         */
+        Set<JdbcTable> getTablesRead() {
+            return tablesRead;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Table)) {
+                return false;
+            }
+            final Table other = (Table) obj;
+            return clause.equals(other.clause) && sqlParams.equals(other.sqlParams);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * clause.hashCode() + sqlParams.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "Table[" + clause + ", " + sqlParams + "]";
+        }
+    }
+
+    private final String schema;
+    private final int maxTables;
+    private final Map<Pair<String, List<Object>>, Table> tableNames;
+    private final Set<String> tables = new HashSet<>();
+    private long generation = 0;
+    private long sequence = 0;
+
+    /**
+     * Create a new {@code JdbcRestrictionTables}.
+     *
+     * @param schema
+     *            the schema in which to create the temporary tables.
+     * @param maxTables
+     *            the maximum number of restriction sets to keep tables for,
+     *            or {@code 0} to never use temporary tables.
+     */
+    JdbcRestrictionTables(String schema, final int maxTables) {
+        this.schema = schema;
+        this.maxTables = maxTables;
+        this.tableNames = new LinkedHashMap<Pair<String, List<Object>>, Table>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Pair<String, List<Object>>, Table> eldest) {
+                if (size() > maxTables) {
+                    tables.remove(eldest.getValue().getName());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Return {@code true} if temporary tables are in use.
+     *
+     * @return whether temporary tables are in use.
+     */
+    boolean isEnabled() {
+        return maxTables > 0;
+    }
+
+    /**
+     * Return the temporary table holding the IDs of the sub runs which match
+     * the given restriction clause, registering a new table if there is none.
+     * The table must be added to the parameters of the query using it, so
+     * that it is created before the query is run.
+     *
+     * @param clause
+     *            the restriction clause, as generated by
+     *            {@link JdbcUtils#subRunRestriction}.
+     * @param sqlParams
+     *            the parameters of the restriction clause.
+     * @return the table.
+     */
+    synchronized Table register(String clause, List<Object> sqlParams) {
+        final Pair<String, List<Object>> key = new Pair<String, List<Object>>(clause, new ArrayList<>(sqlParams));
+        Table table = tableNames.get(key);
+        if (table == null) {
+            // Names are never reused within a session, so a table on a
+            // connection always holds the sub runs of the clause it was
+            // created for.
+            table = new Table(schema + "." + TABLE_PREFIX + generation + "_" + sequence + "_ids",
+                    clause, sqlParams);
+            ++sequence;
+            tableNames.put(key, table);
+            tables.add(table.getName());
+        }
+        return table;
+    }
+
+    /**
+     * Return the given query with the names of any temporary tables replaced
+     * by one common name, as the names depend on the order in which the
+     * tables were registered in a session rather than on what they hold.
+     *
+     * @param query
+     *            the query.
+     * @return the query with its temporary table names replaced.
+     */
+    static String normalise(String query) {
+        return TABLE_NAME.matcher(query).replaceAll(TABLE_PREFIX + "ids");
+    }
+
+    /**
+     * Forget the registered tables filled from any of the given tables, as
+     * the data they were filled from has changed.
+     *
+     * @param changed
+     *            the changed tables.
+     */
+    synchronized void invalidate(Collection<JdbcTable> changed) {
+        boolean forgotten = false;
+        final Iterator<Table> it = tableNames.values().iterator();
+        while (it.hasNext()) {
+            final Table table = it.next();
+            if (!Collections.disjoint(table.tablesRead, changed)) {
+                tables.remove(table.getName());
+                it.remove();
+                forgotten = true;
+            }
+        }
+        if (forgotten) {
+            ++generation;
+            sequence = 0;
+        }
+    }
+
+    /**
+     * Create any of the given tables which do not yet exist on the given
+     * connection, and drop any tables on the connection which are no longer
+     * registered and are not used by the query about to be run.
+     *
+     * @param conn
+     *            the connection the query is about to be run on.
+     * @param used
+     *            the tables used by the query, as carried in its parameters.
+     * @throws SQLException
+     *             if a table cannot be created.
+     */
+    void prepare(Connection conn, Collection<Table> used) throws SQLException {
+        if (!(conn instanceof JdbcConnectionPool.Session)) {
+            return;
+        }
+        final Set<String> created = ((JdbcConnectionPool.Session) conn).getTemporaryTables();
+        if (created.isEmpty() && used.isEmpty()) {
+            return;
+        }
+
+        final Set<String> live;
+        synchronized (this) {
+            live = new HashSet<>(tables);
+        }
+        for (Table table : used) {
+            live.add(table.getName());
+        }
+
+        // The driver refuses to run anything but queries on a read only
+        // connection, even though temporary tables are private to it.
+        final boolean readOnly = conn.isReadOnly();
+        if (readOnly) {
+            conn.setReadOnly(false);
+        }
+        try {
+            final Iterator<String> it = created.iterator();
+            while (it.hasNext()) {
+                final String tableName = it.next();
+                if (!live.contains(tableName)) {
+                    drop(conn, tableName);
+                    it.remove();
+                }
+            }
+
+            for (Table table : used) {
+                if (!created.contains(table.getName())) {
+                    create(conn, table.getName(), table.clause, table.sqlParams);
+                    created.add(table.getName());
+                }
+            }
+        } finally {
+            if (readOnly) {
+                conn.setReadOnly(true);
+            }
+        }
+    }
+
+    private void create(Connection conn, String tableName, String clause, List<Object> sqlParams) throws SQLException {
+        final String insert = MessageFormat.format("INSERT INTO {0} SELECT DISTINCT {1}.ID FROM {2} WHERE {3}",
+        /* 0 */ tableName,
+        /* 1 */ JdbcTable.SUB_RUN.tableReference(),
+        /* 2 */ schema + "." + JdbcTable.SUB_RUN.tableSelect(),
+        /* 3 */ clause);
+
+        LOG.debug("SQL:> " + insert);
+
+        try (final Statement statement = conn.createStatement()) {
+            statement.executeUpdate("CREATE TEMPORARY TABLE " + tableName
+                    + " (ID int(11) NOT NULL, PRIMARY KEY (ID))");
+        }
+        try (final PreparedStatement statement = conn.prepareStatement(insert)) {
+            int idx = 1;
+            for (Object param : sqlParams) {
+                statement.setObject(idx, param);
+                ++idx;
+            }
+            statement.executeUpdate();
+        } catch (SQLException ex) {
+            drop(conn, tableName);
+            throw ex;
+        }
+    }
+
+    private static void drop(Connection conn, String tableName) {
+        try (final Statement statement = conn.createStatement()) {
+            statement.executeUpdate("DROP TEMPORARY TABLE IF EXISTS " + tableName);
+        } catch (SQLException ex) {
+            LOG.debug("Failed to drop temporary table " + tableName, ex);
+        }
+    }
+}
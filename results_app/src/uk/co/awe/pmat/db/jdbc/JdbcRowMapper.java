@@ -0,0 +1,371 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import uk.co.awe.pmat.db.Application;
+import uk.co.awe.pmat.db.Compiler;
+import uk.co.awe.pmat.db.ErrorType;
+import uk.co.awe.pmat.db.Machine;
+import uk.co.awe.pmat.db.MetaData;
+import uk.co.awe.pmat.db.Mpi;
+import uk.co.awe.pmat.db.OperatingSystem;
+import uk.co.awe.pmat.db.Processor;
+import uk.co.awe.pmat.db.Rank;
+import uk.co.awe.pmat.db.Run;
+import uk.co.awe.pmat.db.Value;
+import uk.co.awe.pmat.db.jdbc.JdbcMapping.Column;
+
+/**
+ * Reads objects from the rows of a query, compiled once per query so that the
+ * index of each column is found from the {@link ResultSetMetaData} when the
+ * mapper is created, rather than by looking its label up for every row.
+ *
+ * <p>Each mapper reads the mapped columns of one table, as selected by
+ * {@link JdbcMapping#getSelectColumns(JdbcTable)}, in the order the object
+ * being created takes them, and passes them straight to its constructor.</p>
+ *
+ * @param <T> the type of object read from each row.
+ * @author AWE Plc copyright 2013
+ */
+abstract class JdbcRowMapper<T> {
+
+    private final Column[] columns;
+    private final int[] indices;
+    private final int[] typeIndices;
+
+    /**
+     * Create a new {@code JdbcRowMapper}.
+     *
+     * @param table
+     *            the table whose columns are read.
+     * @param fields
+     *            the fields of the columns to read, in the order they are
+     *            read.
+     * @param resultSet
+     *            the result set of the query.
+     * @throws SQLException
+     *             if a column is not in the result set.
+     */
+    JdbcRowMapper(JdbcTable table, List<String> fields, ResultSet resultSet) throws SQLException {
+        final Map<String, Integer> labels = labelIndices(resultSet);
+        columns = new Column[fields.size()];
+        indices = new int[fields.size()];
+        typeIndices = new int[fields.size()];
+        for (int i = 0; i < columns.length; ++i) {
+            columns[i] = JdbcMapping.getTableMap(table).get(fields.get(i));
+            indices[i] = indexOf(labels, resultSet, columns[i].label());
+            typeIndices[i] = columns[i].isParameterValue()
+                    ? indexOf(labels, resultSet, columns[i].typeLabel()) : -1;
+        }
+    }
+
+    /**
+     * Create a new {@code JdbcRowMapper} which reads no mapped columns, for
+     * rows whose columns are not those of a table, e.g. aggregates, whose
+     * indices the mapper finds itself.
+     */
+    JdbcRowMapper() {
+        columns = new Column[0];
+        indices = new int[0];
+        typeIndices = new int[0];
+    }
+
+    /**
+     * Read the object held in the current row of the result set.
+     *
+     * @param row
+     *            the result set.
+     * @return the object.
+     * @throws SQLException
+     *             if an error occurs reading the row.
+     */
+    abstract T map(ResultSet row) throws SQLException;
+
+    /**
+     * Read the value of the given column of the mapper from the current row.
+     *
+     * @param row
+     *            the result set.
+     * @param column
+     *            the position of the column in the fields of the mapper.
+     * @return the column value.
+     * @throws SQLException
+     *             if an error occurs reading the row.
+     */
+    final Object read(ResultSet row, int column) throws SQLException {
+        return columns[column].fromDB(row, indices[column], typeIndices[column]);
+    }
+
+    /**
+     * Return the index of every column of the result set, by both its label
+     * and its label qualified by the reference of its table, in lower case.
+     * Where two columns share a label the first is kept, as it is when a
+     * column is looked up by its label.
+     */
+    private static Map<String, Integer> labelIndices(ResultSet resultSet) throws SQLException {
+        final ResultSetMetaData metaData = resultSet.getMetaData();
+        final Map<String, Integer> labels = new HashMap<>();
+        for (int idx = metaData.getColumnCount(); idx > 0; --idx) {
+            final String label = metaData.getColumnLabel(idx).toLowerCase(Locale.ENGLISH);
+            final String table = metaData.getTableName(idx);
+            labels.put(label, idx);
+            if (table != null && !table.isEmpty()) {
+                labels.put(table.toLowerCase(Locale.ENGLISH) + "." + label, idx);
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * Return the index of the column with the given label, falling back to
+     * asking the result set if its meta data does not name the column the way
+     * the label does.
+     */
+    private static int indexOf(Map<String, Integer> labels, ResultSet resultSet, String label) throws SQLException {
+        final Integer idx = labels.get(label.toLowerCase(Locale.ENGLISH));
+        return (idx != null) ? idx : resultSet.findColumn(label);
+    }
+
+    /**
+     * Return the index of the column with the given label in the result set.
+     *
+     * @param resultSet
+     *            the result set.
+     * @param label
+     *            the column label.
+     * @return the column index.
+     * @throws SQLException
+     *             if the column is not in the result set.
+     */
+    static int columnIndex(ResultSet resultSet, String label) throws SQLException {
+        return indexOf(labelIndices(resultSet), resultSet, label);
+    }
+
+    /**
+     * Return a mapper reading parameter values.
+     *
+     * @param resultSet
+     *            the result set of the query.
+     * @return the mapper.
+     * @throws SQLException
+     *             if a parameter column is not in the result set.
+     */
+    static JdbcRowMapper<Value<?>> parameters(ResultSet resultSet) throws SQLException {
+        return new JdbcRowMapper<Value<?>>(JdbcTable.PARAMETER,
+                Arrays.asList("name", "rank", "value"), resultSet) {
+            @Override
+            @SuppressWarnings("unchecked")
+            Value<?> map(ResultSet row) throws SQLException {
+                return new Value<>((String) read(row, 0), (Rank) read(row, 1), (Comparable) read(row, 2));
+            }
+        };
+    }
+
+    /**
+     * Return a mapper reading result values.
+     *
+     * @param resultSet
+     *            the result set of the query.
+     * @return the mapper.
+     * @throws SQLException
+     *             if a result column is not in the result set.
+     */
+    static JdbcRowMapper<Value<Double>> results(ResultSet resultSet) throws SQLException {
+        return new JdbcRowMapper<Value<Double>>(JdbcTable.RESULT,
+                Arrays.asList("name", "value", "error", "errorType", "rank", "count", "pauseCount"), resultSet) {
+            @Override
+            Value<Double> map(ResultSet row) throws SQLException {
+                return new Value<>((String) read(row, 0), (Double) read(row, 1), (Double) read(row, 2),
+                        (ErrorType) read(row, 3), (Rank) read(row, 4), (Long) read(row, 5), (Long) read(row, 6));
+            }
+        };
+    }
+
+    /**
+     * Return a mapper reading the values of a single column.
+     *
+     * @param column
+     *            the column to read.
+     * @param field
+     *            the field of the column.
+     * @param resultSet
+     *            the result set of the query.
+     * @return the mapper.
+     * @throws SQLException
+     *             if the column is not in the result set.
+     */
+    static JdbcRowMapper<Comparable<?>> column(JdbcTable table, String field, ResultSet resultSet) throws SQLException {
+        return new JdbcRowMapper<Comparable<?>>(table, Arrays.asList(field), resultSet) {
+            @Override
+            Comparable<?> map(ResultSet row) throws SQLException {
+                return (Comparable<?>) read(row, 0);
+            }
+        };
+    }
+
+    /**
+     * Return a mapper reading the columns of runs, in the order taken by
+     * {@link #toRun(Object[], Collection)}, so that the meta data of the runs
+     * can be read once all the rows have been.
+     *
+     * @param resultSet
+     *            the result set of the query.
+     * @return the mapper.
+     * @throws SQLException
+     *             if a run column is not in the result set.
+     */
+    static JdbcRowMapper<Object[]> runs(ResultSet resultSet) throws SQLException {
+        return new JdbcRowMapper<Object[]>(JdbcTable.RUN,
+                Arrays.asList("runId", "runDate", "insertionDate", "creator", "restricted", "file", "tag"), resultSet) {
+            @Override
+            Object[] map(ResultSet row) throws SQLException {
+                final Object[] values = new Object[7];
+                for (int i = 0; i < values.length; ++i) {
+                    values[i] = read(row, i);
+                }
+                return values;
+            }
+        };
+    }
+
+    /**
+     * Create a {@code Run} from the columns read by a {@link #runs(ResultSet)}
+     * mapper and its meta data.
+     *
+     * @param values
+     *            the run columns.
+     * @param metaData
+     *            the meta data of the run.
+     * @return the run.
+     */
+    static Run toRun(Object[] values, Collection<MetaData> metaData) {
+        return new Run((String) values[0], (Date) values[1], (Date) values[2], metaData,
+                (String) values[3], (Boolean) values[4], (String) values[5], (String) values[6]);
+    }
+
+    /**
+     * Return a mapper reading the meta data held in the given table.
+     *
+     * @param table
+     *            the meta data table.
+     * @param resultSet
+     *            the result set of the query.
+     * @return the mapper.
+     * @throws SQLException
+     *             if a meta data column is not in the result set.
+     */
+    static JdbcRowMapper<MetaData> metaData(JdbcTable table, ResultSet resultSet) throws SQLException {
+        switch (table) {
+            case APPLICATION:
+                return new JdbcRowMapper<MetaData>(table, Arrays.asList("name", "versionMajor",
+                        "versionMinor", "versionBuild", "versionCode", "description", "dataPrivate"), resultSet) {
+                    @Override
+                    MetaData map(ResultSet row) throws SQLException {
+                        return new Application((String) read(row, 0), (Integer) read(row, 1),
+                                (Integer) read(row, 2), (Integer) read(row, 3), (String) read(row, 4),
+                                (String) read(row, 5), (Boolean) read(row, 6));
+                    }
+                };
+            case COMPILER:
+                return new JdbcRowMapper<MetaData>(table, Arrays.asList("name", "vendor",
+                        "versionMajor", "versionMinor", "versionBuild"), resultSet) {
+                    @Override
+                    MetaData map(ResultSet row) throws SQLException {
+                        return new Compiler((String) read(row, 0), (String) read(row, 1),
+                                (Integer) read(row, 2), (Integer) read(row, 3), (Integer) read(row, 4));
+                    }
+                };
+            case MACHINE:
+                return new JdbcRowMapper<MetaData>(table, Arrays.asList("name", "vendor"), resultSet) {
+                    @Override
+                    MetaData map(ResultSet row) throws SQLException {
+                        return new Machine((String) read(row, 0), (String) read(row, 1));
+                    }
+                };
+            case MPI:
+                return new JdbcRowMapper<MetaData>(table, Arrays.asList("name", "vendor",
+                        "versionMajor", "versionMinor", "versionBuild"), resultSet) {
+                    @Override
+                    MetaData map(ResultSet row) throws SQLException {
+                        return new Mpi((String) read(row, 0), (String) read(row, 1),
+                                (Integer) read(row, 2), (Integer) read(row, 3), (Integer) read(row, 4));
+                    }
+                };
+            case OPERATING_SYSTEM:
+                return new JdbcRowMapper<MetaData>(table, Arrays.asList("name", "vendor", "versionMajor",
+                        "versionMinor", "versionBuild", "versionBuildMinor", "kernel"), resultSet) {
+                    @Override
+                    MetaData map(ResultSet row) throws SQLException {
+                        return new OperatingSystem((String) read(row, 0), (String) read(row, 1),
+                                (Integer) read(row, 2), (Integer) read(row, 3), (Integer) read(row, 4),
+                                (Integer) read(row, 5), (String) read(row, 6));
+                    }
+                };
+            case PROCESSOR:
+                return new JdbcRowMapper<MetaData>(table, Arrays.asList("name", "vendor", "architecture",
+                        "cores", "threadsPerCore", "clockSpeed"), resultSet) {
+                    @Override
+                    MetaData map(ResultSet row) throws SQLException {
+                        return new Processor((String) read(row, 0), (String) read(row, 1),
+                                (String) read(row, 2), (Integer) read(row, 3), (Integer) read(row, 4),
+                                (Integer) read(row, 5));
+                    }
+                };
+            default:
+                throw new IllegalArgumentException("Not a meta data table " + table);
+        }
+    }
+
+    /**
+     * Return a mapper reading the values of derived data, by the names of the
+     * derived data.
+     *
+     * @param derivedDataColumns
+     *            the labels of the columns holding each derived data value,
+     *            by the name of the derived data.
+     * @param resultSet
+     *            the result set of the query.
+     * @return the mapper.
+     * @throws SQLException
+     *             if a derived data column is not in the result set.
+     */
+    static JdbcRowMapper<Map<String, Value<?>>> derivedData(Map<String, String> derivedDataColumns,
+            ResultSet resultSet) throws SQLException {
+        final Map<String, Integer> labels = labelIndices(resultSet);
+        final String[] names = new String[derivedDataColumns.size()];
+        final int[] derivedIndices = new int[derivedDataColumns.size()];
+        int i = 0;
+        for (Map.Entry<String, String> entry : derivedDataColumns.entrySet()) {
+            names[i] = entry.getKey();
+            derivedIndices[i] = indexOf(labels, resultSet, entry.getValue());
+            ++i;
+        }
+        return new JdbcRowMapper<Map<String, Value<?>>>() {
+            @Override
+            Map<String, Value<?>> map(ResultSet row) throws SQLException {
+                final Map<String, Value<?>> values = new HashMap<>();
+                for (int i = 0; i < names.length; ++i) {
+                    final Object value = row.getObject(derivedIndices[i]);
+                    if (value instanceof Integer) {
+                        values.put(names[i], new Value<>(names[i], Rank.UNKNOWN, (Integer) value));
+                    } else if (value instanceof Double) {
+                        values.put(names[i], new Value<>(names[i], Rank.UNKNOWN, (Double) value));
+                    } else if (value instanceof String) {
+                        values.put(names[i], new Value<>(names[i], Rank.UNKNOWN, (String) value));
+                    } else {
+                        throw new IllegalStateException("Unknown value type " + value);
+                    }
+                }
+                return values;
+            }
+        };
+    }
+}
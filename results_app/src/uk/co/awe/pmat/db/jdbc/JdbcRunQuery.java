@@ -0,0 +1,177 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import uk.co.awe.pmat.db.MetaData;
+import uk.co.awe.pmat.db.Run;
+import uk.co.awe.pmat.db.RunQuery;
+import uk.co.awe.pmat.utils.StringUtils;
+
+/**
+ * Builds the SQL to read a page of runs, or count the runs, for a
+ * {@link RunQuery}.
+ *
+ * <p>Only the columns of the {@code Run} table and the IDs of its meta data
+ * are read, and the meta data table being sorted on is the only one joined.
+ * The page following a known run is found by seeking past its sort value and
+ * ID, which the {@code (sort column, ID)} ordering allows the database to do
+ * without reading the runs before it.</p>
+ *
+ * @author AWE Plc copyright 2013
+ */
+final class JdbcRunQuery {
+
+    /** The alias of the sort value of each run in the page query. */
+    static final String SORT_KEY = "sortKey";
+    /** The alias of the ID of each run in the page query. */
+    static final String RUN_KEY = "runKey";
+
+    private static final String[] FILTERED_FIELDS = { "runId", "creator", "tag", "file" };
+
+    private final RunQuery query;
+    private final String schema;
+
+    /**
+     * Create a new {@code JdbcRunQuery}.
+     *
+     * @param query
+     *            the query to build the SQL for.
+     * @param schema
+     *            the database schema.
+     */
+    JdbcRunQuery(RunQuery query, String schema) {
+        this.query = query;
+        this.schema = schema;
+    }
+
+    /**
+     * Return the alias of the ID of the meta data of the given type in the
+     * page query.
+     *
+     * @param type
+     *            the meta data type.
+     * @return the column alias.
+     */
+    static String metaDataId(MetaData.Type type) {
+        return type.asFieldName() + "Id";
+    }
+
+    /**
+     * Return the SQL expression of the value the runs are sorted on.
+     *
+     * @return the sort expression.
+     */
+    String sortExpression() {
+        final Run.Column column = query.getSortColumn();
+        if (column.getMetaDataType() != null) {
+            final JdbcTable table = JdbcUtils.typeToTable(column.getMetaDataType());
+            return "COALESCE(" + table.tableColumn("name") + ", '')";
+        }
+        if (JdbcMapping.getTableMap(JdbcTable.RUN).get(column.getFieldName()) == null) {
+            throw new IllegalArgumentException("Cannot sort runs on " + column.getColumnName());
+        }
+        final String sortColumn = JdbcTable.RUN.tableColumn(column.getFieldName());
+        return column.getColumnClass() == String.class
+                ? "COALESCE(" + sortColumn + ", '')" : sortColumn;
+    }
+
+    /**
+     * Return the query for the page of runs, sorted and filtered.
+     *
+     * @param params
+     *            the query parameters, to which the parameters of the query
+     *            are added.
+     * @return the page query.
+     */
+    String pageQuery(List<Object> params) {
+        final List<String> columns = new ArrayList<>(JdbcMapping.getSelectColumns(JdbcTable.RUN));
+        for (MetaData.Type type : MetaData.Type.values()) {
+            columns.add(JdbcMapping.joins.get(JdbcUtils.typeToTable(type))
+                    .get(JdbcTable.RUN).select(null, metaDataId(type)));
+        }
+
+        String join = "";
+        final MetaData.Type sortType = query.getSortColumn().getMetaDataType();
+        if (sortType != null) {
+            join = " JOIN " + schema + "." + JdbcTable.RUN.joinLeft(JdbcUtils.typeToTable(sortType));
+        }
+
+        final List<String> clauses = new ArrayList<>();
+        clauses.add(filterClause(params));
+        if (query.getAfter() != null) {
+            clauses.add(MessageFormat.format("({0} {1} ? OR ({0} = ? AND {2}.ID {1} ?))",
+            /* 0 */ sortExpression(),
+            /* 1 */ query.isAscending() ? ">" : "<",
+            /* 2 */ JdbcTable.RUN.tableReference()));
+            params.add(query.getAfter().getSortValue());
+            params.add(query.getAfter().getSortValue());
+            params.add(query.getAfter().getId());
+        }
+
+        String sql = "SELECT {0}, {1} AS {2}, {3}.ID AS {4} FROM {5}{6} WHERE {7} ORDER BY {1} {8}, {3}.ID {8}";
+        sql = MessageFormat.format(sql,
+        /* 0 */ StringUtils.joinStrings(columns, ", "),
+        /* 1 */ sortExpression(),
+        /* 2 */ SORT_KEY,
+        /* 3 */ JdbcTable.RUN.tableReference(),
+        /* 4 */ RUN_KEY,
+        /* 5 */ schema + "." + JdbcTable.RUN.tableSelect(),
+        /* 6 */ join,
+        /* 7 */ StringUtils.joinStrings(clauses, " AND "),
+        /* 8 */ query.isAscending() ? "ASC" : "DESC");
+
+        if (query.getLimit() > 0) {
+            sql += " LIMIT ?";
+            params.add(query.getLimit());
+            if (query.getAfter() == null && query.getOffset() > 0) {
+                sql += " OFFSET ?";
+                params.add(query.getOffset());
+            }
+        }
+        return sql;
+    }
+
+    /**
+     * Return the query counting the runs matching the filter.
+     *
+     * @param params
+     *            the query parameters, to which the parameters of the query
+     *            are added.
+     * @return the count query.
+     */
+    String countQuery(List<Object> params) {
+        final String sql = "SELECT COUNT(*) FROM {0} WHERE {1}";
+        return MessageFormat.format(sql,
+        /* 0 */ schema + "." + JdbcTable.RUN.tableSelect(),
+        /* 1 */ filterClause(params));
+    }
+
+    /**
+     * Return the clause restricting the runs to those whose ID, creator, tag,
+     * file or the name of any of their meta data contains the filter text.
+     */
+    private String filterClause(List<Object> params) {
+        if (query.getFilter() == null) {
+            return "1 = 1";
+        }
+        final String pattern = "%" + query.getFilter()
+                .replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+
+        final List<String> matches = new ArrayList<>();
+        for (String field : FILTERED_FIELDS) {
+            matches.add(JdbcTable.RUN.tableColumn(field) + " LIKE ?");
+            params.add(pattern);
+        }
+        for (MetaData.Type type : MetaData.Type.values()) {
+            final JdbcTable table = JdbcUtils.typeToTable(type);
+            matches.add(MessageFormat.format("{0} IN (SELECT ID FROM {1}.{2} WHERE {3} LIKE ?)",
+            /* 0 */ JdbcMapping.joins.get(table).get(JdbcTable.RUN).select(),
+            /* 1 */ schema,
+            /* 2 */ table.tableName(),
+            /* 3 */ JdbcMapping.getTableMap(table).get("name").name()));
+            params.add(pattern);
+        }
+        return "(" + StringUtils.joinStrings(matches, " OR ") + ")";
+    }
+}
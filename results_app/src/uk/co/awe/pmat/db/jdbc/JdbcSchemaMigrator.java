@@ -0,0 +1,251 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Brings the database schema up to date by running the numbered migration
+ * scripts which have not yet been applied to it.
+ *
+ * <p>The scripts are read from the {@code sql/migrations} directory on the
+ * class path, in the order given by its {@code migrations.list} file, and the
+ * version of each script applied is recorded in the {@code SchemaVersion}
+ * table. A database lock is held whilst migrating so that two clients
+ * started against the same database do not both run a script.</p>
+ *
+ * @author AWE Plc copyright 2013
+ */
+final class JdbcSchemaMigrator {
+
+    private final static Logger LOG = LoggerFactory.getLogger(JdbcSchemaMigrator.class);
+
+    private static final String DIRECTORY = "sql/migrations/";
+    private static final String INDEX = DIRECTORY + "migrations.list";
+    private static final String VERSION_TABLE = "SchemaVersion";
+    private static final int LOCK_TIMEOUT = 300; // s
+
+    private static final Pattern SCRIPT_NAME = Pattern.compile("(\\d+)_[A-Za-z0-9_]+\\.sql");
+
+    /**
+     * A single migration script.
+     */
+    static final class Migration {
+        private final int version;
+        private final String script;
+
+        Migration(int version, String script) {
+            this.version = version;
+            this.script = script;
+        }
+
+        int getVersion() {
+            return version;
+        }
+
+        String getScript() {
+            return script;
+        }
+    }
+
+    private final String schema;
+
+    /**
+     * Create a new {@code JdbcSchemaMigrator}.
+     *
+     * @param schema
+     *            the database schema to migrate.
+     */
+    JdbcSchemaMigrator(String schema) {
+        this.schema = schema;
+    }
+
+    /**
+     * Apply all the migrations which have not yet been applied.
+     *
+     * @param conn
+     *            a connection with permission to alter the schema.
+     * @return the number of migrations applied.
+     * @throws SQLException
+     *             if a migration fails, or the migration lock could not be
+     *             taken.
+     */
+    int migrate(Connection conn) throws SQLException {
+        final List<Migration> migrations = migrations();
+        final String lockName = schema + ".migration";
+
+        try (final Statement statement = conn.createStatement()) {
+            statement.executeUpdate(MessageFormat.format(
+                    "CREATE TABLE IF NOT EXISTS {0} (Version INT NOT NULL PRIMARY KEY,"
+                    + " Script VARCHAR(100) NOT NULL, AppliedOn DATETIME NOT NULL) ENGINE=InnoDB",
+                    /* 0 */ schema + "." + VERSION_TABLE));
+        }
+        commit(conn);
+
+        if (!lock(conn, lockName)) {
+            throw new SQLException("Timed out waiting for another client to migrate the schema");
+        }
+        try {
+            // Read the applied versions only once the lock is held, as another
+            // client may have applied some whilst this one waited.
+            final Set<Integer> applied = appliedVersions(conn);
+            int count = 0;
+            for (Migration migration : migrations) {
+                if (!applied.contains(migration.getVersion())) {
+                    apply(conn, migration);
+                    ++count;
+                }
+            }
+            return count;
+        } finally {
+            try (final PreparedStatement statement = conn.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+                statement.setString(1, lockName);
+                statement.executeQuery().close();
+            }
+        }
+    }
+
+    private void apply(Connection conn, Migration migration) throws SQLException {
+        LOG.info("Applying schema migration " + migration.getScript());
+
+        // MySQL commits after each DDL statement, so a script which fails
+        // part way through must be written so that it can be run again.
+        for (String sql : statements(read(migration.getScript()).replace("${schema}", schema))) {
+            try (final Statement statement = conn.createStatement()) {
+                statement.executeUpdate(sql);
+            }
+        }
+
+        final String insert = MessageFormat.format(
+                "INSERT INTO {0} (Version, Script, AppliedOn) VALUES (?, ?, ?)",
+                /* 0 */ schema + "." + VERSION_TABLE);
+        try (final PreparedStatement statement = conn.prepareStatement(insert)) {
+            statement.setInt(1, migration.getVersion());
+            statement.setString(2, migration.getScript());
+            statement.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+            statement.executeUpdate();
+        }
+        commit(conn);
+    }
+
+    private Set<Integer> appliedVersions(Connection conn) throws SQLException {
+        final Set<Integer> versions = new HashSet<>();
+        try (final Statement statement = conn.createStatement();
+                final ResultSet resultSet = statement.executeQuery(
+                        "SELECT Version FROM " + schema + "." + VERSION_TABLE)) {
+            while (resultSet.next()) {
+                versions.add(resultSet.getInt("Version"));
+            }
+        }
+        return versions;
+    }
+
+    private static boolean lock(Connection conn, String lockName) throws SQLException {
+        try (final PreparedStatement statement = conn.prepareStatement("SELECT GET_LOCK(?, ?)")) {
+            statement.setString(1, lockName);
+            statement.setInt(2, LOCK_TIMEOUT);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() && resultSet.getInt(1) == 1;
+            }
+        }
+    }
+
+    private static void commit(Connection conn) throws SQLException {
+        if (!conn.getAutoCommit()) {
+            conn.commit();
+        }
+    }
+
+    /**
+     * Return the migrations listed in the index, in order.
+     *
+     * @return the migrations.
+     * @throws SQLException
+     *             if the index cannot be read, or lists the scripts out of
+     *             order.
+     */
+    static List<Migration> migrations() throws SQLException {
+        final List<Migration> migrations = new ArrayList<>();
+        for (String line : read(INDEX).split("\n")) {
+            final String script = line.trim();
+            if (script.isEmpty() || script.startsWith("#")) {
+                continue;
+            }
+            final Matcher matcher = SCRIPT_NAME.matcher(script);
+            if (!matcher.matches()) {
+                throw new SQLException("Badly named schema migration " + script);
+            }
+            final int version = Integer.parseInt(matcher.group(1));
+            if (!migrations.isEmpty() && version <= migrations.get(migrations.size() - 1).getVersion()) {
+                throw new SQLException("Schema migration " + script + " is out of order");
+            }
+            migrations.add(new Migration(version, script));
+        }
+        return Collections.unmodifiableList(migrations);
+    }
+
+    /**
+     * Split the given script into its statements, dropping any comments.
+     * Statements are separated by a semicolon at the end of a line.
+     *
+     * @param script
+     *            the SQL script.
+     * @return the statements.
+     */
+    static List<String> statements(String script) {
+        final List<String> statements = new ArrayList<>();
+        StringBuilder statement = new StringBuilder();
+        for (String line : script.split("\n")) {
+            final String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("--")) {
+                continue;
+            }
+            statement.append(statement.length() == 0 ? "" : "\n").append(line);
+            if (trimmed.endsWith(";")) {
+                statement.setLength(statement.lastIndexOf(";"));
+                statements.add(statement.toString().trim());
+                statement = new StringBuilder();
+            }
+        }
+        if (statement.toString().trim().length() > 0) {
+            statements.add(statement.toString().trim());
+        }
+        return statements;
+    }
+
+    private static String read(String name) throws SQLException {
+        final String resource = name.startsWith(DIRECTORY) ? name : DIRECTORY + name;
+        final InputStream in = JdbcSchemaMigrator.class.getClassLoader().getResourceAsStream(resource);
+        if (in == null) {
+            throw new SQLException("Schema migration " + resource + " not found");
+        }
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            final StringBuilder text = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                text.append(line).append('\n');
+            }
+            return text.toString();
+        } catch (IOException ex) {
+            throw new SQLException("Failed to read schema migration " + resource, ex);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.awe.pmat.utils.Pair;
+
+/**
+ * A least recently used cache of the {@code PreparedStatement}s of a single
+ * connection, keyed by their SQL text. Statements handed out by the cache are
+ * proxies whose {@code close()} returns the statement to the cache, so that
+ * the next query with the same SQL can reuse it without it being parsed
+ * again.
+ *
+ * <p>A statement is removed from the cache whilst it is in use, so if the same
+ * SQL is prepared again before the first statement has been closed a new,
+ * separate statement is prepared.</p>
+ *
+ * @author AWE Plc copyright 2013
+ */
+final class JdbcStatementCache {
+
+    private final static Logger LOG = LoggerFactory.getLogger(JdbcStatementCache.class);
+
+    private final Connection connection;
+    private final int maxSize;
+    private final Map<Pair<String, Integer>, PreparedStatement> statements;
+
+    /**
+     * Create a new {@code JdbcStatementCache}.
+     *
+     * @param connection
+     *            the connection the statements are prepared on.
+     * @param maxSize
+     *            the maximum number of idle statements to keep open, or
+     *            {@code 0} to disable caching.
+     */
+    JdbcStatementCache(Connection connection, final int maxSize) {
+        this.connection = connection;
+        this.maxSize = maxSize;
+        this.statements = new LinkedHashMap<Pair<String, Integer>, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Pair<String, Integer>, PreparedStatement> eldest) {
+                if (size() > maxSize) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Return a prepared statement for the given SQL, reusing an idle cached
+     * statement if there is one.
+     *
+     * @param sql
+     *            the SQL to prepare.
+     * @param autoGeneratedKeys
+     *            whether auto-generated keys should be returned, one of
+     *            {@code Statement.RETURN_GENERATED_KEYS} or
+     *            {@code Statement.NO_GENERATED_KEYS}.
+     * @return the prepared statement, which should be closed when finished
+     *         with.
+     * @throws SQLException
+     *             if the statement cannot be prepared.
+     */
+    PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+        if (maxSize <= 0) {
+            return connection.prepareStatement(sql, autoGeneratedKeys);
+        }
+
+        final Pair<String, Integer> key = new Pair<>(sql, autoGeneratedKeys);
+        PreparedStatement statement;
+        synchronized (statements) {
+            statement = statements.remove(key);
+        }
+        if (statement == null || statement.isClosed()) {
+            statement = connection.prepareStatement(sql, autoGeneratedKeys);
+        }
+        return wrap(key, statement);
+    }
+
+    /**
+     * Close all the idle statements held by the cache.
+     */
+    void close() {
+        synchronized (statements) {
+            final Iterator<PreparedStatement> it = statements.values().iterator();
+            while (it.hasNext()) {
+                closeQuietly(it.next());
+                it.remove();
+            }
+        }
+    }
+
+    private void release(Pair<String, Integer> key, PreparedStatement statement) {
+        try {
+            statement.clearParameters();
+            statement.clearWarnings();
+        } catch (SQLException ex) {
+            LOG.debug("Discarding broken statement " + key.getFirst(), ex);
+            closeQuietly(statement);
+            return;
+        }
+        final PreparedStatement previous;
+        synchronized (statements) {
+            previous = statements.put(key, statement);
+        }
+        if (previous != null && previous != statement) {
+            // The same SQL was in use twice at once, only keep one.
+            closeQuietly(previous);
+        }
+    }
+
+    private static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ex) {
+            LOG.debug("Error closing statement", ex);
+        }
+    }
+
+    /**
+     * Wrap the given statement in a proxy which returns it to the cache when
+     * it is closed.
+     */
+    private PreparedStatement wrap(final Pair<String, Integer> key, final PreparedStatement statement) {
+        final ClassLoader classLoader = getClass().getClassLoader();
+        return (PreparedStatement) Proxy.newProxyInstance(classLoader,
+                new Class<?>[] {PreparedStatement.class},
+                new InvocationHandler() {
+                    private boolean returned = false;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        switch (method.getName()) {
+                            case "close":
+                                if (!returned) {
+                                    returned = true;
+                                    release(key, statement);
+                                }
+                                return null;
+                            case "isClosed":
+                                return returned || statement.isClosed();
+                            default:
+                                if (returned) {
+                                    throw new SQLException("Statement has been closed");
+                                }
+                                try {
+                                    return method.invoke(statement, args);
+                                } catch (InvocationTargetException ex) {
+                                    throw ex.getCause();
+                                }
+                        }
+                    }
+                });
+    }
+}
@@ -6,10 +6,11 @@ import uk.co.awe.pmat.db.criteria.Comparator;
 enum JdbcTable {
 	APPLICATION("Application"), COMPILER("Compiler"), MACHINE("Machine"), MPI(
 			"MPI"), OPERATING_SYSTEM("OperatingSystem"), PROCESSOR("Processor"), RESULT(
-			"Result"), PARAMETER("Parameter"), RUN("Run"), SUB_RUN("SubRun"), RUN_FLAGS(
+			"Result"), RESULT_ROLLUP("ResultRollup"), PARAMETER("Parameter"), RUN("Run"), SUB_RUN("SubRun"), RUN_FLAGS(
 			"RunFlags"), FLAGS("Flags"), ANALYSIS("Analysis"), ANALYSIS_CRITERA(
 			"AnalysisCriteria"), ANALYSIS_DERIVED_DATA("AnalysisDerivedData"), ANALYSIS_GRAPH(
-			"AnalysisGraph"), ANALYSIS_AXIS_LABEL("AnalysisAxisLabel");
+			"AnalysisGraph"), ANALYSIS_AXIS_LABEL("AnalysisAxisLabel"), DATA_VERSION(
+			"DataVersion");
 
 	private final String tableName;
 
@@ -7,30 +7,23 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import uk.co.awe.pmat.db.Analysis;
-import uk.co.awe.pmat.db.Application;
-import uk.co.awe.pmat.db.Compiler;
 import uk.co.awe.pmat.db.DatabaseException;
+import uk.co.awe.pmat.db.DatabaseObject;
 import uk.co.awe.pmat.db.DerivedData;
-import uk.co.awe.pmat.db.ErrorType;
 import uk.co.awe.pmat.db.Graph;
-import uk.co.awe.pmat.db.Machine;
 import uk.co.awe.pmat.db.MetaData;
 import uk.co.awe.pmat.db.MetaData.Type;
-import uk.co.awe.pmat.db.Mpi;
-import uk.co.awe.pmat.db.OperatingSystem;
-import uk.co.awe.pmat.db.Processor;
-import uk.co.awe.pmat.db.Rank;
 import uk.co.awe.pmat.db.Restriction;
 import uk.co.awe.pmat.db.Run;
-import uk.co.awe.pmat.db.Value;
 import uk.co.awe.pmat.db.criteria.Category;
 import uk.co.awe.pmat.db.jdbc.JdbcMapping.Column;
+import uk.co.awe.pmat.utils.CompressedBitmap;
 import uk.co.awe.pmat.utils.Pair;
 import uk.co.awe.pmat.utils.StringUtils;
 
@@ -40,28 +33,21 @@ import uk.co.awe.pmat.utils.StringUtils;
  */
 final class JdbcUtils {
 
-	static Map<String, Value<?>> derivedDataFromRow(Map<String, String> derivedDataColumns, ResultSet resultSet) throws SQLException {
-        Map<String, Value<?>> values = new HashMap<>();
-        for (Map.Entry<String, String> entry : derivedDataColumns.entrySet()) {
-            final String ddName = entry.getKey();
-            final String colName = entry.getValue();
-            final Object value = resultSet.getObject(colName);
-            if (value instanceof Integer) {
-                values.put(ddName, new Value<>(ddName, Rank.UNKNOWN, (Integer) value));
-            } else if (value instanceof Double) {
-                values.put(ddName, new Value<>(ddName, Rank.UNKNOWN, (Double) value));
-            } else if (value instanceof String) {
-                values.put(ddName, new Value<>(ddName, Rank.UNKNOWN, (String) value));
-            } else {
-                throw new IllegalStateException("Unknown value type " + value);
-            }
-        }
-        return values;
-    }
-
 	private JdbcUtils() {
 	}
 
+	/**
+	 * Return a list of the given number of {@code ?} place holders, separated
+	 * by commas, for use in an {@code IN} clause.
+	 * 
+	 * @param count
+	 *            the number of place holders.
+	 * @return the place holders.
+	 */
+	static String placeHolders(int count) {
+		return StringUtils.joinStrings(Collections.nCopies(count, "?"), ", ");
+	}
+
 	static JdbcTable typeToTable(Type type) {
 		switch (type) {
 		case APPLICATION:
@@ -106,6 +92,37 @@ final class JdbcUtils {
 		}
 	}
 
+	/**
+	 * Return the tables which may be written to when saving, updating or
+	 * deleting the given object.
+	 * 
+	 * @param dbObject
+	 *            the object.
+	 * @return the tables written to.
+	 */
+	static Set<JdbcTable> tablesWritten(DatabaseObject dbObject) {
+		final Set<JdbcTable> tables = EnumSet.noneOf(JdbcTable.class);
+		if (dbObject instanceof MetaData) {
+			tables.add(typeToTable(((MetaData) dbObject).getType()));
+		} else if (dbObject instanceof Run) {
+			// Saving a run also saves any meta data not yet in the database.
+			for (MetaData.Type type : MetaData.Type.values()) {
+				tables.add(typeToTable(type));
+			}
+			tables.addAll(EnumSet.of(JdbcTable.RUN, JdbcTable.SUB_RUN,
+					JdbcTable.PARAMETER, JdbcTable.RESULT, JdbcTable.RESULT_ROLLUP,
+					JdbcTable.RUN_FLAGS, JdbcTable.FLAGS));
+		} else if (dbObject instanceof Analysis) {
+			tables.addAll(EnumSet.of(JdbcTable.ANALYSIS,
+					JdbcTable.ANALYSIS_CRITERA,
+					JdbcTable.ANALYSIS_DERIVED_DATA, JdbcTable.ANALYSIS_GRAPH,
+					JdbcTable.ANALYSIS_AXIS_LABEL));
+		} else {
+			tables.addAll(EnumSet.allOf(JdbcTable.class));
+		}
+		return tables;
+	}
+
 	static Analysis analysisFromRow(ResultSet resultSet,
             List<Restriction> restrictions,
             List<DerivedData> dd) throws SQLException {
@@ -128,88 +145,89 @@ final class JdbcUtils {
                 dd, restrictions, renames);
     }
 
-	@SuppressWarnings("unchecked")
-    static <T> T objectFromRow(JdbcTable table, ResultSet row, Class<T> clz) throws SQLException {
-        
-        final Map<String, Column> columns = JdbcMapping.getTableMap(table);
-        
-        final Map<String, Object> fields = new HashMap<>();
-        for (Map.Entry<String, Column> entry : columns.entrySet()) {
-            fields.put(entry.getKey(), entry.getValue().fromDB(row));
+	/**
+	 * Return {@code true} if any of the given restrictions is expected to
+	 * match too many sub runs to be applied as a list of IDs.
+	 * 
+	 * @param restrictions
+	 *            the restrictions to check.
+	 * @return whether any of the restrictions is large.
+	 */
+	static boolean hasLargeRestriction(Collection<Restriction> restrictions) {
+        if (restrictions == null) {
+            return false;
         }
-                
-        switch (table) {
-            case APPLICATION:
-                return (T) new Application(fields);
-            case COMPILER:
-                return (T) new Compiler(fields);
-            case MACHINE:
-                return (T) new Machine(fields);
-            case MPI:
-                return (T) new Mpi(fields);
-            case OPERATING_SYSTEM:
-                return (T) new OperatingSystem(fields);
-            case PARAMETER:
-                String pName      = (String) fields.get("name");
-                Rank pRank        = (Rank) fields.get("rank");
-                Comparable pValue = (Comparable) fields.get("value");
-                return (T) new Value<>(pName, pRank, pValue);
-            case PROCESSOR:
-                return (T) new Processor(fields);
-            case RESULT:
-                String rName       = (String) fields.get("name");
-                Rank rRank         = (Rank) fields.get("rank");
-                Double rValue      = (Double) fields.get("value");
-                Double rError      = (Double) fields.get("error");
-                ErrorType rErrType = (ErrorType) fields.get("errorType");
-                Long count         = (Long) fields.get("count");
-                Long pauseCount    = (Long) fields.get("pauseCount");
-                return (T) new Value<>(rName, rValue, rError, rErrType, rRank, count, pauseCount);
-            case RUN:
-                List<MetaData> metaData = new ArrayList<>();
-                for (MetaData.Type type : MetaData.Type.values()) {
-                    metaData.add((MetaData) objectFromRow(typeToTable(type), row, MetaData.class));
+        for (Restriction restriction : restrictions) {
+            if (restriction instanceof JdbcRestriction) {
+                final JdbcRestriction jdbcRestriction = (JdbcRestriction) restriction;
+                if (jdbcRestriction.estimateMatchCount() > jdbcRestriction.getIdListThreshold()) {
+                    return true;
                 }
-                String runId       = (String) fields.get("runId");
-                Date runDate       = (Date) fields.get("runDate");
-                Date insertionDate = (Date) fields.get("runDate");
-                String creator     = (String) fields.get("creator");
-                Boolean restricted = (Boolean) fields.get("restricted");
-                String file        = (String) fields.get("file");
-                String tag         = (String) fields.get("tag");
-                return (T) new Run(runId, runDate, insertionDate, metaData, creator, restricted, file, tag);
-            default:
-                throw new IllegalArgumentException("Uknown category " + table);
+            }
         }
+        return false;
     }
 
+	/**
+	 * Compile the given restrictions into an SQL clause which restricts the
+	 * sub runs of a query, aliased as {@code JdbcTable.SUB_RUN.tableReference()},
+	 * to those matching all of the restrictions. Restrictions expected to
+	 * match only a few sub runs are fetched, intersected and bound as a list
+	 * of IDs, whilst the rest are turned into sub-queries, so that large sets
+	 * of IDs never have to be sent to and from the database.
+	 * 
+	 * @param restrictions
+	 *            the restrictions to compile.
+	 * @param sqlParams
+	 *            the query parameters, to which the parameters of the clause
+	 *            are added.
+	 * @return the clause.
+	 * @throws DatabaseException
+	 *             if an error occurs fetching the IDs of a restriction.
+	 */
 	static String subRunRestriction(Collection<Restriction> restrictions, List<Object> sqlParams) throws DatabaseException {
-        if (restrictions == null) {
+        if (restrictions == null || restrictions.isEmpty()) {
             return "1 = 1";
         }
         
-        Set<Long> ids = Collections.emptySet();
-        boolean first = true;
+        final List<String> subQueries = new ArrayList<>();
+        final List<Object> subQueryParams = new ArrayList<>();
+        CompressedBitmap ids = null;
+        
         for (Restriction restriction : restrictions) {
-            if (first) {
-                ids = new HashSet<>(restriction.getMatchingIDs());
+            final CompressedBitmap matchingIds;
+            if (restriction instanceof JdbcRestriction) {
+                final JdbcRestriction jdbcRestriction = (JdbcRestriction) restriction;
+                if (jdbcRestriction.estimateMatchCount() > jdbcRestriction.getIdListThreshold()) {
+                    subQueries.add(jdbcRestriction.subRunClause(subQueryParams));
+                    continue;
+                }
+                matchingIds = jdbcRestriction.getMatchingIdSet();
             } else {
-                ids.retainAll(restriction.getMatchingIDs());
+                matchingIds = CompressedBitmap.of(restriction.getMatchingIDs());
             }
-            first = false;
+            ids = (ids == null) ? matchingIds : ids.and(matchingIds);
         }
         
-        if (ids.isEmpty()) {
-            return "1 = 1";
-        }
+        final List<String> clauses = new ArrayList<>();
         
-        final List<String> placeHolders = new ArrayList<>(ids.size());
-        for (Long id : ids) {
-            placeHolders.add("?");
-            sqlParams.add(id);
+        if (ids != null) {
+            if (ids.isEmpty()) {
+                return "1 = 0";
+            }
+            final List<String> placeHolders = new ArrayList<>((int) ids.cardinality());
+            for (Long id : ids) {
+                placeHolders.add("?");
+                sqlParams.add(id);
+            }
+            clauses.add(MessageFormat.format("{0}.ID IN ({1})",
+            /* 0 */ JdbcTable.SUB_RUN.tableReference(),
+            /* 1 */ StringUtils.joinStrings(placeHolders, ", ")));
         }
         
-        final String query = "{0}.ID IN (" + StringUtils.joinStrings(placeHolders, ", ") + ")";
-        return MessageFormat.format(query, JdbcTable.SUB_RUN.tableReference());
+        clauses.addAll(subQueries);
+        sqlParams.addAll(subQueryParams);
+        
+        return StringUtils.joinStrings(clauses, " AND ");
     }
 }
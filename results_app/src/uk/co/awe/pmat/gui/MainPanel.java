@@ -193,7 +193,7 @@ final class MainPanel extends JPanel implements PropertyChangeListener {
 	 */
 	private JPanel getImportView() {
 		if (importView == null) {
-			ImportModel model = new ImportModel(this);
+			ImportModel model = new ImportModel(this, config);
 			importView = new ImportView(model, config);
 		}
 		return importView;
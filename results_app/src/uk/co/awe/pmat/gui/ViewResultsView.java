@@ -2,9 +2,10 @@ package uk.co.awe.pmat.gui;
 
 import uk.co.awe.pmat.gui.utils.DoubleClickListener;
 import java.awt.event.ActionEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
-import uk.co.awe.pmat.gui.utils.DisplayTableModel;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -12,6 +13,7 @@ import javax.swing.AbstractAction;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JTextField;
 import javax.swing.filechooser.FileFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +23,7 @@ import uk.co.awe.pmat.gui.models.ViewResultsModel;
 import uk.co.awe.pmat.Constants;
 import uk.co.awe.pmat.db.DatabaseException;
 import uk.co.awe.pmat.gui.utils.DisplayTable;
+import uk.co.awe.pmat.gui.utils.RunPageTableModel;
 
 /**
  * A view to display all the results stored in the database and allow viewing of
@@ -39,7 +42,8 @@ public class ViewResultsView extends JPanel {
 	private final ViewResultsModel viewResultsModel;
 	private final JFileChooser fileChooser;
 
-	private DisplayTableModel tableModel;
+	private RunPageTableModel tableModel;
+	private final JTextField filterField = new JTextField();
 
 	/**
 	 * Create a new {@code ViewResultsView}.
@@ -54,6 +58,34 @@ public class ViewResultsView extends JPanel {
 
 		initComponents();
 
+		// The runs are sorted by the database, a page at a time, rather than
+		// by a row sorter which would need every run to be read.
+		displayTable.setAutoCreateRowSorter(false);
+		displayTable.getTableHeader().addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				final int column = displayTable.columnAtPoint(e.getPoint());
+				if (column != -1 && tableModel != null) {
+					tableModel.sortBy(displayTable
+							.convertColumnIndexToModel(column));
+				}
+			}
+		});
+
+		filterField.setToolTipText("Show only runs whose ID, creator, tag, "
+				+ "file or meta-data name contains this text");
+		filterField.addActionListener(new AbstractAction() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				try {
+					tableModel.setFilter(filterField.getText());
+				} catch (DatabaseException ex) {
+					ExceptionDialog.showDatabaseExceptionDialog(ex);
+				}
+			}
+		});
+		buttonPanel.add(filterField, 0);
+
 		this.viewResultsModel = viewResultsModel;
 
 		populateDisplayTable();
@@ -81,11 +113,15 @@ public class ViewResultsView extends JPanel {
 						final int row = displayTable.getSelectedRow();
 						final int modelRow = displayTable
 								.convertRowIndexToModel(row);
-						final Long id = tableModel.getId(modelRow);
-						final ViewResultDialogModel dialogModel = viewResultsModel
-								.getViewResultDialogModel(id);
-						ViewResultDialog.showResultDialog(ViewResultsView.this,
-								dialogModel, workerListener);
+						try {
+							final ViewResultDialogModel dialogModel = viewResultsModel
+									.getViewResultDialogModel(modelRow);
+							ViewResultDialog.showResultDialog(
+									ViewResultsView.this, dialogModel,
+									workerListener);
+						} catch (DatabaseException ex) {
+							ExceptionDialog.showDatabaseExceptionDialog(ex);
+						}
 					}
 				}));
 
@@ -133,17 +169,17 @@ public class ViewResultsView extends JPanel {
 				JOptionPane.YES_NO_OPTION);
 
 		if (result == JOptionPane.YES_OPTION) {
+			List<Integer> rows = new ArrayList<>(selectedRows.length);
 			for (int row : selectedRows) {
-				try {
-					int modelRow = displayTable.convertRowIndexToModel(row);
-					Long id = tableModel.getId(modelRow);
-					viewResultsModel.deleteRun(id);
-				} catch (DatabaseException ex) {
-					ExceptionDialog.showDatabaseExceptionDialog(ex);
-				} catch (IOException ex) {
-					ExceptionDialog.showExceptionDialog(ex,
-							"Error removing run file");
-				}
+				rows.add(displayTable.convertRowIndexToModel(row));
+			}
+			try {
+				viewResultsModel.deleteRuns(rows);
+			} catch (DatabaseException ex) {
+				ExceptionDialog.showDatabaseExceptionDialog(ex);
+			} catch (IOException ex) {
+				ExceptionDialog.showExceptionDialog(ex,
+						"Error removing run file");
 			}
 		}
 	}
@@ -173,14 +209,13 @@ public class ViewResultsView extends JPanel {
                 }
             }
 
-            final List<Long> ids = new ArrayList<>();
+            final List<Integer> rows = new ArrayList<>();
             for (int row : selectedRows) {
-                int modelRow = displayTable.convertRowIndexToModel(row);
-                ids.add(tableModel.getId(modelRow));
+                rows.add(displayTable.convertRowIndexToModel(row));
             }
 
             try {
-                viewResultsModel.exportRowsToFile(file, ids);
+                viewResultsModel.exportRowsToFile(file, rows);
                 JOptionPane.showMessageDialog(this,
                         "Runs succesfully exported to the file \n"
                         + file.getAbsolutePath());
@@ -15,12 +15,14 @@ import javax.swing.JPanel;
 import javax.swing.ListCellRenderer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.co.awe.pmat.db.AsyncDatabaseConnection;
 import uk.co.awe.pmat.db.DatabaseException;
 import uk.co.awe.pmat.db.Rank;
 import uk.co.awe.pmat.db.Restriction;
 import uk.co.awe.pmat.db.Value;
 import uk.co.awe.pmat.db.criteria.Category;
 import uk.co.awe.pmat.db.criteria.Comparator;
+import uk.co.awe.pmat.gui.ExceptionDialog;
 import uk.co.awe.pmat.gui.models.DataFilterModel;
 import uk.co.awe.pmat.gui.utils.DefaultComboBoxModel;
 
@@ -220,13 +222,18 @@ public final class DataFilterPanel extends JPanel {
 		public void actionPerformed(ActionEvent e) {
 			if (categoryModel.hasSelectedElement()) {
 				fieldModel.removeAllElements();
-				try {
-					final List<String> fields = model.getFields(categoryModel
-							.getSelectedElement());
-					fieldModel.addAllElements(fields);
-				} catch (DatabaseException ex) {
-					LOG.error("Failed to get fields from database", ex);
-				}
+				model.loadFields(fieldModel, categoryModel.getSelectedElement(),
+						new AsyncDatabaseConnection.Callback<List<String>>() {
+					@Override
+					public void succeeded(List<String> fields) {
+						fieldModel.addAllElements(fields);
+					}
+
+					@Override
+					public void failed(DatabaseException ex) {
+						LOG.error("Failed to get fields from database", ex);
+					}
+				});
 			}
 		}
 	}
@@ -241,10 +248,21 @@ public final class DataFilterPanel extends JPanel {
                 rankModel.removeAllElements();
                 final Category category = categoryModel.getSelectedElement();
                 final String field = fieldModel.getSelectedElement();
-                final List<Rank> ranks = new ArrayList<>(model.getRanks(category, field));
-                Collections.sort(ranks);
-                ranks.add(0, Rank.ANY_RANK);
-                rankModel.addAllElements(ranks);
+                model.loadRanks(rankModel, category, field,
+                        new AsyncDatabaseConnection.Callback<List<Rank>>() {
+                    @Override
+                    public void succeeded(List<Rank> result) {
+                        final List<Rank> ranks = new ArrayList<>(result);
+                        Collections.sort(ranks);
+                        ranks.add(0, Rank.ANY_RANK);
+                        rankModel.addAllElements(ranks);
+                    }
+
+                    @Override
+                    public void failed(DatabaseException ex) {
+                        ExceptionDialog.showDatabaseExceptionDialog(ex);
+                    }
+                });
             }
         }
 	}
@@ -274,13 +292,18 @@ public final class DataFilterPanel extends JPanel {
 				final Category category = categoryModel.getSelectedElement();
 				final String field = fieldModel.getSelectedElement();
 				final Rank rank = rankModel.getSelectedElement();
-				try {
-					List<Value<?>> values = model.getValues(category, field,
-							rank);
-					valueModel.addAllElements(values);
-				} catch (DatabaseException ex) {
-					LOG.error("Failed to get values from database", ex);
-				}
+				model.loadValues(valueModel, category, field, rank,
+						new AsyncDatabaseConnection.Callback<List<Value<?>>>() {
+					@Override
+					public void succeeded(List<Value<?>> values) {
+						valueModel.addAllElements(values);
+					}
+
+					@Override
+					public void failed(DatabaseException ex) {
+						LOG.error("Failed to get values from database", ex);
+					}
+				});
 			}
 		}
 	}
@@ -5,13 +5,17 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import javax.swing.event.ChangeListener;
 import uk.co.awe.pmat.GuiModel;
+import uk.co.awe.pmat.db.AsyncDatabaseConnection;
+import uk.co.awe.pmat.db.DatabaseConnection;
 import uk.co.awe.pmat.db.DatabaseException;
 import uk.co.awe.pmat.db.DatabaseManager;
 import uk.co.awe.pmat.db.Rank;
 import uk.co.awe.pmat.db.Restriction;
 import uk.co.awe.pmat.db.Value;
+import uk.co.awe.pmat.db.ValueCount;
 import uk.co.awe.pmat.db.criteria.Category;
 import uk.co.awe.pmat.db.criteria.Comparator;
 import uk.co.awe.pmat.gui.ExceptionDialog;
@@ -62,6 +66,51 @@ public final class DataFilterModel implements GuiModel {
         return fields;
     }
 
+    /**
+     * Loads the different restriction fields available for the given category
+     * in the background, superseding any earlier load for the same owner.
+     *
+     * @param owner the owner of the load, e.g. the widget to fill.
+     * @param category the restriction category.
+     * @param callback the callback to receive the available fields.
+     */
+    public void loadFields(Object owner, final Category category,
+            AsyncDatabaseConnection.Callback<List<String>> callback) {
+        final List<Restriction> restricts = new ArrayList<>(restrictions);
+        DatabaseManager.getAsyncConnection().submit(owner,
+                Arrays.asList("fields", restricts, category),
+                new AsyncDatabaseConnection.Query<List<String>>() {
+            @Override
+            public List<String> run(DatabaseConnection connection) throws DatabaseException {
+                List<String> fields = connection.getFields(restricts, category);
+                Collections.sort(fields);
+                return fields;
+            }
+        }, callback);
+    }
+
+    /**
+     * Loads the different restriction ranks available in the background,
+     * superseding any earlier load for the same owner.
+     *
+     * @param owner the owner of the load, e.g. the widget to fill.
+     * @param category the restriction category.
+     * @param field the restriction field.
+     * @param callback the callback to receive the available ranks.
+     */
+    public void loadRanks(Object owner, final Category category, final String field,
+            AsyncDatabaseConnection.Callback<List<Rank>> callback) {
+        final List<Restriction> restricts = new ArrayList<>(restrictions);
+        DatabaseManager.getAsyncConnection().submit(owner,
+                Arrays.asList("ranks", restricts, category, field),
+                new AsyncDatabaseConnection.Query<List<Rank>>() {
+            @Override
+            public List<Rank> run(DatabaseConnection connection) throws DatabaseException {
+                return connection.getRanks(restricts, category, field);
+            }
+        }, callback);
+    }
+
     /**
      * Returns the different restriction ranks available.
      *
@@ -102,6 +151,57 @@ public final class DataFilterModel implements GuiModel {
         return values;
     }
 
+    /**
+     * Loads the different restriction values available for the given
+     * category, field and rank in the background, superseding any earlier load
+     * for the same owner.
+     *
+     * @param owner the owner of the load, e.g. the widget to fill.
+     * @param category the restriction category.
+     * @param field the restriction field.
+     * @param rank the restriction rank.
+     * @param callback the callback to receive the available values.
+     */
+    public void loadValues(Object owner, final Category category, final String field,
+            final Rank rank, AsyncDatabaseConnection.Callback<List<Value<?>>> callback) {
+        final List<Restriction> restricts = new ArrayList<>(restrictions);
+        DatabaseManager.getAsyncConnection().submit(owner,
+                Arrays.asList("values", restricts, category, field, rank),
+                new AsyncDatabaseConnection.Query<List<Value<?>>>() {
+            @Override
+            public List<Value<?>> run(DatabaseConnection connection) throws DatabaseException {
+                List<Value<?>> values = connection.getValues(restricts, category, field, rank);
+                Collections.sort(values);
+                return values;
+            }
+        }, callback);
+    }
+
+    /**
+     * Loads the different restriction values available for each of the given
+     * fields of a category in the background, with the number of sub runs
+     * matching the current restrictions which have each value, superseding
+     * any earlier load for the same owner.
+     *
+     * @param owner the owner of the load, e.g. the panel to fill.
+     * @param category the restriction category.
+     * @param fields the restriction fields.
+     * @param callback the callback to receive the values of each field.
+     */
+    public void loadValueCounts(Object owner, final Category category, Collection<String> fields,
+            AsyncDatabaseConnection.Callback<Map<String, List<ValueCount>>> callback) {
+        final List<Restriction> restricts = new ArrayList<>(restrictions);
+        final List<String> fieldList = new ArrayList<>(fields);
+        DatabaseManager.getAsyncConnection().submit(owner,
+                Arrays.asList("valueCounts", restricts, category, fieldList),
+                new AsyncDatabaseConnection.Query<Map<String, List<ValueCount>>>() {
+            @Override
+            public Map<String, List<ValueCount>> run(DatabaseConnection connection) throws DatabaseException {
+                return connection.getValueCounts(restricts, category, fieldList);
+            }
+        }, callback);
+    }
+
     /**
      * Returns all the restriction currently defined in the model.
      *
@@ -14,6 +14,8 @@ import javax.swing.SwingWorker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.co.awe.pmat.ApplicationException;
+import uk.co.awe.pmat.Configuration;
+import uk.co.awe.pmat.Constants;
 import uk.co.awe.pmat.db.DatabaseManager;
 import uk.co.awe.pmat.db.Run;
 import uk.co.awe.pmat.db.xml.XMLSerialisable;
@@ -35,6 +37,7 @@ public final class ImportModel {
     private final DisplayTableModel tableModel;
     private final Map<Long, Run> runs = new HashMap<>();
     private final PropertyChangeListener workerListener;
+    private final int runsPerSave;
     
     private File importFile;
     
@@ -63,9 +66,21 @@ public final class ImportModel {
     /**
      * Create a new {@code ImportModel}.
      *
+     * @param workerListener the listener to notify of the progress of the
+     * load and import workers.
+     * @param config the application configuration, used to determine how
+     * many runs are saved in each transaction.
      */
-    public ImportModel(PropertyChangeListener workerListener) {
+    public ImportModel(PropertyChangeListener workerListener, Configuration config) {
         this.workerListener = workerListener;
+        // Bulk loading only pays off if many runs are loaded at once, but
+        // then a single bad run fails the whole batch.
+        if (config.getBooleanProperty(Configuration.Key.DB_BULK_LOAD, Constants.Database.BULK_LOAD)) {
+            runsPerSave = Math.max(1, config.getIntegerProperty(
+                    Configuration.Key.DB_BULK_LOAD_RUNS, Constants.Database.BULK_LOAD_RUNS));
+        } else {
+            runsPerSave = 1;
+        }
         final String[] editableCols = new String[] {"Is Private"};
         final List<String> columnNames = new ArrayList<>(Run.TABLE_COLUMNS.size());
         final List<Class<?>> columnTypes = new ArrayList<>(Run.TABLE_COLUMNS.size());
@@ -153,7 +168,8 @@ public final class ImportModel {
     }
 
     /**
-     * Save the loaded runs into the database.
+     * Save the loaded runs into the database. The runs are saved in batches,
+     * with each batch saved in a single transaction.
      */
     public void saveIntoDB() throws ApplicationException {
         if (importFile == null) {
@@ -168,21 +184,15 @@ public final class ImportModel {
                 final XMLSerialiser serialiser = new XMLSerialiser();
                 final SwingWorker<Void, Pair<Long, Exception>> thisWorker = this;
 
+                final List<Run> batch = new ArrayList<>(runsPerSave);
+
                 serialiser.deserialiseRuns(importFile, true, new XMLSerialiser.LoadedAction() {
-                    private Long runIdx = 0L;
                     @Override
                     public void doAction(XMLSerialisable node) {
-                        try {
-                            final Run run = (Run) node;
-                            DatabaseManager.getConnection().save(run);
-                            publish(new Pair<>(runIdx, (Exception) null));
-                        } catch (Exception ex) {
-                            publish(new Pair<>(runIdx, ex));
+                        batch.add((Run) node);
+                        if (batch.size() >= runsPerSave) {
+                            saveBatch(batch);
                         }
-                        ++runIdx;
-                        final int progress = (int) (((float) runIdx) / numRuns * 100);
-                        System.err.println(progress);
-                        setProgress(progress);
                     }
 
                     @Override
@@ -191,9 +201,36 @@ public final class ImportModel {
                     }
                 });
                 
+                saveBatch(batch);
+                
                 return null;
             }
 
+            private long runIdx = 0L;
+
+            /**
+             * Save the given runs in a single transaction, marking them all as
+             * failed if any fail, and then clear them.
+             */
+            private void saveBatch(List<Run> batch) {
+                if (batch.isEmpty()) {
+                    return;
+                }
+                Exception failure = null;
+                try {
+                    DatabaseManager.getConnection().saveAll(batch);
+                } catch (Exception ex) {
+                    failure = ex;
+                }
+                for (int i = 0; i < batch.size(); ++i) {
+                    publish(new Pair<>(runIdx, failure));
+                    ++runIdx;
+                }
+                batch.clear();
+                final int progress = (int) (((float) runIdx) / numRuns * 100);
+                setProgress(Math.min(progress, 100));
+            }
+
             @Override
             protected void process(List<Pair<Long, Exception>> chunks) {
                 for (Pair<Long, Exception> pair : chunks) {
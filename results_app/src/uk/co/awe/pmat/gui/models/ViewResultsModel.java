@@ -6,8 +6,7 @@ import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,7 +17,7 @@ import uk.co.awe.pmat.db.Run;
 import uk.co.awe.pmat.db.xml.XMLSerialisable;
 import uk.co.awe.pmat.db.xml.XMLSerialiser;
 import uk.co.awe.pmat.gui.models.analysis.ViewResultDialogModel;
-import uk.co.awe.pmat.gui.utils.DisplayTableModel;
+import uk.co.awe.pmat.gui.utils.RunPageTableModel;
 
 /**
  * Model allowing results to be added to the database
@@ -29,67 +28,62 @@ public final class ViewResultsModel {
 
     private static final Logger LOG = LoggerFactory.getLogger(ViewResultsModel.class);
 
-    private final Map<Long, Run> runMap = new HashMap<>();
+    private final RunPageTableModel tableModel = new RunPageTableModel();
 
     /**
      * Return the table model used to show the {@code Run}s stored in the
-     * database.
+     * database, reloaded so that it shows the runs now in the database. Only
+     * the pages of runs scrolled into view are read.
      *
      * @return the {@code Run}s table model.
-     * @throws DatabaseException if an error occurs loading the {@code Run}s
-     * from the database.
+     * @throws DatabaseException if an error occurs counting the {@code Run}s
+     * in the database.
      */
-    public DisplayTableModel getResultsTableModel() throws DatabaseException {
-
-        final List<String> columnNames = new ArrayList<>(Run.TABLE_COLUMNS.size());
-        final List<Class<?>> columnTypes = new ArrayList<>(Run.TABLE_COLUMNS.size());
-        for (Run.Column column : Run.TABLE_COLUMNS) {
-            columnNames.add(column.getColumnName());
-            columnTypes.add(column.getColumnClass());
-        }
-        
-        final DisplayTableModel tableModel =
-                new DisplayTableModel(columnNames, columnTypes);
-
-        try {
-            List<Run> runs = DatabaseManager.getConnection().getRuns();
-
-            Long id = 0L;
-            for (Run run : runs) {
-                tableModel.addRow(id, run.asTableRow());
-                runMap.put(id, run);
-                ++id;
-            }
-        } catch (RuntimeException ex) {
-            throw ex; // Catch everything except RuntimeExceptions
-        } catch (Exception ex) {
-            LOG.error("Unable to populate view table!", ex);
-        }
-
+    public RunPageTableModel getResultsTableModel() throws DatabaseException {
+        tableModel.reload();
         return tableModel;
     }
 
     /**
      * Remove an entity from the database.
      *
-     * @param id ID of the entity to remove.
+     * @param row the table row of the entity to remove.
+     * @throws DatabaseException if no connection to the database could
+     * be established
+     */
+    public void deleteRun(Integer row) throws DatabaseException, IOException {
+        deleteRuns(Collections.singletonList(row));
+    }
+
+    /**
+     * Remove a number of entities from the database in one go, along with
+     * their stored result files.
+     *
+     * @param rows the table rows of the entities to remove.
      * @throws DatabaseException if no connection to the database could
      * be established
+     * @throws IOException if a stored result file could not be removed
      */
-    public void deleteRun(Long id) throws DatabaseException, IOException {
-        final Run run = runMap.get(id);
-        DatabaseManager.getConnection().delete(run);
-        final String runFile = run.getFile();
-        if (runFile != null && !runFile.isEmpty()) {
-            final Path path = FileSystems.getDefault().getPath(runFile);
-            final Path storeDir = FileSystems.getDefault()
-                    .getPath(Constants.Application.RESULT_STORE_DIRECTORY);
-            if (!path.startsWith(storeDir)) {
-                throw new IOException("Attempting to delete a stored result file"
-                        + " which is not in the result store directory. " + path);
+    public void deleteRuns(List<Integer> rows) throws DatabaseException, IOException {
+        final List<Run> runs = new ArrayList<>(rows.size());
+        for (Integer row : rows) {
+            runs.add(tableModel.getRun(row));
+        }
+        DatabaseManager.getConnection().deleteAll(runs);
+
+        final Path storeDir = FileSystems.getDefault()
+                .getPath(Constants.Application.RESULT_STORE_DIRECTORY);
+        for (Run run : runs) {
+            final String runFile = run.getFile();
+            if (runFile != null && !runFile.isEmpty()) {
+                final Path path = FileSystems.getDefault().getPath(runFile);
+                if (!path.startsWith(storeDir)) {
+                    throw new IOException("Attempting to delete a stored result file"
+                            + " which is not in the result store directory. " + path);
+                }
+                LOG.info("Removing result file " + path);
+                Files.deleteIfExists(path);
             }
-            LOG.info("Removing result file " + path);
-            Files.deleteIfExists(path);
         }
     }
 
@@ -97,17 +91,27 @@ public final class ViewResultsModel {
      * Export the selected runs to XML and write to the file provided.
      *
      * @param file The file to write the XML to
-     * @param ids The IDs of the Runs to export
+     * @param rows The table rows of the Runs to export
      * @throws IOException on write error
      * @throws DatabaseException if no connection to the database could
      * be established
      */
-    public void exportRowsToFile(File file, List<Long> ids) throws IOException, DatabaseException {
-        List<XMLSerialisable> dataToExport = new ArrayList<>(ids.size());
+    public void exportRowsToFile(File file, List<Integer> rows) throws IOException, DatabaseException {
+        List<XMLSerialisable> dataToExport = new ArrayList<>(rows.size());
+        List<Run> runs = new ArrayList<>(rows.size());
 
-        for (Long id : ids) {
+        for (Integer row : rows) {
+            runs.add(tableModel.getRun(row));
+        }
+
+        try {
+            Run.loadAll(runs);
+        } catch (Exception ex) {
+            LOG.error("Export error, loading runs one at a time", ex);
+        }
+
+        for (Run run : runs) {
             try {
-                Run run = runMap.get(id);
                 run.loadDataSets();
                 run.loadFlags();
                 dataToExport.add(run);
@@ -117,19 +121,21 @@ public final class ViewResultsModel {
         }
 
         XMLSerialiser serialiser = new XMLSerialiser();
-        LOG.debug("Exporting " + ids.size() + " rows to file " + file);
+        LOG.debug("Exporting " + rows.size() + " rows to file " + file);
         serialiser.serialise(file, dataToExport);
     }
 
     /**
      * Return the {@code ViewResultDialogModel} used to display a dialog box
-     * showing all the results stored for the {@code Run} with the given id.
+     * showing all the results stored for the {@code Run} in the given row.
      *
-     * @param id the id of the {@code Run} to display.
+     * @param row the table row of the {@code Run} to display.
      * @return the dialog model.
+     * @throws DatabaseException if an error occurs reading the {@code Run}
+     * from the database.
      */
-    public ViewResultDialogModel getViewResultDialogModel(Long id) {
-        return new ViewResultDialogModel(runMap.get(id));
+    public ViewResultDialogModel getViewResultDialogModel(Integer row) throws DatabaseException {
+        return new ViewResultDialogModel(tableModel.getRun(row));
     }
 
 }
\ No newline at end of file
@@ -55,8 +55,9 @@ public final class DisplayTable extends JTable {
 				Object value, boolean isSelected, boolean hasFocus, int row,
 				int column) {
 			final MetaData dbObj = (MetaData) value;
-			return super.getTableCellRendererComponent(table, dbObj
-					.displayName(), isSelected, hasFocus, row, column);
+			return super.getTableCellRendererComponent(table,
+					dbObj == null ? null : dbObj.displayName(), isSelected,
+					hasFocus, row, column);
 		}
 	};
 
@@ -66,7 +67,7 @@ public final class DisplayTable extends JTable {
 				Object value, boolean isSelected, boolean hasFocus, int row,
 				int column) {
 			JCheckBox checkBox = new JCheckBox();
-			checkBox.setSelected((Boolean) value);
+			checkBox.setSelected(Boolean.TRUE.equals(value));
 			checkBox.setHorizontalAlignment(JCheckBox.CENTER);
 			checkBox.setOpaque(true);
 			checkBox.setBackground(getRowBackground(row));
@@ -100,13 +101,18 @@ public final class DisplayTable extends JTable {
 
 	/**
 	 * Return the background colour that the row with the given index should be
-	 * displayed with.
+	 * displayed with. Rows of a model other than a {@code DisplayTableModel}
+	 * have no state, so are only ever shown as selected or not.
 	 * 
 	 * @param row
 	 *            the row index.
 	 * @return the background colour.
 	 */
 	private Color getRowBackground(int row) {
+		if (tableModel == null) {
+			return isRowSelected(row) ? getSelectionBackground()
+					: DisplayTableModel.defaultRowColor(row);
+		}
 		if (isRowSelected(row)
 				&& tableModel.getRowState(row) == DisplayTableModel.State.DEFAULT) {
 			return getSelectionBackground();
@@ -127,7 +133,7 @@ public final class DisplayTable extends JTable {
 	public String getToolTipText(MouseEvent event) {
 
 		int row = rowAtPoint(event.getPoint());
-		if (row == -1) {
+		if (row == -1 || tableModel == null) {
 			return null;
 		}
 
@@ -154,10 +154,21 @@ public final class DisplayTableModel extends DefaultTableModel {
             case FAILED:
                 return FAILED_COLOR;
             default:
-                return (rowIdx % 2 == 0 ? DEFAULT_COLOR_LIGHT : DEFAULT_COLOR_DARK);
+                return defaultRowColor(rowIdx);
         }
     }
 
+    /**
+     * Return the background colour of a row which has no state, alternating
+     * between light and dark rows.
+     *
+     * @param rowIdx the row index.
+     * @return the background colour.
+     */
+    static Color defaultRowColor(int rowIdx) {
+        return (rowIdx % 2 == 0 ? DEFAULT_COLOR_LIGHT : DEFAULT_COLOR_DARK);
+    }
+
     /**
      * Return an exception stored against the given row.
      *
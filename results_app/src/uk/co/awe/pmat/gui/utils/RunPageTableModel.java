@@ -0,0 +1,232 @@
+package uk.co.awe.pmat.gui.utils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.swing.table.AbstractTableModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.awe.pmat.db.AsyncDatabaseConnection;
+import uk.co.awe.pmat.db.DatabaseConnection;
+import uk.co.awe.pmat.db.DatabaseException;
+import uk.co.awe.pmat.db.DatabaseManager;
+import uk.co.awe.pmat.db.Run;
+import uk.co.awe.pmat.db.RunPage;
+import uk.co.awe.pmat.db.RunQuery;
+
+/**
+ * A table model showing the {@code Run}s stored in the database, which only
+ * reads the pages of runs that are scrolled into view. The runs are sorted
+ * and filtered by the database, and pages which have not been read yet are
+ * read in the background, their rows showing as empty until they arrive.
+ *
+ * @author AWE Plc copyright 2013
+ */
+public final class RunPageTableModel extends AbstractTableModel {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RunPageTableModel.class);
+
+    private static final int PAGE_SIZE = 200;
+    private static final int CACHED_PAGES = 50;
+
+    private final Map<Integer, List<Run>> pages = new LinkedHashMap<Integer, List<Run>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<Run>> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+    private final Map<Integer, RunQuery.Key> lastKeys = new HashMap<>();
+    private final Set<Integer> loading = new HashSet<>();
+
+    private RunQuery query = new RunQuery(Run.TABLE_COLUMNS.get(0), true, null);
+    private int rowCount = 0;
+
+    /** Counts the times the pages have been forgotten, to ignore stale pages. */
+    private int generation = 0;
+
+    /**
+     * Count the runs matching the current filter and forget any pages
+     * already read, so that the table shows the runs now in the database.
+     *
+     * @throws DatabaseException if an error occurs counting the runs.
+     */
+    public void reload() throws DatabaseException {
+        final RunQuery countQuery;
+        synchronized (this) {
+            countQuery = query;
+        }
+        final int count = DatabaseManager.getConnection().getRunCount(countQuery);
+        synchronized (this) {
+            rowCount = count;
+            clearPages();
+        }
+        fireTableDataChanged();
+    }
+
+    /**
+     * Sort the runs on the given column, reversing the order if they are
+     * already sorted on it.
+     *
+     * @param column the index of the column to sort on.
+     */
+    public void sortBy(int column) {
+        final Run.Column sortColumn = Run.TABLE_COLUMNS.get(column);
+        synchronized (this) {
+            final boolean ascending = (query.getSortColumn() != sortColumn) || !query.isAscending();
+            query = new RunQuery(sortColumn, ascending, query.getFilter());
+            clearPages();
+        }
+        fireTableDataChanged();
+    }
+
+    /**
+     * Show only the runs containing the given text.
+     *
+     * @param filter the text to filter the runs by, or {@code null} or an
+     * empty string to show all the runs.
+     * @throws DatabaseException if an error occurs counting the runs.
+     */
+    public void setFilter(String filter) throws DatabaseException {
+        synchronized (this) {
+            query = new RunQuery(query.getSortColumn(), query.isAscending(), filter);
+        }
+        reload();
+    }
+
+    /**
+     * Return the {@code Run} shown in the given row, reading its page from
+     * the database if it has not been read yet.
+     *
+     * @param row the row index.
+     * @return the run.
+     * @throws DatabaseException if an error occurs reading the page.
+     */
+    public Run getRun(int row) throws DatabaseException {
+        final int page = row / PAGE_SIZE;
+        final RunQuery pageQuery;
+        final int pageGeneration;
+        synchronized (this) {
+            final List<Run> runs = pages.get(page);
+            if (runs != null) {
+                return runs.get(row % PAGE_SIZE);
+            }
+            pageQuery = pageQuery(page);
+            pageGeneration = generation;
+        }
+        final RunPage runPage = DatabaseManager.getConnection().getRuns(pageQuery);
+        synchronized (this) {
+            storePage(pageGeneration, page, runPage);
+        }
+        return runPage.getRuns().get(row % PAGE_SIZE);
+    }
+
+    @Override
+    public synchronized int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return Run.TABLE_COLUMNS.size();
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return Run.TABLE_COLUMNS.get(column).getColumnName();
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return Run.TABLE_COLUMNS.get(column).getColumnClass();
+    }
+
+    @Override
+    public synchronized Object getValueAt(int row, int column) {
+        final int page = row / PAGE_SIZE;
+        final List<Run> runs = pages.get(page);
+        if (runs == null) {
+            loadPage(page);
+            return null;
+        }
+        if (row % PAGE_SIZE >= runs.size()) {
+            return null;
+        }
+        return runs.get(row % PAGE_SIZE).getColumnData(Run.TABLE_COLUMNS.get(column));
+    }
+
+    /**
+     * Return the query for the given page, which seeks past the last run of
+     * the page before it if that has been read, rather than skipping over
+     * every run before the page.
+     */
+    private RunQuery pageQuery(int page) {
+        final RunQuery.Key after = lastKeys.get(page - 1);
+        return (after != null) ? query.after(after, PAGE_SIZE) : query.at(page * PAGE_SIZE, PAGE_SIZE);
+    }
+
+    /**
+     * Read the given page in the background, unless it is already being read.
+     */
+    private void loadPage(final int page) {
+        if (!loading.add(page)) {
+            return;
+        }
+        final RunQuery pageQuery = pageQuery(page);
+        final int pageGeneration = generation;
+        DatabaseManager.getAsyncConnection().submit(null, Arrays.asList("runs", pageQuery),
+                new AsyncDatabaseConnection.Query<RunPage>() {
+            @Override
+            public RunPage run(DatabaseConnection connection) throws DatabaseException {
+                return connection.getRuns(pageQuery);
+            }
+        }, new AsyncDatabaseConnection.Callback<RunPage>() {
+            @Override
+            public void succeeded(RunPage runPage) {
+                final boolean stored;
+                synchronized (RunPageTableModel.this) {
+                    stored = storePage(pageGeneration, page, runPage);
+                }
+                if (stored) {
+                    fireTableRowsUpdated(page * PAGE_SIZE,
+                            Math.min(getRowCount(), (page + 1) * PAGE_SIZE) - 1);
+                }
+            }
+
+            @Override
+            public void failed(DatabaseException ex) {
+                // The page is left marked as loading, rather than asking for
+                // it again on every repaint, until the table is reloaded.
+                LOG.error("Failed to read runs from database", ex);
+            }
+        });
+    }
+
+    /**
+     * Keep the given page, unless the pages have been forgotten since it was
+     * asked for, e.g. because the runs have been sorted differently.
+     *
+     * @return {@code true} if the page was kept.
+     */
+    private boolean storePage(int pageGeneration, int page, RunPage runPage) {
+        if (pageGeneration != generation) {
+            return false;
+        }
+        loading.remove(page);
+        pages.put(page, runPage.getRuns());
+        if (runPage.getLastKey() != null) {
+            lastKeys.put(page, runPage.getLastKey());
+        }
+        return true;
+    }
+
+    private void clearPages() {
+        pages.clear();
+        lastKeys.clear();
+        loading.clear();
+        ++generation;
+    }
+}
@@ -0,0 +1,757 @@
+package uk.co.awe.pmat.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A compressed set of non-negative {@code long} IDs, such as database IDs,
+ * which uses far less memory than a {@code Set<Long>} and can be intersected
+ * and merged quickly.
+ *
+ * <p>The IDs are split into blocks of 2<sup>16</sup> by their high bits, and
+ * the low bits of the IDs in each block are held in whichever of three
+ * containers is smallest: a sorted array when the block is sparse, a bitmap
+ * when it is dense, or a list of runs of consecutive IDs when it is mostly
+ * made up of ranges, as auto-incremented IDs usually are.</p>
+ *
+ * <p>Adding IDs in ascending order is much quicker than adding them in any
+ * other order. Once all the IDs have been added {@link #optimise()} should be
+ * called to compress runs of IDs.</p>
+ *
+ * @author AWE Plc copyright 2013
+ */
+public final class CompressedBitmap implements Iterable<Long> {
+
+	/** The largest ID that can be held. */
+	public static final long MAX_ID = (1L << 47) - 1;
+
+	/** The most values held in an array container before using a bitmap. */
+	private static final int ARRAY_MAX_SIZE = 4096;
+
+	/** The number of 64 bit words in a bitmap container. */
+	private static final int BITMAP_WORDS = 1024;
+
+	private int[] keys = new int[4];
+	private Container[] containers = new Container[4];
+	private int size = 0;
+
+	/**
+	 * Create a new, empty, {@code CompressedBitmap}.
+	 */
+	public CompressedBitmap() {
+	}
+
+	/**
+	 * Create a new {@code CompressedBitmap} holding the given IDs.
+	 *
+	 * @param ids
+	 *            the IDs.
+	 * @return the bitmap.
+	 */
+	public static CompressedBitmap of(Collection<Long> ids) {
+		final CompressedBitmap bitmap = new CompressedBitmap();
+		for (Long id : ids) {
+			bitmap.add(id);
+		}
+		bitmap.optimise();
+		return bitmap;
+	}
+
+	/**
+	 * Add an ID to the set.
+	 *
+	 * @param id
+	 *            the ID to add.
+	 * @throws IllegalArgumentException
+	 *             if the ID is negative or greater than {@link #MAX_ID}.
+	 */
+	public void add(long id) {
+		if (id < 0 || id > MAX_ID) {
+			throw new IllegalArgumentException("ID out of range: " + id);
+		}
+		final int key = (int) (id >>> 16);
+		final char low = (char) id;
+
+		// Fast path for IDs added in ascending order.
+		int idx = (size > 0 && keys[size - 1] == key) ? size - 1 : find(key);
+		if (idx < 0) {
+			idx = -idx - 1;
+			insert(idx, key, new ArrayContainer());
+		}
+		containers[idx] = containers[idx].add(low);
+	}
+
+	/**
+	 * Return {@code true} if the set contains the given ID.
+	 *
+	 * @param id
+	 *            the ID to look for.
+	 * @return whether the ID is in the set.
+	 */
+	public boolean contains(long id) {
+		if (id < 0 || id > MAX_ID) {
+			return false;
+		}
+		final int idx = find((int) (id >>> 16));
+		return idx >= 0 && containers[idx].contains((char) id);
+	}
+
+	/**
+	 * Return the number of IDs in the set.
+	 *
+	 * @return the number of IDs.
+	 */
+	public long cardinality() {
+		long cardinality = 0;
+		for (int idx = 0; idx < size; ++idx) {
+			cardinality += containers[idx].cardinality();
+		}
+		return cardinality;
+	}
+
+	/**
+	 * Return the approximate number of bytes of memory used to hold the IDs.
+	 *
+	 * @return the size in bytes.
+	 */
+	public long sizeInBytes() {
+		long bytes = 8 * keys.length;
+		for (int idx = 0; idx < size; ++idx) {
+			bytes += containers[idx].sizeInBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Return {@code true} if the set is empty.
+	 *
+	 * @return whether the set is empty.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Return a new set holding the IDs which are in both this set and the
+	 * given set.
+	 *
+	 * @param other
+	 *            the set to intersect with.
+	 * @return the intersection.
+	 */
+	public CompressedBitmap and(CompressedBitmap other) {
+		final CompressedBitmap result = new CompressedBitmap();
+		int i = 0;
+		int j = 0;
+		while (i < size && j < other.size) {
+			if (keys[i] < other.keys[j]) {
+				++i;
+			} else if (keys[i] > other.keys[j]) {
+				++j;
+			} else {
+				final Container container = containers[i].and(other.containers[j]);
+				if (container.cardinality() > 0) {
+					result.append(keys[i], container.optimise());
+				}
+				++i;
+				++j;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return a new set holding the IDs which are in either this set or the
+	 * given set.
+	 *
+	 * @param other
+	 *            the set to merge with.
+	 * @return the union.
+	 */
+	public CompressedBitmap or(CompressedBitmap other) {
+		final CompressedBitmap result = new CompressedBitmap();
+		int i = 0;
+		int j = 0;
+		while (i < size || j < other.size) {
+			if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+				result.append(keys[i], containers[i].copy());
+				++i;
+			} else if (i == size || keys[i] > other.keys[j]) {
+				result.append(other.keys[j], other.containers[j].copy());
+				++j;
+			} else {
+				result.append(keys[i], containers[i].or(other.containers[j]).optimise());
+				++i;
+				++j;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Convert each block of IDs to whichever container holds it in the least
+	 * memory, which is usually only worth doing once all the IDs have been
+	 * added.
+	 */
+	public void optimise() {
+		for (int idx = 0; idx < size; ++idx) {
+			containers[idx] = containers[idx].optimise();
+		}
+	}
+
+	/**
+	 * Return the IDs as a list, in ascending order.
+	 *
+	 * @return the IDs.
+	 */
+	public List<Long> toList() {
+		final long cardinality = cardinality();
+		if (cardinality > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Too many IDs to hold in a list: "
+					+ cardinality);
+		}
+		final List<Long> ids = new ArrayList<>((int) cardinality);
+		for (Long id : this) {
+			ids.add(id);
+		}
+		return ids;
+	}
+
+	/**
+	 * Return an iterator over the IDs, in ascending order.
+	 *
+	 * @return the iterator.
+	 */
+	@Override
+	public Iterator<Long> iterator() {
+		return new Iterator<Long>() {
+			private int containerIdx = 0;
+			private char[] values = (size > 0) ? containers[0].toArray() : new char[0];
+			private int valueIdx = 0;
+
+			@Override
+			public boolean hasNext() {
+				while (valueIdx == values.length) {
+					if (containerIdx + 1 >= size) {
+						return false;
+					}
+					++containerIdx;
+					values = containers[containerIdx].toArray();
+					valueIdx = 0;
+				}
+				return true;
+			}
+
+			@Override
+			public Long next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				final long high = ((long) keys[containerIdx]) << 16;
+				return high | values[valueIdx++];
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException("Not supported.");
+			}
+		};
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof CompressedBitmap)) {
+			return false;
+		}
+		final CompressedBitmap other = (CompressedBitmap) obj;
+		if (size != other.size || cardinality() != other.cardinality()) {
+			return false;
+		}
+		final Iterator<Long> it = other.iterator();
+		for (Long id : this) {
+			if (!id.equals(it.next())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = 7;
+		for (Long id : this) {
+			hash = 31 * hash + id.hashCode();
+		}
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return "CompressedBitmap[" + cardinality() + " IDs]";
+	}
+
+	private int find(int key) {
+		return Arrays.binarySearch(keys, 0, size, key);
+	}
+
+	private void insert(int idx, int key, Container container) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			containers = Arrays.copyOf(containers, size * 2);
+		}
+		System.arraycopy(keys, idx, keys, idx + 1, size - idx);
+		System.arraycopy(containers, idx, containers, idx + 1, size - idx);
+		keys[idx] = key;
+		containers[idx] = container;
+		++size;
+	}
+
+	private void append(int key, Container container) {
+		insert(size, key, container);
+	}
+
+	/**
+	 * The low 16 bits of the IDs in one block.
+	 */
+	private abstract static class Container {
+		/** Add a value, returning the container now holding the values. */
+		abstract Container add(char value);
+
+		abstract boolean contains(char value);
+
+		abstract int cardinality();
+
+		/** Return a new container holding the values in both containers. */
+		abstract Container and(Container other);
+
+		/** Return a new container holding the values in either container. */
+		abstract Container or(Container other);
+
+		/** Return the values in ascending order. */
+		abstract char[] toArray();
+
+		abstract Container copy();
+
+		/** Return the approximate size of the container in bytes. */
+		abstract int sizeInBytes();
+
+		BitmapContainer toBitmap() {
+			final BitmapContainer bitmap = new BitmapContainer();
+			for (char value : toArray()) {
+				bitmap.add(value);
+			}
+			return bitmap;
+		}
+
+		/**
+		 * Return whichever of the possible containers holds the same values
+		 * in the least memory.
+		 */
+		Container optimise() {
+			final char[] values = toArray();
+			int runs = 0;
+			for (int idx = 0; idx < values.length; ++idx) {
+				if (idx == 0 || values[idx] != values[idx - 1] + 1) {
+					++runs;
+				}
+			}
+			final int arrayBytes = 2 * values.length;
+			final int bitmapBytes = 8 * BITMAP_WORDS;
+			final int runBytes = 4 * runs;
+
+			if (runBytes < arrayBytes && runBytes < bitmapBytes) {
+				return (this instanceof RunContainer) ? this : RunContainer.fromSorted(values, runs);
+			}
+			if (values.length <= ARRAY_MAX_SIZE) {
+				return (this instanceof ArrayContainer) ? this : new ArrayContainer(values);
+			}
+			return (this instanceof BitmapContainer) ? this : toBitmap();
+		}
+	}
+
+	/**
+	 * A sorted array of values, used for sparse blocks.
+	 */
+	private static final class ArrayContainer extends Container {
+		private char[] values;
+		private int size;
+
+		ArrayContainer() {
+			this.values = new char[4];
+			this.size = 0;
+		}
+
+		ArrayContainer(char[] values) {
+			this.values = values;
+			this.size = values.length;
+		}
+
+		@Override
+		Container add(char value) {
+			// Fast path for values added in ascending order.
+			int idx = (size == 0 || values[size - 1] < value) ? -size - 1
+					: Arrays.binarySearch(values, 0, size, value);
+			if (idx >= 0) {
+				return this;
+			}
+			if (size == ARRAY_MAX_SIZE) {
+				return toBitmap().add(value);
+			}
+			idx = -idx - 1;
+			if (size == values.length) {
+				values = Arrays.copyOf(values, Math.min(size * 2, ARRAY_MAX_SIZE));
+			}
+			System.arraycopy(values, idx, values, idx + 1, size - idx);
+			values[idx] = value;
+			++size;
+			return this;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return Arrays.binarySearch(values, 0, size, value) >= 0;
+		}
+
+		@Override
+		int cardinality() {
+			return size;
+		}
+
+		@Override
+		Container and(Container other) {
+			final char[] result = new char[size];
+			int count = 0;
+			for (int idx = 0; idx < size; ++idx) {
+				if (other.contains(values[idx])) {
+					result[count++] = values[idx];
+				}
+			}
+			return new ArrayContainer(Arrays.copyOf(result, count));
+		}
+
+		@Override
+		Container or(Container other) {
+			if (!(other instanceof ArrayContainer)) {
+				return other.or(this);
+			}
+			final ArrayContainer that = (ArrayContainer) other;
+			final char[] result = new char[size + that.size];
+			int i = 0;
+			int j = 0;
+			int count = 0;
+			while (i < size || j < that.size) {
+				if (j == that.size || (i < size && values[i] < that.values[j])) {
+					result[count++] = values[i++];
+				} else if (i == size || values[i] > that.values[j]) {
+					result[count++] = that.values[j++];
+				} else {
+					result[count++] = values[i++];
+					++j;
+				}
+			}
+			final ArrayContainer merged = new ArrayContainer(Arrays.copyOf(result, count));
+			return (count > ARRAY_MAX_SIZE) ? merged.toBitmap() : merged;
+		}
+
+		@Override
+		char[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+
+		@Override
+		Container copy() {
+			return new ArrayContainer(toArray());
+		}
+
+		@Override
+		int sizeInBytes() {
+			return 2 * values.length;
+		}
+	}
+
+	/**
+	 * A bitmap of all 2<sup>16</sup> values, used for dense blocks.
+	 */
+	private static final class BitmapContainer extends Container {
+		private final long[] words;
+		private int cardinality;
+
+		BitmapContainer() {
+			this(new long[BITMAP_WORDS], 0);
+		}
+
+		BitmapContainer(long[] words, int cardinality) {
+			this.words = words;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		Container add(char value) {
+			final long bit = 1L << value;
+			if ((words[value >>> 6] & bit) == 0) {
+				words[value >>> 6] |= bit;
+				++cardinality;
+			}
+			return this;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		Container and(Container other) {
+			if (other instanceof ArrayContainer) {
+				return other.and(this);
+			}
+			final BitmapContainer that = (other instanceof BitmapContainer)
+					? (BitmapContainer) other : other.toBitmap();
+			final long[] result = new long[BITMAP_WORDS];
+			int count = 0;
+			for (int idx = 0; idx < BITMAP_WORDS; ++idx) {
+				result[idx] = words[idx] & that.words[idx];
+				count += Long.bitCount(result[idx]);
+			}
+			return new BitmapContainer(result, count);
+		}
+
+		@Override
+		Container or(Container other) {
+			final long[] result = Arrays.copyOf(words, BITMAP_WORDS);
+			if (other instanceof BitmapContainer) {
+				final BitmapContainer that = (BitmapContainer) other;
+				for (int idx = 0; idx < BITMAP_WORDS; ++idx) {
+					result[idx] |= that.words[idx];
+				}
+			} else {
+				for (char value : other.toArray()) {
+					result[value >>> 6] |= 1L << value;
+				}
+			}
+			int count = 0;
+			for (long word : result) {
+				count += Long.bitCount(word);
+			}
+			return new BitmapContainer(result, count);
+		}
+
+		@Override
+		char[] toArray() {
+			final char[] values = new char[cardinality];
+			int count = 0;
+			for (int idx = 0; idx < BITMAP_WORDS; ++idx) {
+				long word = words[idx];
+				while (word != 0) {
+					values[count++] = (char) ((idx << 6) + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return values;
+		}
+
+		@Override
+		Container copy() {
+			return new BitmapContainer(Arrays.copyOf(words, BITMAP_WORDS), cardinality);
+		}
+
+		@Override
+		int sizeInBytes() {
+			return 8 * BITMAP_WORDS;
+		}
+
+		@Override
+		BitmapContainer toBitmap() {
+			return this;
+		}
+	}
+
+	/**
+	 * Runs of consecutive values, each held as its first value and length,
+	 * used for blocks made up of ranges.
+	 */
+	private static final class RunContainer extends Container {
+		private final char[] starts;
+		/** The length of each run, less one, so that 65536 fits. */
+		private final char[] lengths;
+		private final int runs;
+
+		RunContainer(char[] starts, char[] lengths, int runs) {
+			this.starts = starts;
+			this.lengths = lengths;
+			this.runs = runs;
+		}
+
+		static RunContainer fromSorted(char[] values, int runs) {
+			final char[] starts = new char[runs];
+			final char[] lengths = new char[runs];
+			int run = -1;
+			for (int idx = 0; idx < values.length; ++idx) {
+				if (idx == 0 || values[idx] != values[idx - 1] + 1) {
+					++run;
+					starts[run] = values[idx];
+					lengths[run] = 0;
+				} else {
+					++lengths[run];
+				}
+			}
+			return new RunContainer(starts, lengths, runs);
+		}
+
+		@Override
+		Container add(char value) {
+			if (contains(value)) {
+				return this;
+			}
+			// Runs are only built once all the values are known, so adding
+			// to one is rare and need not be quick.
+			return toBitmap().add(value).optimise();
+		}
+
+		@Override
+		boolean contains(char value) {
+			int lo = 0;
+			int hi = runs - 1;
+			while (lo <= hi) {
+				final int mid = (lo + hi) >>> 1;
+				if (starts[mid] > value) {
+					hi = mid - 1;
+				} else if (starts[mid] + lengths[mid] < value) {
+					lo = mid + 1;
+				} else {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		int cardinality() {
+			int cardinality = 0;
+			for (int idx = 0; idx < runs; ++idx) {
+				cardinality += lengths[idx] + 1;
+			}
+			return cardinality;
+		}
+
+		@Override
+		Container and(Container other) {
+			if (!(other instanceof RunContainer)) {
+				return other.and(this);
+			}
+			final RunContainer that = (RunContainer) other;
+			final char[] resultStarts = new char[runs + that.runs];
+			final char[] resultLengths = new char[runs + that.runs];
+			int count = 0;
+			int i = 0;
+			int j = 0;
+			while (i < runs && j < that.runs) {
+				final int start = Math.max(starts[i], that.starts[j]);
+				final int endI = starts[i] + lengths[i];
+				final int endJ = that.starts[j] + that.lengths[j];
+				final int end = Math.min(endI, endJ);
+				if (start <= end) {
+					resultStarts[count] = (char) start;
+					resultLengths[count] = (char) (end - start);
+					++count;
+				}
+				if (endI < endJ) {
+					++i;
+				} else {
+					++j;
+				}
+			}
+			return new RunContainer(resultStarts, resultLengths, count);
+		}
+
+		@Override
+		Container or(Container other) {
+			if (!(other instanceof RunContainer)) {
+				return toBitmap().or(other);
+			}
+			final RunContainer that = (RunContainer) other;
+			final char[] resultStarts = new char[runs + that.runs];
+			final char[] resultLengths = new char[runs + that.runs];
+			int count = 0;
+			int i = 0;
+			int j = 0;
+			int start = -1;
+			int end = -2;
+			while (i < runs || j < that.runs) {
+				final int nextStart;
+				final int nextEnd;
+				if (j == that.runs || (i < runs && starts[i] <= that.starts[j])) {
+					nextStart = starts[i];
+					nextEnd = starts[i] + lengths[i];
+					++i;
+				} else {
+					nextStart = that.starts[j];
+					nextEnd = that.starts[j] + that.lengths[j];
+					++j;
+				}
+				if (nextStart <= end + 1) {
+					end = Math.max(end, nextEnd);
+				} else {
+					if (start >= 0) {
+						resultStarts[count] = (char) start;
+						resultLengths[count] = (char) (end - start);
+						++count;
+					}
+					start = nextStart;
+					end = nextEnd;
+				}
+			}
+			if (start >= 0) {
+				resultStarts[count] = (char) start;
+				resultLengths[count] = (char) (end - start);
+				++count;
+			}
+			return new RunContainer(resultStarts, resultLengths, count);
+		}
+
+		@Override
+		char[] toArray() {
+			final char[] values = new char[cardinality()];
+			int count = 0;
+			for (int idx = 0; idx < runs; ++idx) {
+				for (int value = starts[idx]; value <= starts[idx] + lengths[idx]; ++value) {
+					values[count++] = (char) value;
+				}
+			}
+			return values;
+		}
+
+		@Override
+		Container copy() {
+			return new RunContainer(Arrays.copyOf(starts, runs), Arrays.copyOf(lengths, runs), runs);
+		}
+
+		@Override
+		int sizeInBytes() {
+			return 4 * starts.length;
+		}
+
+		@Override
+		BitmapContainer toBitmap() {
+			final long[] words = new long[BITMAP_WORDS];
+			for (int idx = 0; idx < runs; ++idx) {
+				for (int value = starts[idx]; value <= starts[idx] + lengths[idx]; ++value) {
+					words[value >>> 6] |= 1L << value;
+				}
+			}
+			return new BitmapContainer(words, cardinality());
+		}
+	}
+}
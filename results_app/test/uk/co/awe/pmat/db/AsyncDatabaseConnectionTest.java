@@ -0,0 +1,171 @@
+package uk.co.awe.pmat.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ *
+ * @author AWE Plc copyright 2013
+ */
+public class AsyncDatabaseConnectionTest {
+
+    private final List<Thread> cancelledThreads = new CopyOnWriteArrayList<>();
+    private final CountDownLatch queryCancelled = new CountDownLatch(1);
+    private AsyncDatabaseConnection asyncConnection;
+
+    public AsyncDatabaseConnectionTest() {
+    }
+
+    @Before
+    public void setUp() {
+        // Only cancelQuery is called on the connection by the class itself.
+        DatabaseConnection connection = (DatabaseConnection) Proxy.newProxyInstance(
+                DatabaseConnection.class.getClassLoader(),
+                new Class<?>[] { DatabaseConnection.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("cancelQuery")) {
+                            cancelledThreads.add((Thread) args[0]);
+                            queryCancelled.countDown();
+                        }
+                        return null;
+                    }
+                });
+        asyncConnection = new AsyncDatabaseConnection(connection, 2, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        asyncConnection.shutdown();
+    }
+
+    /**
+     * A query which waits to be released, recording the thread running it.
+     */
+    private static final class BlockingQuery implements AsyncDatabaseConnection.Query<String> {
+        private final String result;
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger runs = new AtomicInteger();
+        private volatile Thread thread;
+
+        BlockingQuery(String result) {
+            this.result = result;
+        }
+
+        @Override
+        public String run(DatabaseConnection connection) throws DatabaseException {
+            runs.incrementAndGet();
+            thread = Thread.currentThread();
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                throw new DatabaseException(ex);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A callback which records the results it receives.
+     */
+    private static final class RecordingCallback implements AsyncDatabaseConnection.Callback<String> {
+        private final List<String> results = new CopyOnWriteArrayList<>();
+        private final CountDownLatch called = new CountDownLatch(1);
+
+        @Override
+        public void succeeded(String result) {
+            results.add(result);
+            called.countDown();
+        }
+
+        @Override
+        public void failed(DatabaseException ex) {
+            results.add("failed");
+            called.countDown();
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="queries_with_equal_keys_are_run_once">
+    @Test
+    public void queries_with_equal_keys_are_run_once() throws Exception {
+        BlockingQuery query = new BlockingQuery("fields");
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+
+        asyncConnection.submit(null, "key", query, first);
+        assertTrue(query.started.await(10, TimeUnit.SECONDS));
+        asyncConnection.submit(null, "key", query, second);
+        query.release.countDown();
+
+        assertTrue(first.called.await(10, TimeUnit.SECONDS));
+        assertTrue(second.called.await(10, TimeUnit.SECONDS));
+        assertThat(query.runs.get(), is(1));
+        assertThat(first.results.get(0), is("fields"));
+        assertThat(second.results.get(0), is("fields"));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="superseded_queries_are_cancelled">
+    @Test
+    public void superseded_queries_are_cancelled() throws Exception {
+        final Object owner = new Object();
+        BlockingQuery stale = new BlockingQuery("stale");
+        BlockingQuery fresh = new BlockingQuery("fresh");
+        RecordingCallback staleCallback = new RecordingCallback();
+        RecordingCallback freshCallback = new RecordingCallback();
+
+        asyncConnection.submit(owner, "stale", stale, staleCallback);
+        assertTrue(stale.started.await(10, TimeUnit.SECONDS));
+        asyncConnection.submit(owner, "fresh", fresh, freshCallback);
+
+        assertTrue(queryCancelled.await(10, TimeUnit.SECONDS));
+        assertThat(cancelledThreads, equalTo((List<Thread>) Arrays.asList(stale.thread)));
+
+        stale.release.countDown();
+        fresh.release.countDown();
+        assertTrue(freshCallback.called.await(10, TimeUnit.SECONDS));
+        assertThat(freshCallback.results.get(0), is("fresh"));
+        assertThat(staleCallback.results.isEmpty(), is(true));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="queries_shared_with_another_owner_are_not_cancelled">
+    @Test
+    public void queries_shared_with_another_owner_are_not_cancelled() throws Exception {
+        final Object owner = new Object();
+        BlockingQuery query = new BlockingQuery("shared");
+        RecordingCallback cancelled = new RecordingCallback();
+        RecordingCallback other = new RecordingCallback();
+
+        asyncConnection.submit(owner, "key", query, cancelled);
+        asyncConnection.submit(new Object(), "key", query, other);
+        assertTrue(query.started.await(10, TimeUnit.SECONDS));
+        asyncConnection.cancel(owner);
+        query.release.countDown();
+
+        assertTrue(other.called.await(10, TimeUnit.SECONDS));
+        assertThat(other.results.get(0), is("shared"));
+        assertThat(cancelled.results.isEmpty(), is(true));
+        assertThat(cancelledThreads.isEmpty(), is(true));
+    }// </editor-fold>
+
+}
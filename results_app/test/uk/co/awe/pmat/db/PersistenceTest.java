@@ -5,12 +5,20 @@ import uk.co.awe.pmat.Configuration;
 import uk.co.awe.pmat.db.jdbc.JdbcDatabaseConnection;
 import uk.co.awe.pmat.db.jdbc.JdbcProperties;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import static org.hamcrest.CoreMatchers.*;
+import uk.co.awe.pmat.db.criteria.Category;
+import uk.co.awe.pmat.db.criteria.Comparator;
 
 /**
  *
@@ -191,4 +199,62 @@ public class PersistenceTest {
 
     }// </editor-fold>
 
-}
\ No newline at end of file
+    // <editor-fold defaultstate="collapsed" desc="test_value_counts">
+    @Test
+    public void test_value_counts() throws DatabaseException {
+        
+        final List<Run> runs = new ArrayList<>();
+        final String[] machines = { "Count Machine A", "Count Machine A", "Count Machine B" };
+        for (int idx = 0; idx < machines.length; ++idx) {
+            final Run run = new Run("countRun" + idx, new Date(1000000L), new Date(2000000L),
+                    Arrays.<MetaData>asList(new Machine(machines[idx], "Count Vendor")),
+                    "tester", false, "countRun" + idx + ".txt", "Count Tag");
+            for (int procs = 1; procs <= idx + 1; ++procs) {
+                run.addDataSet(new RunData(
+                        Arrays.<Value<?>>asList(new Value<>("countProcessors", Rank.UNKNOWN, procs)),
+                        Arrays.asList(new Value<>("countTime", Rank.fromInteger(0), 1.0),
+                                new Value<>("countTime", Rank.fromInteger(1), 1.0))));
+            }
+            runs.add(run);
+        }
+        DatabaseManager.getConnection().saveAll(runs);
+        
+        Restriction byVendor = DatabaseManager.getConnection().newRestriction(Category.MACHINE, "vendor",
+                Rank.ANY_RANK, Comparator.EQ, new Value<>("vendor", Rank.ANY_RANK, "Count Vendor"));
+        Restriction onMachineA = DatabaseManager.getConnection().newRestriction(Category.MACHINE, "name",
+                Rank.ANY_RANK, Comparator.EQ, new Value<>("name", Rank.ANY_RANK, "Count Machine A"));
+        
+        Map<String, List<ValueCount>> machineCounts = DatabaseManager.getConnection().getValueCounts(
+                Collections.singletonList(byVendor), Category.MACHINE, Arrays.asList("name", "vendor"));
+        Map<String, List<ValueCount>> parameterCounts = DatabaseManager.getConnection().getValueCounts(
+                Collections.singletonList(onMachineA), Category.PARAMETER, Arrays.asList("countProcessors", "missing"));
+        Map<String, List<ValueCount>> resultCounts = DatabaseManager.getConnection().getValueCounts(
+                Collections.singletonList(byVendor), Category.RESULT, Arrays.asList("countTime"));
+        Map<String, List<ValueCount>> otherCaseCounts = DatabaseManager.getConnection().getValueCounts(
+                Collections.singletonList(byVendor), Category.RESULT, Arrays.asList("COUNTTIME"));
+        
+        assertThat(machineCounts.get("name"), equalTo(Arrays.asList(
+                new ValueCount(new Value<>("name", Rank.ANY_RANK, "Count Machine A"), 3),
+                new ValueCount(new Value<>("name", Rank.ANY_RANK, "Count Machine B"), 3))));
+        assertThat(machineCounts.get("vendor"), equalTo(Arrays.asList(
+                new ValueCount(new Value<>("vendor", Rank.ANY_RANK, "Count Vendor"), 6))));
+        assertThat(parameterCounts.get("countProcessors"), equalTo(Arrays.asList(
+                new ValueCount(new Value<>("countProcessors", Rank.ANY_RANK, 1), 2),
+                new ValueCount(new Value<>("countProcessors", Rank.ANY_RANK, 2), 1))));
+        assertThat(parameterCounts.get("missing").isEmpty(), is(true));
+        // A result has a row for each rank, but each sub run is counted once.
+        assertThat(resultCounts.get("countTime"), equalTo(Arrays.asList(
+                new ValueCount(new Value<>("countTime", Rank.ANY_RANK, 1.0), 6))));
+        // Names are matched ignoring case, as the database compares them.
+        assertThat(otherCaseCounts.get("COUNTTIME"), equalTo(Arrays.asList(
+                new ValueCount(new Value<>("COUNTTIME", Rank.ANY_RANK, 1.0), 6))));
+        
+        try {
+            DatabaseManager.getConnection().getValueCounts(null, Category.MACHINE, Arrays.asList("missing"));
+            fail("Expected an unknown field to be rejected");
+        } catch (IllegalArgumentException ex) {
+            assertThat(ex.getMessage(), containsString("missing"));
+        }
+    }// </editor-fold>
+
+}
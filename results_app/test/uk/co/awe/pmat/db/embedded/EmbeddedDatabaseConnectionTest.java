@@ -0,0 +1,219 @@
+package uk.co.awe.pmat.db.embedded;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import uk.co.awe.pmat.db.Application;
+import uk.co.awe.pmat.db.DataGrid;
+import uk.co.awe.pmat.db.DatabaseException;
+import uk.co.awe.pmat.db.ErrorType;
+import uk.co.awe.pmat.db.Machine;
+import uk.co.awe.pmat.db.MetaData;
+import uk.co.awe.pmat.db.Rank;
+import uk.co.awe.pmat.db.Restriction;
+import uk.co.awe.pmat.db.Run;
+import uk.co.awe.pmat.db.RunData;
+import uk.co.awe.pmat.db.RunPage;
+import uk.co.awe.pmat.db.RunQuery;
+import uk.co.awe.pmat.db.Value;
+import uk.co.awe.pmat.db.ValueCount;
+import uk.co.awe.pmat.db.axis.AxisName;
+import uk.co.awe.pmat.db.axis.AxisType;
+import uk.co.awe.pmat.db.criteria.Category;
+import uk.co.awe.pmat.db.criteria.Comparator;
+import uk.co.awe.pmat.db.series.Series;
+
+/**
+ *
+ * @author AWE Plc copyright 2013
+ */
+public class EmbeddedDatabaseConnectionTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    public EmbeddedDatabaseConnectionTest() {
+    }
+
+    private static Run run(String runId, Machine machine, int... processors) {
+        final List<MetaData> metaData = new ArrayList<>();
+        metaData.add(new Application("Test Application", 1, 2, 3, "2D", "Test Application", false));
+        metaData.add(machine);
+        final Run run = new Run(runId, new Date(1000000L), new Date(2000000L), metaData,
+                "tester", false, runId + ".txt", "Test Tag");
+        for (int procs : processors) {
+            run.addDataSet(new RunData(
+                    Arrays.<Value<?>>asList(new Value<>("processors", Rank.UNKNOWN, procs)),
+                    Arrays.asList(new Value<>("time", Rank.fromInteger(0), 100.0 / procs))));
+        }
+        run.addFlags(Arrays.asList("-O2"));
+        return run;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="saved_runs_are_queried_and_read_back_from_the_file">
+    @Test
+    public void saved_runs_are_queried_and_read_back_from_the_file() throws DatabaseException {
+        File file = new File(folder.getRoot(), "test.store");
+        EmbeddedDatabaseConnection connection = new EmbeddedDatabaseConnection(file);
+        Machine machine = new Machine("Test Machine", "Test Vendor");
+
+        connection.saveAll(Arrays.asList(run("run1", machine, 1, 2, 4), run("run2", new Machine("Other", "Other"), 8)));
+
+        Restriction onMachine = connection.newRestriction(Category.MACHINE, "name", Rank.ANY_RANK,
+                Comparator.EQ, new Value<>("name", Rank.ANY_RANK, "Test Machine"));
+        Restriction fastRuns = connection.newRestriction(Category.RESULT, "time", Rank.ANY_RANK,
+                Comparator.LT, new Value<>("time", Rank.ANY_RANK, 60.0));
+
+        assertThat(connection.getFields(null, Category.PARAMETER), equalTo(Arrays.asList("processors")));
+        assertThat(onMachine.getMatchingIDs().size(), is(3));
+        assertThat(connection.getValues(Arrays.asList(onMachine, fastRuns), Category.PARAMETER,
+                "processors", Rank.ANY_RANK).size(), is(2));
+        assertThat(connection.getRanks(null, Category.RESULT, "time"), equalTo(Arrays.asList(Rank.fromInteger(0))));
+
+        DataGrid grid = connection.getDataGrid(AxisType.PARAMETER.newAxis(AxisName.X1, "processors"),
+                AxisType.RESULT.newAxis(AxisName.Y1, "time"), Rank.ANY_RANK,
+                Collections.singletonList(onMachine), Collections.<Series>emptyList());
+
+        assertThat(grid.size(), is(3));
+        assertThat(grid.getRows().get(2).getxValue().getValue(), is((Object) 4));
+        assertThat(grid.getRows().get(2).getyValue("time").getValue(), is((Object) 25.0));
+
+        connection.close();
+        EmbeddedDatabaseConnection reopened = new EmbeddedDatabaseConnection(file);
+        List<Run> runs = reopened.getRuns();
+
+        assertThat(runs.size(), is(2));
+        assertThat(runs.get(0).getRunId(), is("run1"));
+        assertThat(runs.get(0).getMetaData(MetaData.Type.MACHINE), equalTo((MetaData) machine));
+        assertThat(runs.get(0).getTag(), is("Test Tag"));
+        assertThat(reopened.getFlags(runs.get(0)), equalTo((Collection<String>) Arrays.asList("-O2")));
+        assertThat(reopened.getDataSets(runs.get(0)).size(), is(3));
+        assertThat(reopened.getAllMetaData(MetaData.Type.APPLICATION).size(), is(1));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="runs_are_read_a_sorted_and_filtered_page_at_a_time">
+    @Test
+    public void runs_are_read_a_sorted_and_filtered_page_at_a_time() throws DatabaseException {
+        EmbeddedDatabaseConnection connection = new EmbeddedDatabaseConnection(
+                new File(folder.getRoot(), "test.store"));
+        Machine machineA = new Machine("Machine A", "Test Vendor");
+        Machine machineB = new Machine("Machine B", "Test Vendor");
+        connection.saveAll(Arrays.asList(run("run1", machineB), run("run2", machineA),
+                run("run3", machineB), run("run4", machineA), run("other", machineB)));
+
+        Run.Column machineColumn = null;
+        for (Run.Column column : Run.TABLE_COLUMNS) {
+            if (column.getMetaDataType() == MetaData.Type.MACHINE) {
+                machineColumn = column;
+            }
+        }
+        RunQuery query = new RunQuery(machineColumn, false, "run");
+
+        RunPage first = connection.getRuns(query.at(0, 2));
+        RunPage second = connection.getRuns(query.after(first.getLastKey(), 2));
+        RunPage last = connection.getRuns(query.after(second.getLastKey(), 2));
+
+        assertThat(connection.getRunCount(query), is(4));
+        assertThat(first.getRuns().get(0).getRunId(), is("run3"));
+        assertThat(first.getRuns().get(1).getRunId(), is("run1"));
+        assertThat(second.getRuns().get(0).getRunId(), is("run4"));
+        assertThat(second.getRuns().get(1).getRunId(), is("run2"));
+        assertThat(last.getRuns().isEmpty(), is(true));
+        assertThat(last.getLastKey(), is(nullValue()));
+        assertThat(first.getRuns().get(0).getMetaData(MetaData.Type.MACHINE),
+                is(sameInstance(first.getRuns().get(1).getMetaData(MetaData.Type.MACHINE))));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="values_are_counted_by_the_sub_runs_matching_the_restrictions">
+    @Test
+    public void values_are_counted_by_the_sub_runs_matching_the_restrictions() throws DatabaseException {
+        EmbeddedDatabaseConnection connection = new EmbeddedDatabaseConnection(
+                new File(folder.getRoot(), "test.store"));
+        Machine machine = new Machine("Test Machine", "Test Vendor");
+        connection.saveAll(Arrays.asList(run("run1", machine, 1, 2, 4), run("run2", machine, 4),
+                run("run3", new Machine("Other", "Test Vendor"), 8)));
+
+        Restriction onMachine = connection.newRestriction(Category.MACHINE, "name", Rank.ANY_RANK,
+                Comparator.EQ, new Value<>("name", Rank.ANY_RANK, "Test Machine"));
+
+        Map<String, List<ValueCount>> machines = connection.getValueCounts(null, Category.MACHINE,
+                Arrays.asList("name", "vendor"));
+        Map<String, List<ValueCount>> processors = connection.getValueCounts(
+                Collections.singletonList(onMachine), Category.PARAMETER, Arrays.asList("processors", "missing"));
+
+        assertThat(machines.get("name"), equalTo(Arrays.asList(
+                new ValueCount(new Value<>("name", Rank.ANY_RANK, "Other"), 1),
+                new ValueCount(new Value<>("name", Rank.ANY_RANK, "Test Machine"), 4))));
+        assertThat(machines.get("vendor"), equalTo(Arrays.asList(
+                new ValueCount(new Value<>("vendor", Rank.ANY_RANK, "Test Vendor"), 5))));
+        assertThat(processors.keySet(), equalTo((Set<String>) new LinkedHashSet<>(Arrays.asList("processors", "missing"))));
+        assertThat(processors.get("processors"), equalTo(Arrays.asList(
+                new ValueCount(new Value<>("processors", Rank.ANY_RANK, 1), 1),
+                new ValueCount(new Value<>("processors", Rank.ANY_RANK, 2), 1),
+                new ValueCount(new Value<>("processors", Rank.ANY_RANK, 4), 2))));
+        assertThat(processors.get("missing").isEmpty(), is(true));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="results_only_saved_as_a_rank_aggregate_are_read_as_saved">
+    @Test
+    public void results_only_saved_as_a_rank_aggregate_are_read_as_saved() throws DatabaseException {
+        EmbeddedDatabaseConnection connection = new EmbeddedDatabaseConnection(
+                new File(folder.getRoot(), "test.store"));
+        Run run = new Run("run1", new Date(1000000L), new Date(2000000L),
+                Arrays.<MetaData>asList(new Machine("Test Machine", "Test Vendor")),
+                "tester", false, "run1.txt", "Test Tag");
+        run.addDataSet(new RunData(
+                Arrays.<Value<?>>asList(new Value<>("processors", Rank.UNKNOWN, 2)),
+                Arrays.asList(new Value<>("time", Rank.fromInteger(0), 2.0),
+                        new Value<>("time", Rank.fromInteger(1), 4.0),
+                        new Value<>("pmtm", 7.0, 0.5, ErrorType.SKAMPI_STANDARD, Rank.RANK_AVG, 3L, 0L))));
+        connection.saveAll(Collections.singletonList(run));
+
+        DataGrid time = connection.getDataGrid(AxisType.PARAMETER.newAxis(AxisName.X1, "processors"),
+                AxisType.RESULT.newAxis(AxisName.Y1, "time"), Rank.RANK_AVG,
+                Collections.<Restriction>emptyList(), Collections.<Series>emptyList());
+        DataGrid pmtm = connection.getDataGrid(AxisType.PARAMETER.newAxis(AxisName.X1, "processors"),
+                AxisType.RESULT.newAxis(AxisName.Y1, "pmtm"), Rank.RANK_AVG,
+                Collections.<Restriction>emptyList(), Collections.<Series>emptyList());
+
+        assertThat(time.getRows().get(0).getyValue("time").getValue(), is((Object) 3.0));
+        assertThat(pmtm.size(), is(1));
+        assertThat(pmtm.getRows().get(0).getyValue("pmtm").getValue(), is((Object) 7.0));
+        assertThat(pmtm.getRows().get(0).getyValue("pmtm").getErrorType(), is(ErrorType.SKAMPI_STANDARD));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="meta_data_used_by_a_run_is_not_deleted">
+    @Test
+    public void meta_data_used_by_a_run_is_not_deleted() throws DatabaseException {
+        EmbeddedDatabaseConnection connection = new EmbeddedDatabaseConnection(
+                new File(folder.getRoot(), "test.store"));
+        Machine machine = new Machine("Test Machine", "Test Vendor");
+        Run run = run("run1", machine, 1);
+        connection.save(run);
+
+        try {
+            connection.delete(machine);
+            fail("Deleted meta data used by a run");
+        } catch (DatabaseException ex) {
+            assertThat(connection.getAllMetaData(MetaData.Type.MACHINE).size(), is(1));
+        }
+
+        connection.deleteAll(Arrays.asList(run, machine));
+
+        assertThat(connection.getRuns().isEmpty(), is(true));
+        assertThat(connection.getAllMetaData(MetaData.Type.MACHINE).isEmpty(), is(true));
+        assertThat(connection.getFields(null, Category.RESULT).isEmpty(), is(true));
+    }// </editor-fold>
+}
@@ -0,0 +1,116 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ *
+ * @author AWE Plc copyright 2013
+ */
+public class JdbcCacheTest {
+
+    private static final String RESULT_QUERY = "SELECT result.Value FROM pmat.Result AS result"
+            + " JOIN SubRun AS sub_run ON result.SubRun_ID = sub_run.ID WHERE result.Name = ?";
+    private static final String ANALYSIS_QUERY = "SELECT analysis.Name FROM pmat.Analysis AS analysis";
+
+    public JdbcCacheTest() {
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="results_are_cached_by_the_full_parameter_list">
+    @Test
+    public void results_are_cached_by_the_full_parameter_list() {
+        JdbcCache cache = new JdbcCache(100);
+        // Lists of "Aa" and "BB" have the same hash code.
+        assertThat(Arrays.asList("Aa").hashCode(), is(Arrays.asList("BB").hashCode()));
+
+        cache.put(RESULT_QUERY, Arrays.asList("Aa"), Arrays.asList(1.0), cache.stamp());
+
+        assertThat(cache.get(RESULT_QUERY, Arrays.asList("Aa")), is((Object) Arrays.asList(1.0)));
+        assertThat(cache.get(RESULT_QUERY, Arrays.asList("BB")), is(nullValue()));
+        assertThat(cache.getHitCount(), is(1L));
+        assertThat(cache.getMissCount(), is(1L));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="least_recently_used_results_are_evicted_by_rows">
+    @Test
+    public void least_recently_used_results_are_evicted_by_rows() {
+        JdbcCache cache = new JdbcCache(5);
+        final List<Integer> twoRows = Arrays.asList(1, 2);
+
+        cache.put(RESULT_QUERY, Arrays.asList("a"), twoRows, cache.stamp());
+        cache.put(RESULT_QUERY, Arrays.asList("b"), twoRows, cache.stamp());
+        cache.get(RESULT_QUERY, Arrays.asList("a"));
+        cache.put(RESULT_QUERY, Arrays.asList("c"), twoRows, cache.stamp());
+
+        assertThat(cache.get(RESULT_QUERY, Arrays.asList("a")), is(notNullValue()));
+        assertThat(cache.get(RESULT_QUERY, Arrays.asList("b")), is(nullValue()));
+        assertThat(cache.get(RESULT_QUERY, Arrays.asList("c")), is(notNullValue()));
+        assertThat(cache.getEvictionCount(), is(1L));
+        assertThat(cache.getWeight(), is(4L));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="invalidating_a_table_removes_only_dependent_results">
+    @Test
+    public void invalidating_a_table_removes_only_dependent_results() {
+        JdbcCache cache = new JdbcCache(100);
+
+        cache.put(RESULT_QUERY, Arrays.asList("a"), Arrays.asList(1.0), cache.stamp());
+        cache.put(ANALYSIS_QUERY, Arrays.asList(), Arrays.asList("x"), cache.stamp());
+        cache.invalidate(EnumSet.of(JdbcTable.ANALYSIS));
+
+        assertThat(cache.get(RESULT_QUERY, Arrays.asList("a")), is(notNullValue()));
+        assertThat(cache.get(ANALYSIS_QUERY, Arrays.asList()), is(nullValue()));
+
+        cache.invalidate(EnumSet.of(JdbcTable.SUB_RUN));
+        assertThat(cache.get(RESULT_QUERY, Arrays.asList("a")), is(nullValue()));
+        assertThat(cache.getWeight(), is(0L));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="results_read_before_an_invalidation_are_not_cached">
+    @Test
+    public void results_read_before_an_invalidation_are_not_cached() {
+        JdbcCache cache = new JdbcCache(100);
+
+        final long stamp = cache.stamp();
+        cache.invalidate(EnumSet.of(JdbcTable.RESULT));
+        cache.put(RESULT_QUERY, Arrays.asList("a"), Arrays.asList(1.0), stamp);
+
+        assertThat(cache.get(RESULT_QUERY, Arrays.asList("a")), is(nullValue()));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="tables_are_read_from_the_query">
+    @Test
+    public void tables_are_read_from_the_query() {
+        assertThat(JdbcCache.tablesRead(RESULT_QUERY),
+                equalTo(EnumSet.of(JdbcTable.RESULT, JdbcTable.SUB_RUN)));
+    }// </editor-fold>
+
+
+    // <editor-fold defaultstate="collapsed" desc="results_using_a_restriction_table_survive_its_renaming">
+    @Test
+    public void results_using_a_restriction_table_survive_its_renaming() {
+        JdbcCache cache = new JdbcCache(100);
+        JdbcRestrictionTables restrictionTables = new JdbcRestrictionTables("pmat", 10);
+        final String clause = "sub_run.ID IN (SELECT sub_run.ID FROM pmat.Machine AS machine WHERE machine.Name = ?)";
+
+        JdbcRestrictionTables.Table first = restrictionTables.register(clause, Arrays.<Object>asList("cray"));
+        cache.put(ANALYSIS_QUERY + " JOIN " + first.getName(), Arrays.<Object>asList(first),
+                Arrays.asList(1.0), cache.stamp());
+        restrictionTables.invalidate(EnumSet.of(JdbcTable.MACHINE));
+        JdbcRestrictionTables.Table second = restrictionTables.register(clause, Arrays.<Object>asList("cray"));
+
+        assertThat(second.getName(), not(first.getName()));
+        assertThat(cache.get(ANALYSIS_QUERY + " JOIN " + second.getName(), Arrays.<Object>asList(second)),
+                is((Object) Arrays.asList(1.0)));
+
+        // The restriction clause reads the machines, although the query does
+        // not name them.
+        cache.invalidate(EnumSet.of(JdbcTable.MACHINE));
+        assertThat(cache.get(ANALYSIS_QUERY + " JOIN " + second.getName(), Arrays.<Object>asList(second)),
+                is(nullValue()));
+    }// </editor-fold>
+}
@@ -0,0 +1,95 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ *
+ * @author AWE Plc copyright 2013
+ */
+public class JdbcConnectionPoolTest {
+
+    private static final String URL = "jdbc:pooltest:";
+
+    private final List<Boolean> opened = new ArrayList<>();
+    private Driver driver;
+
+    public JdbcConnectionPoolTest() {
+    }
+
+    private Connection connection() {
+        final int index = opened.size();
+        opened.add(true);
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class },
+                new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "close":
+                        opened.set(index, false);
+                        return null;
+                    case "isClosed":
+                        return !opened.get(index);
+                    case "getAutoCommit":
+                    case "isValid":
+                        return true;
+                    default:
+                        return null;
+                }
+            }
+        });
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        driver = (Driver) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Driver.class },
+                new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "acceptsURL":
+                        return ((String) args[0]).startsWith(URL);
+                    case "connect":
+                        return ((String) args[0]).startsWith(URL) ? connection() : null;
+                    default:
+                        return method.getReturnType() == boolean.class ? false : null;
+                }
+            }
+        });
+        DriverManager.registerDriver(driver);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        DriverManager.deregisterDriver(driver);
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="a_closed_pool_opens_new_connections">
+    @Test
+    public void a_closed_pool_opens_new_connections() throws Exception {
+        JdbcConnectionPool pool = new JdbcConnectionPool("test", URL, null, null, true, 2, 60000, 0, 1000, 0, false);
+
+        pool.borrow().close();
+        Connection borrowed = pool.borrow();
+        pool.close();
+
+        assertThat(opened.size(), is(1));
+        assertThat(pool.borrow(), is(notNullValue()));
+        assertThat(opened.size(), is(2));
+
+        // Connections borrowed before the pool was closed are not kept.
+        borrowed.close();
+        assertThat(opened.get(0), is(false));
+    }// </editor-fold>
+}
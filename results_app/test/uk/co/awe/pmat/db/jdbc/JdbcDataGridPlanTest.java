@@ -0,0 +1,128 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import uk.co.awe.pmat.Configuration;
+import uk.co.awe.pmat.db.Rank;
+import uk.co.awe.pmat.db.Restriction;
+import uk.co.awe.pmat.db.axis.Axis;
+import uk.co.awe.pmat.db.axis.AxisName;
+import uk.co.awe.pmat.db.axis.AxisType;
+import uk.co.awe.pmat.db.series.Series;
+import uk.co.awe.pmat.db.series.SeriesType;
+import uk.co.awe.pmat.deriveddata.ParserValues.Variable;
+
+/**
+ *
+ * @author AWE Plc copyright 2013
+ */
+public class JdbcDataGridPlanTest {
+
+    private static JdbcHelper HELPER;
+
+    public JdbcDataGridPlanTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        // Nothing is read from the database without restrictions, so no
+        // connection is made.
+        HELPER = new JdbcHelper(new Configuration(new JdbcProperties(), Configuration.Mode.TEST));
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        HELPER.closeConnection();
+        HELPER = null;
+    }
+
+    private static JdbcDataGridBuilder builder(Axis xAxis, Axis yAxis, Rank rank, Series... series) {
+        return new JdbcDataGridBuilder(HELPER, xAxis, yAxis, rank, Collections.<Restriction>emptyList(),
+                Arrays.asList(series), true);
+    }
+
+    private static JdbcDataGridBuilder builder(Axis xAxis, Axis yAxis) {
+        return builder(xAxis, yAxis, Rank.ANY_RANK);
+    }
+
+    private static Axis derived(Variable.Type type, String name) {
+        return Axis.newDerivedAxis(AxisName.Y1, name, new Variable(type, name));
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="shapes_differing_only_in_names_share_a_plan">
+    @Test
+    public void shapes_differing_only_in_names_share_a_plan() throws Exception {
+        JdbcDataGridBuilder first = builder(AxisType.PARAMETER.newAxis(AxisName.X1, "processors"),
+                AxisType.RESULT.newAxis(AxisName.Y1, "time"), Rank.RANK_AVG,
+                SeriesType.PARAMETER.newSeries("cells"), SeriesType.RESULT.newSeries("memory"));
+        JdbcDataGridBuilder second = builder(AxisType.PARAMETER.newAxis(AxisName.X1, "threads"),
+                AxisType.RESULT.newAxis(AxisName.Y1, "bandwidth"), Rank.RANK_AVG,
+                SeriesType.PARAMETER.newSeries("size"), SeriesType.RESULT.newSeries("latency"));
+
+        String firstQuery = first.generateQuery();
+        JdbcDataGridPlan plan = HELPER.getDataGridPlan(first.planKey());
+        String secondQuery = second.generateQuery();
+
+        assertThat(second.planKey(), equalTo(first.planKey()));
+        assertThat(HELPER.getDataGridPlan(second.planKey()), is(sameInstance(plan)));
+        assertThat(secondQuery, is(firstQuery));
+        assertThat(first.getSqlParams(), equalTo(Arrays.<Object>asList(
+                "time", "time", "time", "memory", "memory", "memory", "processors", "cells")));
+        assertThat(second.getSqlParams(), equalTo(Arrays.<Object>asList(
+                "bandwidth", "bandwidth", "bandwidth", "latency", "latency", "latency", "threads", "size")));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="shapes_differing_in_rank_do_not_share_a_plan">
+    @Test
+    public void shapes_differing_in_rank_do_not_share_a_plan() throws Exception {
+        Axis xAxis = AxisType.PARAMETER.newAxis(AxisName.X1, "processors");
+        Axis yAxis = AxisType.RESULT.newAxis(AxisName.Y1, "time");
+
+        JdbcDataGridBuilder average = builder(xAxis, yAxis, Rank.RANK_AVG);
+        JdbcDataGridBuilder maximum = builder(xAxis, yAxis, Rank.RANK_MAX);
+
+        assertThat(maximum.planKey(), not(equalTo(average.planKey())));
+        assertThat(maximum.generateQuery(), not(equalTo(average.generateQuery())));
+        // Any other rank reads the results of every rank in the same way.
+        assertThat(builder(xAxis, yAxis, Rank.fromInteger(0)).planKey(),
+                equalTo(builder(xAxis, yAxis, Rank.ANY_RANK).planKey()));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="shapes_differing_in_meta_data_do_not_share_a_plan">
+    @Test
+    public void shapes_differing_in_meta_data_do_not_share_a_plan() throws Exception {
+        Axis yAxis = AxisType.RESULT.newAxis(AxisName.Y1, "time");
+
+        JdbcDataGridBuilder machine = builder(AxisType.META_DATA.newAxis(AxisName.X1, "MACHINE"), yAxis);
+        JdbcDataGridBuilder compiler = builder(AxisType.META_DATA.newAxis(AxisName.X1, "COMPILER"), yAxis);
+        JdbcDataGridBuilder machineSeries = builder(AxisType.PARAMETER.newAxis(AxisName.X1, "processors"),
+                yAxis, Rank.ANY_RANK, SeriesType.META_DATA.newSeries("MACHINE"));
+        JdbcDataGridBuilder compilerSeries = builder(AxisType.PARAMETER.newAxis(AxisName.X1, "processors"),
+                yAxis, Rank.ANY_RANK, SeriesType.META_DATA.newSeries("COMPILER"));
+
+        assertThat(compiler.planKey(), not(equalTo(machine.planKey())));
+        assertThat(compiler.generateQuery(), not(equalTo(machine.generateQuery())));
+        assertThat(compilerSeries.planKey(), not(equalTo(machineSeries.planKey())));
+        assertThat(compilerSeries.generateQuery(), not(equalTo(machineSeries.generateQuery())));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="shapes_differing_in_derived_variables_do_not_share_a_plan">
+    @Test
+    public void shapes_differing_in_derived_variables_do_not_share_a_plan() throws Exception {
+        Axis xAxis = AxisType.PARAMETER.newAxis(AxisName.X1, "processors");
+
+        JdbcDataGridBuilder time = builder(xAxis, derived(Variable.Type.RESULT, "time"));
+        JdbcDataGridBuilder memory = builder(xAxis, derived(Variable.Type.RESULT, "memory"));
+        JdbcDataGridBuilder parameter = builder(xAxis, derived(Variable.Type.PARAMETER, "time"));
+
+        assertThat(memory.planKey(), not(equalTo(time.planKey())));
+        assertThat(parameter.planKey(), not(equalTo(time.planKey())));
+        assertThat(parameter.generateQuery(), not(equalTo(time.generateQuery())));
+        assertThat(builder(xAxis, derived(Variable.Type.RESULT, "time")).planKey(), equalTo(time.planKey()));
+    }// </editor-fold>
+}
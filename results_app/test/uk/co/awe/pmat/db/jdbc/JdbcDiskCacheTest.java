@@ -0,0 +1,119 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.awe.pmat.db.DataGrid;
+import uk.co.awe.pmat.db.Rank;
+import uk.co.awe.pmat.db.Value;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ *
+ * @author AWE Plc copyright 2013
+ */
+public class JdbcDiskCacheTest {
+
+    private static final String QUERY = "SELECT result.Value FROM pmat.Result AS result WHERE result.Name = ?";
+    private static final List<Object> PARAMS = Arrays.<Object>asList("time");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    public JdbcDiskCacheTest() {
+    }
+
+    private static DataGrid grid(int size) {
+        final List<DataGrid.Row> rows = new ArrayList<>();
+        for (int idx = 0; idx < size; ++idx) {
+            final Value<Integer> xValue = new Value<>("x", Rank.ANY_RANK, idx);
+            final Value<Double> yValue = new Value<>("y", Rank.ANY_RANK, idx * 0.5);
+            rows.add(new DataGrid.Row(xValue, Collections.<String, Value<?>>singletonMap("y", yValue),
+                    DataGrid.NULL_SERIES_GROUP));
+        }
+        return new DataGrid("x", "y", rows);
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="grids_are_read_back_from_disk">
+    @Test
+    public void grids_are_read_back_from_disk() {
+        JdbcDiskCache cache = new JdbcDiskCache(null, folder.getRoot(), 1024 * 1024);
+        DataGrid dataGrid = grid(3);
+
+        cache.put(QUERY, PARAMS, "1:1;", dataGrid);
+        DataGrid cached = new JdbcDiskCache(null, folder.getRoot(), 1024 * 1024).get(QUERY, PARAMS, "1:1;");
+
+        assertThat(cached.size(), is(3));
+        assertThat(cached.getRows().get(2).getyValue("y").getValue(),
+                is(dataGrid.getRows().get(2).getyValue("y").getValue()));
+        assertThat(cached.getRows().get(0).getxValue().getRank(), is(sameInstance(Rank.ANY_RANK)));
+        assertThat(cached.getRows().get(0).getSeriesGroup(), is(sameInstance((Object) DataGrid.NULL_SERIES_GROUP)));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="grids_are_not_read_for_a_different_key">
+    @Test
+    public void grids_are_not_read_for_a_different_key() {
+        JdbcDiskCache cache = new JdbcDiskCache(null, folder.getRoot(), 1024 * 1024);
+
+        cache.put(QUERY, PARAMS, "1:1;", grid(1));
+
+        assertThat(cache.get(QUERY, PARAMS, "2:2;"), is(nullValue()));
+        assertThat(cache.get(QUERY, Arrays.<Object>asList("other"), "1:1;"), is(nullValue()));
+        assertThat(cache.get(QUERY, PARAMS, null), is(nullValue()));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="grids_restricted_by_temporary_tables_are_keyed_by_their_restriction">
+    @Test
+    public void grids_restricted_by_temporary_tables_are_keyed_by_their_restriction() {
+        JdbcDiskCache cache = new JdbcDiskCache(null, folder.getRoot(), 1024 * 1024);
+        JdbcRestrictionTables first = new JdbcRestrictionTables("pmat", 10);
+        JdbcRestrictionTables second = new JdbcRestrictionTables("pmat", 10);
+        JdbcRestrictionTables third = new JdbcRestrictionTables("pmat", 10);
+
+        JdbcRestrictionTables.Table a = first.register("subrun.ID > ?", Arrays.<Object>asList(5));
+        JdbcRestrictionTables.Table b = second.register("subrun.ID < ?", Arrays.<Object>asList(5));
+        JdbcRestrictionTables.Table c = third.register("subrun.ID > ?", Arrays.<Object>asList(5));
+        final String query = QUERY + " AND result.SubRun IN (SELECT ID FROM " + a.getName() + ")";
+
+        cache.put(query, Arrays.<Object>asList(a, "time"), "1:1;", grid(1));
+
+        assertThat(cache.get(query.replace(a.getName(), b.getName()), Arrays.<Object>asList(b, "time"), "1:1;"),
+                is(nullValue()));
+        assertThat(cache.get(query.replace(a.getName(), c.getName()), Arrays.<Object>asList(c, "time"), "1:1;").size(),
+                is(1));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="least_recently_used_grids_are_deleted">
+    @Test
+    public void least_recently_used_grids_are_deleted() {
+        JdbcDiskCache unbounded = new JdbcDiskCache(null, folder.getRoot(), Long.MAX_VALUE);
+        unbounded.put(QUERY, PARAMS, "1;", grid(1000));
+        final File[] files = folder.getRoot().listFiles();
+        assertThat(files.length, is(1));
+        assertTrue(files[0].setLastModified(System.currentTimeMillis() - 60000));
+
+        JdbcDiskCache cache = new JdbcDiskCache(null, folder.getRoot(), files[0].length() * 3 / 2);
+        cache.put(QUERY, PARAMS, "2;", grid(1000));
+
+        assertThat(cache.get(QUERY, PARAMS, "1;"), is(nullValue()));
+        assertThat(cache.get(QUERY, PARAMS, "2;").size(), is(1000));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="clearing_deletes_all_grids">
+    @Test
+    public void clearing_deletes_all_grids() {
+        JdbcDiskCache cache = new JdbcDiskCache(null, folder.getRoot(), 1024 * 1024);
+
+        cache.put(QUERY, PARAMS, "1;", grid(1));
+        cache.clear();
+
+        assertThat(cache.get(QUERY, PARAMS, "1;"), is(nullValue()));
+    }// </editor-fold>
+
+}
@@ -0,0 +1,89 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ *
+ * @author AWE Plc copyright 2013
+ */
+public class JdbcIdCacheTest {
+
+    private static final List<Object> KEY = Arrays.<Object>asList("name", "vendor");
+    private static final List<Object> OTHER_KEY = Arrays.<Object>asList("other", "vendor");
+
+    public JdbcIdCacheTest() {
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="ids_are_cached_by_table_and_business_key">
+    @Test
+    public void ids_are_cached_by_table_and_business_key() {
+        JdbcIdCache cache = new JdbcIdCache(10);
+
+        cache.put(JdbcTable.MACHINE, KEY, 1L, false);
+
+        assertThat(cache.get(JdbcTable.MACHINE, Arrays.<Object>asList("name", "vendor")), is(1L));
+        assertThat(cache.get(JdbcTable.MACHINE, OTHER_KEY), is(nullValue()));
+        assertThat(cache.get(JdbcTable.COMPILER, KEY), is(nullValue()));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="least_recently_used_ids_are_evicted">
+    @Test
+    public void least_recently_used_ids_are_evicted() {
+        JdbcIdCache cache = new JdbcIdCache(2);
+
+        cache.put(JdbcTable.MACHINE, KEY, 1L, false);
+        cache.put(JdbcTable.MACHINE, OTHER_KEY, 2L, false);
+        cache.get(JdbcTable.MACHINE, KEY);
+        cache.put(JdbcTable.COMPILER, KEY, 3L, false);
+
+        assertThat(cache.get(JdbcTable.MACHINE, KEY), is(1L));
+        assertThat(cache.get(JdbcTable.MACHINE, OTHER_KEY), is(nullValue()));
+        assertThat(cache.get(JdbcTable.COMPILER, KEY), is(3L));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="transaction_ids_are_only_shared_once_committed">
+    @Test
+    public void transaction_ids_are_only_shared_once_committed() throws InterruptedException {
+        final JdbcIdCache cache = new JdbcIdCache(10);
+        final Long[] seenByOtherThread = new Long[1];
+        final Thread other = new Thread() {
+            @Override
+            public void run() {
+                seenByOtherThread[0] = cache.get(JdbcTable.MACHINE, KEY);
+            }
+        };
+
+        cache.put(JdbcTable.MACHINE, KEY, 1L, true);
+        assertThat(cache.get(JdbcTable.MACHINE, KEY), is(1L));
+
+        other.start();
+        other.join();
+        assertThat(seenByOtherThread[0], is(nullValue()));
+
+        cache.rollback();
+        assertThat(cache.get(JdbcTable.MACHINE, KEY), is(nullValue()));
+
+        cache.put(JdbcTable.MACHINE, KEY, 2L, true);
+        cache.commit();
+        cache.rollback();
+        assertThat(cache.get(JdbcTable.MACHINE, KEY), is(2L));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="invalidating_a_table_removes_only_its_ids">
+    @Test
+    public void invalidating_a_table_removes_only_its_ids() {
+        JdbcIdCache cache = new JdbcIdCache(10);
+
+        cache.put(JdbcTable.MACHINE, KEY, 1L, false);
+        cache.put(JdbcTable.COMPILER, KEY, 2L, false);
+        cache.invalidate(JdbcTable.MACHINE);
+
+        assertThat(cache.get(JdbcTable.MACHINE, KEY), is(nullValue()));
+        assertThat(cache.get(JdbcTable.COMPILER, KEY), is(2L));
+    }// </editor-fold>
+
+}
@@ -0,0 +1,58 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ *
+ * @author AWE Plc copyright 2013
+ */
+public class JdbcQueryStatsTest {
+
+    public JdbcQueryStatsTest() {
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="place_holder_lists_are_collapsed">
+    @Test
+    public void place_holder_lists_are_collapsed() {
+        assertThat(JdbcQueryStats.template("SELECT ID FROM pmat.Run WHERE ID IN (?, ?, ?)"),
+                is(JdbcQueryStats.template("SELECT ID FROM pmat.Run WHERE ID IN (?)")));
+        assertThat(JdbcQueryStats.template("INSERT INTO pmat.Flags (Name) VALUES (?), (?),\n (?)"),
+                is("INSERT INTO pmat.Flags (Name) VALUES (?...), ..."));
+        assertThat(JdbcQueryStats.template("SELECT  ID\n FROM pmat.Run WHERE ID = ?"),
+                is("SELECT ID FROM pmat.Run WHERE ID = ?"));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="restriction_table_names_are_collapsed">
+    @Test
+    public void restriction_table_names_are_collapsed() {
+        assertThat(JdbcQueryStats.template("SELECT Name FROM pmat.SubRun AS sub_run"
+                + " WHERE sub_run.ID IN (SELECT ID FROM pmat.pmat_subruns_3_12_ids)"),
+                is(JdbcQueryStats.template("SELECT Name FROM pmat.SubRun AS sub_run"
+                + " WHERE sub_run.ID IN (SELECT ID FROM pmat.pmat_subruns_0_0_ids)")));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="statements_are_counted_by_template">
+    @Test
+    public void statements_are_counted_by_template() {
+        JdbcQueryStats stats = new JdbcQueryStats(100);
+
+        stats.record("SELECT ID FROM pmat.Run WHERE ID IN (?, ?)", TimeUnit.MILLISECONDS.toNanos(3), 2, 16);
+        stats.record("SELECT ID FROM pmat.Run WHERE ID IN (?)", TimeUnit.MILLISECONDS.toNanos(150), 1, 8);
+        stats.record("DELETE FROM pmat.Run WHERE ID = ?", TimeUnit.MILLISECONDS.toNanos(1), 1, 0);
+
+        final String[] lines = stats.getTemplateStatistics();
+        assertThat(lines.length, is(2));
+        assertThat(lines[0], is("count=2 total=153ms mean=76.5ms p50<=5ms p95<=200ms p99<=200ms"
+                + " max=150ms rows=3 bytes=24 :: SELECT ID FROM pmat.Run WHERE ID IN (?...)"));
+        assertThat(stats.getStatementCount(), is(3L));
+        assertThat(stats.getSlowStatementCount(), is(1L));
+
+        stats.reset();
+        assertThat(stats.getTemplateStatistics().length, is(0));
+        assertThat(stats.getStatementCount(), is(0L));
+    }// </editor-fold>
+
+}
@@ -0,0 +1,77 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import uk.co.awe.pmat.db.Rank;
+import uk.co.awe.pmat.db.Value;
+
+/**
+ *
+ * @author AWE Plc copyright 2013
+ */
+public class JdbcRankRollupTest {
+
+    public JdbcRankRollupTest() {
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="only_per_rank_values_are_rolled_up">
+    @Test
+    public void only_per_rank_values_are_rolled_up() {
+        List<Value<Double>> results = new ArrayList<>();
+        for (int rank = 0; rank < 4; ++rank) {
+            results.add(new Value<>("time", Rank.fromInteger(rank), rank + 1.0));
+        }
+        results.add(new Value<>("time", Rank.RANK_AVG, 100.0));
+        results.add(new Value<>("total", Rank.ALL_RANKS, 100.0));
+        results.add(new Value<>("memory", Rank.fromInteger(0), 3.0));
+
+        Map<String, JdbcRankRollup> rollups = JdbcRankRollup.rollUp(results);
+
+        assertThat(new ArrayList<>(rollups.keySet()), equalTo(Arrays.asList("time", "memory")));
+        JdbcRankRollup time = rollups.get("time");
+        assertThat(time.getCount(), is(4));
+        assertThat(time.getMin(), is(1.0));
+        assertThat(time.getMax(), is(4.0));
+        assertThat(time.getSum(), is(10.0));
+        assertThat(time.getSumSquares(), is(30.0));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="only_rank_aggregates_are_read_from_rollups">
+    @Test
+    public void only_rank_aggregates_are_read_from_rollups() {
+        assertThat(JdbcRankRollup.isAggregate(Rank.RANK_AVG), is(true));
+        assertThat(JdbcRankRollup.isAggregate(Rank.RANK_MAX), is(true));
+        assertThat(JdbcRankRollup.isAggregate(Rank.RANK_MIN), is(true));
+        assertThat(JdbcRankRollup.isAggregate(Rank.ANY_RANK), is(false));
+        assertThat(JdbcRankRollup.isAggregate(Rank.fromInteger(0)), is(false));
+
+        assertThat(JdbcRankRollup.valueSelect("r", Rank.RANK_MAX), is("r.MaxValue"));
+        assertThat(JdbcRankRollup.valueSelect("r", Rank.RANK_AVG), is("r.SumValue / r.RankCount"));
+        assertThat(JdbcRankRollup.errorSelect("r", Rank.RANK_MIN), is("0"));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="names_are_grouped_as_the_name_column_compares_them">
+    @Test
+    public void names_are_grouped_as_the_name_column_compares_them() {
+        final String longName = "a result name which is too long to fit in the name column";
+        List<Value<Double>> results = new ArrayList<>();
+        results.add(new Value<>("Time", Rank.fromInteger(0), 1.0));
+        results.add(new Value<>("time ", Rank.fromInteger(1), 2.0));
+        results.add(new Value<>("TIME", Rank.fromInteger(2), 3.0));
+        results.add(new Value<>(longName, Rank.fromInteger(0), 4.0));
+        results.add(new Value<>(longName + " and then some", Rank.fromInteger(1), 5.0));
+
+        Map<String, JdbcRankRollup> rollups = JdbcRankRollup.rollUp(results);
+
+        assertThat(new ArrayList<>(rollups.keySet()), equalTo(Arrays.asList("Time",
+                longName.substring(0, JdbcRankRollup.NAME_LENGTH))));
+        assertThat(rollups.get("Time").getCount(), is(3));
+        assertThat(rollups.get("Time").getSum(), is(6.0));
+        assertThat(rollups.get(longName.substring(0, JdbcRankRollup.NAME_LENGTH)).getCount(), is(2));
+    }// </editor-fold>
+}
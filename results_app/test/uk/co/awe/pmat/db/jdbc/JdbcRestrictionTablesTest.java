@@ -0,0 +1,126 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ *
+ * @author AWE Plc copyright 2013
+ */
+public class JdbcRestrictionTablesTest {
+
+    public JdbcRestrictionTablesTest() {
+    }
+
+    private static Connection session(final Set<String> temporaryTables, final List<String> executed) {
+        final InvocationHandler statement = new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("executeUpdate") && args != null) {
+                    executed.add((String) args[0]);
+                }
+                return method.getReturnType() == int.class ? 0 : null;
+            }
+        };
+        return (Connection) Proxy.newProxyInstance(JdbcRestrictionTablesTest.class.getClassLoader(),
+                new Class<?>[] { Connection.class, JdbcConnectionPool.Session.class },
+                new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getTemporaryTables":
+                        return temporaryTables;
+                    case "isReadOnly":
+                        return false;
+                    case "createStatement":
+                        return Proxy.newProxyInstance(getClass().getClassLoader(),
+                                new Class<?>[] { Statement.class }, statement);
+                    case "prepareStatement":
+                        executed.add((String) args[0]);
+                        return Proxy.newProxyInstance(getClass().getClassLoader(),
+                                new Class<?>[] { PreparedStatement.class }, statement);
+                    default:
+                        return null;
+                }
+            }
+        });
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="a_table_forgotten_before_its_query_runs_is_still_created">
+    @Test
+    public void a_table_forgotten_before_its_query_runs_is_still_created() throws Exception {
+        JdbcRestrictionTables restrictionTables = new JdbcRestrictionTables("pmat", 10);
+        Set<String> created = new HashSet<>();
+        List<String> executed = new ArrayList<>();
+
+        JdbcRestrictionTables.Table table = restrictionTables.register("subrun.ID > ?", Arrays.<Object>asList(5));
+        restrictionTables.invalidate(EnumSet.of(JdbcTable.SUB_RUN));
+        restrictionTables.prepare(session(created, executed), Collections.singletonList(table));
+
+        assertThat(created, equalTo(Collections.singleton(table.getName())));
+        assertThat(executed.get(0), containsString("CREATE TEMPORARY TABLE " + table.getName()));
+        assertThat(executed.get(1), containsString("WHERE subrun.ID > ?"));
+
+        executed.clear();
+        restrictionTables.prepare(session(created, executed), Collections.<JdbcRestrictionTables.Table>emptyList());
+
+        assertThat(created.isEmpty(), is(true));
+        assertThat(executed, equalTo(Arrays.asList("DROP TEMPORARY TABLE IF EXISTS " + table.getName())));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="tables_are_identified_by_their_clause_rather_than_their_name">
+    @Test
+    public void tables_are_identified_by_their_clause_rather_than_their_name() {
+        JdbcRestrictionTables first = new JdbcRestrictionTables("pmat", 10);
+        JdbcRestrictionTables second = new JdbcRestrictionTables("pmat", 10);
+
+        JdbcRestrictionTables.Table a = first.register("subrun.ID > ?", Arrays.<Object>asList(5));
+        JdbcRestrictionTables.Table b = second.register("subrun.ID < ?", Arrays.<Object>asList(5));
+        JdbcRestrictionTables.Table c = second.register("subrun.ID > ?", Arrays.<Object>asList(5));
+
+        assertThat(a.getName(), is(b.getName()));
+        assertThat(a, not(equalTo(b)));
+        assertThat(a, equalTo(c));
+        assertThat(JdbcRestrictionTables.normalise("SELECT ID FROM " + c.getName()),
+                is("SELECT ID FROM pmat.pmat_subruns_ids"));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="only_tables_reading_a_changed_table_are_forgotten">
+    @Test
+    public void only_tables_reading_a_changed_table_are_forgotten() throws Exception {
+        JdbcRestrictionTables restrictionTables = new JdbcRestrictionTables("pmat", 10);
+        Set<String> created = new HashSet<>();
+        List<String> executed = new ArrayList<>();
+
+        JdbcRestrictionTables.Table machine = restrictionTables.register("subrun.ID IN (SELECT subrun.ID FROM pmat."
+                + JdbcTable.MACHINE.tableName() + " WHERE name = ?)", Arrays.<Object>asList("cray"));
+        JdbcRestrictionTables.Table ids = restrictionTables.register("subrun.ID > ?", Arrays.<Object>asList(5));
+        restrictionTables.prepare(session(created, executed), Arrays.asList(machine, ids));
+
+        restrictionTables.invalidate(EnumSet.of(JdbcTable.ANALYSIS));
+        restrictionTables.prepare(session(created, executed), Collections.<JdbcRestrictionTables.Table>emptyList());
+        assertThat(created, equalTo((Set<String>) new HashSet<>(Arrays.asList(machine.getName(), ids.getName()))));
+
+        restrictionTables.invalidate(EnumSet.of(JdbcTable.MACHINE));
+        restrictionTables.prepare(session(created, executed), Collections.<JdbcRestrictionTables.Table>emptyList());
+        assertThat(created, equalTo(Collections.singleton(ids.getName())));
+
+        restrictionTables.invalidate(EnumSet.of(JdbcTable.SUB_RUN));
+        restrictionTables.prepare(session(created, executed), Collections.<JdbcRestrictionTables.Table>emptyList());
+        assertThat(created.isEmpty(), is(true));
+    }// </editor-fold>
+}
@@ -0,0 +1,70 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import uk.co.awe.pmat.db.Rank;
+import uk.co.awe.pmat.db.Value;
+
+/**
+ *
+ * @author AWE Plc copyright 2013
+ */
+public class JdbcRowMapperTest {
+
+    public JdbcRowMapperTest() {
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="parameters_are_read_by_column_index">
+    @Test
+    public void parameters_are_read_by_column_index() throws Exception {
+        final List<String> labels = Arrays.asList("ID", "Type", "Value", "Rank", "Name");
+        final Object[] row = { 7L, "Integer", 64, 3, "cells" };
+        final int[] lookups = { 0 };
+
+        final ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] { ResultSetMetaData.class },
+                new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getColumnCount": return labels.size();
+                    case "getColumnLabel": return labels.get((Integer) args[0] - 1);
+                    case "getTableName": return "parameter";
+                    default: throw new UnsupportedOperationException(method.getName());
+                }
+            }
+        });
+        final ResultSet resultSet = (ResultSet) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] { ResultSet.class },
+                new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getMetaData")) {
+                    return metaData;
+                }
+                if (args == null || !(args[0] instanceof Integer)) {
+                    ++lookups[0];
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                return row[(Integer) args[0] - 1];
+            }
+        });
+
+        JdbcRowMapper<Value<?>> mapper = JdbcRowMapper.parameters(resultSet);
+        Value<?> value = mapper.map(resultSet);
+        mapper.map(resultSet);
+
+        assertThat(value.getName(), is("cells"));
+        assertThat(value.getRank(), is(Rank.fromInteger(3)));
+        assertThat(value.getValue(), is((Object) 64));
+        assertThat(lookups[0], is(0));
+    }// </editor-fold>
+}
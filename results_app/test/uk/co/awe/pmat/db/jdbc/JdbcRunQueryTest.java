@@ -0,0 +1,53 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import uk.co.awe.pmat.db.Run;
+import uk.co.awe.pmat.db.RunQuery;
+
+/**
+ *
+ * @author AWE Plc copyright 2013
+ */
+public class JdbcRunQueryTest {
+
+    public JdbcRunQueryTest() {
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="next_page_seeks_past_the_last_run">
+    @Test
+    public void next_page_seeks_past_the_last_run() {
+        RunQuery query = new RunQuery(Run.TABLE_COLUMNS.get(0), true, null)
+                .after(new RunQuery.Key("2013-01-01", 42L), 100);
+        List<Object> params = new ArrayList<>();
+
+        String sql = new JdbcRunQuery(query, "pmat").pageQuery(params);
+
+        assertThat(sql, containsString("(run.RunDate > ? OR (run.RunDate = ? AND run.ID > ?))"));
+        assertThat(sql, containsString("ORDER BY run.RunDate ASC, run.ID ASC LIMIT ?"));
+        assertThat(sql, not(containsString("JOIN")));
+        assertThat(sql, not(containsString("OFFSET")));
+        assertThat(params, equalTo(Arrays.<Object>asList("2013-01-01", "2013-01-01", 42L, 100)));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="filter_text_is_escaped_and_shared_by_the_count">
+    @Test
+    public void filter_text_is_escaped_and_shared_by_the_count() {
+        RunQuery query = new RunQuery(Run.TABLE_COLUMNS.get(0), false, " 50%_ ");
+        List<Object> pageParams = new ArrayList<>();
+        List<Object> countParams = new ArrayList<>();
+
+        new JdbcRunQuery(query.at(200, 100), "pmat").pageQuery(pageParams);
+        String count = new JdbcRunQuery(query, "pmat").countQuery(countParams);
+
+        assertThat(count, containsString("run.Machine IN (SELECT ID FROM pmat.Machine WHERE Name LIKE ?)"));
+        assertThat(countParams.get(0), is((Object) "%50\\%\\_%"));
+        assertThat(countParams.size(), is(10));
+        assertThat(pageParams.subList(0, 10), equalTo(countParams));
+        assertThat(pageParams.subList(10, 12), equalTo(Arrays.<Object>asList(100, 200)));
+    }// </editor-fold>
+}
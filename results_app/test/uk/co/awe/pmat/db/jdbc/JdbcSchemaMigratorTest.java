@@ -0,0 +1,43 @@
+package uk.co.awe.pmat.db.jdbc;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ *
+ * @author AWE Plc copyright 2013
+ */
+public class JdbcSchemaMigratorTest {
+
+    public JdbcSchemaMigratorTest() {
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="migrations_are_listed_in_version_order">
+    @Test
+    public void migrations_are_listed_in_version_order() throws Exception {
+        List<JdbcSchemaMigrator.Migration> migrations = JdbcSchemaMigrator.migrations();
+
+        assertThat(migrations.isEmpty(), is(false));
+        for (int idx = 0; idx < migrations.size(); ++idx) {
+            assertThat(migrations.get(idx).getVersion(), is(idx + 1));
+        }
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="scripts_are_split_into_statements">
+    @Test
+    public void scripts_are_split_into_statements() {
+        String script = "-- A comment.\n"
+                + "ALTER TABLE pmat.Result\n"
+                + "  ADD INDEX `NameSubRun` (`Name`, `SubRun`);\n"
+                + "\n"
+                + "DROP TABLE pmat.Old ;\n";
+
+        assertThat(JdbcSchemaMigrator.statements(script), equalTo(Arrays.asList(
+                "ALTER TABLE pmat.Result\n  ADD INDEX `NameSubRun` (`Name`, `SubRun`)",
+                "DROP TABLE pmat.Old")));
+    }// </editor-fold>
+
+}
@@ -0,0 +1,118 @@
+package uk.co.awe.pmat.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ *
+ * @author AWE Plc copyright 2013
+ */
+public class CompressedBitmapTest {
+
+    public CompressedBitmapTest() {
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="a_bitmap_holds_the_ids_added_in_ascending_order">
+    @Test
+    public void a_bitmap_holds_the_ids_added_in_ascending_order() {
+        CompressedBitmap bitmap = CompressedBitmap.of(Arrays.asList(70000L, 3L, 1L, 3L, 65536L));
+
+        assertThat(bitmap.toList(), equalTo(Arrays.asList(1L, 3L, 65536L, 70000L)));
+        assertThat(bitmap.cardinality(), is(4L));
+        assertThat(bitmap.contains(3L), is(true));
+        assertThat(bitmap.contains(2L), is(false));
+        assertThat(bitmap.contains(-1L), is(false));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="an_empty_bitmap_has_no_ids">
+    @Test
+    public void an_empty_bitmap_has_no_ids() {
+        CompressedBitmap bitmap = new CompressedBitmap();
+
+        assertThat(bitmap.isEmpty(), is(true));
+        assertThat(bitmap.cardinality(), is(0L));
+        assertThat(bitmap.iterator().hasNext(), is(false));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="negative_ids_cannot_be_added">
+    @Test(expected = IllegalArgumentException.class)
+    public void negative_ids_cannot_be_added() {
+        new CompressedBitmap().add(-1L);
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="ranges_of_ids_are_compressed">
+    @Test
+    public void ranges_of_ids_are_compressed() {
+        CompressedBitmap bitmap = new CompressedBitmap();
+        for (long id = 1000; id < 1000000; ++id) {
+            bitmap.add(id);
+        }
+        bitmap.optimise();
+
+        assertThat(bitmap.cardinality(), is(999000L));
+        assertThat(bitmap.contains(999999L), is(true));
+        assertThat(bitmap.contains(1000000L), is(false));
+        assertThat(bitmap.sizeInBytes() < 1000, is(true));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="intersection_and_union_match_those_of_sets">
+    @Test
+    public void intersection_and_union_match_those_of_sets() {
+        Random random = new Random(42);
+        // Mix sparse, dense and ranged blocks so that every pair of
+        // container types is combined.
+        List<Long> first = new ArrayList<>();
+        List<Long> second = new ArrayList<>();
+        for (int i = 0; i < 2000; ++i) {
+            first.add((long) random.nextInt(1 << 16));
+            second.add((long) random.nextInt(1 << 16));
+        }
+        for (int i = 0; i < 30000; ++i) {
+            first.add((1L << 16) + random.nextInt(1 << 16));
+            second.add((2L << 16) + random.nextInt(1 << 16));
+        }
+        for (long id = (2L << 16) + 100; id < (3L << 16) - 100; ++id) {
+            first.add(id);
+        }
+        for (long id = (1L << 16) + 5000; id < (1L << 16) + 9000; ++id) {
+            second.add(id);
+        }
+        for (long id = 5000; id < 7000; ++id) {
+            second.add(id);
+        }
+
+        CompressedBitmap a = CompressedBitmap.of(first);
+        CompressedBitmap b = CompressedBitmap.of(second);
+
+        TreeSet<Long> expectedAnd = new TreeSet<>(first);
+        expectedAnd.retainAll(second);
+        TreeSet<Long> expectedOr = new TreeSet<>(first);
+        expectedOr.addAll(second);
+
+        assertThat(a.and(b).toList(), equalTo((List<Long>) new ArrayList<>(expectedAnd)));
+        assertThat(b.and(a).toList(), equalTo((List<Long>) new ArrayList<>(expectedAnd)));
+        assertThat(a.or(b).toList(), equalTo((List<Long>) new ArrayList<>(expectedOr)));
+        assertThat(b.or(a).toList(), equalTo((List<Long>) new ArrayList<>(expectedOr)));
+        assertThat(a.and(b).cardinality(), is((long) expectedAnd.size()));
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="results_do_not_share_state_with_their_inputs">
+    @Test
+    public void results_do_not_share_state_with_their_inputs() {
+        CompressedBitmap a = CompressedBitmap.of(Arrays.asList(1L, 2L));
+        CompressedBitmap b = CompressedBitmap.of(Arrays.asList(100000L));
+
+        CompressedBitmap union = a.or(b);
+        a.add(3L);
+
+        assertThat(union.toList(), equalTo(Arrays.asList(1L, 2L, 100000L)));
+        assertThat(union, equalTo(CompressedBitmap.of(Arrays.asList(100000L, 2L, 1L))));
+    }// </editor-fold>
+
+}
@@ -19,6 +19,10 @@ SET time_zone = "+00:00";
 --
 -- Database: `ichnaea`
 --
+-- This is the baseline schema. Later changes are made by the numbered scripts
+-- in results_app/src/sql/migrations, which the application applies when it
+-- starts, or when run with -migrate.
+--
 
 -- --------------------------------------------------------
 